@@ -0,0 +1,92 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package benchmarks.it.crs4.seal.recab;
+
+import it.crs4.seal.common.TextSamMapping;
+import it.crs4.seal.recab.Covariate;
+import it.crs4.seal.recab.CovariateList;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Time each covariate on synthetic reads.
+ *
+ * codes applies a CovariateList containing only the selected covariate and
+ * computes the combined code for each base, as the recab mapper does.  values
+ * gets the covariate's text value for each base.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(CovariateBenchmark.BatchSize)
+public class CovariateBenchmark
+{
+	public static final int BatchSize = 1000;
+
+	@Param({"ReadGroup", "Quality", "Cycle", "Dinuc"})
+	public String covariate;
+
+	@Param({"100", "150", "250"})
+	public int readLength;
+
+	private CovariateList covariates;
+	private TextSamMapping[] mappings;
+
+	@Setup
+	public void setup()
+	{
+		Configuration conf = new Configuration();
+		conf.set(CovariateList.CONF_COVARIATES, covariate);
+		covariates = new CovariateList(conf);
+
+		String[] sam = SyntheticData.makeReads(BatchSize, readLength, "match");
+		mappings = new TextSamMapping[sam.length];
+		for (int i = 0; i < sam.length; ++i)
+			mappings[i] = new TextSamMapping(new Text(sam[i]));
+	}
+
+	@Benchmark
+	public long codes()
+	{
+		long sum = 0;
+		for (TextSamMapping m: mappings)
+		{
+			covariates.applyToMapping(m);
+			for (int pos = 0; pos < readLength; ++pos)
+				sum += covariates.getCode(pos);
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public void values(Blackhole bh)
+	{
+		Covariate cov = covariates.get(0);
+		for (TextSamMapping m: mappings)
+		{
+			cov.applyToMapping(m);
+			for (int pos = 0; pos < readLength; ++pos)
+				bh.consume(cov.getValue(pos));
+		}
+	}
+}
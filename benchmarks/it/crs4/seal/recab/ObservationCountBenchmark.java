@@ -0,0 +1,111 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package benchmarks.it.crs4.seal.recab;
+
+import it.crs4.seal.recab.ObservationCount;
+import it.crs4.seal.recab.RecabKey;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparator;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Time the serialization of the recab map output:  ObservationCount values,
+ * RecabKey keys and the raw comparison of serialized keys.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ObservationCountBenchmark
+{
+	private ObservationCount count;
+	private RecabKey key;
+	private DataOutputBuffer out;
+	private DataInputBuffer in;
+
+	private byte[] serializedCount;
+	private byte[] serializedKey1;
+	private byte[] serializedKey2;
+	private WritableComparator comparator;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		count = new ObservationCount(123456, 789);
+		key = new RecabKey("rg1", 987654321L);
+		out = new DataOutputBuffer();
+		in = new DataInputBuffer();
+
+		serializedCount = serialize(count);
+		serializedKey1 = serialize(key);
+		serializedKey2 = serialize(new RecabKey("rg1", 987654322L));
+		comparator = WritableComparator.get(RecabKey.class);
+	}
+
+	private byte[] serialize(Writable w) throws IOException
+	{
+		DataOutputBuffer buffer = new DataOutputBuffer();
+		w.write(buffer);
+		byte[] bytes = new byte[buffer.getLength()];
+		System.arraycopy(buffer.getData(), 0, bytes, 0, bytes.length);
+		return bytes;
+	}
+
+	@Benchmark
+	public int writeCount() throws IOException
+	{
+		out.reset();
+		count.write(out);
+		return out.getLength();
+	}
+
+	@Benchmark
+	public ObservationCount readCount() throws IOException
+	{
+		in.reset(serializedCount, serializedCount.length);
+		count.readFields(in);
+		return count;
+	}
+
+	@Benchmark
+	public int writeKey() throws IOException
+	{
+		out.reset();
+		key.write(out);
+		return out.getLength();
+	}
+
+	@Benchmark
+	public RecabKey readKey() throws IOException
+	{
+		in.reset(serializedKey1, serializedKey1.length);
+		key.readFields(in);
+		return key;
+	}
+
+	@Benchmark
+	public int compareSerializedKeys()
+	{
+		return comparator.compare(serializedKey1, 0, serializedKey1.length, serializedKey2, 0, serializedKey2.length);
+	}
+}
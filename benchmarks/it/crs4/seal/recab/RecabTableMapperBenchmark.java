@@ -0,0 +1,113 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package benchmarks.it.crs4.seal.recab;
+
+import it.crs4.seal.common.AbstractTaggedMapping;
+import it.crs4.seal.common.IMRContext;
+import it.crs4.seal.common.TextSamMapping;
+import it.crs4.seal.recab.ArrayVariantTable;
+import it.crs4.seal.recab.ObservationCount;
+import it.crs4.seal.recab.RecabKey;
+import it.crs4.seal.recab.RecabTableMapper;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Time RecabTableMapper.processMapping on synthetic reads.
+ *
+ * Each invocation processes a batch of reads.  processParsed works on
+ * mappings parsed once during setup, so it measures the mapper alone;
+ * parseAndProcess also parses each record, like a map task does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(RecabTableMapperBenchmark.BatchSize)
+public class RecabTableMapperBenchmark
+{
+	public static final int BatchSize = 1000;
+
+	@Param({"100", "150", "250"})
+	public int readLength;
+
+	@Param({"match", "mismatch", "indel"})
+	public String alignment;
+
+	@Param({"true", "false"})
+	public boolean inMapperCombining;
+
+	/**
+	 * Gives the benchmark access to the protected processMapping.
+	 */
+	private static class Mapper extends RecabTableMapper
+	{
+		public void process(AbstractTaggedMapping m, IMRContext<RecabKey, ObservationCount> context) throws IOException, InterruptedException
+		{
+			processMapping(m, context);
+		}
+	}
+
+	private Mapper mapper;
+	private SyntheticData.NullContext<RecabKey, ObservationCount> context;
+	private Text[] records;
+	private TextSamMapping[] mappings;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		ArrayVariantTable snps = new ArrayVariantTable();
+		snps.load(new SyntheticData.PositionReader(SyntheticData.makeVariantPositions(300)));
+
+		Configuration conf = new Configuration();
+		conf.setBoolean(RecabTableMapper.CONF_IN_MAPPER_COMBINING, inMapperCombining);
+
+		context = new SyntheticData.NullContext<RecabKey, ObservationCount>();
+		mapper = new Mapper();
+		mapper.setup(snps, context, conf);
+
+		String[] sam = SyntheticData.makeReads(BatchSize, readLength, alignment);
+		records = new Text[sam.length];
+		mappings = new TextSamMapping[sam.length];
+		for (int i = 0; i < sam.length; ++i)
+		{
+			records[i] = new Text(sam[i]);
+			mappings[i] = new TextSamMapping(records[i]);
+		}
+	}
+
+	@Benchmark
+	public long processParsed() throws IOException, InterruptedException
+	{
+		for (TextSamMapping m: mappings)
+			mapper.process(m, context);
+		return context.getWritten();
+	}
+
+	@Benchmark
+	public long parseAndProcess() throws IOException, InterruptedException
+	{
+		for (Text record: records)
+			mapper.process(new TextSamMapping(record), context);
+		return context.getWritten();
+	}
+}
@@ -0,0 +1,165 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package benchmarks.it.crs4.seal.recab;
+
+import it.crs4.seal.common.IMRContext;
+import it.crs4.seal.recab.VariantReader;
+import it.crs4.seal.recab.VariantRegion;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Synthetic reads and known variation sites for the recab benchmarks.
+ * Data is generated from fixed seeds so all runs see the same input.
+ */
+class SyntheticData
+{
+	public static final String Contig = "chr1";
+	public static final int ContigLength = 50000000;
+
+	private static final String Bases = "ACGT";
+
+	/**
+	 * Alignments of increasing complexity.
+	 * <ul>
+	 *   <li>match: a single M operator and no mismatches;</li>
+	 *   <li>mismatch: a single M operator and a mismatch every 20 bases;</li>
+	 *   <li>indel: soft clipping, an insertion, a deletion and a mismatch.</li>
+	 * </ul>
+	 */
+	public static final String[] AlignmentTypes = { "match", "mismatch", "indel" };
+
+	/**
+	 * Make n SAM records (without the SAM header) with reads of the given length,
+	 * half of them on the reverse strand.
+	 */
+	public static String[] makeReads(int n, int readLength, String alignmentType)
+	{
+		Random rnd = new Random(42);
+		String[] records = new String[n];
+		for (int i = 0; i < n; ++i)
+			records[i] = makeRead(rnd, "read" + i, readLength, alignmentType, i % 2 == 1);
+		return records;
+	}
+
+	public static String makeRead(Random rnd, String name, int readLength, String alignmentType, boolean reverse)
+	{
+		String cigar;
+		String md;
+
+		if ("match".equals(alignmentType))
+		{
+			cigar = readLength + "M";
+			md = String.valueOf(readLength);
+		}
+		else if ("mismatch".equals(alignmentType))
+		{
+			cigar = readLength + "M";
+			StringBuilder sb = new StringBuilder();
+			int covered = 0;
+			while (covered + 20 <= readLength)
+			{
+				sb.append(19).append(Bases.charAt(rnd.nextInt(4)));
+				covered += 20;
+			}
+			sb.append(readLength - covered);
+			md = sb.toString();
+		}
+		else if ("indel".equals(alignmentType))
+		{
+			// 5S xM 2I yM 3D zM, with a mismatch right after the deletion
+			int matched = readLength - 7;
+			int x = matched / 3;
+			int y = matched / 3;
+			int z = matched - x - y;
+			cigar = "5S" + x + "M2I" + y + "M3D" + z + "M";
+			md = (x + y) + "^ACG0" + Bases.charAt(rnd.nextInt(4)) + (z - 1);
+		}
+		else
+			throw new IllegalArgumentException("unknown alignment type " + alignmentType);
+
+		char[] seq = new char[readLength];
+		char[] qual = new char[readLength];
+		for (int i = 0; i < readLength; ++i)
+		{
+			seq[i] = Bases.charAt(rnd.nextInt(4));
+			qual[i] = (char)('#' + 2 + rnd.nextInt(39));
+		}
+
+		int flag = reverse ? 83 : 67;
+		int pos = 1 + rnd.nextInt(ContigLength - 2*readLength);
+		return name + "\t" + flag + "\t" + Contig + "\t" + pos + "\t60\t" + cigar + "\t=\t" + (pos + 200) + "\t" +
+			(reverse ? -400 : 400) + "\t" + new String(seq) + "\t" + new String(qual) + "\tRG:Z:rg1\tMD:Z:" + md;
+	}
+
+	/**
+	 * Sorted random positions for known variation sites on Contig, on average
+	 * one every spacing bases.
+	 */
+	public static int[] makeVariantPositions(int spacing)
+	{
+		Random rnd = new Random(1234);
+		int[] positions = new int[ContigLength / spacing];
+		for (int i = 0; i < positions.length; ++i)
+			positions[i] = 1 + rnd.nextInt(ContigLength);
+		Arrays.sort(positions);
+		return positions;
+	}
+
+	/**
+	 * A VariantReader over an array of sorted positions on Contig.
+	 */
+	public static class PositionReader implements VariantReader
+	{
+		private final int[] positions;
+		private int next = 0;
+
+		public PositionReader(int[] positions)
+		{
+			this.positions = positions;
+		}
+
+		public boolean nextEntry(VariantRegion dest)
+		{
+			if (next >= positions.length)
+				return false;
+
+			dest.setContigName(Contig);
+			dest.setPosition(positions[next++]);
+			dest.setLength(1);
+			return true;
+		}
+	}
+
+	/**
+	 * A context that throws away everything it receives.
+	 */
+	public static class NullContext<K,V> implements IMRContext<K,V>
+	{
+		private long written = 0;
+
+		public void progress() {}
+		public void setStatus(String msg) {}
+		public void write(K key, V value) { written += 1; }
+		public void increment(Enum<?> counterName, long value) {}
+		public void increment(String groupName, String counterName, long value) {}
+
+		public long getWritten() { return written; }
+	}
+}
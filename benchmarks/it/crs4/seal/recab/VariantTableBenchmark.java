@@ -0,0 +1,124 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package benchmarks.it.crs4.seal.recab;
+
+import it.crs4.seal.recab.ArrayListVariantTable;
+import it.crs4.seal.recab.ArrayVariantTable;
+import it.crs4.seal.recab.BitmapVariantTable;
+import it.crs4.seal.recab.HashSetVariantTable;
+import it.crs4.seal.recab.KnownSitesIndex;
+import it.crs4.seal.recab.VariantCursor;
+import it.crs4.seal.recab.VariantTable;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Compare the VariantTable implementations.
+ *
+ * lookup queries random positions, like BenchmarkVariantTable.  cursorWalk
+ * queries increasing positions through a VariantCursor, like the recab mapper
+ * does for the bases of a read.  load times loading the whole table.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class VariantTableBenchmark
+{
+	public static final int NQueries = 1024;
+
+	@Param({"Array", "ArrayList", "HashSet", "Bitmap", "KnownSitesIndex"})
+	public String implementation;
+
+	private int[] variantPositions;
+	private VariantTable table;
+	private int[] randomQueries;
+	private int[] sortedQueries;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		variantPositions = SyntheticData.makeVariantPositions(300);
+		table = load();
+
+		Random rnd = new Random(7);
+		randomQueries = new int[NQueries];
+		for (int i = 0; i < NQueries; ++i)
+			randomQueries[i] = 1 + rnd.nextInt(SyntheticData.ContigLength);
+
+		// a read-sized window, one query per base
+		sortedQueries = new int[NQueries];
+		int start = SyntheticData.ContigLength / 2;
+		for (int i = 0; i < NQueries; ++i)
+			sortedQueries[i] = start + i;
+	}
+
+	private VariantTable newTable()
+	{
+		if ("Array".equals(implementation))
+			return new ArrayVariantTable();
+		else if ("ArrayList".equals(implementation))
+			return new ArrayListVariantTable();
+		else if ("HashSet".equals(implementation))
+			return new HashSetVariantTable();
+		else if ("Bitmap".equals(implementation))
+			return new BitmapVariantTable();
+		else if ("KnownSitesIndex".equals(implementation))
+			return new KnownSitesIndex();
+		else
+			throw new IllegalArgumentException("unknown VariantTable implementation " + implementation);
+	}
+
+	@Benchmark
+	public VariantTable load() throws IOException
+	{
+		VariantTable t = newTable();
+		t.load(new SyntheticData.PositionReader(variantPositions));
+		return t;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(NQueries)
+	public int lookup()
+	{
+		int found = 0;
+		for (int pos: randomQueries)
+		{
+			if (table.isVariantLocation(SyntheticData.Contig, pos))
+				found += 1;
+		}
+		return found;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(NQueries)
+	public int cursorWalk()
+	{
+		VariantCursor cursor = table.getCursor();
+		int found = cursor.seek(SyntheticData.Contig, sortedQueries[0]) ? 1 : 0;
+		for (int i = 1; i < sortedQueries.length; ++i)
+		{
+			if (cursor.advanceTo(sortedQueries[i]))
+				found += 1;
+		}
+		return found;
+	}
+}
@@ -44,11 +44,15 @@ class PythonCall(object):
 
 
 JavaApplications = {
+    "build_known_sites": JavaCall("build_known_sites", "it.crs4.seal.recab.BuildKnownSites"),
     "demux":            JavaCall("demux", "it.crs4.seal.demux.Demux"),
     "merge_alignments": JavaCall("merge_alignments", "it.crs4.seal.read_sort.MergeAlignments"),
     "prq":              JavaCall("prq", "it.crs4.seal.prq.PairReadsQSeq"),
     "read_sort":        JavaCall("read_sort", "it.crs4.seal.read_sort.ReadSort"),
+    "recab_apply":      JavaCall("recab_apply", "it.crs4.seal.recab.RecabApply"),
     "recab_table":      JavaCall("recab_table", "it.crs4.seal.recab.RecabTable"),
+    "recab_table_local": JavaCall("recab_table_local", "it.crs4.seal.recab.LocalRecabTable"),
+    "recab_table_merge": JavaCall("recab_table_merge", "it.crs4.seal.recab.MergeRecabTables"),
     "tsvsort":          JavaCall("tsvsort", "it.crs4.seal.tsv_sort.TsvSort"),
     "usort":            JavaCall("usort", "it.crs4.seal.usort.USort")
 }
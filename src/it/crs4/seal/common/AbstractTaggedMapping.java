@@ -17,6 +17,7 @@
 
 package it.crs4.seal.common;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.ArrayList;
@@ -57,6 +58,30 @@ public abstract class AbstractTaggedMapping
 					throw new IllegalArgumentException("Unknown tag type " + t);
 			}
 		}
+
+		/**
+		 * The type character used for this type in SAM records.
+		 */
+		public char getSamType()
+		{
+			switch (this)
+			{
+				case Char:
+					return 'A';
+				case Int:
+					return 'i';
+				case Float:
+					return 'f';
+				case String:
+					return 'Z';
+				case Bytes:
+					return 'H';
+				case NumArray:
+					return 'B';
+				default:
+					throw new RuntimeException("BUG!  Missing tag type in TagDataType.getSamType");
+			}
+		}
 	};
 
 	protected class TagCacheItem {
@@ -236,6 +261,36 @@ public abstract class AbstractTaggedMapping
 			throw new NumberFormatException("item " + item + " is not of double type");
 	}
 
+	/**
+	 * Get the type of the named tag.
+	 */
+	public TagDataType getTagType(String name) throws NoSuchFieldException
+	{
+		return getTagItem(name).getType();
+	}
+
+	/**
+	 * Get the text of the named tag's value as ASCII bytes.
+	 * The value is contained in the ByteBuffer starting at buffer.position()
+	 * and ending at buffer.limit() (exclusive), like getSequence().  The
+	 * buffer may share the mapping's data, so it must not be modified and
+	 * it's only valid until the mapping changes.
+	 */
+	public ByteBuffer getTagBytes(String name) throws NoSuchFieldException
+	{
+		try {
+			return (ByteBuffer)ByteBuffer.wrap(getTag(name).getBytes("US-ASCII")).mark();
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new RuntimeException("Can't get US-ASCII charset!");
+		}
+	}
+
+	/**
+	 * Get the names of the tags in this mapping.
+	 */
+	abstract public Collection<String> getTagNames();
+
 	//////////////////////// flag methods ////////////////////////
 
 	public boolean isPaired() {
@@ -456,4 +511,125 @@ public abstract class AbstractTaggedMapping
 		}
 	}
 
+	/**
+	 * Calculate the reference coordinate of each base in the read and whether
+	 * it matches the reference, in a single pass over the alignment and MD tag.
+	 *
+	 * Gives the same results as calculateReferenceCoordinates and
+	 * calculateReferenceMatches, but writes them into arrays provided by the
+	 * caller so that they can be reused from one read to the next.  The first
+	 * getLength() elements of each array are written.  Bases without a reference
+	 * position (insertions and soft clips) get a coordinate of -1 and a match
+	 * value of false.
+	 *
+	 * @param coords Destination for the reference coordinates.  Must have at least getLength() elements.
+	 * @param matches Destination for the match flags.  Must have at least getLength() elements.
+	 * @exception IllegalStateException This mapping is unmapped.
+	 * @exception RuntimeException Unexpected errors such as bad CIGAR or MD tags.
+	 */
+	public void calculateReferenceAlignment(int[] coords, boolean[] matches) throws IllegalStateException
+	{
+		if (isUnmapped())
+			throw new IllegalStateException("Can't calculate reference coordinates for an unmapped read");
+
+		final int length = getLength();
+		if (coords.length < length || matches.length < length)
+			throw new IllegalArgumentException("destination arrays are too small for a read of length " + length);
+
+		List<AlignOp> alignment = getAlignment();
+		if (alignment.isEmpty())
+			throw new RuntimeException("No alignment for read " + this);
+
+		ByteBuffer md;
+		try {
+			md = getTagBytes("MD");
+		} catch (NoSuchFieldException e) {
+			throw new RuntimeException(e.getMessage());
+		}
+
+		final int mdStart = md.position();
+		final int mdLength = md.limit() - mdStart;
+		int mdPos = 0; // next character to scan in md
+		int mdMatches = 0; // matches left in the current run of MD matches
+
+		int refPos = get5Position();
+		int readPos = 0;
+
+		// index-based loop to avoid creating an iterator
+		for (int opIndex = 0, nOps = alignment.size(); opIndex < nOps; ++opIndex)
+		{
+			AlignOp op = alignment.get(opIndex);
+			AlignOp.Type type = op.getType();
+			int opLength = op.getLen();
+
+			if (type == AlignOp.Type.Match)
+			{
+				if (readPos + opLength > length)
+					throw new RuntimeException("Inconsistency?  Alignment in " + AlignOp.cigarStr(alignment) + " covers more than the " + length + " bases in the read");
+
+				for (int end = readPos + opLength; readPos < end; ++readPos, ++refPos)
+				{
+					coords[readPos] = refPos;
+
+					// advance along the MD tag to the next match or mismatch, skipping deletions
+					boolean mismatch = false;
+					while (mdMatches == 0 && !mismatch)
+					{
+						if (mdPos >= mdLength)
+							throw new RuntimeException("BUG or bad data?? Found more read positions than was covered by the MD tag. CIGAR: " + AlignOp.cigarStr(alignment) + "; MD: " + byteBufferToString(md) + "; read: " + this.toString());
+
+						char c = (char)md.get(mdStart + mdPos);
+						if (c >= '0' && c <= '9')
+						{
+							for ( ; mdPos < mdLength && (c = (char)md.get(mdStart + mdPos)) >= '0' && c <= '9'; ++mdPos)
+								mdMatches = mdMatches * 10 + (c - '0');
+						}
+						else if (c == '^') // deletion from the reference
+						{
+							for (++mdPos; mdPos < mdLength && isMdBase((char)md.get(mdStart + mdPos)); ++mdPos)
+								; // skip the deleted bases
+						}
+						else if (isMdBase(c))
+						{
+							mismatch = true;
+							++mdPos;
+						}
+						else
+							throw new FormatException("Invalid MD tag '" + byteBufferToString(md) + "' (pos " + mdPos + ")");
+					}
+
+					if (mismatch)
+						matches[readPos] = false;
+					else
+					{
+						matches[readPos] = true;
+						--mdMatches;
+					}
+				}
+			}
+			else if (type == AlignOp.Type.Insert || type == AlignOp.Type.SoftClip)
+			{
+				if (readPos + opLength > length)
+					throw new RuntimeException("Inconsistency?  Alignment in " + AlignOp.cigarStr(alignment) + " covers more than the " + length + " bases in the read");
+
+				for (int end = readPos + opLength; readPos < end; ++readPos)
+				{
+					coords[readPos] = -1;
+					matches[readPos] = false;
+				}
+			}
+			else if (type == AlignOp.Type.Delete)
+				refPos += opLength;
+			else
+				throw new RuntimeException("Found " + type + " alignment operation.  Sorry, but I don't know how to deal with this.");
+		}
+
+		if (readPos != length)
+			throw new RuntimeException("Inconsistency?  Alignment in " + AlignOp.cigarStr(alignment) + " doesn't exactly cover the entire read (got " + readPos + " positions for " + length + " bases)");
+	}
+
+	private static boolean isMdBase(char c)
+	{
+		return c >= 'A' && c <= 'Z';
+	}
 }
@@ -0,0 +1,212 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package it.crs4.seal.common;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reader for BAM index (.bai) files.
+ *
+ * Given a region of a reference sequence, finds the chunks of the BAM file
+ * that may contain the alignments overlapping it, as described in the SAM
+ * specification.  Chunks are expressed as BGZF virtual file offsets.
+ */
+public class BamIndex
+{
+	private static final byte[] Magic = { 'B', 'A', 'I', 1 };
+	// bin holding the reference's metadata rather than alignments
+	private static final int MetadataBin = 37450;
+	private static final int LinearShift = 14;
+
+	private static class Reference
+	{
+		Map<Integer, long[]> bins; // bin -> chunk begin and end virtual offsets, interleaved
+		long[] linearIndex;
+	}
+
+	private Reference[] references;
+
+	public BamIndex(InputStream stream) throws IOException, FormatException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+		try
+		{
+			byte[] magic = new byte[Magic.length];
+			in.readFully(magic);
+			if (!Arrays.equals(magic, Magic))
+				throw new FormatException("not a BAM index");
+
+			int nRef = readInt(in);
+			if (nRef < 0)
+				throw new FormatException("invalid number of references in BAM index (" + nRef + ")");
+			references = new Reference[nRef];
+			for (int r = 0; r < nRef; ++r)
+			{
+				Reference ref = new Reference();
+				int nBins = readInt(in);
+				ref.bins = new HashMap<Integer, long[]>(nBins * 2);
+				for (int b = 0; b < nBins; ++b)
+				{
+					int bin = readInt(in);
+					int nChunks = readInt(in);
+					long[] chunks = new long[2*nChunks];
+					for (int c = 0; c < chunks.length; ++c)
+						chunks[c] = readLong(in);
+					if (bin != MetadataBin)
+						ref.bins.put(bin, chunks);
+				}
+				int nIntervals = readInt(in);
+				ref.linearIndex = new long[nIntervals];
+				for (int i = 0; i < nIntervals; ++i)
+					ref.linearIndex[i] = readLong(in);
+				references[r] = ref;
+			}
+		}
+		catch (EOFException e) {
+			throw new FormatException("BAM index is truncated");
+		}
+	}
+
+	public int getNumReferences()
+	{
+		return references.length;
+	}
+
+	/**
+	 * Find the chunks that may contain alignments overlapping [start, end]
+	 * (1-based, inclusive) on reference refIndex.
+	 *
+	 * @return Sorted, disjoint chunks as begin and end virtual offsets,
+	 * interleaved.  The array is empty if there aren't any.
+	 */
+	public long[] getChunksOverlapping(int refIndex, int start, int end)
+	{
+		if (refIndex < 0 || refIndex >= references.length)
+			throw new IllegalArgumentException("reference index " + refIndex + " out of range");
+		if (start <= 0 || end < start)
+			throw new IllegalArgumentException("invalid region " + start + "-" + end);
+
+		Reference ref = references[refIndex];
+		int beg0 = start - 1; // 0-based, half-open
+		int end0 = end;
+
+		// alignments ending before the first one in the start's 16 kbp window can be skipped
+		long minOffset = 0;
+		if (ref.linearIndex.length > 0)
+			minOffset = ref.linearIndex[Math.min(beg0 >> LinearShift, ref.linearIndex.length - 1)];
+
+		long[] result = new long[16];
+		int n = 0;
+		for (int bin: regionToBins(beg0, end0))
+		{
+			long[] chunks = ref.bins.get(bin);
+			if (chunks == null)
+				continue;
+			for (int c = 0; c < chunks.length; c += 2)
+			{
+				if (chunks[c+1] <= minOffset)
+					continue;
+				if (n + 2 > result.length)
+					result = Arrays.copyOf(result, result.length * 2);
+				result[n++] = chunks[c];
+				result[n++] = chunks[c+1];
+			}
+		}
+		return mergeChunks(result, n);
+	}
+
+	/**
+	 * Sort the n/2 chunks in chunks and merge the ones that overlap or touch.
+	 */
+	public static long[] mergeChunks(long[] chunks, int n)
+	{
+		if (n == 0)
+			return new long[0];
+
+		// sort the chunks by their beginning
+		Integer[] order = new Integer[n/2];
+		for (int i = 0; i < order.length; ++i)
+			order[i] = i;
+		final long[] c = chunks;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				long x = c[2*a], y = c[2*b];
+				return x < y ? -1 : (x == y ? 0 : 1);
+			}
+		});
+
+		long[] merged = new long[n];
+		int m = 0;
+		for (int i: order)
+		{
+			long begin = chunks[2*i];
+			long end = chunks[2*i+1];
+			if (m > 0 && begin <= merged[m-1])
+				merged[m-1] = Math.max(merged[m-1], end);
+			else
+			{
+				merged[m++] = begin;
+				merged[m++] = end;
+			}
+		}
+		return Arrays.copyOf(merged, m);
+	}
+
+	/**
+	 * Bins that may contain alignments overlapping the 0-based, half-open
+	 * region [beg, end), from the SAM specification.
+	 */
+	protected static int[] regionToBins(int beg, int end)
+	{
+		int[] list = new int[16];
+		int n = 0;
+		--end;
+		list[n++] = 0;
+		int[] offsets = { 1, 9, 73, 585, 4681 };
+		int[] shifts = { 26, 23, 20, 17, 14 };
+		for (int level = 0; level < offsets.length; ++level)
+		{
+			for (int k = offsets[level] + (beg >> shifts[level]); k <= offsets[level] + (end >> shifts[level]); ++k)
+			{
+				if (n == list.length)
+					list = Arrays.copyOf(list, n * 2);
+				list[n++] = k;
+			}
+		}
+		return Arrays.copyOf(list, n);
+	}
+
+	// the index is little-endian
+	private static int readInt(DataInputStream in) throws IOException
+	{
+		return Integer.reverseBytes(in.readInt());
+	}
+
+	private static long readLong(DataInputStream in) throws IOException
+	{
+		return Long.reverseBytes(in.readLong());
+	}
+}
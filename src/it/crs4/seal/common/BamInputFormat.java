@@ -17,9 +17,8 @@
 
 package it.crs4.seal.common;
 
-import it.crs4.seal.common.AbstractTaggedMapping.TagDataType;
-
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.commons.logging.Log;
@@ -31,23 +30,37 @@ import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import fi.tkk.ics.hadoop.bam.FileVirtualSplit;
 import fi.tkk.ics.hadoop.bam.SAMRecordWritable;
-import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
 
 public class BamInputFormat extends FileInputFormat<LongWritable, ReadPair>
 {
 	private static final Log LOG = LogFactory.getLog(BamInputFormat.class);
 
+	/**
+	 * Path of a BED or interval list file.  If set, the splits are restricted
+	 * to the parts of the BAM files that, according to their indices, contain
+	 * alignments overlapping the intervals.  Files without an index are read
+	 * entirely.
+	 */
+	public static final String CONF_REGIONS = "seal.input.regions";
+
 	private fi.tkk.ics.hadoop.bam.BAMInputFormat bamImpl;
 
 	public static class BamRecordReader extends RecordReader<LongWritable, ReadPair>
 	{
 		private ReadPair value;
-		private WritableMapping mapping;
+		private BamMapping mapping;
+		private boolean reuseRecords;
 		private RecordReader<LongWritable, SAMRecordWritable> rrImpl;
 
 		public BamRecordReader(fi.tkk.ics.hadoop.bam.BAMRecordReader finBamRR)
@@ -60,8 +73,9 @@ public class BamInputFormat extends FileInputFormat<LongWritable, ReadPair>
 		{
 			rrImpl.initialize(genericSplit, context);
 
+			reuseRecords = context.getConfiguration().getBoolean(SealToolParser.INPUT_REUSE_RECORDS, SealToolParser.INPUT_REUSE_RECORDS_DEFAULT);
 			value = new ReadPair();
-			mapping = new WritableMapping();
+			mapping = new BamMapping();
 		}
 
 		@Override
@@ -84,10 +98,16 @@ public class BamInputFormat extends FileInputFormat<LongWritable, ReadPair>
 		{
 			if (rrImpl.nextKeyValue())
 			{
-				value.clear();
-				SAMRecord sam = rrImpl.getCurrentValue().get();
-				// copy data from SAMRecord to our mapping
-				readSamRecord(sam, mapping);
+				if (reuseRecords)
+					value.clear();
+				else
+				{
+					value = new ReadPair();
+					mapping = new BamMapping();
+				}
+
+				// the mapping works on the binary record, so the SAMRecord is never fully decoded
+				mapping.reset(rrImpl.getCurrentValue().get());
 				if (mapping.isRead2())
 					value.setRead2(mapping);
 				else // anything that's not explicitly labelled as "read 2" goes in as read 1.
@@ -97,79 +117,162 @@ public class BamInputFormat extends FileInputFormat<LongWritable, ReadPair>
 			else
 				return false;
 		}
+	}
+
+	public BamInputFormat()
+	{
+		bamImpl = new fi.tkk.ics.hadoop.bam.BAMInputFormat();
+	}
+
+	@Override
+	public List<InputSplit> getSplits(JobContext job) throws IOException
+	{
+		List<InputSplit> splits = bamImpl.getSplits(job);
+
+		Configuration conf = job.getConfiguration();
+		String regionsFile = conf.get(CONF_REGIONS);
+		if (regionsFile != null)
+			splits = restrictToRegions(splits, IntervalSet.load(new Path(regionsFile), conf), conf);
+
+		return splits;
+	}
+
+	/**
+	 * Restrict virtual splits to the chunks of their BAM file that may contain
+	 * alignments overlapping regions.
+	 *
+	 * Each split is trimmed to start at the first chunk found in the file's
+	 * index that overlaps it and to end at the last one, so the number of map
+	 * tasks never grows:  splits are only shortened or dropped.  The gaps
+	 * between the chunks inside a split are still read.  Splits of files
+	 * without an index are returned unchanged.
+	 */
+	public List<InputSplit> restrictToRegions(List<InputSplit> splits, IntervalSet regions, Configuration conf) throws IOException
+	{
+		Map<Path, long[]> chunksByFile = new HashMap<Path, long[]>();
+		List<InputSplit> result = new ArrayList<InputSplit>(splits.size());
+		long before = 0, after = 0;
 
-		protected void readSamRecord(SAMRecord sam, WritableMapping mapping)
+		for (InputSplit s: splits)
 		{
-			mapping.clear();
-
-			mapping.setName(sam.getReadName());
-			mapping.setSequence(ByteBuffer.wrap(sam.getReadBases()));
-			mapping.setFlag(sam.getFlags());
-
-			// we have to map base qualities from raw phred-scaled scores to
-			// Phred+33, as per our convention
-			byte[] originalQ = sam.getBaseQualities();
-			ByteBuffer q = ByteBuffer.allocate(originalQ.length);
-			byte[] newQ = q.array();
-			int newQStart = q.position();
-			for (int i = 0; i < originalQ.length; ++i)
-			{
-				if (originalQ[i] < 0 || originalQ[i] > Utils.SANGER_MAX)
-				{
-					throw new FormatException(
-					  "base quality score out of range for BAM format (found " + originalQ[i] +
-					  " but acceptable range is [0," + Utils.SANGER_MAX + "]).");
-				}
-				newQ[ newQStart + i ] = (byte)(originalQ[i] + Utils.SANGER_OFFSET);
-			}
-			q.rewind().mark();
-			mapping.setBaseQualities(q);
+			FileVirtualSplit split = (FileVirtualSplit)s;
+			Path path = split.getPath();
+			if (!chunksByFile.containsKey(path))
+				chunksByFile.put(path, findChunks(path, regions, conf));
 
-			// now get the rest of the fields
-			if (mapping.isMapped())
+			long[] chunks = chunksByFile.get(path);
+			if (chunks == null)
 			{
-				mapping.setContig(sam.getReferenceName());
-				mapping.set5Position(sam.getAlignmentStart());
-				mapping.setMapQ(sam.getMappingQuality());
-				mapping.setAlignment(AlignOp.scanCigar(sam.getCigarString()));
+				result.add(split);
+				continue;
 			}
 
-			if (mapping.isPaired() && mapping.isMateMapped())
-				mapping.setTemplateLength(Math.abs(sam.getInferredInsertSize()));
-
-			for (SAMRecord.SAMTagAndValue tag: sam.getAttributes())
+			before += 1;
+			FileVirtualSplit trimmed = trimToChunks(split, chunks);
+			if (trimmed != null)
 			{
-				Object value = tag.value;
-				TagDataType type = null;
-
-				if (value instanceof String)
-					type = TagDataType.String;
-				else if (value instanceof Character)
-					type = TagDataType.Char;
-				else if (value instanceof Float)
-					type = TagDataType.Float;
-				else if (value instanceof Integer || value instanceof Byte || value instanceof Short)
-					type = TagDataType.Int;
-				else
-				{
-					LOG.warn("dropping tag of unsupported type " + value.getClass().toString());
-					continue;
-				}
-
-				mapping.setTag(tag.tag, type, value.toString());
+				result.add(trimmed);
+				after += 1;
 			}
 		}
+
+		if (before > 0)
+			LOG.info("Restricted " + before + " indexed BAM splits to " + after + " splits overlapping the regions");
+		return result;
 	}
 
-	public BamInputFormat()
+	/**
+	 * Trim split to the range going from the first to the last of chunks that
+	 * overlap it.
+	 *
+	 * @param chunks Sorted, non-overlapping chunks, as pairs of start and end
+	 * virtual offsets.
+	 * @return The trimmed split, or null if none of the chunks overlaps split.
+	 */
+	public static FileVirtualSplit trimToChunks(FileVirtualSplit split, long[] chunks)
 	{
-		bamImpl = new fi.tkk.ics.hadoop.bam.BAMInputFormat();
+		long start = split.getStartVirtualOffset();
+		long end = split.getEndVirtualOffset();
+
+		// binary search for the first chunk ending after the start of the split
+		int low = 0;
+		int high = chunks.length / 2;
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1;
+			if (chunks[2*mid + 1] <= start)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+
+		int first = low;
+		int last = first - 1;
+		for (int c = first; c < chunks.length / 2 && chunks[2*c] < end; ++c)
+			last = c;
+
+		if (last < first)
+			return null;
+		return new FileVirtualSplit(split.getPath(),
+		    Math.max(start, chunks[2*first]), Math.min(end, chunks[2*last + 1]), split.getLocations());
 	}
 
-	@Override
-	public List<InputSplit> getSplits(JobContext job) throws IOException
+	/**
+	 * @return The sorted, merged chunks of the BAM file at path that overlap regions,
+	 * or null if the file doesn't have an index.
+	 */
+	private long[] findChunks(Path path, IntervalSet regions, Configuration conf) throws IOException
 	{
-		return bamImpl.getSplits(job);
+		FileSystem fs = path.getFileSystem(conf);
+		Path indexPath = path.suffix(".bai");
+		if (!fs.exists(indexPath) && path.getName().endsWith(".bam"))
+		{
+			String name = path.getName();
+			indexPath = new Path(path.getParent(), name.substring(0, name.length() - 4) + ".bai");
+		}
+		if (!fs.exists(indexPath))
+		{
+			LOG.warn("No index found for " + path + ".  It will be read entirely.");
+			return null;
+		}
+
+		SAMFileHeader header;
+		InputStream in = fs.open(path);
+		try {
+			header = new SAMFileReader(in).getFileHeader();
+		}
+		finally {
+			in.close();
+		}
+
+		BamIndex index;
+		in = fs.open(indexPath);
+		try {
+			index = new BamIndex(in);
+		}
+		finally {
+			in.close();
+		}
+
+		long[] chunks = new long[0];
+		int n = 0;
+		for (String contig: regions.getContigs())
+		{
+			int refIndex = header.getSequenceIndex(contig);
+			if (refIndex < 0 || refIndex >= index.getNumReferences())
+				continue;
+
+			IntervalSet.ContigIntervals intervals = regions.get(contig);
+			for (int i = 0; i < intervals.size(); ++i)
+			{
+				long[] found = index.getChunksOverlapping(refIndex, intervals.getStart(i), intervals.getEnd(i));
+				if (n + found.length > chunks.length)
+					chunks = Arrays.copyOf(chunks, Math.max(2 * chunks.length, n + found.length));
+				System.arraycopy(found, 0, chunks, n, found.length);
+				n += found.length;
+			}
+		}
+		return BamIndex.mergeChunks(chunks, n);
 	}
 
 	/**
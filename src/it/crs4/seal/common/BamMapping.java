@@ -0,0 +1,710 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package it.crs4.seal.common;
+
+import org.apache.hadoop.io.Text;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.CharacterCodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sf.samtools.BAMRecordCodec;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceRecord;
+
+/**
+ * Implements a mapping that reads its data straight from a binary BAM
+ * alignment record.
+ *
+ * The record starts with the refID field, i.e. the block_size field is not
+ * included.  The fixed-length fields (flag, position, mapq, template length)
+ * are read from their offsets when requested.  The bases and base qualities
+ * are unpacked into buffers that are reused from record to record, and only
+ * when requested.  The alignment is built from the binary CIGAR and the tags
+ * are indexed in a single pass over the tag data the first time one is
+ * requested, without going through their text representation.
+ */
+public class BamMapping extends AbstractTaggedMapping
+{
+	// offsets of the fixed-length fields in a BAM record
+	protected static final int RefIdOffset = 0;
+	protected static final int PosOffset = 4;
+	protected static final int NameLengthOffset = 8;
+	protected static final int MapQOffset = 9;
+	protected static final int NumCigarOpsOffset = 12;
+	protected static final int FlagOffset = 14;
+	protected static final int SeqLengthOffset = 16;
+	protected static final int MateRefIdOffset = 20;
+	protected static final int MatePosOffset = 24;
+	protected static final int TemplateLengthOffset = 28;
+	protected static final int NameOffset = 32;
+
+	protected static final String CigarOps = "MIDNSHP=X";
+	protected static final byte[] Bases = { '=', 'A', 'C', 'M', 'G', 'R', 'S', 'V', 'T', 'W', 'Y', 'H', 'K', 'D', 'B', 'N' };
+
+	protected byte[] record;
+	protected int recordLength;
+	protected int flag;
+	protected int seqLength;
+	protected int numCigarOps;
+	protected int cigarStart;
+	protected int seqStart;
+	protected int qualityStart;
+	protected int tagsStart;
+
+	protected String[] contigNames;
+	protected SAMFileHeader header; // header from which contigNames were taken
+
+	// lazily computed fields
+	protected String name;
+	protected List<AlignOp> alignment;
+	protected byte[] sequence;
+	protected boolean sequenceValid;
+	protected byte[] qualities;
+	protected boolean qualitiesValid;
+
+	// tag index, built the first time a tag is requested
+	protected int numTags; // -1 until the tags are indexed
+	protected int[] tagKeys; // two-character names packed by tagKey
+	protected byte[] tagTypes; // BAM type character
+	protected int[] tagValueStarts;
+	protected int[] tagValueEnds;
+
+	// to get the binary record of SAMRecords
+	private RecordBuffer encodeBuffer;
+	private BAMRecordCodec codec;
+
+	private static class RecordBuffer extends ByteArrayOutputStream
+	{
+		public byte[] getBuffer() { return buf; }
+	}
+
+	public BamMapping()
+	{
+		record = new byte[512];
+		recordLength = 0;
+		sequence = new byte[256];
+		qualities = new byte[256];
+		tagKeys = new int[16];
+		tagTypes = new byte[16];
+		tagValueStarts = new int[16];
+		tagValueEnds = new int[16];
+		numTags = -1;
+		flag = 0x4;
+	}
+
+	/**
+	 * @param contigNames Reference sequence names, indexed by BAM refID.
+	 */
+	public BamMapping(String[] contigNames)
+	{
+		this();
+		this.contigNames = contigNames;
+	}
+
+	public void setContigNames(String[] names)
+	{
+		contigNames = names;
+		header = null;
+	}
+
+	public String[] getContigNames() { return contigNames; }
+
+	/**
+	 * Load a binary BAM record, without its block_size field, into this mapping.
+	 *
+	 * The data is copied into a buffer owned by this mapping, which is reused
+	 * from record to record.
+	 * @exception FormatException The record is truncated.
+	 */
+	public void reset(byte[] data, int offset, int length) throws FormatException
+	{
+		if (length < NameOffset)
+			throw new FormatException("BAM record too short (" + length + " bytes)");
+
+		if (record.length < length)
+			record = new byte[Math.max(length, 2 * record.length)];
+		System.arraycopy(data, offset, record, 0, length);
+		recordLength = length;
+
+		name = null;
+		alignment = null;
+		sequenceValid = false;
+		qualitiesValid = false;
+		numTags = -1;
+
+		flag = readUShort(FlagOffset);
+		seqLength = readInt(SeqLengthOffset);
+		numCigarOps = readUShort(NumCigarOpsOffset);
+
+		cigarStart = NameOffset + (record[NameLengthOffset] & 0xff);
+		seqStart = cigarStart + 4 * numCigarOps;
+		qualityStart = seqStart + (seqLength + 1) / 2;
+		tagsStart = qualityStart + seqLength;
+		if (seqLength < 0 || tagsStart > recordLength)
+			throw new FormatException("Truncated BAM record (" + length + " bytes, but its fields need " + tagsStart + ")");
+	}
+
+	/**
+	 * Load a Picard SAMRecord into this mapping.
+	 *
+	 * Records read from BAM files keep their binary data until they're
+	 * decoded, so for those the binary record is copied without decoding
+	 * the sequence, CIGAR and tags.  Contig names are taken from the
+	 * record's header.
+	 */
+	public void reset(SAMRecord sam) throws FormatException
+	{
+		SAMFileHeader samHeader = sam.getHeader();
+		if (codec == null || samHeader != header)
+		{
+			header = samHeader;
+			codec = new BAMRecordCodec(header);
+			encodeBuffer = new RecordBuffer();
+			codec.setOutputStream(encodeBuffer);
+
+			List<SAMSequenceRecord> sequences = header.getSequenceDictionary().getSequences();
+			contigNames = new String[sequences.size()];
+			for (int i = 0; i < contigNames.length; ++i)
+				contigNames[i] = sequences.get(i).getSequenceName();
+		}
+
+		encodeBuffer.reset();
+		codec.encode(sam);
+		// skip block_size
+		reset(encodeBuffer.getBuffer(), 4, encodeBuffer.size() - 4);
+	}
+
+	protected int readInt(int offset)
+	{
+		return (record[offset] & 0xff) | (record[offset+1] & 0xff) << 8 | (record[offset+2] & 0xff) << 16 | (record[offset+3] & 0xff) << 24;
+	}
+
+	protected int readUShort(int offset)
+	{
+		return (record[offset] & 0xff) | (record[offset+1] & 0xff) << 8;
+	}
+
+	/**
+	 * The binary record.  Its first getRecordLength() bytes are valid.
+	 *
+	 * If the base qualities have been retrieved with getBaseQualities, any
+	 * change made to them is written back into the record.
+	 */
+	public byte[] getRecordBytes()
+	{
+		if (qualitiesValid)
+		{
+			for (int i = 0; i < seqLength; ++i)
+				record[qualityStart + i] = (byte)(qualities[i] - Utils.SANGER_OFFSET);
+		}
+		return record;
+	}
+
+	public int getRecordLength() { return recordLength; }
+
+	public String getName()
+	{
+		if (name == null)
+		{
+			try {
+				// the length includes the NUL terminator
+				name = Text.decode(record, NameOffset, cigarStart - NameOffset - 1);
+			}
+			catch (CharacterCodingException e) {
+				throw new FormatException("character coding error in BAM read name");
+			}
+		}
+		return name;
+	}
+
+	public int getFlag() { return flag; }
+
+	public int getReferenceIndex() { return readInt(RefIdOffset); }
+	public int getMateReferenceIndex() { return readInt(MateRefIdOffset); }
+
+	public String getContig()
+	{
+		if (isUnmapped())
+			throw new IllegalStateException();
+		int refId = getReferenceIndex();
+		if (contigNames == null || refId < 0 || refId >= contigNames.length)
+			throw new FormatException("BAM reference id " + refId + " isn't in the reference sequence dictionary");
+		return contigNames[refId];
+	}
+
+	public int get5Position()
+	{
+		if (isUnmapped())
+			throw new IllegalStateException();
+		return readInt(PosOffset) + 1; // BAM positions are 0-based
+	}
+
+	public int getMapQ() { return record[MapQOffset] & 0xff; }
+
+	public boolean isTemplateLengthAvailable()
+	{
+		return isMapped() && isPaired() && isMateMapped() && readInt(TemplateLengthOffset) != 0;
+	}
+
+	public int getTemplateLength()
+	{
+		if (!isTemplateLengthAvailable())
+			throw new IllegalStateException();
+		return Math.abs(readInt(TemplateLengthOffset));
+	}
+
+	//////////////////////// CIGAR ////////////////////////
+
+	public int getNumCigarOps() { return numCigarOps; }
+
+	/**
+	 * The binary CIGAR:  getNumCigarOps() little-endian integers, each
+	 * encoding an operation as op_len << 4 | op.
+	 */
+	public ByteBuffer getBinaryCigar()
+	{
+		return (ByteBuffer)ByteBuffer.wrap(record, cigarStart, 4 * numCigarOps).order(ByteOrder.LITTLE_ENDIAN).mark();
+	}
+
+	public List<AlignOp> getAlignment()
+	{
+		if (isUnmapped())
+			throw new IllegalStateException();
+
+		if (alignment == null)
+		{
+			alignment = new ArrayList<AlignOp>(numCigarOps);
+			for (int i = 0; i < numCigarOps; ++i)
+			{
+				int op = readInt(cigarStart + 4 * i);
+				int type = op & 0xf;
+				if (type >= CigarOps.length())
+					throw new FormatException("Invalid CIGAR operation " + type + " in BAM record " + getName());
+				alignment.add(new AlignOp(AlignOp.Type.fromSymbol(CigarOps.charAt(type)), op >>> 4));
+			}
+		}
+		return alignment;
+	}
+
+	//////////////////////// sequence and qualities ////////////////////////
+
+	public int getLength() { return seqLength; }
+
+	public ByteBuffer getSequence()
+	{
+		if (!sequenceValid)
+		{
+			if (sequence.length < seqLength)
+				sequence = new byte[Math.max(seqLength, 2 * sequence.length)];
+			for (int i = 0; i < seqLength; ++i)
+			{
+				int packed = record[seqStart + (i >> 1)];
+				sequence[i] = Bases[(i & 1) == 0 ? (packed >> 4) & 0xf : packed & 0xf];
+			}
+			sequenceValid = true;
+		}
+		return (ByteBuffer)ByteBuffer.wrap(sequence, 0, seqLength).mark();
+	}
+
+	/**
+	 * The base qualities, converted to Phred+33 as per our convention.
+	 * The returned buffer belongs to this mapping.  Changes made to it are
+	 * written back into the binary record by getRecordBytes.
+	 */
+	public ByteBuffer getBaseQualities()
+	{
+		if (!qualitiesValid)
+		{
+			if (qualities.length < seqLength)
+				qualities = new byte[Math.max(seqLength, 2 * qualities.length)];
+			for (int i = 0; i < seqLength; ++i)
+			{
+				byte q = record[qualityStart + i];
+				if (q < 0 || q > Utils.SANGER_MAX)
+				{
+					throw new FormatException(
+					  "base quality score out of range for BAM format (found " + (q & 0xff) +
+					  " but acceptable range is [0," + Utils.SANGER_MAX + "]).");
+				}
+				qualities[i] = (byte)(q + Utils.SANGER_OFFSET);
+			}
+			qualitiesValid = true;
+		}
+		return (ByteBuffer)ByteBuffer.wrap(qualities, 0, seqLength).mark();
+	}
+
+	//////////////////////// tags ////////////////////////
+
+	/**
+	 * The binary tag data, as found in the BAM record.
+	 */
+	public ByteBuffer getBinaryTags()
+	{
+		return (ByteBuffer)ByteBuffer.wrap(record, tagsStart, recordLength - tagsStart).order(ByteOrder.LITTLE_ENDIAN).mark();
+	}
+
+	private static int getTypeSize(byte type)
+	{
+		switch (type)
+		{
+			case 'A':
+			case 'c':
+			case 'C':
+				return 1;
+			case 's':
+			case 'S':
+				return 2;
+			case 'i':
+			case 'I':
+			case 'f':
+				return 4;
+			default:
+				return -1;
+		}
+	}
+
+	/**
+	 * Scan the tag data once, recording the key, type and value position of
+	 * each tag.
+	 */
+	protected void indexTags()
+	{
+		numTags = 0;
+		int pos = tagsStart;
+		while (pos < recordLength)
+		{
+			if (pos + 3 > recordLength)
+				throw new FormatException("Truncated tag in BAM record " + getName());
+
+			if (numTags == tagKeys.length)
+			{
+				int n = 2 * numTags;
+				int[] keys = new int[n];
+				byte[] types = new byte[n];
+				int[] starts = new int[n];
+				int[] ends = new int[n];
+				System.arraycopy(tagKeys, 0, keys, 0, numTags);
+				System.arraycopy(tagTypes, 0, types, 0, numTags);
+				System.arraycopy(tagValueStarts, 0, starts, 0, numTags);
+				System.arraycopy(tagValueEnds, 0, ends, 0, numTags);
+				tagKeys = keys;
+				tagTypes = types;
+				tagValueStarts = starts;
+				tagValueEnds = ends;
+			}
+
+			byte type = record[pos + 2];
+			tagKeys[numTags] = ((record[pos] & 0xff) << 8) | (record[pos + 1] & 0xff);
+			tagTypes[numTags] = type;
+			pos += 3;
+			tagValueStarts[numTags] = pos;
+
+			int end; // end of the value
+			int next; // start of the next tag
+			int size = getTypeSize(type);
+			if (size > 0)
+				end = next = pos + size;
+			else if (type == 'Z' || type == 'H')
+			{
+				end = pos;
+				while (end < recordLength && record[end] != 0)
+					++end;
+				next = end + 1;
+			}
+			else if (type == 'B')
+			{
+				if (pos + 5 > recordLength)
+					throw new FormatException("Truncated tag in BAM record " + getName());
+				size = getTypeSize(record[pos]);
+				if (size < 0 || record[pos] == 'A')
+					throw new FormatException("Invalid array type '" + (char)record[pos] + "' in BAM record " + getName());
+				end = next = pos + 5 + size * readInt(pos + 1);
+			}
+			else
+				throw new FormatException("Invalid tag type '" + (char)type + "' in BAM record " + getName());
+
+			if (next > recordLength)
+				throw new FormatException("Truncated tag in BAM record " + getName());
+			tagValueEnds[numTags] = end;
+			numTags += 1;
+			pos = next;
+		}
+	}
+
+	/**
+	 * Find the named tag in the index.
+	 * @return the tag's index.
+	 * @exception NoSuchFieldException Tag not found in mapping record.
+	 */
+	protected int findTag(String name) throws NoSuchFieldException
+	{
+		if (numTags < 0)
+			indexTags();
+
+		if (name.length() == 2)
+		{
+			int key = (name.charAt(0) << 8) | name.charAt(1);
+			for (int i = 0; i < numTags; ++i)
+			{
+				if (tagKeys[i] == key)
+					return i;
+			}
+		}
+		throw new NoSuchFieldException("no tag with name " + name);
+	}
+
+	@Override
+	public List<String> getTagNames()
+	{
+		if (numTags < 0)
+			indexTags();
+
+		List<String> names = new ArrayList<String>(numTags);
+		for (int i = 0; i < numTags; ++i)
+			names.add(new String(new char[] { (char)(tagKeys[i] >>> 8), (char)(tagKeys[i] & 0xff) }));
+		return names;
+	}
+
+	private static boolean isIntType(byte type)
+	{
+		return type == 'c' || type == 'C' || type == 's' || type == 'S' || type == 'i' || type == 'I';
+	}
+
+	private long readIntValue(byte type, int pos)
+	{
+		switch (type)
+		{
+			case 'c':
+				return record[pos];
+			case 'C':
+				return record[pos] & 0xff;
+			case 's':
+				return (short)readUShort(pos);
+			case 'S':
+				return readUShort(pos);
+			case 'i':
+				return readInt(pos);
+			case 'I':
+				return readInt(pos) & 0xffffffffL;
+			default:
+				throw new IllegalArgumentException("not an integer type: " + (char)type);
+		}
+	}
+
+	private String formatValue(byte type, int pos)
+	{
+		if (isIntType(type))
+			return String.valueOf(readIntValue(type, pos));
+		else if (type == 'f')
+			return String.valueOf(Float.intBitsToFloat(readInt(pos)));
+		else if (type == 'A')
+			return String.valueOf((char)record[pos]);
+		else
+			throw new IllegalArgumentException("not a scalar type: " + (char)type);
+	}
+
+	@Override
+	public String getTag(String name) throws NoSuchFieldException
+	{
+		return getTag(findTag(name));
+	}
+
+	private String getTag(int i)
+	{
+		byte type = tagTypes[i];
+		int start = tagValueStarts[i];
+
+		if (type == 'Z' || type == 'H')
+		{
+			try {
+				return Text.decode(record, start, tagValueEnds[i] - start);
+			}
+			catch (CharacterCodingException e) {
+				throw new FormatException("character coding error in tag " + (char)(tagKeys[i] >>> 8) + (char)(tagKeys[i] & 0xff) + " of BAM record " + getName());
+			}
+		}
+		else if (type == 'B')
+		{
+			// same as the SAM text, e.g. "c,1,2,3"
+			byte elementType = record[start];
+			int size = getTypeSize(elementType);
+			int n = readInt(start + 1);
+			StringBuilder builder = new StringBuilder(2 + 4 * n);
+			builder.append((char)elementType);
+			for (int j = 0, pos = start + 5; j < n; ++j, pos += size)
+				builder.append(',').append(formatValue(elementType, pos));
+			return builder.toString();
+		}
+		else
+			return formatValue(type, start);
+	}
+
+	@Override
+	public boolean hasTag(String name)
+	{
+		try {
+			findTag(name);
+			return true;
+		}
+		catch (NoSuchFieldException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public TagDataType getTagType(String name) throws NoSuchFieldException
+	{
+		byte type = tagTypes[findTag(name)];
+		if (isIntType(type))
+			return TagDataType.Int;
+		else if (type == 'A')
+			return TagDataType.Char;
+		else if (type == 'f')
+			return TagDataType.Float;
+		else if (type == 'Z')
+			return TagDataType.String;
+		else if (type == 'H')
+			return TagDataType.Bytes;
+		else
+			return TagDataType.NumArray;
+	}
+
+	/**
+	 * String and hex tags are returned from the record's data; other types are
+	 * converted to text.
+	 */
+	@Override
+	public ByteBuffer getTagBytes(String name) throws NoSuchFieldException
+	{
+		int i = findTag(name);
+		if (tagTypes[i] == 'Z' || tagTypes[i] == 'H')
+			return (ByteBuffer)ByteBuffer.wrap(record, tagValueStarts[i], tagValueEnds[i] - tagValueStarts[i]).mark();
+		else
+			return super.getTagBytes(name);
+	}
+
+	@Override
+	public int getIntTag(String name) throws NoSuchFieldException
+	{
+		int i = findTag(name);
+		if (!isIntType(tagTypes[i]))
+			throw new NumberFormatException("tag " + name + " is not of integer type");
+		long value = readIntValue(tagTypes[i], tagValueStarts[i]);
+		if (value > Integer.MAX_VALUE)
+			throw new NumberFormatException("value of tag " + name + " is out of the int range (" + value + ")");
+		return (int)value;
+	}
+
+	@Override
+	public double getDoubleTag(String name) throws NoSuchFieldException
+	{
+		int i = findTag(name);
+		byte type = tagTypes[i];
+		if (type == 'f')
+			return Float.intBitsToFloat(readInt(tagValueStarts[i]));
+		else if (isIntType(type))
+			return readIntValue(type, tagValueStarts[i]);
+		else
+			throw new NumberFormatException("tag " + name + " is not of double type");
+	}
+
+	private String getReferenceName(int refId)
+	{
+		if (refId < 0)
+			return "*";
+		if (contigNames == null || refId >= contigNames.length)
+			throw new FormatException("BAM reference id " + refId + " isn't in the reference sequence dictionary");
+		return contigNames[refId];
+	}
+
+	/**
+	 * Format this mapping as a SAM record.
+	 */
+	public String toString()
+	{
+		StringBuilder builder = new StringBuilder(2 * recordLength);
+		int refId = getReferenceIndex();
+		int mateRefId = getMateReferenceIndex();
+
+		builder.append(getName()).append('\t');
+		builder.append(flag).append('\t');
+		builder.append(getReferenceName(refId)).append('\t');
+		builder.append(readInt(PosOffset) + 1).append('\t');
+		builder.append(getMapQ()).append('\t');
+
+		if (numCigarOps == 0)
+			builder.append('*');
+		for (int i = 0; i < numCigarOps; ++i)
+		{
+			int op = readInt(cigarStart + 4 * i);
+			if ((op & 0xf) >= CigarOps.length())
+				throw new FormatException("Invalid CIGAR operation " + (op & 0xf) + " in BAM record " + getName());
+			builder.append(op >>> 4).append(CigarOps.charAt(op & 0xf));
+		}
+		builder.append('\t');
+
+		if (mateRefId >= 0 && mateRefId == refId)
+			builder.append('=');
+		else
+			builder.append(getReferenceName(mateRefId));
+		builder.append('\t');
+		builder.append(readInt(MatePosOffset) + 1).append('\t');
+		builder.append(readInt(TemplateLengthOffset)).append('\t');
+
+		if (seqLength == 0)
+			builder.append("*\t*");
+		else
+		{
+			ByteBuffer seq = getSequence();
+			for (int i = 0; i < seqLength; ++i)
+				builder.append((char)seq.get(i));
+			builder.append('\t');
+
+			if (record[qualityStart] == (byte)0xff) // qualities not stored
+				builder.append('*');
+			else
+			{
+				ByteBuffer qual = getBaseQualities();
+				for (int i = 0; i < seqLength; ++i)
+					builder.append((char)qual.get(i));
+			}
+		}
+
+		if (numTags < 0)
+			indexTags();
+		for (int i = 0; i < numTags; ++i)
+		{
+			byte type = tagTypes[i];
+			builder.append('\t').append((char)(tagKeys[i] >>> 8)).append((char)(tagKeys[i] & 0xff)).append(':');
+			builder.append(isIntType(type) ? 'i' : (char)type).append(':');
+			builder.append(getTag(i));
+		}
+
+		return builder.toString();
+	}
+
+	protected TagCacheItem makeTagItem(String name) throws NoSuchFieldException
+	{
+		return new TagCacheItem(getTagType(name), getTag(name));
+	}
+}
@@ -0,0 +1,231 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package it.crs4.seal.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.util.List;
+
+import net.sf.samtools.BAMRecordCodec;
+import net.sf.samtools.DefaultSAMRecordFactory;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMLineParser;
+import net.sf.samtools.SAMSequenceRecord;
+import net.sf.samtools.SAMTextHeaderCodec;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+/**
+ * Output format that writes the mappings in each ReadPair to a BAM file.
+ *
+ * The header is read from the SAM or BAM file given by CONF_HEADER, which
+ * must be set.  The BGZF blocks are compressed by a ParallelBgzfOutputStream
+ * with CONF_COMPRESSION_THREADS threads.
+ *
+ * BamMapping records are copied as they are, only translating their
+ * reference ids to the output header.  Other mappings are formatted as SAM
+ * and encoded with Picard.
+ */
+public class BamOutputFormat extends FileOutputFormat<Text, ReadPair>
+{
+	private static final Log LOG = LogFactory.getLog(BamOutputFormat.class);
+
+	public static final String CONF_HEADER = "seal.output.bam.header";
+	/**
+	 * Number of threads compressing the output of each task.  0 means one per
+	 * processor.  The default is low because the other tasks running on the
+	 * node are competing for the same processors.
+	 */
+	public static final String CONF_COMPRESSION_THREADS = "seal.output.bam.compression-threads";
+	public static final int CONF_COMPRESSION_THREADS_DEFAULT = 2;
+	public static final String CONF_COMPRESSION_LEVEL = "seal.output.bam.compression-level";
+	public static final int CONF_COMPRESSION_LEVEL_DEFAULT = 5;
+
+	public static class BamRecordWriter extends RecordWriter<Text,ReadPair>
+	{
+		private final OutputStream os;
+		private final SAMFileHeader header;
+		private final byte[] intBuffer = new byte[4];
+
+		private SAMLineParser parser;
+		private BAMRecordCodec codec;
+
+		// reference id translation for BamMapping records
+		private String[] lastContigNames;
+		private int[] refIdMap;
+
+		/**
+		 * @param stream Where the compressed BAM data is written.
+		 * @param header Header written to the file.  Reference names are
+		 * looked up in its sequence dictionary.
+		 */
+		public BamRecordWriter(OutputStream stream, SAMFileHeader header, int nThreads, int level) throws IOException
+		{
+			this.os = new ParallelBgzfOutputStream(stream, nThreads, level);
+			this.header = header;
+			writeHeader();
+		}
+
+		private void writeInt(int value) throws IOException
+		{
+			intBuffer[0] = (byte)value;
+			intBuffer[1] = (byte)(value >>> 8);
+			intBuffer[2] = (byte)(value >>> 16);
+			intBuffer[3] = (byte)(value >>> 24);
+			os.write(intBuffer, 0, 4);
+		}
+
+		private void writeHeader() throws IOException
+		{
+			StringWriter text = new StringWriter();
+			new SAMTextHeaderCodec().encode(text, header);
+			byte[] textBytes = text.toString().getBytes("US-ASCII");
+
+			os.write(new byte[] { 'B', 'A', 'M', 1 });
+			writeInt(textBytes.length);
+			os.write(textBytes);
+
+			List<SAMSequenceRecord> refs = header.getSequenceDictionary().getSequences();
+			writeInt(refs.size());
+			for (SAMSequenceRecord ref: refs)
+			{
+				byte[] name = ref.getSequenceName().getBytes("US-ASCII");
+				writeInt(name.length + 1);
+				os.write(name);
+				os.write(0);
+				writeInt(ref.getSequenceLength());
+			}
+		}
+
+		private int translateRefId(int refId, String[] contigNames)
+		{
+			if (refId < 0 || contigNames == null)
+				return refId;
+
+			if (contigNames != lastContigNames)
+			{
+				refIdMap = new int[contigNames.length];
+				for (int i = 0; i < contigNames.length; ++i)
+					refIdMap[i] = header.getSequenceIndex(contigNames[i]);
+				lastContigNames = contigNames;
+			}
+
+			if (refId >= refIdMap.length)
+				throw new FormatException("BAM reference id " + refId + " isn't in the record's reference sequence dictionary");
+			if (refIdMap[refId] < 0)
+				throw new FormatException("Reference " + contigNames[refId] + " isn't in the output header");
+			return refIdMap[refId];
+		}
+
+		private void writeBamMapping(BamMapping map) throws IOException
+		{
+			byte[] record = map.getRecordBytes();
+			int length = map.getRecordLength();
+			String[] contigNames = map.getContigNames();
+
+			writeInt(length);
+			writeInt(translateRefId(map.getReferenceIndex(), contigNames));
+			os.write(record, 4, 16);
+			writeInt(translateRefId(map.getMateReferenceIndex(), contigNames));
+			os.write(record, 24, length - 24);
+		}
+
+		private void writeMapping(AbstractTaggedMapping map, AbstractTaggedMapping mate) throws IOException
+		{
+			if (map == null)
+				return;
+
+			if (map instanceof BamMapping)
+				writeBamMapping((BamMapping)map);
+			else
+			{
+				if (parser == null)
+				{
+					parser = new SAMLineParser(new DefaultSAMRecordFactory(), SAMFileReader.ValidationStringency.SILENT, header, null, null);
+					codec = new BAMRecordCodec(header);
+					codec.setOutputStream(os);
+				}
+				codec.encode(parser.parseLine(SamOutputFormat.formatRecord(map, mate)));
+			}
+		}
+
+		public void write(Text key, ReadPair pair) throws IOException
+		{
+			writeMapping(pair.getRead1(), pair.getRead2());
+			writeMapping(pair.getRead2(), pair.getRead1());
+		}
+
+		public void close(TaskAttemptContext context) throws IOException
+		{
+			os.close();
+		}
+	}
+
+	/**
+	 * Read the header of a SAM or BAM file.
+	 */
+	public static SAMFileHeader readHeader(Path path, Configuration conf) throws IOException
+	{
+		FileSystem fs = path.getFileSystem(conf);
+		InputStream in = fs.open(path);
+		try {
+			return new SAMFileReader(in).getFileHeader();
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	public RecordWriter<Text,ReadPair> getRecordWriter(TaskAttemptContext task)
+	  throws IOException
+	{
+		Configuration conf = task.getConfiguration();
+
+		String headerPath = conf.get(CONF_HEADER);
+		if (headerPath == null)
+			throw new IllegalArgumentException("BAM output requires a header.  Set " + CONF_HEADER + " to the path of a SAM or BAM file with the header to use");
+		SAMFileHeader header = readHeader(new Path(headerPath), conf);
+
+		int nThreads = conf.getInt(CONF_COMPRESSION_THREADS, CONF_COMPRESSION_THREADS_DEFAULT);
+		if (nThreads < 0)
+			throw new IllegalArgumentException(CONF_COMPRESSION_THREADS + " must be >= 0 (got " + nThreads + ")");
+		if (nThreads == 0)
+			nThreads = Runtime.getRuntime().availableProcessors();
+
+		int level = conf.getInt(CONF_COMPRESSION_LEVEL, CONF_COMPRESSION_LEVEL_DEFAULT);
+		if (level < 0 || level > 9)
+			throw new IllegalArgumentException(CONF_COMPRESSION_LEVEL + " must be between 0 and 9 (got " + level + ")");
+
+		LOG.info("Compressing BAM output with " + nThreads + " threads at level " + level);
+
+		Path file = this.getDefaultWorkFile(task, ".bam");
+		OutputStream out = file.getFileSystem(conf).create(file, false);
+		return new BamRecordWriter(out, header, nThreads, level);
+	}
+}
@@ -0,0 +1,324 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package it.crs4.seal.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.LineRecordReader;
+
+/**
+ * Reads lines from a split of a BGZF-compressed text file.
+ *
+ * A split is processed from the first BGZF block that starts within it.
+ * Like LineRecordReader, a split owns the lines whose preceding newline lies
+ * in one of its blocks (plus the first line of the file), so a split other
+ * than the first skips the line it starts in and each split reads past its
+ * end to finish its last line.
+ *
+ * Keys are BGZF virtual offsets of the start of each line:  the address of
+ * the block in the upper 48 bits and the offset in the uncompressed block in
+ * the lower 16.
+ *
+ * It extends LineRecordReader so that it can replace it, but it overrides all
+ * its methods and doesn't use any of its state.
+ */
+public class BgzfLineRecordReader extends LineRecordReader
+{
+	private static final int HeaderLength = 18;
+	private static final int FooterLength = 8;
+	private static final int MaxBlockSize = 64*1024;
+
+	private FSDataInputStream in;
+	private long fileLength;
+	private long start;
+	private long end;
+
+	private long blockAddress;
+	private long nextBlockAddress;
+	private byte[] compressed = new byte[MaxBlockSize];
+	private byte[] block = new byte[MaxBlockSize];
+	private int blockLength;
+	private int blockPos;
+	private Inflater inflater = new Inflater(true);
+	private CRC32 crc = new CRC32();
+
+	// block containing the newline before the next line
+	private long lastNewlineBlock;
+	private boolean atEof;
+
+	private LongWritable key = new LongWritable();
+	private Text value = new Text();
+
+	/**
+	 * Whether buf[offset, limit) starts with a BGZF block header.
+	 *
+	 * Only headers with the BC subfield as their only extra field, as written
+	 * by bgzip, samtools and Picard, are recognized.
+	 */
+	private static boolean isBlockHeader(byte[] buf, int offset, int limit)
+	{
+		return offset + HeaderLength <= limit
+			&& buf[offset] == 31 && buf[offset+1] == (byte)139 && buf[offset+2] == 8 && (buf[offset+3] & 4) != 0
+			&& buf[offset+10] == 6 && buf[offset+11] == 0
+			&& buf[offset+12] == 'B' && buf[offset+13] == 'C' && buf[offset+14] == 2 && buf[offset+15] == 0;
+	}
+
+	private static int getBlockSize(byte[] buf, int offset)
+	{
+		return ((buf[offset+16] & 0xff) | (buf[offset+17] & 0xff) << 8) + 1;
+	}
+
+	private static int readUpTo(InputStream stream, byte[] buf, int length) throws IOException
+	{
+		int n = 0;
+		while (n < length)
+		{
+			int r = stream.read(buf, n, length - n);
+			if (r < 0)
+				break;
+			n += r;
+		}
+		return n;
+	}
+
+	/**
+	 * Whether the data in the stream starts with a BGZF block.
+	 */
+	public static boolean isBgzf(InputStream stream) throws IOException
+	{
+		byte[] header = new byte[HeaderLength];
+		return isBlockHeader(header, 0, readUpTo(stream, header, HeaderLength));
+	}
+
+	public static boolean isBgzf(Path path, Configuration conf) throws IOException
+	{
+		InputStream stream = path.getFileSystem(conf).open(path);
+		try {
+			return isBgzf(stream);
+		}
+		finally {
+			stream.close();
+		}
+	}
+
+	@Override
+	public void initialize(InputSplit genericSplit, TaskAttemptContext context) throws IOException
+	{
+		FileSplit split = (FileSplit)genericSplit;
+		Path path = split.getPath();
+		FileSystem fs = path.getFileSystem(context.getConfiguration());
+
+		fileLength = fs.getFileStatus(path).getLen();
+		start = split.getStart();
+		end = Math.min(start + split.getLength(), fileLength);
+		in = fs.open(path);
+
+		blockLength = blockPos = 0;
+		atEof = false;
+		if (start == 0)
+		{
+			nextBlockAddress = 0;
+			lastNewlineBlock = -1;
+		}
+		else
+		{
+			nextBlockAddress = findBlock(start);
+			blockAddress = nextBlockAddress;
+			in.seek(nextBlockAddress);
+			// skip the rest of the line belonging to the previous split
+			if (!readLine(null))
+				lastNewlineBlock = end;
+		}
+	}
+
+	/**
+	 * Find the address of the first BGZF block starting at or after pos.
+	 *
+	 * Candidates are confirmed by checking that they're followed by another
+	 * block header or by the end of the file.
+	 *
+	 * @return The block address, or the file length if there are no more blocks.
+	 */
+	private long findBlock(long pos) throws IOException
+	{
+		// a block starts within MaxBlockSize bytes of any position before the last block
+		byte[] buf = new byte[2*MaxBlockSize + HeaderLength];
+		in.seek(pos);
+		int n = readUpTo(in, buf, buf.length);
+
+		for (int i = 0; i < Math.min(n, MaxBlockSize); ++i)
+		{
+			if (isBlockHeader(buf, i, n))
+			{
+				int next = i + getBlockSize(buf, i);
+				if (pos + next == fileLength || isBlockHeader(buf, next, n))
+					return pos + i;
+			}
+		}
+		return fileLength;
+	}
+
+	private boolean readBlock() throws IOException
+	{
+		if (nextBlockAddress >= fileLength)
+			return false;
+
+		blockAddress = nextBlockAddress;
+		try {
+			in.readFully(compressed, 0, HeaderLength);
+			if (!isBlockHeader(compressed, 0, HeaderLength))
+				throw new FormatException("invalid BGZF block header at address " + blockAddress);
+
+			int blockSize = getBlockSize(compressed, 0);
+			if (blockSize < HeaderLength + FooterLength)
+				throw new FormatException("invalid BGZF block size " + blockSize + " at address " + blockAddress);
+			in.readFully(compressed, HeaderLength, blockSize - HeaderLength);
+
+			int footer = blockSize - FooterLength;
+			long expectedCrc = readUInt(compressed, footer);
+			int uncompressedSize = (int)readUInt(compressed, footer + 4);
+			if (uncompressedSize > MaxBlockSize)
+				throw new FormatException("invalid BGZF uncompressed size " + uncompressedSize + " at address " + blockAddress);
+
+			inflater.reset();
+			inflater.setInput(compressed, HeaderLength, footer - HeaderLength);
+			blockLength = inflater.inflate(block, 0, MaxBlockSize);
+			crc.reset();
+			crc.update(block, 0, blockLength);
+			if (blockLength != uncompressedSize || !inflater.finished() || crc.getValue() != expectedCrc)
+				throw new FormatException("corrupt BGZF block at address " + blockAddress);
+
+			nextBlockAddress += blockSize;
+			blockPos = 0;
+			return true;
+		}
+		catch (EOFException e) {
+			throw new FormatException("truncated BGZF block at address " + blockAddress);
+		}
+		catch (DataFormatException e) {
+			throw new FormatException("corrupt BGZF block at address " + blockAddress + ": " + e.getMessage());
+		}
+	}
+
+	private static long readUInt(byte[] buf, int offset)
+	{
+		return (buf[offset] & 0xffL) | (buf[offset+1] & 0xffL) << 8 | (buf[offset+2] & 0xffL) << 16 | (buf[offset+3] & 0xffL) << 24;
+	}
+
+	/**
+	 * Make sure there's uncompressed data to read, reading the next blocks if
+	 * necessary.
+	 * @return false at the end of the file.
+	 */
+	private boolean ensureData() throws IOException
+	{
+		while (blockPos >= blockLength)
+		{
+			if (!readBlock())
+			{
+				atEof = true;
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Read up to the next newline, appending the line without its terminator
+	 * to dest unless it's null.
+	 * @return true if a newline was found.
+	 */
+	private boolean readLine(Text dest) throws IOException
+	{
+		while (ensureData())
+		{
+			int i = blockPos;
+			while (i < blockLength && block[i] != '\n')
+				++i;
+
+			if (dest != null)
+				dest.append(block, blockPos, i - blockPos);
+
+			if (i < blockLength)
+			{
+				blockPos = i + 1;
+				lastNewlineBlock = blockAddress;
+				return true;
+			}
+			else
+				blockPos = blockLength;
+		}
+		return false;
+	}
+
+	@Override
+	public boolean nextKeyValue() throws IOException
+	{
+		if (atEof || lastNewlineBlock >= end || !ensureData())
+			return false;
+
+		key.set(blockAddress << 16 | blockPos);
+		value.clear();
+		readLine(value);
+
+		int length = value.getLength();
+		if (length > 0 && value.getBytes()[length - 1] == '\r')
+		{
+			// drop the \r of \r\n line terminators, as LineRecordReader does
+			byte[] bytes = value.getBytes();
+			value.set(bytes, 0, length - 1);
+		}
+		return true;
+	}
+
+	@Override
+	public LongWritable getCurrentKey() { return key; }
+
+	@Override
+	public Text getCurrentValue() { return value; }
+
+	@Override
+	public float getProgress()
+	{
+		if (end == start)
+			return 1.0f;
+		return Math.max(0.0f, Math.min(1.0f, (blockAddress - start) / (float)(end - start)));
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if (in != null)
+			in.close();
+		inflater.end();
+	}
+}
@@ -23,9 +23,11 @@ import fi.tkk.ics.hadoop.bam.QseqInputFormat;
 import fi.tkk.ics.hadoop.bam.QseqOutputFormat;
 
 import it.crs4.seal.common.BamInputFormat;
-//import it.crs4.seal.common.BamOutputFormat;
+import it.crs4.seal.common.BamOutputFormat;
+import it.crs4.seal.common.ReadPairSequenceFileInputFormat;
+import it.crs4.seal.common.ReadPairSequenceFileOutputFormat;
 import it.crs4.seal.common.SamInputFormat;
-//import it.crs4.seal.common.SamOutputFormat;
+import it.crs4.seal.common.SamOutputFormat;
 import it.crs4.seal.prq.PrqOutputFormat;
 
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
@@ -47,12 +49,14 @@ public class FormatNameMap
 		inputFormatMap.put("qseq",  QseqInputFormat.class);
 		inputFormatMap.put("sam",   SamInputFormat.class);
 		inputFormatMap.put("bam",   BamInputFormat.class);
+		inputFormatMap.put("readpair", ReadPairSequenceFileInputFormat.class);
 
 		outputFormatMap.put("fastq", FastqOutputFormat.class);
 		outputFormatMap.put("qseq",  QseqOutputFormat.class);
 		outputFormatMap.put("prq",   PrqOutputFormat.class);
-		//outputFormatMap.put("sam", SamOutputFormat.class);
-		//outputFormatMap.put("bam", BamOutputFormat.class);
+		outputFormatMap.put("sam",   SamOutputFormat.class);
+		outputFormatMap.put("bam",   BamOutputFormat.class);
+		outputFormatMap.put("readpair", ReadPairSequenceFileOutputFormat.class);
 	}
 
 	public static Class<? extends FileOutputFormat<?,?>> getOutputFormat(String name)
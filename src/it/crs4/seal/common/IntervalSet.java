@@ -0,0 +1,275 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package it.crs4.seal.common;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Set of genomic intervals, such as the targets of a capture kit.
+ *
+ * Coordinates are 1-based and inclusive, like SAM positions.  Overlapping and
+ * adjacent intervals are merged, so for each contig the set is a sorted array of
+ * disjoint intervals and queries are binary searches.  Once built the set can
+ * be shared by several threads.
+ *
+ * Intervals can be loaded from BED files (0-based, half-open) or from Picard
+ * interval lists (1-based, inclusive, with an '@' header).
+ */
+public class IntervalSet
+{
+	/**
+	 * The sorted, disjoint intervals of one contig.
+	 */
+	public static class ContigIntervals
+	{
+		private int[] starts;
+		private int[] ends;
+		private int size;
+
+		private ContigIntervals()
+		{
+			starts = new int[16];
+			ends = new int[16];
+			size = 0;
+		}
+
+		private void add(int start, int end)
+		{
+			if (size == starts.length)
+			{
+				starts = Arrays.copyOf(starts, size * 2);
+				ends = Arrays.copyOf(ends, size * 2);
+			}
+			starts[size] = start;
+			ends[size] = end;
+			size += 1;
+		}
+
+		/**
+		 * Sort the intervals and merge the ones that overlap or touch.
+		 */
+		private void merge()
+		{
+			long[] packed = new long[size];
+			for (int i = 0; i < size; ++i)
+				packed[i] = ((long)starts[i] << 32) | (ends[i] & 0xffffffffL);
+			Arrays.sort(packed);
+
+			int n = 0;
+			for (int i = 0; i < packed.length; ++i)
+			{
+				int start = (int)(packed[i] >>> 32);
+				int end = (int)packed[i];
+				if (n > 0 && start <= ends[n-1] + 1)
+					ends[n-1] = Math.max(ends[n-1], end);
+				else
+				{
+					starts[n] = start;
+					ends[n] = end;
+					n += 1;
+				}
+			}
+			size = n;
+		}
+
+		public int size() { return size; }
+		public int getStart(int i) { return starts[i]; }
+		public int getEnd(int i) { return ends[i]; }
+
+		/**
+		 * @return The index of the first interval that ends at or after pos, or size() if there isn't one.
+		 */
+		public int search(int pos)
+		{
+			int low = 0;
+			int high = size;
+			while (low < high)
+			{
+				int mid = (low + high) >>> 1;
+				if (ends[mid] < pos)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			return low;
+		}
+
+		public boolean contains(int pos)
+		{
+			int i = search(pos);
+			return i < size && starts[i] <= pos;
+		}
+
+		/**
+		 * Whether any interval overlaps [start, end].
+		 */
+		public boolean overlaps(int start, int end)
+		{
+			int i = search(start);
+			return i < size && starts[i] <= end;
+		}
+	}
+
+	private final Map<String, ContigIntervals> contigs = new HashMap<String, ContigIntervals>();
+	private volatile boolean merged = true;
+
+	/**
+	 * Add the interval [start, end] (1-based, inclusive).
+	 */
+	public void add(String contig, int start, int end)
+	{
+		if (start <= 0 || end < start)
+			throw new IllegalArgumentException("invalid interval " + contig + ":" + start + "-" + end);
+
+		ContigIntervals list = contigs.get(contig);
+		if (list == null)
+		{
+			list = new ContigIntervals();
+			contigs.put(contig, list);
+		}
+		list.add(start, end);
+		merged = false;
+	}
+
+	private void mergeIfNeeded()
+	{
+		if (!merged)
+		{
+			synchronized (this)
+			{
+				if (!merged)
+				{
+					for (ContigIntervals list: contigs.values())
+						list.merge();
+					merged = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The intervals on contig, or null if there aren't any.
+	 */
+	public ContigIntervals get(String contig)
+	{
+		mergeIfNeeded();
+		return contigs.get(contig);
+	}
+
+	public Set<String> getContigs()
+	{
+		return contigs.keySet();
+	}
+
+	public boolean contains(String contig, int pos)
+	{
+		ContigIntervals list = get(contig);
+		return list != null && list.contains(pos);
+	}
+
+	public boolean overlaps(String contig, int start, int end)
+	{
+		ContigIntervals list = get(contig);
+		return list != null && list.overlaps(start, end);
+	}
+
+	/**
+	 * Number of disjoint intervals in the set.
+	 */
+	public int size()
+	{
+		mergeIfNeeded();
+		int n = 0;
+		for (ContigIntervals list: contigs.values())
+			n += list.size();
+		return n;
+	}
+
+	/**
+	 * Read intervals in BED or Picard interval list format.
+	 *
+	 * The format is detected from the content:  files with '@' header lines
+	 * are interval lists, anything else is BED.  BED track, browser and
+	 * comment lines are skipped.
+	 */
+	public void load(Reader input) throws IOException, FormatException
+	{
+		BufferedReader in = new BufferedReader(input);
+		boolean intervalList = false;
+		int lineNo = 0;
+		String line;
+		while ((line = in.readLine()) != null)
+		{
+			lineNo += 1;
+			if (line.isEmpty() || line.startsWith("#") || line.startsWith("track") || line.startsWith("browser"))
+				continue;
+			if (line.startsWith("@"))
+			{
+				intervalList = true;
+				continue;
+			}
+
+			String[] fields = line.split("\t");
+			if (fields.length < 3)
+				throw new FormatException("Too few fields in intervals file at line " + lineNo + ": " + line);
+
+			int start, end;
+			try {
+				start = Integer.parseInt(fields[1].trim());
+				end = Integer.parseInt(fields[2].trim());
+			}
+			catch (NumberFormatException e) {
+				throw new FormatException("Invalid coordinates in intervals file at line " + lineNo + ": " + line);
+			}
+
+			if (!intervalList)
+				start += 1; // BED is 0-based, half-open
+
+			if (start <= 0 || end < start)
+				throw new FormatException("Invalid interval in intervals file at line " + lineNo + ": " + line);
+			add(fields[0], start, end);
+		}
+	}
+
+	/**
+	 * Load an intervals file from any Hadoop file system.
+	 */
+	public static IntervalSet load(Path path, Configuration conf) throws IOException, FormatException
+	{
+		InputStream in = path.getFileSystem(conf).open(path);
+		try {
+			IntervalSet set = new IntervalSet();
+			set.load(new InputStreamReader(in, "US-ASCII"));
+			return set;
+		}
+		finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,362 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package it.crs4.seal.common;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Output stream that compresses its data in the BGZF format used by BAM files,
+ * compressing the blocks with a pool of threads.
+ *
+ * Data is cut into blocks of BlockSize bytes, which are compressed
+ * independently by the pool and written to the underlying stream in order.
+ * At most twice as many blocks as threads are in memory at once.  With a
+ * single thread the blocks are compressed by the calling thread.  close()
+ * writes the empty block that marks the end of a BGZF file.
+ */
+public class ParallelBgzfOutputStream extends OutputStream
+{
+	/**
+	 * Uncompressed bytes per block.  Like bgzip we leave room for data that
+	 * doesn't compress, which must still fit in a 64 KB block.
+	 */
+	public static final int BlockSize = 0xff00;
+
+	private static final int MaxBlockSize = 64*1024;
+	private static final int HeaderLength = 18;
+	private static final int FooterLength = 8; // CRC32 and ISIZE
+
+	private static final byte[] EmptyBlock = {
+		31, -117, 8, 4, 0, 0, 0, 0, 0, -1, 6, 0, 66, 67, 2, 0, 27, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0
+	};
+
+	private final OutputStream out;
+	private final int nThreads;
+	private final int level;
+	private ExecutorService pool;
+	private LinkedList<Future<byte[]>> pending;
+	private List<byte[]> freeBuffers;
+	private Compressor localCompressor;
+	// every Compressor created by the pool threads, so they can be ended on close
+	private final List<Compressor> poolCompressors = new ArrayList<Compressor>();
+
+	private byte[] buffer;
+	private int bufferLength;
+	private boolean closed;
+
+	/**
+	 * Compress blocks, reusing one Deflater per thread.
+	 */
+	private static class Compressor
+	{
+		private final Deflater deflater;
+		private final Deflater storer;
+		private final CRC32 crc;
+		private final byte[] output;
+
+		public Compressor(int level)
+		{
+			deflater = new Deflater(level, true);
+			storer = new Deflater(Deflater.NO_COMPRESSION, true);
+			crc = new CRC32();
+			output = new byte[MaxBlockSize];
+		}
+
+		public byte[] compress(byte[] data, int length)
+		{
+			int compressed = deflate(deflater, data, length);
+			if (compressed < 0) // didn't fit
+				compressed = deflate(storer, data, length);
+			if (compressed < 0)
+				throw new RuntimeException("BUG!  Stored BGZF block doesn't fit in " + MaxBlockSize + " bytes");
+
+			int blockSize = HeaderLength + compressed + FooterLength;
+			byte[] block = new byte[blockSize];
+			block[0] = 31; // gzip magic
+			block[1] = -117;
+			block[2] = 8; // deflate
+			block[3] = 4; // FEXTRA
+			// MTIME, XFL are 0
+			block[9] = -1; // OS unknown
+			block[10] = 6; // XLEN
+			block[12] = 'B';
+			block[13] = 'C';
+			block[14] = 2; // subfield length
+			writeShort(block, 16, blockSize - 1);
+			System.arraycopy(output, 0, block, HeaderLength, compressed);
+
+			crc.reset();
+			crc.update(data, 0, length);
+			writeInt(block, HeaderLength + compressed, (int)crc.getValue());
+			writeInt(block, HeaderLength + compressed + 4, length);
+			return block;
+		}
+
+		/**
+		 * @return the compressed length, or -1 if it doesn't fit in a block.
+		 */
+		private int deflate(Deflater d, byte[] data, int length)
+		{
+			final int limit = MaxBlockSize - HeaderLength - FooterLength;
+			d.reset();
+			d.setInput(data, 0, length);
+			d.finish();
+			int n = d.deflate(output, 0, limit);
+			return d.finished() ? n : -1;
+		}
+
+		public void end()
+		{
+			deflater.end();
+			storer.end();
+		}
+	}
+
+	private class CompressTask implements Callable<byte[]>
+	{
+		private final byte[] data;
+		private final int length;
+
+		public CompressTask(byte[] data, int length)
+		{
+			this.data = data;
+			this.length = length;
+		}
+
+		public byte[] call()
+		{
+			byte[] block = compressors.get().compress(data, length);
+			synchronized (freeBuffers) {
+				freeBuffers.add(data);
+			}
+			return block;
+		}
+	}
+
+	private final ThreadLocal<Compressor> compressors = new ThreadLocal<Compressor>() {
+		@Override
+		protected Compressor initialValue()
+		{
+			Compressor c = new Compressor(level);
+			synchronized (poolCompressors) {
+				poolCompressors.add(c);
+			}
+			return c;
+		}
+	};
+
+	/**
+	 * @param out Where the compressed data is written.
+	 * @param nThreads Number of compression threads.
+	 * @param level Deflate compression level, 0 to 9 (or -1 for the zlib default).
+	 */
+	public ParallelBgzfOutputStream(OutputStream out, int nThreads, int level)
+	{
+		if (nThreads <= 0)
+			throw new IllegalArgumentException("number of compression threads must be greater than 0 (got " + nThreads + ")");
+		if (level < -1 || level > 9)
+			throw new IllegalArgumentException("compression level must be between -1 and 9 (got " + level + ")");
+
+		this.out = out;
+		this.nThreads = nThreads;
+		this.level = level;
+
+		if (nThreads > 1)
+		{
+			pool = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+				private int count = 0;
+				public synchronized Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "bgzf-compressor-" + (count++));
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			pending = new LinkedList<Future<byte[]>>();
+		}
+		else
+			localCompressor = new Compressor(level);
+
+		freeBuffers = new ArrayList<byte[]>();
+		buffer = new byte[BlockSize];
+		bufferLength = 0;
+		closed = false;
+	}
+
+	@Override
+	public void write(int b) throws IOException
+	{
+		ensureOpen();
+		if (bufferLength == BlockSize)
+			writeBlock();
+		buffer[bufferLength++] = (byte)b;
+	}
+
+	@Override
+	public void write(byte[] data, int offset, int length) throws IOException
+	{
+		ensureOpen();
+		while (length > 0)
+		{
+			if (bufferLength == BlockSize)
+				writeBlock();
+			int n = Math.min(length, BlockSize - bufferLength);
+			System.arraycopy(data, offset, buffer, bufferLength, n);
+			bufferLength += n;
+			offset += n;
+			length -= n;
+		}
+	}
+
+	/**
+	 * Compress and write the data written so far, ending the current block.
+	 */
+	@Override
+	public void flush() throws IOException
+	{
+		if (bufferLength > 0)
+			writeBlock();
+		drain();
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if (closed)
+			return;
+		try
+		{
+			flush();
+			out.write(EmptyBlock);
+			out.close();
+		}
+		finally
+		{
+			closed = true;
+			if (pool != null)
+				shutdownPool();
+			else
+				localCompressor.end();
+		}
+	}
+
+	/**
+	 * Stop the pool threads and free the native memory of their Deflaters,
+	 * which would otherwise only be released when they're garbage collected.
+	 */
+	private void shutdownPool() throws IOException
+	{
+		pool.shutdownNow();
+		try {
+			pool.awaitTermination(60, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while stopping the BGZF compression threads");
+		}
+		finally {
+			synchronized (poolCompressors) {
+				for (Compressor c: poolCompressors)
+					c.end();
+				poolCompressors.clear();
+			}
+		}
+	}
+
+	private void ensureOpen() throws IOException
+	{
+		if (closed)
+			throw new IOException("write to closed BGZF stream");
+	}
+
+	private void writeBlock() throws IOException
+	{
+		if (pool == null)
+			out.write(localCompressor.compress(buffer, bufferLength));
+		else
+		{
+			pending.add(pool.submit(new CompressTask(buffer, bufferLength)));
+			if (pending.size() > 2 * nThreads)
+				out.write(getResult(pending.removeFirst()));
+
+			synchronized (freeBuffers) {
+				buffer = freeBuffers.isEmpty() ? null : freeBuffers.remove(freeBuffers.size() - 1);
+			}
+			if (buffer == null)
+				buffer = new byte[BlockSize];
+		}
+		bufferLength = 0;
+	}
+
+	private void drain() throws IOException
+	{
+		if (pending != null)
+		{
+			while (!pending.isEmpty())
+				out.write(getResult(pending.removeFirst()));
+		}
+	}
+
+	private static byte[] getResult(Future<byte[]> future) throws IOException
+	{
+		try {
+			return future.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while compressing BGZF blocks");
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			else if (cause instanceof Error)
+				throw (Error)cause;
+			else
+				throw new RuntimeException(cause);
+		}
+	}
+
+	private static void writeShort(byte[] dest, int offset, int value)
+	{
+		dest[offset] = (byte)value;
+		dest[offset+1] = (byte)(value >>> 8);
+	}
+
+	private static void writeInt(byte[] dest, int offset, int value)
+	{
+		dest[offset] = (byte)value;
+		dest[offset+1] = (byte)(value >>> 8);
+		dest[offset+2] = (byte)(value >>> 16);
+		dest[offset+3] = (byte)(value >>> 24);
+	}
+}
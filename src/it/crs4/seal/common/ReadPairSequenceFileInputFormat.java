@@ -0,0 +1,132 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package it.crs4.seal.common;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+/**
+ * Input format for the SequenceFiles written by ReadPairSequenceFileOutputFormat.
+ *
+ * Keys are the position of each record in its file; the pair id stored in
+ * the file is skipped since it's also available through ReadPair.getName().
+ */
+public class ReadPairSequenceFileInputFormat extends FileInputFormat<LongWritable, ReadPair>
+{
+	public static class ReadPairRecordReader extends RecordReader<LongWritable, ReadPair>
+	{
+		private SequenceFile.Reader in;
+		private long start;
+		private long end;
+		private boolean more;
+		private boolean reuseRecords;
+
+		private LongWritable key = new LongWritable();
+		private Text name = new Text();
+		private ReadPairWritable value;
+
+		@Override
+		public void initialize(InputSplit genericSplit, TaskAttemptContext context) throws IOException
+		{
+			FileSplit split = (FileSplit)genericSplit;
+			Configuration conf = context.getConfiguration();
+			Path path = split.getPath();
+			in = new SequenceFile.Reader(path.getFileSystem(conf), path, conf);
+
+			if (in.getKeyClass() != Text.class || in.getValueClass() != ReadPairWritable.class)
+			{
+				throw new FormatException("File " + path + " doesn't contain read pairs (it has keys of type " +
+				    in.getKeyClass().getName() + " and values of type " + in.getValueClass().getName() + ")");
+			}
+
+			end = split.getStart() + split.getLength();
+			if (split.getStart() > in.getPosition())
+				in.sync(split.getStart()); // start at the first sync point in the split
+			start = in.getPosition();
+			more = start < end;
+
+			reuseRecords = conf.getBoolean(SealToolParser.INPUT_REUSE_RECORDS, SealToolParser.INPUT_REUSE_RECORDS_DEFAULT);
+			value = new ReadPairWritable();
+		}
+
+		@Override
+		public boolean nextKeyValue() throws IOException
+		{
+			if (!more)
+				return false;
+
+			if (!reuseRecords)
+				value = new ReadPairWritable();
+
+			long pos = in.getPosition();
+			boolean found = in.next(name, value);
+			// like SequenceFileRecordReader, stop at the first sync point past the end of the split
+			if (pos >= end && in.syncSeen())
+				more = false;
+			else
+				more = found;
+
+			if (more)
+				key.set(pos);
+			return more;
+		}
+
+		@Override
+		public LongWritable getCurrentKey() { return key; }
+
+		@Override
+		public ReadPair getCurrentValue() { return value.get(); }
+
+		@Override
+		public float getProgress() throws IOException
+		{
+			if (end == start)
+				return 0.0f;
+			else
+				return Math.min(1.0f, (in.getPosition() - start) / (float)(end - start));
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			in.close();
+		}
+	}
+
+	@Override
+	protected long getFormatMinSplitSize()
+	{
+		return SequenceFile.SYNC_INTERVAL;
+	}
+
+	@Override
+	public RecordReader<LongWritable, ReadPair> createRecordReader(InputSplit split, TaskAttemptContext context)
+	{
+		return new ReadPairRecordReader();
+	}
+}
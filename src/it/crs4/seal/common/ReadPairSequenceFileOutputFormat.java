@@ -0,0 +1,94 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package it.crs4.seal.common;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * Output format that writes read pairs to SequenceFiles of
+ * (Text, ReadPairWritable) records, to be read by
+ * ReadPairSequenceFileInputFormat.
+ *
+ * The key is the pair id; if it's null the name of the pair is used
+ * instead.  Compression is configured as for SequenceFileOutputFormat.
+ */
+public class ReadPairSequenceFileOutputFormat extends FileOutputFormat<Text, ReadPair>
+{
+	public static class ReadPairRecordWriter extends RecordWriter<Text, ReadPair>
+	{
+		private SequenceFile.Writer out;
+		private Text name = new Text();
+		private ReadPairWritable value = new ReadPairWritable();
+
+		public ReadPairRecordWriter(SequenceFile.Writer out)
+		{
+			this.out = out;
+		}
+
+		public void write(Text key, ReadPair pair) throws IOException
+		{
+			if (key == null)
+			{
+				name.set(pair.getName());
+				key = name;
+			}
+			value.set(pair);
+			out.append(key, value);
+		}
+
+		public void close(TaskAttemptContext context) throws IOException
+		{
+			out.close();
+		}
+	}
+
+	public RecordWriter<Text, ReadPair> getRecordWriter(TaskAttemptContext task)
+	  throws IOException
+	{
+		Configuration conf = task.getConfiguration();
+
+		CompressionCodec codec = null;
+		CompressionType compressionType = CompressionType.NONE;
+		if (getCompressOutput(task))
+		{
+			compressionType = SequenceFileOutputFormat.getOutputCompressionType(task);
+			Class<? extends CompressionCodec> codecClass = getOutputCompressorClass(task, DefaultCodec.class);
+			codec = ReflectionUtils.newInstance(codecClass, conf);
+		}
+
+		Path file = getDefaultWorkFile(task, "");
+		FileSystem fs = file.getFileSystem(conf);
+		SequenceFile.Writer out = SequenceFile.createWriter(fs, conf, file,
+		    Text.class, ReadPairWritable.class, compressionType, codec, task);
+		return new ReadPairRecordWriter(out);
+	}
+}
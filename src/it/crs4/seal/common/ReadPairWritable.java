@@ -0,0 +1,272 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package it.crs4.seal.common;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Binary Writable for a ReadPair.
+ *
+ * Both mates are stored in a compact encoding:  numbers as variable-length
+ * integers, bases packed two per byte with the BAM 4-bit codes, qualities
+ * as raw bytes and the CIGAR as integer codes, so records are read back
+ * without any text parsing.  Any mapping can be written.  Records are
+ * always read back as WritableMapping objects, which are reused by
+ * readFields along with the ReadPair.
+ *
+ * Bases are stored in upper case and anything that isn't an IUPAC code
+ * becomes N.
+ */
+public class ReadPairWritable implements Writable
+{
+	private static final String BaseCodes = "=ACMGRSVTWYHKDBN";
+	private static final byte[] BaseToCode = new byte[256];
+	private static final int UnknownBaseCode = 15; // N
+
+	private static final AlignOp.Type[] AlignOpTypes = AlignOp.Type.values();
+
+	static {
+		for (int i = 0; i < BaseToCode.length; ++i)
+			BaseToCode[i] = UnknownBaseCode;
+		for (int i = 0; i < BaseCodes.length(); ++i)
+		{
+			BaseToCode[BaseCodes.charAt(i)] = (byte)i;
+			BaseToCode[Character.toLowerCase(BaseCodes.charAt(i))] = (byte)i;
+		}
+	}
+
+	private static final int HasRead1 = 1;
+	private static final int HasRead2 = 2;
+
+	private ReadPair pair;
+	private WritableMapping mapping1;
+	private WritableMapping mapping2;
+	private byte[] buffer = new byte[256];
+
+	public ReadPairWritable()
+	{
+		pair = new ReadPair();
+	}
+
+	public ReadPairWritable(ReadPair pair)
+	{
+		this.pair = pair;
+	}
+
+	public ReadPair get() { return pair; }
+	public void set(ReadPair pair) { this.pair = pair; }
+
+	private void ensureBuffer(int length)
+	{
+		if (buffer.length < length)
+			buffer = new byte[Math.max(length, 2 * buffer.length)];
+	}
+
+	public void write(DataOutput out) throws IOException
+	{
+		AbstractTaggedMapping read1 = pair.getRead1();
+		AbstractTaggedMapping read2 = pair.getRead2();
+
+		out.writeByte((read1 != null ? HasRead1 : 0) | (read2 != null ? HasRead2 : 0));
+		if (read1 != null)
+			writeMapping(out, read1);
+		if (read2 != null)
+			writeMapping(out, read2);
+	}
+
+	private void writeMapping(DataOutput out, AbstractTaggedMapping map) throws IOException
+	{
+		WritableUtils.writeVInt(out, map.getFlag());
+		Text.writeString(out, map.getName() == null ? "" : map.getName());
+
+		if (map.isMapped())
+		{
+			Text.writeString(out, map.getContig());
+			WritableUtils.writeVInt(out, map.get5Position());
+			out.writeByte(map.getMapQ());
+
+			List<AlignOp> alignment = map.getAlignment();
+			int nOps = alignment == null ? 0 : alignment.size();
+			WritableUtils.writeVInt(out, nOps);
+			for (int i = 0; i < nOps; ++i)
+			{
+				AlignOp op = alignment.get(i);
+				WritableUtils.writeVInt(out, op.getLen() << 3 | op.getType().ordinal());
+			}
+		}
+		// WritableMapping only accepts a template length for a mapped pair
+		boolean hasTemplateLength = map.isTemplateLengthAvailable() && map.isMapped() && map.isPaired() && map.isMateMapped();
+		WritableUtils.writeVInt(out, hasTemplateLength ? map.getTemplateLength() : 0);
+
+		// bases, two per byte
+		ByteBuffer seq = map.getSequence();
+		int length = seq == null ? 0 : seq.remaining();
+		WritableUtils.writeVInt(out, length);
+		int start = length == 0 ? 0 : seq.position();
+		int packedLength = (length + 1) / 2;
+		ensureBuffer(Math.max(packedLength, length));
+		for (int i = 0; i < length; i += 2)
+		{
+			int code = BaseToCode[seq.get(start + i) & 0xff] << 4;
+			if (i + 1 < length)
+				code |= BaseToCode[seq.get(start + i + 1) & 0xff];
+			buffer[i / 2] = (byte)code;
+		}
+		out.write(buffer, 0, packedLength);
+
+		// qualities, if any
+		ByteBuffer qual = map.getBaseQualities();
+		if (qual == null || qual.remaining() == 0)
+			out.writeBoolean(false);
+		else
+		{
+			if (qual.remaining() != length)
+				throw new IllegalArgumentException("sequence and qualities of read " + map.getName() + " have different lengths");
+			out.writeBoolean(true);
+			if (qual.hasArray())
+				out.write(qual.array(), qual.arrayOffset() + qual.position(), length);
+			else
+			{
+				for (int i = 0; i < length; ++i)
+					buffer[i] = qual.get(qual.position() + i);
+				out.write(buffer, 0, length);
+			}
+		}
+
+		writeTags(out, map);
+	}
+
+	private void writeTags(DataOutput out, AbstractTaggedMapping map) throws IOException
+	{
+		Collection<String> names = map.getTagNames();
+		WritableUtils.writeVInt(out, names.size());
+		try {
+			for (String name: names)
+			{
+				Text.writeString(out, name);
+				out.writeByte(map.getTagType(name).getSamType());
+				Text.writeString(out, map.getTag(name));
+			}
+		}
+		catch (NoSuchFieldException e) {
+			throw new RuntimeException("BUG!  tag listed by getTagNames not found. " + e.getMessage());
+		}
+	}
+
+	public void readFields(DataInput in) throws IOException
+	{
+		int present = in.readByte();
+
+		pair.clear();
+		if ((present & HasRead1) != 0)
+		{
+			if (mapping1 == null)
+				mapping1 = new WritableMapping();
+			readMapping(in, mapping1);
+			pair.setRead1(mapping1);
+		}
+		if ((present & HasRead2) != 0)
+		{
+			if (mapping2 == null)
+				mapping2 = new WritableMapping();
+			readMapping(in, mapping2);
+			pair.setRead2(mapping2);
+		}
+	}
+
+	/**
+	 * Get a buffer of the given length, reusing the array of old if it's large enough.
+	 */
+	private static ByteBuffer reuseBuffer(ByteBuffer old, int length)
+	{
+		byte[] array;
+		if (old != null && old.hasArray() && old.arrayOffset() == 0 && old.array().length >= length)
+			array = old.array();
+		else
+			array = new byte[length];
+		return (ByteBuffer)ByteBuffer.wrap(array, 0, length).mark();
+	}
+
+	private void readMapping(DataInput in, WritableMapping map) throws IOException
+	{
+		ByteBuffer oldSeq = map.getSequence();
+		ByteBuffer oldQual = map.getBaseQualities();
+		map.clear();
+		map.setFlag(WritableUtils.readVInt(in));
+		map.setName(Text.readString(in));
+
+		if (map.isMapped())
+		{
+			map.setContig(Text.readString(in));
+			map.set5Position(WritableUtils.readVInt(in));
+			map.setMapQ(in.readByte() & 0xff);
+
+			int nOps = WritableUtils.readVInt(in);
+			List<AlignOp> alignment = new ArrayList<AlignOp>(nOps);
+			for (int i = 0; i < nOps; ++i)
+			{
+				int code = WritableUtils.readVInt(in);
+				if ((code & 7) >= AlignOpTypes.length)
+					throw new FormatException("invalid alignment operation code " + (code & 7));
+				alignment.add(new AlignOp(AlignOpTypes[code & 7], code >>> 3));
+			}
+			map.setAlignment(alignment);
+		}
+		map.setTemplateLength(WritableUtils.readVInt(in));
+
+		int length = WritableUtils.readVInt(in);
+		int packedLength = (length + 1) / 2;
+		ensureBuffer(packedLength);
+		in.readFully(buffer, 0, packedLength);
+
+		// the sequence and quality arrays of the previous record are reused along with the mapping
+		ByteBuffer seq = reuseBuffer(oldSeq, length);
+		byte[] seqArray = seq.array();
+		for (int i = 0; i < length; ++i)
+		{
+			int code = buffer[i / 2] >> ((i & 1) == 0 ? 4 : 0);
+			seqArray[i] = (byte)BaseCodes.charAt(code & 0xf);
+		}
+		map.setSequence(seq);
+
+		if (in.readBoolean())
+		{
+			ByteBuffer qual = reuseBuffer(oldQual, length);
+			in.readFully(qual.array(), 0, length);
+			map.setBaseQualities(qual);
+		}
+
+		int nTags = WritableUtils.readVInt(in);
+		for (int i = 0; i < nTags; ++i)
+		{
+			String name = Text.readString(in);
+			char type = (char)in.readByte();
+			map.setTag(name, AbstractTaggedMapping.TagDataType.fromSamType(type), Text.readString(in));
+		}
+	}
+}
@@ -17,6 +17,7 @@
 
 package it.crs4.seal.common;
 
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.hadoop.io.compress.CompressionCodecFactory;
@@ -39,15 +40,22 @@ public class SamInputFormat extends FileInputFormat<LongWritable, ReadPair>
 	{
 		private LineRecordReader lineReader;
 		private ReadPair value;
+		private TextSamMapping mapping;
+		private boolean reuseRecords;
 		private FileSplit split; // memorize it for error messages
 
 		public void initialize(InputSplit genericSplit, TaskAttemptContext context) throws IOException
 		{
-			lineReader = new LineRecordReader();
+			split = (FileSplit)genericSplit;
+			if (isBgzf(split.getPath(), context.getConfiguration()))
+				lineReader = new BgzfLineRecordReader();
+			else
+				lineReader = new LineRecordReader();
 			lineReader.initialize(genericSplit, context);
 
-			split = (FileSplit)genericSplit;
+			reuseRecords = context.getConfiguration().getBoolean(SealToolParser.INPUT_REUSE_RECORDS, SealToolParser.INPUT_REUSE_RECORDS_DEFAULT);
 			value = null;
+			mapping = null;
 		}
 
 		@Override
@@ -80,11 +88,17 @@ public class SamInputFormat extends FileInputFormat<LongWritable, ReadPair>
 			if (lineReader.nextKeyValue())
 			{
 				Text line = lineReader.getCurrentValue();
-				value = new ReadPair();
+				if (value == null || !reuseRecords)
+				{
+					value = new ReadPair();
+					mapping = new TextSamMapping();
+				}
+				else
+					value.clear();
 
 				try
 				{
-					TextSamMapping mapping = new TextSamMapping(line);
+					mapping.reset(line);
 					if (mapping.isRead2())
 						value.setRead2(mapping);
 					else // anything that's not explicitly labelled as "read 2" goes in as read 1.
@@ -112,10 +126,33 @@ public class SamInputFormat extends FileInputFormat<LongWritable, ReadPair>
 		return new SamRecordReader();
 	}
 
+	/**
+	 * Whether file is BGZF-compressed.  Only files with the extension of a
+	 * compression codec (such as .gz) are read to check their format, so plain
+	 * SAM files aren't opened.
+	 */
+	private static boolean isBgzf(Path file, Configuration conf) throws IOException
+	{
+		CompressionCodec codec = new CompressionCodecFactory(conf).getCodec(file);
+		return codec != null && BgzfLineRecordReader.isBgzf(file, conf);
+	}
+
+	/**
+	 * Uncompressed and BGZF-compressed files are splittable.  BGZF files
+	 * are split on their block boundaries.
+	 */
 	@Override
 	protected boolean isSplitable(JobContext context, Path file)
 	{
-		CompressionCodec codec = new CompressionCodecFactory(context.getConfiguration()).getCodec(file);
-		return codec == null;
+		Configuration conf = context.getConfiguration();
+		if (new CompressionCodecFactory(conf).getCodec(file) == null)
+			return true;
+
+		try {
+			return BgzfLineRecordReader.isBgzf(file, conf);
+		}
+		catch (IOException e) {
+			throw new RuntimeException("Error reading " + file + ": " + e.getMessage(), e);
+		}
 	}
 }
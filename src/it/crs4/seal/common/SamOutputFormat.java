@@ -0,0 +1,211 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package it.crs4.seal.common;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMTextHeaderCodec;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+/**
+ * Output format that writes the mappings in each ReadPair as SAM records.
+ *
+ * The key is ignored, since SAM records carry their own read name.  If
+ * CONF_HEADER is set to the path of a SAM or BAM file, its header is written
+ * at the start of each output file.
+ */
+public class SamOutputFormat extends FileOutputFormat<Text, ReadPair>
+{
+	public static final String CONF_HEADER = "seal.output.sam.header";
+
+	public static class SamRecordWriter extends RecordWriter<Text,ReadPair>
+	{
+		private DataOutputStream os;
+
+		public SamRecordWriter(DataOutputStream stream)
+		{
+			os = stream;
+		}
+
+		public SamRecordWriter(DataOutputStream stream, SAMFileHeader header) throws IOException
+		{
+			os = stream;
+			StringWriter text = new StringWriter();
+			new SAMTextHeaderCodec().encode(text, header);
+			os.write(text.toString().getBytes("US-ASCII"));
+		}
+
+		private void writeMapping(AbstractTaggedMapping map, AbstractTaggedMapping mate) throws IOException
+		{
+			if (map == null)
+				return;
+
+			if (map instanceof TextSamMapping)
+			{
+				// write the original record, which includes any change made to its qualities
+				Text text = ((TextSamMapping)map).getText();
+				os.write(text.getBytes(), 0, text.getLength());
+			}
+			else
+				os.write(formatRecord(map, mate).getBytes("US-ASCII"));
+			os.writeByte('\n');
+		}
+
+		public void write(Text key, ReadPair pair) throws IOException
+		{
+			writeMapping(pair.getRead1(), pair.getRead2());
+			writeMapping(pair.getRead2(), pair.getRead1());
+		}
+
+		public void close(TaskAttemptContext context) throws IOException
+		{
+			os.close();
+		}
+	}
+
+	/**
+	 * Format a mapping as a SAM record, without the trailing newline.
+	 *
+	 * TextSamMapping and BamMapping objects are written with all their fields
+	 * and tags.  For other mappings the mate fields and the sign of the template
+	 * length are derived from mate, which may be null, and only the tags of
+	 * WritableMapping objects are written.
+	 */
+	public static String formatRecord(AbstractTaggedMapping map, AbstractTaggedMapping mate)
+	{
+		if (map instanceof TextSamMapping)
+			return ((TextSamMapping)map).getText().toString();
+		else if (map instanceof BamMapping)
+			return map.toString();
+
+		StringBuilder builder = new StringBuilder(200 + 2 * map.getLength());
+		builder.append(map.getName()).append('\t');
+		builder.append(map.getFlag()).append('\t');
+
+		String contig = null;
+		if (map.isMapped())
+		{
+			contig = map.getContig();
+			builder.append(contig).append('\t');
+			builder.append(map.get5Position()).append('\t');
+			builder.append(map.getMapQ()).append('\t');
+			List<AlignOp> alignment = map.getAlignment();
+			if (alignment == null || alignment.isEmpty())
+				builder.append('*');
+			else
+				builder.append(AlignOp.cigarStr(alignment));
+			builder.append('\t');
+		}
+		else
+			builder.append("*\t0\t0\t*\t");
+
+		if (mate != null && mate.isMapped())
+		{
+			String mateContig = mate.getContig();
+			builder.append(mateContig.equals(contig) ? "=" : mateContig).append('\t');
+			builder.append(mate.get5Position()).append('\t');
+		}
+		else
+			builder.append("*\t0\t");
+
+		builder.append(signedTemplateLength(map, mate)).append('\t');
+
+		if (map.getLength() == 0)
+			builder.append("*\t*");
+		else
+		{
+			appendBuffer(builder, map.getSequence());
+			builder.append('\t');
+			ByteBuffer qual = map.getBaseQualities();
+			if (qual == null || qual.remaining() == 0)
+				builder.append('*');
+			else
+				appendBuffer(builder, qual);
+		}
+
+		if (map instanceof WritableMapping)
+		{
+			try {
+				for (String tag: ((WritableMapping)map).getTagNames())
+				{
+					builder.append('\t').append(tag).append(':');
+					builder.append(map.getTagType(tag).getSamType()).append(':');
+					builder.append(map.getTag(tag));
+				}
+			}
+			catch (NoSuchFieldException e) {
+				throw new RuntimeException("BUG!  tag listed by getTagNames not found. " + e.getMessage());
+			}
+		}
+
+		return builder.toString();
+	}
+
+	/**
+	 * Template length with the sign required by SAM:  positive for the leftmost
+	 * mate and negative for the other one.  When the mates start at the same
+	 * position read 1 is taken as the leftmost.  The length is 0 if it's not
+	 * available or its sign can't be determined, i.e., if the mate is missing,
+	 * either read is unmapped or they're on different contigs.
+	 */
+	private static int signedTemplateLength(AbstractTaggedMapping map, AbstractTaggedMapping mate)
+	{
+		if (!map.isTemplateLengthAvailable() || mate == null || !map.isMapped() || !mate.isMapped())
+			return 0;
+		if (!map.getContig().equals(mate.getContig()))
+			return 0;
+
+		int length = Math.abs(map.getTemplateLength());
+		int pos = map.get5Position();
+		int matePos = mate.get5Position();
+		if (pos < matePos || (pos == matePos && map.isRead1()))
+			return length;
+		else
+			return -length;
+	}
+
+	private static void appendBuffer(StringBuilder builder, ByteBuffer buffer)
+	{
+		for (int i = buffer.position(); i < buffer.limit(); ++i)
+			builder.append((char)buffer.get(i));
+	}
+
+	public RecordWriter<Text,ReadPair> getRecordWriter(TaskAttemptContext task)
+	  throws IOException
+	{
+		Configuration conf = task.getConfiguration();
+		DataOutputStream os = new OutputStreamFactory(task).makeStream(this.getDefaultWorkFile(task, ".sam"));
+
+		String headerPath = conf.get(CONF_HEADER);
+		if (headerPath == null)
+			return new SamRecordWriter(os);
+		else
+			return new SamRecordWriter(os, BamOutputFormat.readHeader(new Path(headerPath), conf));
+	}
+}
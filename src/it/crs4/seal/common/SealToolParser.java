@@ -50,6 +50,15 @@ public class SealToolParser {
 
 	public static final String INPUT_FORMAT_ENCODING = "seal.input.base-quality-encoding";
 
+	/**
+	 * Whether the SAM, BAM and ReadPair record readers return the same ReadPair
+	 * and mapping objects for every record, overwriting them as they read
+	 * (default: true).  Set it to false if the records are kept after reading
+	 * the next one, e.g. to process them with several threads.
+	 */
+	public static final String INPUT_REUSE_RECORDS = "seal.input.reuse-records";
+	public static final boolean INPUT_REUSE_RECORDS_DEFAULT = true;
+
 	private int minReduceTasks;
 
 	/**
@@ -0,0 +1,61 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package it.crs4.seal.common;
+
+import java.io.IOException;
+
+/**
+ * Wraps an IMRContext so that it can be shared by several threads.
+ *
+ * The Hadoop contexts aren't thread-safe, so all calls to the underlying
+ * context are serialized.
+ */
+public class SynchronizedContext<KEYOUT, VALUEOUT> implements IMRContext<KEYOUT, VALUEOUT>
+{
+	private final IMRContext<KEYOUT, VALUEOUT> context;
+
+	public SynchronizedContext(IMRContext<KEYOUT, VALUEOUT> context)
+	{
+		this.context = context;
+	}
+
+	public synchronized void progress()
+	{
+		context.progress();
+	}
+
+	public synchronized void setStatus(String msg)
+	{
+		context.setStatus(msg);
+	}
+
+	public synchronized void write(KEYOUT key, VALUEOUT value) throws IOException, InterruptedException
+	{
+		context.write(key, value);
+	}
+
+	public synchronized void increment(Enum<?> counterName, long value)
+	{
+		context.increment(counterName, value);
+	}
+
+	public synchronized void increment(String groupName, String counterName, long value)
+	{
+		context.increment(groupName, counterName, value);
+	}
+}
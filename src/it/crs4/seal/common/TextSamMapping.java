@@ -17,91 +17,200 @@
 
 package it.crs4.seal.common;
 
-import it.crs4.seal.common.CutText;
 import it.crs4.seal.common.AbstractSamMapping;
 
 import org.apache.hadoop.io.Text;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Implements a SAM mapping read from a Text object.
+ *
+ * Loading a record only copies it and scans it once to find where its fields
+ * start; the flag is the only field decoded right away.  Numeric fields are
+ * parsed straight from the bytes the first time they're requested, and text
+ * fields such as the name and contig are only turned into Strings when
+ * requested, so consumers that only look at a few fields don't pay for the
+ * others.  A consequence is that a malformed field is only reported, with a
+ * FormatException, when it's accessed.
+ *
+ * Similarly, the first tag request indexes the tags in a single scan, by their
+ * name packed into an int, and the typed tag accessors read the values from
+ * the record's bytes.
  */
 public class TextSamMapping extends AbstractSamMapping
 {
-	protected static final String Delim = "\t";
+	protected static final byte Tab = '\t';
 
-	protected CutText cutter;
-	protected Text unparsedData; // part of the record we don't read unless we need to
+	// indices of the SAM fields
+	protected static final int NameField = 0;
+	protected static final int FlagField = 1;
+	protected static final int ContigField = 2;
+	protected static final int PosField = 3;
+	protected static final int MapQField = 4;
+	protected static final int CigarField = 5;
+	protected static final int InsertSizeField = 8;
+	protected static final int SeqField = 9;
+	protected static final int QualityField = 10;
+	protected static final int TagsField = 11; // where the optional fields start
+	protected static final int NumFields = 11; // mandatory fields
+
+	protected Text record; // our copy of the SAM record
+	/**
+	 * fieldStarts[i] is the byte offset where field i starts.
+	 * fieldStarts[TagsField] is the start of the tags, or one position past the
+	 * end of the record if there are none, so field i always ends at
+	 * fieldStarts[i+1] - 1.
+	 */
+	protected int[] fieldStarts;
 	protected int flag;
-	protected int pos5 = 0;
-	protected byte mapQ;
-	protected int matePos5 = 0;
-	protected int insertSize = 0;
 
-	protected int seqLen;
-	protected int qualityStart;
+	// lazily computed fields.  The bits in parsedFields tell which ones are valid.
+	protected int parsedFields;
+	protected String name;
+	protected String contig;
+	protected String cigar;
+	protected int pos5;
+	protected int mapQ;
+	protected int insertSize;
 
-	protected int tagsStart;
+	// tag index, built the first time a tag is requested
+	protected int numTags; // -1 until the tags are indexed
+	protected int[] tagKeys; // two-character names packed by tagKey
+	protected byte[] tagTypes; // SAM type character
+	protected int[] tagStarts; // start of each tag field; tagStarts[numTags] is one past the end of the last one
 
 	// samples SAM record
 	//                    0                   	 1	 2  	  3	   4   5  6   7   8	                         9                         	                 10
-	// DCW97JN1_252:1:1105:15329:186955#GGCTAC	89	chr1	12134	30	51M	=	12134	0	TTGTCTGCATGTAACTTAATACCACAACCAGGCATAGGGGAAAGATTGGAG	IJJJJIJJJJJJJIIGJIHFEIHFJJJJJJJJJJJJJJHHHHHFFFFFCCC	XT:A:R	NM:i:0	SM:i:0	AM:i:0	X0:i:6	X1:i:1	XM:i:0	XO:i:0	XG:i:0	MD:Z:51
+	// DCW97JN1_252:1:1105:15329:186955#GGCTAC	89	chr1	12134	30	51M	=	12134	0	TTGTCTGCATGTAACTTAATACCACAACCAGGCATAGGGGAAAGATTGGAG	IJJJJIJJJJJJJIIGJIHFEIHFJJJJJJJJJJJJJJHHHHHFFFFFCCC	XT:A:R	NM:i:0	SM:i:37	AM:i:0	X0:i:6	X1:i:1	XM:i:0	XO:i:0	XG:i:0	MD:Z:51
+
+	/**
+	 * Create an empty mapping.  Call reset(Text) to load a record into it.
+	 */
+	public TextSamMapping()
+	{
+		record = new Text();
+		fieldStarts = new int[NumFields + 1];
+		tagKeys = new int[16];
+		tagTypes = new byte[16];
+		tagStarts = new int[17];
+		numTags = -1;
+	}
 
 	public TextSamMapping(Text sam) throws FormatException
 	{
-		unparsedData = new Text();
-		cutter = new CutText(Delim, 0, 1, 2, 3, 4, 5, 6, 7, 8); // all fields up to and including insert size
+		this();
+		reset(sam);
+	}
 
-		try
-		{
-			cutter.loadRecord(sam);
-			flag = Integer.parseInt(cutter.getField(1)); // set flag first so we can use the flag methods
-			mapQ = Byte.parseByte(cutter.getField(4));
+	/**
+	 * Load a new SAM record into this mapping, replacing the previous one.
+	 *
+	 * The record's data is copied, so sam may be reused by the caller.  This
+	 * object's buffers are reused, so no memory is allocated for records
+	 * that aren't longer than the previous ones.
+	 */
+	public void reset(Text sam) throws FormatException
+	{
+		alignment = null;
+		parsedFields = 0;
+		name = contig = cigar = null;
+		numTags = -1;
 
-			if (isMapped())
-				pos5 = Integer.parseInt(cutter.getField(3));
-			if (isMateMapped())
-				matePos5 = Integer.parseInt(cutter.getField(7));
-			if (isMapped() && isMateMapped())
-				insertSize = Integer.parseInt(cutter.getField(8));
-		}
-		catch (CutText.FormatException e) {
-			throw new FormatException("sam formatting problem: " + e + ". Record: " + sam);
-		}
-		catch (NumberFormatException e) {
-			throw new FormatException("sam formatting problem.  Found text in place of a number.  Record: " + sam);
+		record.set(sam.getBytes(), 0, sam.getLength());
+		final byte[] bytes = record.getBytes();
+		final int length = record.getLength();
+
+		// find the start of each field, up to the tags
+		int field = 0;
+		fieldStarts[0] = 0;
+		for (int i = 0; i < length && field < NumFields; ++i)
+		{
+			if (bytes[i] == Tab)
+				fieldStarts[++field] = i + 1;
 		}
 
-		int seqStart = cutter.getFieldPos(8) + cutter.getField(8).length() + 1;
-		if (seqStart > sam.getLength())
+		if (field < QualityField)
 			throw new FormatException("Incomplete SAM record -- missing fields. Record: " + sam);
-		// copy the sequence and tag data to our internal buffer
-		unparsedData.set(sam.getBytes(), seqStart, sam.getLength() - seqStart);
-
-		// Find the end of the sequence field.  Search for a Delim after the insert size field.
-		int end = unparsedData.find(Delim);
-		if (end < 0)
-			throw new FormatException("Bad SAM format.  Missing terminator for sequence field.  SAM: " + sam);
-		seqLen = end;
-
-		// now repeat for the quality field
-		qualityStart = end + 1;
-		if (qualityStart > unparsedData.getLength())
-			throw new FormatException("Incomplete SAM record -- missing quality field. Record: " + sam);
-		end = unparsedData.find(Delim, qualityStart);
-		if (end < 0)
-			end = unparsedData.getLength();
-		if (seqLen != end - qualityStart)
+		if (field == QualityField) // no tags
+			fieldStarts[TagsField] = length + 1;
+
+		int seqLen = getFieldLength(SeqField);
+		int qualLen = getFieldLength(QualityField);
+		if (seqLen != qualLen)
 		{
 			throw new FormatException("Length of sequence (" + seqLen + ") is different from length of quality string ("
-					+ (end - qualityStart) + "). Record: " + sam);
+					+ qualLen + "). Record: " + sam);
+		}
+
+		flag = parseIntField(FlagField); // set flag first so we can use the flag methods
+	}
+
+	protected int getFieldLength(int field)
+	{
+		return fieldStarts[field + 1] - 1 - fieldStarts[field];
+	}
+
+	/**
+	 * Parse a field as a decimal integer directly from the record's bytes.
+	 */
+	protected int parseIntField(int field) throws FormatException
+	{
+		final byte[] bytes = record.getBytes();
+		int pos = fieldStarts[field];
+		final int end = pos + getFieldLength(field);
+
+		boolean negative = false;
+		if (pos < end && (bytes[pos] == '-' || bytes[pos] == '+'))
+		{
+			negative = bytes[pos] == '-';
+			pos += 1;
 		}
+		if (pos >= end || end - pos > 10)
+			throw numberFormatError(field);
 
-		tagsStart = end + 1;
+		long value = 0;
+		for (; pos < end; ++pos)
+		{
+			int digit = bytes[pos] - '0';
+			if (digit < 0 || digit > 9)
+				throw numberFormatError(field);
+			value = value * 10 + digit;
+		}
+		if (negative)
+			value = -value;
+		if (value > Integer.MAX_VALUE || value < Integer.MIN_VALUE)
+			throw numberFormatError(field);
+		return (int)value;
+	}
+
+	private FormatException numberFormatError(int field)
+	{
+		return new FormatException("sam formatting problem.  Found text in place of a number in field " + (field + 1) + ".  Record: " + record);
+	}
+
+	protected String decodeField(int field) throws FormatException
+	{
+		try {
+			return Text.decode(record.getBytes(), fieldStarts[field], getFieldLength(field));
+		}
+		catch (CharacterCodingException e) {
+			throw new FormatException("sam formatting problem: character coding error in field " + (field + 1) + ".  Record: " + record);
+		}
 	}
 
-	public String getName() { return cutter.getField(0); }
+	private boolean isParsed(int field) { return (parsedFields & (1 << field)) != 0; }
+	private void setParsed(int field) { parsedFields |= (1 << field); }
+
+	public String getName()
+	{
+		if (name == null)
+			name = decodeField(NameField);
+		return name;
+	}
 
 	public int getFlag() { return flag; }
 
@@ -109,77 +218,302 @@ public class TextSamMapping extends AbstractSamMapping
 	{
 		if (isUnmapped())
 			throw new IllegalStateException();
-	 	return cutter.getField(2);
+		if (contig == null)
+			contig = decodeField(ContigField);
+	 	return contig;
 	}
+
 	public int get5Position()
 	{
 		if (isUnmapped())
 			throw new IllegalStateException();
+		if (!isParsed(PosField))
+		{
+			pos5 = parseIntField(PosField);
+			setParsed(PosField);
+		}
 	 	return pos5;
 	}
 
-	public int getMapQ() { return mapQ; }
+	public int getMapQ()
+	{
+		if (!isParsed(MapQField))
+		{
+			mapQ = parseIntField(MapQField);
+			setParsed(MapQField);
+		}
+		return mapQ;
+	}
 
 	public String getCigarStr()
  	{
 		if (isUnmapped())
 			throw new IllegalStateException();
-	 	return cutter.getField(5);
+		if (cigar == null)
+			cigar = decodeField(CigarField);
+	 	return cigar;
+	}
+
+	private int getInsertSize()
+	{
+		// the insert size is only meaningful if both reads are mapped
+		if (!isMapped() || !isMateMapped())
+			return 0;
+		if (!isParsed(InsertSizeField))
+		{
+			insertSize = parseIntField(InsertSizeField);
+			setParsed(InsertSizeField);
+		}
+		return insertSize;
 	}
 
 	public boolean isTemplateLengthAvailable()
 	{
-		return insertSize != 0;
+		return getInsertSize() != 0;
 	}
 
 	public int getTemplateLength()
 	{
-		int abs = Math.abs(insertSize);
+		int abs = Math.abs(getInsertSize());
 		if (abs > 0)
 			return abs;
 		else
 			throw new IllegalStateException();
 	}
 
-	public ByteBuffer getSequence() { return (ByteBuffer)ByteBuffer.wrap(unparsedData.getBytes(), 0, seqLen).mark(); }
-	public ByteBuffer getBaseQualities() { return (ByteBuffer)ByteBuffer.wrap(unparsedData.getBytes(), qualityStart, seqLen).mark(); }
-	public int getLength() { return seqLen; }
+	public ByteBuffer getSequence() { return (ByteBuffer)ByteBuffer.wrap(record.getBytes(), fieldStarts[SeqField], getLength()).mark(); }
+	public ByteBuffer getBaseQualities() { return (ByteBuffer)ByteBuffer.wrap(record.getBytes(), fieldStarts[QualityField], getLength()).mark(); }
+	public int getLength() { return getFieldLength(SeqField); }
 
-	protected String getTagText(String name)
+	//////////////////////// tag methods ////////////////////////
+
+	/**
+	 * Pack a two-character tag name into an int, the key used by the tag index.
+	 * @return -1 if name isn't a valid tag name.
+	 */
+	protected static int tagKey(String name)
 	{
-		if (tagsStart >= unparsedData.getLength()) // no tags
-			return null;
+		if (name.length() != 2)
+			return -1;
+		return (name.charAt(0) << 8) | name.charAt(1);
+	}
 
-		String text = null;
-		try {
-			int pos = unparsedData.find(Delim + name, tagsStart - 1);
-			if (pos >= 0)
+	/**
+	 * Scan the tag fields once, recording the key, type and value position
+	 * of each tag.  Malformed tags are indexed with type 0 so that the error
+	 * is only reported if they're requested.
+	 */
+	protected void indexTags()
+	{
+		final byte[] bytes = record.getBytes();
+		final int length = record.getLength();
+
+		numTags = 0;
+		int start = fieldStarts[TagsField];
+		while (start < length)
+		{
+			int end = start;
+			while (end < length && bytes[end] != Tab)
+				++end;
+
+			if (numTags == tagKeys.length)
 			{
-				int fieldEnd = unparsedData.find(Delim, pos + 1); // fieldEnd: index one position beyond the last char of the field
-				if (fieldEnd < 0)
-					fieldEnd = unparsedData.getLength();
-				// decode n bytes from start
-				//  start = pos + 1 (+1 to skip the delimiter)
-				//  n = fieldEnd - start
-				//    = fieldEnd - (pos + 1)
-				//    = fieldEnd - pos - 1
-				text = Text.decode(unparsedData.getBytes(), pos + 1, fieldEnd - pos - 1);
+				int n = 2 * numTags;
+				int[] keys = new int[n];
+				byte[] types = new byte[n];
+				int[] starts = new int[n + 1];
+				System.arraycopy(tagKeys, 0, keys, 0, numTags);
+				System.arraycopy(tagTypes, 0, types, 0, numTags);
+				System.arraycopy(tagStarts, 0, starts, 0, numTags);
+				tagKeys = keys;
+				tagTypes = types;
+				tagStarts = starts;
 			}
+
+			if (end - start >= 5 && bytes[start + 2] == ':' && bytes[start + 4] == ':')
+			{
+				tagKeys[numTags] = ((bytes[start] & 0xff) << 8) | (bytes[start + 1] & 0xff);
+				tagTypes[numTags] = bytes[start + 3];
+			}
+			else
+			{
+				tagKeys[numTags] = end - start >= 2 ? ((bytes[start] & 0xff) << 8) | (bytes[start + 1] & 0xff) : -1;
+				tagTypes[numTags] = 0;
+			}
+			tagStarts[numTags] = start;
+			numTags += 1;
+			start = end + 1;
+		}
+		// so that tag i always ends at tagStarts[i+1] - 1
+		tagStarts[numTags] = start;
+	}
+
+	/**
+	 * Find the named tag in the index.
+	 * @return the tag's index.
+	 * @exception NoSuchFieldException Tag not found in mapping record.
+	 * @exception FormatException The tag is malformed.
+	 */
+	protected int findTag(String name) throws NoSuchFieldException
+	{
+		int i = findTagIndex(name);
+		if (i < 0)
+			throw new NoSuchFieldException("no tag with name " + name);
+		if (tagTypes[i] == 0)
+			throw new FormatException("Invalid SAM tag syntax " + getTagText(i));
+		return i;
+	}
+
+	/**
+	 * The names of the tags in this record, excluding malformed tags.
+	 */
+	@Override
+	public List<String> getTagNames()
+	{
+		if (numTags < 0)
+			indexTags();
+
+		List<String> names = new ArrayList<String>(numTags);
+		for (int i = 0; i < numTags; ++i)
+		{
+			if (tagTypes[i] != 0)
+				names.add(new String(new char[] { (char)(tagKeys[i] >>> 8), (char)(tagKeys[i] & 0xff) }));
+		}
+		return names;
+	}
+
+	private int findTagIndex(String name)
+	{
+		if (numTags < 0)
+			indexTags();
+
+		int key = tagKey(name);
+		for (int i = 0; i < numTags; ++i)
+		{
+			if (tagKeys[i] == key)
+				return i;
+		}
+		return -1;
+	}
+
+	private int getTagValueStart(int i) { return tagStarts[i] + 5; } // skip "XX:T:"
+	private int getTagValueLength(int i) { return tagStarts[i+1] - 1 - getTagValueStart(i); }
+
+	private String getTagText(int i)
+	{
+		try {
+			return Text.decode(record.getBytes(), tagStarts[i], tagStarts[i+1] - 1 - tagStarts[i]);
+		}
+		catch (CharacterCodingException e) {
+			throw new RuntimeException("character coding error retrieving tag from SAM record " + this.toString());
 		}
-		catch (java.nio.charset.CharacterCodingException e) {
+	}
+
+	protected String getTagText(String name)
+	{
+		int i = findTagIndex(name);
+		return i < 0 ? null : getTagText(i);
+	}
+
+	@Override
+	public String getTag(String name) throws NoSuchFieldException
+	{
+		int i = findTag(name);
+		try {
+			return Text.decode(record.getBytes(), getTagValueStart(i), getTagValueLength(i));
+		}
+		catch (CharacterCodingException e) {
 			throw new RuntimeException("character coding error retrieving tag '" + name + "' from SAM record " + this.toString());
 		}
+	}
 
-		return text;
+	@Override
+	public boolean hasTag(String name)
+	{
+		try {
+			findTag(name);
+			return true;
+		}
+		catch (NoSuchFieldException e) {
+			return false;
+		}
 	}
 
-	public String toString()
+	@Override
+	public TagDataType getTagType(String name) throws NoSuchFieldException
 	{
-		StringBuilder builder = new StringBuilder(1000);
-		for (int i = 0; i <= 8; ++i)
-			builder.append(cutter.getField(i)).append('\t');
-		builder.append(unparsedData.toString());
+		return TagDataType.fromSamType((char)tagTypes[findTag(name)]);
+	}
+
+	/**
+	 * Get the named tag's value text.  The returned buffer wraps this
+	 * mapping's record.
+	 */
+	@Override
+	public ByteBuffer getTagBytes(String name) throws NoSuchFieldException
+	{
+		int i = findTag(name);
+		return (ByteBuffer)ByteBuffer.wrap(record.getBytes(), getTagValueStart(i), getTagValueLength(i)).mark();
+	}
 
-		return builder.toString();
+	/**
+	 * Parse an integer tag directly from the record.
+	 */
+	@Override
+	public int getIntTag(String name) throws NoSuchFieldException
+	{
+		int i = findTag(name);
+		if (tagTypes[i] != 'i')
+			throw new NumberFormatException("tag " + getTagText(i) + " is not of integer type");
+
+		final byte[] bytes = record.getBytes();
+		int pos = getTagValueStart(i);
+		final int end = pos + getTagValueLength(i);
+		boolean negative = false;
+		if (pos < end && (bytes[pos] == '-' || bytes[pos] == '+'))
+		{
+			negative = bytes[pos] == '-';
+			pos += 1;
+		}
+		if (pos >= end || end - pos > 10)
+			throw new NumberFormatException("bad integer value in tag " + getTagText(i));
+
+		long value = 0;
+		for (; pos < end; ++pos)
+		{
+			int digit = bytes[pos] - '0';
+			if (digit < 0 || digit > 9)
+				throw new NumberFormatException("bad integer value in tag " + getTagText(i));
+			value = value * 10 + digit;
+		}
+		if (negative)
+			value = -value;
+		if (value > Integer.MAX_VALUE || value < Integer.MIN_VALUE)
+			throw new NumberFormatException("integer value out of range in tag " + getTagText(i));
+		return (int)value;
+	}
+
+	@Override
+	public double getDoubleTag(String name) throws NoSuchFieldException
+	{
+		int i = findTag(name);
+		if (tagTypes[i] != 'f' && tagTypes[i] != 'i')
+			throw new NumberFormatException("tag " + getTagText(i) + " is not of double type");
+		return Double.parseDouble(getTag(name));
+	}
+
+	/**
+	 * The SAM record, including any change made to the sequence or base
+	 * qualities through the buffers returned by getSequence and
+	 * getBaseQualities.  It must not be modified.
+	 */
+	public Text getText()
+	{
+		return record;
+	}
+
+	public String toString()
+	{
+		return record.toString();
 	}
 }
@@ -134,4 +134,9 @@ public class ArrayListVariantTable implements VariantTable
 	{
 		return data.keySet();
 	}
+
+	public VariantCursor getCursor()
+	{
+		return new SimpleVariantCursor(this);
+	}
 }
@@ -21,10 +21,13 @@ import it.crs4.seal.common.FormatException;
 import it.crs4.seal.common.CutString;
 
 import java.io.IOException;
+import java.nio.IntBuffer;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -54,6 +57,15 @@ public class ArrayVariantTable implements VariantTable
 			size = 0;
 		}
 
+		/**
+		 * Wrap sorted, duplicate-free values.  The array is used directly, not copied.
+		 */
+		public IntSortedArray(int[] sortedValues, int size)
+		{
+			data = sortedValues;
+			this.size = size;
+		}
+
 		/**
 		 * Add the position to the list of variant positions.
 		 * This method is optimized to receive positions in increasing order.
@@ -167,6 +179,49 @@ public class ArrayVariantTable implements VariantTable
 		LOG.info("Loaded a total of " + count + " known variations");
 	}
 
+	/**
+	 * Set the positions of a contig, replacing any it already has.
+	 * positions[0, size) must be sorted and free of duplicates.  The array is used directly, not copied.
+	 */
+	void setPositions(String contig, int[] positions, int size)
+	{
+		if (data == null)
+			data = new HashMap< String, IntSortedArray >(30);
+		data.put(contig, new IntSortedArray(positions, size));
+	}
+
+	/**
+	 * Get a reader that returns the positions in this table, each as a variant
+	 * of length 1, ordered by contig name and position.
+	 */
+	public VariantReader getReader()
+	{
+		final Iterator<String> contigs = new TreeSet<String>(data.keySet()).iterator();
+
+		return new VariantReader() {
+			private String contig;
+			private IntSortedArray positions;
+			private int next;
+
+			public boolean nextEntry(VariantRegion dest)
+			{
+				while (positions == null || next >= positions.size())
+				{
+					if (!contigs.hasNext())
+						return false;
+					contig = contigs.next();
+					positions = data.get(contig);
+					next = 0;
+				}
+
+				dest.setContigName(contig);
+				dest.setPosition(positions.data[next++]);
+				dest.setLength(1);
+				return true;
+			}
+		};
+	}
+
 	public int size()
 	{
 		int sum = 0;
@@ -183,4 +238,15 @@ public class ArrayVariantTable implements VariantTable
 	{
 		return data.keySet();
 	}
+
+	public VariantCursor getCursor()
+	{
+		return new SortedPositionsCursor() {
+			protected IntBuffer getPositions(String contig)
+			{
+				IntSortedArray list = data.get(contig);
+				return list == null ? null : IntBuffer.wrap(list.data, 0, list.size()).slice();
+			}
+		};
+	}
 }
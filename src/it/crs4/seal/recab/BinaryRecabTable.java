@@ -0,0 +1,276 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package it.crs4.seal.recab;
+
+import it.crs4.seal.common.FormatException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Binary format for recab tables, which can be merged without parsing text.
+ *
+ * Rather than the empirical quality, the table keeps the observation and
+ * mismatch counts of each combination of covariate values, so tables computed
+ * on different data (e.g., different lanes) can be summed with
+ * MergeRecabTables and the qualities computed from the total.  Entries are
+ * sorted by RecabKey, so tables can be merged in a single streaming pass.
+ *
+ * File format:
+ * <pre>
+ * 	magic: 8 bytes ("SEALRCT" + version byte)
+ * 	number of covariates: VInt
+ * 	for each covariate, in CovariateList order:
+ * 		name: Text string
+ * 		cardinality: VLong (0 for the read group)
+ * 	for each entry, sorted by read group and then code:
+ * 		(code delta << 1) | new read group flag: VLong
+ * 		read group: Text string, only if the flag is set
+ * 		observations: VLong
+ * 		mismatches: VLong
+ * 	end marker: VLong -1
+ * </pre>
+ * The code delta is the difference from the previous entry's code, or the
+ * code itself for the first entry of each read group.
+ */
+public class BinaryRecabTable
+{
+	public static final byte[] Magic = { 'S', 'E', 'A', 'L', 'R', 'C', 'T', 1 };
+
+	/**
+	 * The covariates a table was computed with, as written in its header.
+	 */
+	public static String[] describeCovariates(CovariateList covariates)
+	{
+		String[] description = new String[covariates.size()];
+		for (int i = 0; i < covariates.size(); ++i)
+			description[i] = covariates.get(i).getClass().getSimpleName() + ":" + getCardinality(covariates.get(i));
+		return description;
+	}
+
+	private static long getCardinality(Covariate cov)
+	{
+		return (cov instanceof CodedCovariate) ? ((CodedCovariate)cov).getCardinality() : 0;
+	}
+
+	/**
+	 * Whether the stream starts with the binary table magic.  The stream must
+	 * support mark() and is reset to its position before the call.
+	 */
+	public static boolean isBinaryTable(InputStream in) throws IOException
+	{
+		byte[] magic = new byte[Magic.length];
+		in.mark(magic.length);
+		try
+		{
+			int n = 0;
+			while (n < magic.length)
+			{
+				int bytesRead = in.read(magic, n, magic.length - n);
+				if (bytesRead < 0)
+					return false;
+				n += bytesRead;
+			}
+			return Arrays.equals(magic, Magic);
+		}
+		finally {
+			in.reset();
+		}
+	}
+
+	public static class Writer
+	{
+		private final DataOutputStream out;
+		private String lastRg = null;
+		private long lastCode = 0;
+		private long nEntries = 0;
+
+		public Writer(OutputStream stream, CovariateList covariates) throws IOException
+		{
+			if (covariates.getCardinality() > (Long.MAX_VALUE >>> 1))
+				throw new IllegalArgumentException("Too many covariate value combinations for a binary recab table");
+
+			out = new DataOutputStream(new BufferedOutputStream(stream));
+			out.write(Magic);
+			WritableUtils.writeVInt(out, covariates.size());
+			for (int i = 0; i < covariates.size(); ++i)
+			{
+				Text.writeString(out, covariates.get(i).getClass().getSimpleName());
+				WritableUtils.writeVLong(out, getCardinality(covariates.get(i)));
+			}
+		}
+
+		/**
+		 * Append an entry.  Entries must be written in increasing key order.
+		 */
+		public void write(RecabKey key, ObservationCount counts) throws IOException
+		{
+			String rg = key.getReadGroup();
+			long code = key.getCode();
+
+			if (lastRg != null && rg.equals(lastRg))
+			{
+				if (code <= lastCode)
+					throw new IllegalArgumentException("binary recab table entries must be written in increasing order (got " + key + " after code " + lastCode + ")");
+				WritableUtils.writeVLong(out, (code - lastCode) << 1);
+			}
+			else
+			{
+				if (lastRg != null && rg.compareTo(lastRg) < 0)
+					throw new IllegalArgumentException("binary recab table entries must be written in increasing order (got " + key + " after read group " + lastRg + ")");
+				WritableUtils.writeVLong(out, (code << 1) | 1);
+				Text.writeString(out, rg);
+				lastRg = rg;
+			}
+			lastCode = code;
+
+			WritableUtils.writeVLong(out, counts.getObservations());
+			WritableUtils.writeVLong(out, counts.getMismatches());
+			nEntries += 1;
+		}
+
+		public long getNumEntries() { return nEntries; }
+
+		/**
+		 * Write the end marker and close the stream.
+		 */
+		public void close() throws IOException
+		{
+			WritableUtils.writeVLong(out, -1);
+			out.close();
+		}
+	}
+
+	public static class Reader
+	{
+		private final DataInputStream in;
+		private final String[] description;
+		private String rg = null;
+		private long code = 0;
+		private boolean done = false;
+
+		public Reader(InputStream stream) throws IOException, FormatException
+		{
+			in = new DataInputStream(new BufferedInputStream(stream));
+			try
+			{
+				byte[] magic = new byte[Magic.length];
+				in.readFully(magic);
+				if (!Arrays.equals(magic, Magic))
+					throw new FormatException("not a binary recab table");
+
+				int n = WritableUtils.readVInt(in);
+				if (n <= 0)
+					throw new FormatException("invalid number of covariates in binary recab table (" + n + ")");
+				List<String> list = new ArrayList<String>(n);
+				for (int i = 0; i < n; ++i)
+				{
+					String name = Text.readString(in);
+					long cardinality = WritableUtils.readVLong(in);
+					list.add(name + ":" + cardinality);
+				}
+				description = list.toArray(new String[n]);
+			}
+			catch (EOFException e) {
+				throw new FormatException("binary recab table header is truncated");
+			}
+		}
+
+		/**
+		 * The covariates the table was computed with, in the form returned by
+		 * describeCovariates.
+		 */
+		public String[] getCovariates() { return description; }
+
+		/**
+		 * Check that the table was computed with covariates.
+		 * @exception FormatException if it wasn't.
+		 */
+		public void checkCovariates(CovariateList covariates) throws FormatException
+		{
+			String[] expected = describeCovariates(covariates);
+			if (!Arrays.equals(description, expected))
+			{
+				throw new FormatException("binary recab table was computed with covariates " + Arrays.toString(description) +
+				    " but the current configuration uses " + Arrays.toString(expected) + ".  Check " + CovariateList.CONF_COVARIATES);
+			}
+		}
+
+		/**
+		 * Read the next entry into key and counts.
+		 *
+		 * @return false if there are no more entries.
+		 */
+		public boolean next(RecabKey key, ObservationCount counts) throws IOException, FormatException
+		{
+			if (done)
+				return false;
+
+			try
+			{
+				long header = WritableUtils.readVLong(in);
+				if (header == -1)
+				{
+					done = true;
+					return false;
+				}
+				else if (header < 0)
+					throw new FormatException("invalid entry in binary recab table");
+
+				if ((header & 1) != 0)
+				{
+					rg = Text.readString(in);
+					code = header >>> 1;
+				}
+				else if (rg == null)
+					throw new FormatException("invalid first entry in binary recab table");
+				else
+					code += header >>> 1;
+
+				long observations = WritableUtils.readVLong(in);
+				long mismatches = WritableUtils.readVLong(in);
+				if (observations < 0 || mismatches < 0 || mismatches > observations)
+					throw new FormatException("invalid counts in binary recab table (" + observations + ", " + mismatches + ")");
+
+				key.set(rg, code);
+				counts.set(observations, mismatches);
+				return true;
+			}
+			catch (EOFException e) {
+				throw new FormatException("binary recab table is truncated");
+			}
+		}
+
+		public void close() throws IOException
+		{
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,63 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package it.crs4.seal.recab;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+/**
+ * Writes the summed observations of each reducer as a BinaryRecabTable.
+ *
+ * The reducer receives its keys in sorted order, so each part file is a
+ * valid table.  The files aren't compressed:  the counts are already stored
+ * as variable-length integers.
+ */
+public class BinaryRecabTableOutputFormat extends FileOutputFormat<RecabKey, ObservationCount>
+{
+	public static class BinaryRecabTableRecordWriter extends RecordWriter<RecabKey, ObservationCount>
+	{
+		private BinaryRecabTable.Writer writer;
+
+		public BinaryRecabTableRecordWriter(BinaryRecabTable.Writer writer)
+		{
+			this.writer = writer;
+		}
+
+		public void write(RecabKey key, ObservationCount value) throws IOException
+		{
+			writer.write(key, value);
+		}
+
+		public void close(TaskAttemptContext context) throws IOException
+		{
+			writer.close();
+		}
+	}
+
+	public RecordWriter<RecabKey, ObservationCount> getRecordWriter(TaskAttemptContext task) throws IOException
+	{
+		Path file = getDefaultWorkFile(task, "");
+		CovariateList covariates = new CovariateList(task.getConfiguration());
+		return new BinaryRecabTableRecordWriter(
+		    new BinaryRecabTable.Writer(file.getFileSystem(task.getConfiguration()).create(file, false), covariates));
+	}
+}
@@ -0,0 +1,342 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package it.crs4.seal.recab;
+
+import it.crs4.seal.common.FormatException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * VariantTable that stores one bit for each reference position.
+ *
+ * Contigs are laid out one after the other in a single bitmap, like in the
+ * BWA reference annotation:  each contig has a start offset and a length and
+ * the bit for position pos of a contig is at start + pos.  Lookups are a
+ * single bit test.
+ *
+ * The table can be saved to a file and later memory-mapped with loadMapped,
+ * so that all the tasks on a node share the same read-only copy through the
+ * page cache instead of each building its own.
+ *
+ * File format (big-endian):
+ * <pre>
+ * 	magic: 8 bytes ("SEALVBM" + version byte)
+ * 	offset of the bitmap from the start of the file: long
+ * 	number of contigs: int
+ * 	number of variant positions: long
+ * 	for each contig:
+ * 		name: modified UTF-8, as written by DataOutput.writeUTF
+ * 		start offset (bits): long
+ * 		length (bits): long
+ * 	padding up to a multiple of 8 bytes
+ * 	bitmap: long words.  Bit b is (word[b / 64] >>> (b % 64)) & 1
+ * </pre>
+ */
+public class BitmapVariantTable implements VariantTable
+{
+	private static final Log LOG = LogFactory.getLog(BitmapVariantTable.class);
+
+	private static final byte[] Magic = { 'S', 'E', 'A', 'L', 'V', 'B', 'M', 1 };
+
+	/**
+	 * Words per mapped buffer.  Keeps each buffer well within the 2 GB limit of a ByteBuffer.
+	 */
+	private static final int ChunkBits = 27;
+	private static final long ChunkMask = (1L << ChunkBits) - 1;
+
+	private static class Contig
+	{
+		public final long start;
+		public final long length;
+
+		public Contig(long start, long length)
+		{
+			this.start = start;
+			this.length = length;
+		}
+	}
+
+	private Map<String, Contig> contigs = new LinkedHashMap<String, Contig>();
+	private LongBuffer[] chunks = new LongBuffer[0];
+	private long nVariants = 0;
+
+	/**
+	 * Cursor that remembers the contig of the last query, since consecutive
+	 * queries are usually on the same contig.  The table itself keeps no
+	 * query state, so it can be shared by several threads each with its own
+	 * cursor.
+	 */
+	private class BitmapCursor implements VariantCursor
+	{
+		private String contigName;
+		private Contig contig;
+
+		public boolean seek(String chr, long pos)
+		{
+			if (!chr.equals(contigName))
+			{
+				contig = contigs.get(chr);
+				contigName = chr;
+			}
+			return isSet(contig, pos);
+		}
+
+		public boolean advanceTo(long pos)
+		{
+			if (contigName == null)
+				throw new IllegalStateException("advanceTo called before seek");
+			return isSet(contig, pos);
+		}
+	}
+
+	public boolean isVariantLocation(String chr, long pos)
+	{
+		return isSet(contigs.get(chr), pos);
+	}
+
+	private boolean isSet(Contig c, long pos)
+	{
+		if (pos > Integer.MAX_VALUE)
+			throw new RuntimeException("pos bigger than expected!  File a bug!!");
+
+		if (c == null || pos < 0 || pos >= c.length)
+			return false;
+
+		long bit = c.start + pos;
+		long word = bit >>> 6;
+		return ((chunks[(int)(word >>> ChunkBits)].get((int)(word & ChunkMask)) >>> (bit & 63)) & 1) != 0;
+	}
+
+	public void load(VariantReader reader) throws IOException, FormatException
+	{
+		// accumulate one growable bitmap per contig, then lay them out one after the other
+		Map<String, long[]> bitmaps = new LinkedHashMap<String, long[]>(30);
+		Map<String, Long> lengths = new HashMap<String, Long>(30);
+		VariantRegion snp = new VariantRegion();
+		long count = 0;
+
+		while (reader.nextEntry(snp)) // snp is re-used
+		{
+			String chr = snp.getContigName();
+			long[] bits = bitmaps.get(chr);
+			long end = (long)snp.getPosition() + snp.getLength();
+			if (end > Integer.MAX_VALUE)
+				throw new RuntimeException("variant position bigger than expected!  File a bug!!");
+
+			int wordsNeeded = (int)((end + 63) >>> 6);
+			if (bits == null || bits.length < wordsNeeded)
+			{
+				int newSize = bits == null ? 1024 : bits.length;
+				while (newSize < wordsNeeded)
+					newSize *= 2;
+				bits = bits == null ? new long[newSize] : Arrays.copyOf(bits, newSize);
+				bitmaps.put(chr, bits);
+			}
+
+			Long len = lengths.get(chr);
+			if (len == null || len < end)
+				lengths.put(chr, end);
+
+			for (int pos = snp.getPosition(); pos < end; ++pos)
+				bits[pos >>> 6] |= 1L << (pos & 63);
+
+			count += 1;
+			if (LOG.isInfoEnabled())
+			{
+				if (count % 1000000 == 0)
+					LOG.info("Loaded " + count);
+			}
+		}
+
+		contigs = new LinkedHashMap<String, Contig>(bitmaps.size() * 2);
+		long totalWords = 0;
+		for (Map.Entry<String, long[]> e: bitmaps.entrySet())
+		{
+			long length = lengths.get(e.getKey());
+			contigs.put(e.getKey(), new Contig(totalWords * 64, length));
+			totalWords += (length + 63) >>> 6; // keep contigs word-aligned
+		}
+
+		chunks = new LongBuffer[(int)((totalWords + ChunkMask) >>> ChunkBits)];
+		long[] chunk = null;
+		nVariants = 0;
+		long word = 0;
+		for (Map.Entry<String, long[]> e: bitmaps.entrySet())
+		{
+			long[] bits = e.getValue();
+			int nWords = (int)((contigs.get(e.getKey()).length + 63) >>> 6);
+			for (int i = 0; i < nWords; ++i, ++word)
+			{
+				int chunkIndex = (int)(word >>> ChunkBits);
+				if (chunks[chunkIndex] == null)
+				{
+					chunk = new long[(int)Math.min(ChunkMask + 1, totalWords - word)];
+					chunks[chunkIndex] = LongBuffer.wrap(chunk);
+				}
+				chunk[(int)(word & ChunkMask)] = bits[i];
+				nVariants += Long.bitCount(bits[i]);
+			}
+			e.setValue(null); // let the contig's temporary bitmap be collected
+		}
+
+		LOG.info("Loaded a total of " + count + " known variations");
+	}
+
+	/**
+	 * Memory-map a table previously written by save.
+	 */
+	public void loadMapped(File file) throws IOException, FormatException
+	{
+		long dataStart;
+		long totalBits = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try
+		{
+			byte[] magic = new byte[Magic.length];
+			in.readFully(magic);
+			if (!Arrays.equals(magic, Magic))
+				throw new FormatException("File " + file + " isn't a variant bitmap table (or it was written by an incompatible version)");
+
+			dataStart = in.readLong();
+			int nContigs = in.readInt();
+			nVariants = in.readLong();
+			contigs = new LinkedHashMap<String, Contig>(nContigs * 2);
+			for (int i = 0; i < nContigs; ++i)
+			{
+				String name = in.readUTF();
+				long start = in.readLong();
+				long length = in.readLong();
+				contigs.put(name, new Contig(start, length));
+				totalBits = Math.max(totalBits, start + length);
+			}
+		}
+		catch (EOFException e) {
+			throw new FormatException("Variant bitmap table " + file + " is truncated");
+		}
+		finally {
+			in.close();
+		}
+
+		long totalWords = (totalBits + 63) >>> 6;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			if (channel.size() < dataStart + totalWords * 8)
+				throw new FormatException("Variant bitmap table " + file + " is truncated");
+
+			chunks = new LongBuffer[(int)((totalWords + ChunkMask) >>> ChunkBits)];
+			for (int i = 0; i < chunks.length; ++i)
+			{
+				long firstWord = (long)i << ChunkBits;
+				long nWords = Math.min(ChunkMask + 1, totalWords - firstWord);
+				ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, dataStart + firstWord * 8, nWords * 8);
+				chunks[i] = buf.order(ByteOrder.BIG_ENDIAN).asLongBuffer();
+			}
+		}
+		finally {
+			raf.close(); // mapped buffers remain valid after the channel is closed
+		}
+
+		LOG.info("Mapped variant bitmap table " + file + " with " + nVariants + " known variant positions");
+	}
+
+	/**
+	 * Write the table in the format read by loadMapped.
+	 */
+	public void save(File file) throws IOException
+	{
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1024*1024);
+		try {
+			save(out);
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	public void save(OutputStream stream) throws IOException
+	{
+		ByteArrayOutputStream contigBytes = new ByteArrayOutputStream();
+		DataOutputStream contigOut = new DataOutputStream(contigBytes);
+		for (Map.Entry<String, Contig> e: contigs.entrySet())
+		{
+			contigOut.writeUTF(e.getKey());
+			contigOut.writeLong(e.getValue().start);
+			contigOut.writeLong(e.getValue().length);
+		}
+		contigOut.close();
+
+		long headerSize = Magic.length + 8 + 4 + 8 + contigBytes.size();
+		long dataStart = (headerSize + 7) & ~7L;
+
+		DataOutputStream out = new DataOutputStream(stream);
+		out.write(Magic);
+		out.writeLong(dataStart);
+		out.writeInt(contigs.size());
+		out.writeLong(nVariants);
+		contigBytes.writeTo(out);
+		for (long i = headerSize; i < dataStart; ++i)
+			out.writeByte(0);
+
+		for (LongBuffer chunk: chunks)
+		{
+			for (int i = 0; i < chunk.limit(); ++i)
+				out.writeLong(chunk.get(i));
+		}
+		out.flush();
+	}
+
+	public int size()
+	{
+		return (int)nVariants;
+	}
+
+	public Set<String> getContigs()
+	{
+		return contigs.keySet();
+	}
+
+	public VariantCursor getCursor()
+	{
+		return new BitmapCursor();
+	}
+}
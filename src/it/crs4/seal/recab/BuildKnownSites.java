@@ -0,0 +1,238 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package it.crs4.seal.recab;
+
+import it.crs4.seal.common.SealToolRunner;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.commons.cli.*;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.GzipCodec;
+import org.apache.hadoop.util.Tool;
+
+/**
+ * Convert a VCF or ROD file of known variation sites into a prebuilt binary
+ * table that RecabTable map tasks can memory-map instead of parsing the text
+ * file.
+ *
+ * By default a KnownSitesIndex is written.  With --bitmap a BitmapVariantTable
+ * is written instead.
+ */
+public class BuildKnownSites extends Configured implements Tool
+{
+	private static final Log LOG = LogFactory.getLog(BuildKnownSites.class);
+
+	private Path inputPath;
+	private Path outputPath;
+	private String inputType;
+	private boolean snpsOnly = RecabTable.SnpsOnlyDefault;
+	private boolean bitmap = false;
+	private InputStream inputStream;
+
+	@SuppressWarnings("static") // for OptionBuilder
+	private void scanOptions(String[] args)
+	{
+		Options options = new Options();
+
+		Option vcfFileOpt = OptionBuilder
+		              .withDescription("VCF file with known variation sites")
+		              .hasArg()
+		              .withArgName("FILE")
+		              .withLongOpt("vcf-file")
+		              .create("vcf");
+		options.addOption(vcfFileOpt);
+
+		Option rodFileOpt = OptionBuilder
+		              .withDescription("ROD file with known variation sites")
+		              .hasArg()
+		              .withArgName("FILE")
+		              .withLongOpt("rod-file")
+		              .create("rod");
+		options.addOption(rodFileOpt);
+
+		Option snpsOnlyOpt = OptionBuilder
+		              .withDescription("Only use SNP variation sites")
+		              .withLongOpt("snps-only")
+		              .create("snps");
+		options.addOption(snpsOnlyOpt);
+
+		Option bitmapOpt = OptionBuilder
+		              .withDescription("Write a bitmap table, with one bit per reference position, instead of a list of positions")
+		              .withLongOpt("bitmap")
+		              .create("bm");
+		options.addOption(bitmapOpt);
+
+		CommandLineParser parser = new GnuParser();
+
+		try
+		{
+			CommandLine line = parser.parse( options, args );
+
+			if (line.hasOption(vcfFileOpt.getOpt()) && line.hasOption(rodFileOpt.getOpt()))
+				throw new ParseException("You can't specify both VCF (" + vcfFileOpt.getLongOpt() + ") and ROD (" + rodFileOpt.getLongOpt() + ") files.  Please specify one or the other.");
+
+			if (line.hasOption(vcfFileOpt.getOpt()))
+			{
+				inputType = RecabTable.VariantsFileTypeVcf;
+				inputPath = new Path(line.getOptionValue(vcfFileOpt.getOpt()));
+			}
+			else if (line.hasOption(rodFileOpt.getOpt()))
+			{
+				inputType = RecabTable.VariantsFileTypeRod;
+				inputPath = new Path(line.getOptionValue(rodFileOpt.getOpt()));
+			}
+			else
+				throw new ParseException("You must specify a file with known genetic variation sites (either VCF or ROD).");
+
+			snpsOnly = line.hasOption(snpsOnlyOpt.getOpt()) || getConf().getBoolean(RecabTable.SnpsOnlyProperty, RecabTable.SnpsOnlyDefault);
+			if (RecabTable.VariantsFileTypeRod.equals(inputType) && !snpsOnly)
+				throw new ParseException("Sorry.  Using all variant types is currently not supported for Rod files.  Please specify --" + snpsOnlyOpt.getLongOpt());
+
+			bitmap = line.hasOption(bitmapOpt.getOpt());
+
+			String[] otherArgs = line.getArgs();
+			if (otherArgs.length != 1)
+				throw new ParseException("You must provide one output path.");
+			outputPath = new Path(otherArgs[0]);
+		}
+		catch( ParseException e )
+		{
+			System.err.println("Usage error: " + e.getMessage());
+			// XXX: redirect System.out to System.err since the simple version of
+			// HelpFormatter.printHelp prints to System.out, and we're on a way to
+			// a fatal exit.
+			System.setOut(System.err);
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp( "BuildKnownSites [options] (-vcf <file> | -rod <file>) <out>", options);
+			System.exit(1);
+		}
+	}
+
+	private VariantReader openReader() throws IOException
+	{
+		FileSystem fs = inputPath.getFileSystem(getConf());
+		if (!fs.exists(inputPath))
+			throw new RuntimeException("File " + inputPath + " doesn't exist");
+
+		inputStream = fs.open(inputPath);
+		CompressionCodec codec = new CompressionCodecFactory(getConf()).getCodec(inputPath);
+
+		if (RecabTable.VariantsFileTypeVcf.equals(inputType))
+		{
+			// ParallelVcfLoader recognizes gzip and BGZF data by itself, and
+			// decompresses BGZF files in parallel.
+			if (codec != null && !(codec instanceof GzipCodec))
+			{
+				LOG.info("Decompressing " + inputPath + " with " + codec.getClass().getName());
+				inputStream = codec.createInputStream(inputStream);
+			}
+
+			ParallelVcfLoader loader = new ParallelVcfLoader(RecabTable.getLoadThreads(getConf()));
+			loader.setReadSnpsOnly(snpsOnly);
+			return loader.load(inputStream).getReader();
+		}
+		else
+		{
+			if (codec != null)
+			{
+				LOG.info("Decompressing " + inputPath + " with " + codec.getClass().getName());
+				inputStream = codec.createInputStream(inputStream);
+			}
+			return new RodFileVariantReader(new BufferedReader(new InputStreamReader(inputStream, RecabTable.ASCII), 1024*1024));
+		}
+	}
+
+	public int run(String[] args) throws Exception
+	{
+		scanOptions(args);
+
+		FileSystem outFs = outputPath.getFileSystem(getConf());
+		if (outFs.exists(outputPath))
+			throw new RuntimeException("Output destination " + outputPath + " exists.  Please remove it or change the output path.");
+
+		LOG.info("Reading known variation sites from " + inputPath);
+		VariantReader reader = openReader();
+
+		OutputStream out = new BufferedOutputStream(outFs.create(outputPath), 1024*1024);
+		try
+		{
+			if (bitmap)
+			{
+				BitmapVariantTable table = new BitmapVariantTable();
+				table.load(reader);
+				LOG.info("Writing bitmap table with " + table.size() + " variant positions to " + outputPath);
+				table.save(out);
+			}
+			else
+			{
+				KnownSitesIndex index = new KnownSitesIndex();
+				index.load(reader);
+				LOG.info("Writing index with " + index.size() + " variant positions to " + outputPath);
+				index.write(out);
+			}
+		}
+		finally {
+			out.close();
+			inputStream.close();
+		}
+
+		if (!bitmap)
+		{
+			// map tasks only check the header when they map the index, so make sure
+			// now that what we wrote reads back intact
+			LOG.info("Verifying " + outputPath);
+			InputStream in = outFs.open(outputPath);
+			try {
+				KnownSitesIndex.verify(in, outputPath.toString());
+			}
+			finally {
+				in.close();
+			}
+		}
+		LOG.info("Finished");
+
+		return 0;
+	}
+
+	public static void main(String[] args)
+	{
+		int res = 0;
+		try
+		{
+			res = new SealToolRunner().run(new BuildKnownSites(), args);
+		}
+		catch (Exception e)
+		{
+			LOG.fatal("Error executing BuildKnownSites", e);
+			res = 1;
+		}
+		System.exit(res);
+	}
+}
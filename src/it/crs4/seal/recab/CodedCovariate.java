@@ -0,0 +1,49 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package it.crs4.seal.recab;
+
+/**
+ * A Covariate whose values can be represented as integer codes in [0, getCardinality()).
+ *
+ * Coded covariates let the covariate values for a base be computed and combined
+ * with arithmetic only, without creating strings.
+ */
+public interface CodedCovariate extends Covariate
+{
+	/**
+	 * Number of distinct codes this covariate can produce.
+	 */
+	public int getCardinality();
+
+	/**
+	 * Get the code of the covariate value for the loaded mapping at position pos (0-based).
+	 */
+	public int getCode(int pos);
+
+	/**
+	 * Get the serialized covariate value corresponding to code.
+	 * decode(getCode(pos)) must be equal to getValue(pos).
+	 */
+	public String decode(int code);
+
+	/**
+	 * Get the code corresponding to a serialized covariate value.
+	 * @exception IllegalArgumentException value isn't a valid value for this covariate.
+	 */
+	public int encode(String value);
+}
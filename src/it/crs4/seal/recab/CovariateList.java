@@ -0,0 +1,208 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package it.crs4.seal.recab;
+
+import it.crs4.seal.common.AbstractTaggedMapping;
+
+import java.util.ArrayList;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * The list of covariates used by RecabTable, built from the configuration.
+ *
+ * The read group covariate, if present, is kept as a string in the RecabKey.
+ * The values of all the other (coded) covariates for a base are combined into a
+ * single long code, in mixed radix with the first coded covariate as the most
+ * significant digit.  Thus, computing the key for a base only requires arithmetic.
+ */
+public class CovariateList
+{
+	/**
+	 * Comma-separated list of covariate names.  The order of the list defines the
+	 * order of the columns in the output table.
+	 */
+	public static final String CONF_COVARIATES = "seal.recab.covariates";
+	public static final String CONF_COVARIATES_DEFAULT = "ReadGroup,Quality,Cycle,Dinuc";
+
+	private ArrayList<Covariate> covariates;
+	private ArrayList<String> columnNames;
+	private ReadGroupCovariate rgCovariate;
+	private CodedCovariate[] coded;
+	private long[] strides;
+	private long cardinality;
+	// for each element of covariates, its index in coded or -1 for the read group
+	private int[] codedIndex;
+
+	public CovariateList(Configuration conf)
+	{
+		String[] names = conf.get(CONF_COVARIATES, CONF_COVARIATES_DEFAULT).split(",");
+		if (names.length == 0 || (names.length == 1 && names[0].trim().isEmpty()))
+			throw new IllegalArgumentException(CONF_COVARIATES + " must specify at least one covariate");
+
+		covariates = new ArrayList<Covariate>(names.length);
+		columnNames = new ArrayList<String>(names.length);
+		ArrayList<CodedCovariate> codedList = new ArrayList<CodedCovariate>(names.length);
+		ArrayList<String> seen = new ArrayList<String>(names.length);
+		codedIndex = new int[names.length];
+
+		for (String n: names)
+		{
+			String name = n.trim();
+			if (seen.contains(name.toLowerCase()))
+				throw new IllegalArgumentException("covariate " + name + " specified more than once in " + CONF_COVARIATES);
+			seen.add(name.toLowerCase());
+
+			Covariate cov;
+			if (name.equalsIgnoreCase("ReadGroup"))
+			{
+				rgCovariate = new ReadGroupCovariate(conf);
+				cov = rgCovariate;
+				columnNames.add("ReadGroup");
+				codedIndex[covariates.size()] = -1;
+			}
+			else
+			{
+				CodedCovariate c;
+				if (name.equalsIgnoreCase("Quality"))
+				{
+					c = new QualityCovariate();
+					columnNames.add("QualityScore");
+				}
+				else if (name.equalsIgnoreCase("Cycle"))
+				{
+					c = new CycleCovariate(conf);
+					columnNames.add("Cycle");
+				}
+				else if (name.equalsIgnoreCase("Dinuc"))
+				{
+					c = new DinucCovariate();
+					columnNames.add("Dinuc");
+				}
+				else
+					throw new IllegalArgumentException("Unknown covariate '" + name + "' in " + CONF_COVARIATES + ". Valid covariates are ReadGroup, Quality, Cycle, Dinuc");
+
+				codedIndex[covariates.size()] = codedList.size();
+				codedList.add(c);
+				cov = c;
+			}
+			covariates.add(cov);
+		}
+
+		coded = codedList.toArray(new CodedCovariate[codedList.size()]);
+		strides = new long[coded.length];
+		cardinality = 1;
+		for (int i = coded.length - 1; i >= 0; --i)
+		{
+			strides[i] = cardinality;
+			if (cardinality > Long.MAX_VALUE / coded[i].getCardinality())
+				throw new IllegalArgumentException("Too many covariate value combinations.  Reduce the number of covariates in " + CONF_COVARIATES);
+			cardinality *= coded[i].getCardinality();
+		}
+	}
+
+	/**
+	 * Number of covariates in the list.
+	 */
+	public int size() { return covariates.size(); }
+
+	/**
+	 * Get the i-th covariate in the list.
+	 */
+	public Covariate get(int i) { return covariates.get(i); }
+
+	/**
+	 * Name of the table column holding the i-th covariate.
+	 */
+	public String getColumnName(int i) { return columnNames.get(i); }
+
+	/**
+	 * Number of distinct codes returned by getCode.
+	 */
+	public long getCardinality() { return cardinality; }
+
+	public void applyToMapping(AbstractTaggedMapping m)
+	{
+		for (Covariate cov: covariates)
+			cov.applyToMapping(m);
+	}
+
+	/**
+	 * Read group of the loaded mapping, or an empty string if the read group
+	 * isn't one of the covariates.
+	 */
+	public String getReadGroup()
+	{
+		return rgCovariate == null ? "" : rgCovariate.getValue(0);
+	}
+
+	/**
+	 * Combined code of the coded covariates for the loaded mapping at position pos (0-based).
+	 */
+	public long getCode(int pos)
+	{
+		long code = 0;
+		for (int i = 0; i < coded.length; ++i)
+			code += coded[i].getCode(pos) * strides[i];
+		return code;
+	}
+
+	/**
+	 * Get the serialized value of the i-th covariate in key.
+	 */
+	public String getValue(RecabKey key, int i)
+	{
+		int c = codedIndex[i];
+		if (c < 0)
+			return key.getReadGroup();
+		else
+			return coded[c].decode((int)((key.getCode() / strides[c]) % coded[c].getCardinality()));
+	}
+
+	/**
+	 * Append the serialized covariate values in key to builder, in list order.
+	 * Each value is followed by delim.
+	 */
+	public void appendValues(RecabKey key, StringBuilder builder, String delim)
+	{
+		for (int i = 0; i < codedIndex.length; ++i)
+			builder.append(getValue(key, i)).append(delim);
+	}
+
+	/**
+	 * Set key to the serialized covariate values in values, given in list order.
+	 * @exception IllegalArgumentException if a value is invalid.
+	 */
+	public void encode(String[] values, RecabKey key)
+	{
+		if (values.length != codedIndex.length)
+			throw new IllegalArgumentException("expected " + codedIndex.length + " covariate values but got " + values.length);
+
+		String rg = "";
+		long code = 0;
+		for (int i = 0; i < codedIndex.length; ++i)
+		{
+			int c = codedIndex[i];
+			if (c < 0)
+				rg = values[i];
+			else
+				code += coded[c].encode(values[i]) * strides[c];
+		}
+		key.set(rg, code);
+	}
+}
@@ -19,12 +19,40 @@ package it.crs4.seal.recab;
 
 import it.crs4.seal.common.AbstractTaggedMapping;
 
-public class CycleCovariate implements Covariate
+import org.apache.hadoop.conf.Configuration;
+
+public class CycleCovariate implements CodedCovariate
 {
+	/**
+	 * Largest cycle value with its own code.  Cycle codes are in
+	 * [0, 2*max-cycle]; cycles beyond max-cycle in either direction share the
+	 * overflow code 2*max-cycle + 1.
+	 */
+	public static final String CONF_MAX_CYCLE = "seal.recab.cycle-covariate.max-cycle";
+	public static final int CONF_MAX_CYCLE_DEFAULT = 1000;
+
+	/** Value of the overflow code in tables. */
+	public static final String OverflowValue = "overflow";
+
+	private int maxCycle = CONF_MAX_CYCLE_DEFAULT;
 	private int readNum = -1;
 	private int readLength = -1;
 	private boolean forwardStrand;
 
+	public CycleCovariate()
+	{
+	}
+
+	public CycleCovariate(Configuration conf)
+	{
+		if (conf != null)
+		{
+			maxCycle = conf.getInt(CONF_MAX_CYCLE, CONF_MAX_CYCLE_DEFAULT);
+			if (maxCycle <= 0)
+				throw new IllegalArgumentException(CONF_MAX_CYCLE + " must be greater than 0");
+		}
+	}
+
 	public void applyToMapping(AbstractTaggedMapping m)
 	{
 		// is isRead2 is set, then read 2.  All other cases (e.g. unpaired), then read 1
@@ -33,12 +61,27 @@ public class CycleCovariate implements Covariate
 		forwardStrand = !m.isOnReverse();
 	}
 
+	/**
+	 * The cycle of the base at position pos, or OverflowValue if it's beyond
+	 * max-cycle, so that getValue(pos) is always decode(getCode(pos)).
+	 */
 	public String getValue(int pos)
+	{
+		int cycle = getCycle(pos);
+		if (isOverflow(cycle))
+			return OverflowValue;
+		return String.valueOf(cycle);
+	}
+
+	/**
+	 * Get the cycle of the base at position pos.  Bases from read 2 have negative cycles.
+	 */
+	public int getCycle(int pos)
 	{
 		if (readLength < 0)
-			throw new RuntimeException("BUG! readLength == " + readLength + ". applyToMapping not called before CycleCovariate.getValue");
+			throw new RuntimeException("BUG! readLength == " + readLength + ". applyToMapping not called before CycleCovariate.getCycle");
 		else if (readNum < 0)
-			throw new RuntimeException("BUG! readNum == " + readNum + ". applyToMapping not called before CycleCovariate.getValue");
+			throw new RuntimeException("BUG! readNum == " + readNum + ". applyToMapping not called before CycleCovariate.getCycle");
 		else if (pos < 0 || pos >= readLength)
 			throw new IndexOutOfBoundsException("pos " + pos + " is out of read boundaries [0," + readLength + ")");
 
@@ -51,6 +94,42 @@ public class CycleCovariate implements Covariate
 		if (readNum == 2)
 			cycle *= -1;
 
-		return String.valueOf(cycle);
+		return cycle;
+	}
+
+	public int getCardinality() { return 2*maxCycle + 2; }
+
+	private int getOverflowCode() { return 2*maxCycle + 1; }
+
+	private boolean isOverflow(int cycle) { return cycle > maxCycle || cycle < -maxCycle; }
+
+	public int getCode(int pos)
+	{
+		int cycle = getCycle(pos);
+		if (isOverflow(cycle))
+			return getOverflowCode();
+		return cycle + maxCycle;
+	}
+
+	public String decode(int code)
+	{
+		if (code < 0 || code >= getCardinality())
+			throw new IllegalArgumentException("invalid cycle code " + code);
+		if (code == getOverflowCode())
+			return OverflowValue;
+		return String.valueOf(code - maxCycle);
+	}
+
+	public int encode(String value)
+	{
+		if (OverflowValue.equals(value))
+			return getOverflowCode();
+		try {
+			int cycle = Integer.parseInt(value);
+			if (cycle >= -maxCycle && cycle <= maxCycle)
+				return cycle + maxCycle;
+		}
+		catch (NumberFormatException e) { }
+		throw new IllegalArgumentException("invalid cycle value '" + value + "' (max cycle: " + maxCycle + ")");
 	}
 }
@@ -19,108 +19,146 @@ package it.crs4.seal.recab;
 
 import it.crs4.seal.common.AbstractTaggedMapping;
 
-import java.util.HashMap;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * Dinucleotide covariate.
  * Assumes reads mapped to the reverse strand have been reversed and complemented.
  *
- * TODO:  profile!
+ * Dinucleotides are computed directly as integer codes through lookup tables
+ * indexed by base, so applying the covariate to a read doesn't allocate any
+ * memory (unless the read is longer than any seen before).
  */
-public class DinucCovariate implements Covariate
+public class DinucCovariate implements CodedCovariate
 {
-	private static final String NN = "NN";
+	/**
+	 * Bases in the order used to compute dinucleotide codes.  Anything that's
+	 * not one of the first four bases is treated as an N.
+	 */
+	private static final String Bases = "ACGTN";
+	private static final int NBases = Bases.length();
+	private static final int NCode = NBases - 1;
 
-	private int readLength = -1;
-	private boolean forwardStrand;
-	private ByteBuffer sequence;
-	private ByteBuffer revComplement;
-	private String[] values;
+	/**
+	 * Number of distinct dinucleotide codes.
+	 */
+	public static final int NumDinucCodes = NBases * NBases;
 
-	private static final int BUFFER_SIZE = 200;
+	private static final int NN = NCode * NBases + NCode;
+
+	/** Code of each base, indexed by its byte value. */
+	private static final byte[] BaseCodes = new byte[256];
+	/** Code of the complement of each base, indexed by its byte value. */
+	private static final byte[] ComplementCodes = new byte[256];
+	/** The dinucleotide string for each code. */
+	private static final String[] DinucStrings = new String[NumDinucCodes];
 
-	private static final HashMap<Byte, Byte> complementByte;
 	static {
-		complementByte = new HashMap<Byte, Byte>();
-		complementByte.put((byte)'N', (byte)'N');
-		complementByte.put((byte)'A', (byte)'T');
-		complementByte.put((byte)'C', (byte)'G');
-		complementByte.put((byte)'G', (byte)'C');
-		complementByte.put((byte)'T', (byte)'A');
+		Arrays.fill(BaseCodes, (byte)NCode);
+		Arrays.fill(ComplementCodes, (byte)NCode);
+		String complements = "TGCAN";
+		for (int i = 0; i < NBases; ++i)
+		{
+			BaseCodes[Bases.charAt(i)] = (byte)i;
+			ComplementCodes[Bases.charAt(i)] = (byte)Bases.indexOf(complements.charAt(i));
+		}
+
+		for (int code = 0; code < NumDinucCodes; ++code)
+			DinucStrings[code] = new String(new char[] { Bases.charAt(code / NBases), Bases.charAt(code % NBases) });
 	}
 
+	private static final int BUFFER_SIZE = 200;
+
+	private int readLength = -1;
+	private int[] codes;
+
 	public DinucCovariate()
 	{
-		revComplement = ByteBuffer.allocate(BUFFER_SIZE);
-		revComplement.mark();
-		values = new String[BUFFER_SIZE];
+		codes = new int[BUFFER_SIZE];
 	}
 
 	public void applyToMapping(AbstractTaggedMapping m)
 	{
 		readLength = m.getLength();
-		forwardStrand = !m.isOnReverse();
-		sequence = m.getSequence();
+		if (codes.length < readLength)
+			codes = new int[readLength];
 
-		if (!forwardStrand)
+		final ByteBuffer sequence = m.getSequence();
+		final int start = sequence.position();
+		if (readLength == 0)
+			return;
+
+		// The dinucleotide for a base is formed by the base sequenced just before
+		// it and the base itself.  For reads on the reverse strand that's the
+		// complement of the following base in the SAM sequence.
+		if (m.isOnReverse())
 		{
-			// calculate the reversed complement
-			if (revComplement.capacity() < readLength) // ensure space is sufficient
+			codes[readLength - 1] = NN;
+			int current = ComplementCodes[sequence.get(start) & 0xff];
+			for (int pos = 0; pos < readLength - 1; ++pos)
 			{
-				revComplement = ByteBuffer.allocate(readLength);
-				revComplement.mark();
+				int previous = ComplementCodes[sequence.get(start + pos + 1) & 0xff];
+				codes[pos] = previous == NCode ? NN : previous * NBases + current;
+				current = previous;
 			}
-			// now revComplement the read into the buffer
-			revComplement.reset();
-			int startPos = sequence.position();
-			for (int pos = startPos + readLength - 1; pos >= startPos; --pos)
-				revComplement.put( complementByte.get( sequence.get(pos)) );
-		 	revComplement.reset();
-
-			sequence = revComplement;
-		}
-		// now sequence is what was read by the sequencer
-
-		// Calculate the dinucleotides.  We calculate them starting from the beginning
-		// of 'sequence', but the order in which they are inserted into 'values' must
-		// match the original base order.
-		final byte[] seqArray = sequence.array();
-		final int sequenceStart = sequence.position();
-		int valuesPtr;
-		int valuesIncrement;
-		if (forwardStrand)
-		{
-			values[0] = NN;
-			valuesPtr = 1;
-			valuesIncrement = 1;
 		}
 		else
 		{
-			values[readLength - 1] = NN;
-			valuesPtr = readLength - 2;
-			valuesIncrement = -1;
-		}
-
-		// for each "previous" base, if it's an N insert a value of NN, otherwise the
-		// dinucleotide (previous, previous+1)
-		for (int previous = 0; previous < readLength - 1; ++previous)
-		{
-			if (seqArray[sequenceStart + previous] == 'N') // if previous base is an N
-				values[ valuesPtr ] = NN;
-			else
-				values[ valuesPtr ] = new String(seqArray, sequenceStart + previous, 2); // string length 2 starting from seqArray[previous]
-			valuesPtr += valuesIncrement;
+			codes[0] = NN;
+			int previous = BaseCodes[sequence.get(start) & 0xff];
+			for (int pos = 1; pos < readLength; ++pos)
+			{
+				int current = BaseCodes[sequence.get(start + pos) & 0xff];
+				codes[pos] = previous == NCode ? NN : previous * NBases + current;
+				previous = current;
+			}
 		}
 	}
 
 	public String getValue(int pos)
+	{
+		return DinucStrings[getCode(pos)];
+	}
+
+	public int getCardinality() { return NumDinucCodes; }
+
+	/**
+	 * Get the dinucleotide code for the loaded mapping at position pos (0-based).
+	 * @see #encode(String)
+	 */
+	public int getCode(int pos)
 	{
 		if (readLength < 0)
 			throw new RuntimeException("BUG! readLength == " + readLength + ". applyToMapping not called before DinucCovariate.getValue");
 		else if (pos < 0 || pos >= readLength)
 			throw new IndexOutOfBoundsException("pos " + pos + " is out of read boundaries [0," + readLength + ")");
 
-		return values[pos];
+		return codes[pos];
+	}
+
+	/**
+	 * Encode a dinucleotide as an integer in [0, NumDinucCodes).
+	 */
+	public int encode(String dinuc)
+	{
+		if (dinuc.length() != 2)
+			throw new IllegalArgumentException("invalid dinucleotide '" + dinuc + "'");
+		return baseIndex(dinuc.charAt(0)) * NBases + baseIndex(dinuc.charAt(1));
+	}
+
+	/**
+	 * Decode a dinucleotide code produced by encode.
+	 */
+	public String decode(int code)
+	{
+		if (code < 0 || code >= NumDinucCodes)
+			throw new IllegalArgumentException("invalid dinucleotide code " + code);
+		return DinucStrings[code];
+	}
+
+	private static int baseIndex(char base)
+	{
+		return base < BaseCodes.length ? BaseCodes[base] : NCode;
 	}
 }
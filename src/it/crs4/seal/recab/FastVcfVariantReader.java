@@ -0,0 +1,389 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package it.crs4.seal.recab;
+
+import it.crs4.seal.common.FormatException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Read variants from a VCF file working directly on bytes.
+ *
+ * Produces the same results as VcfVariantReader, but it scans the raw bytes
+ * of the file for tabs and line ends, parses positions directly from the ASCII
+ * digits and searches the INFO field for VC=SNP without creating Strings or
+ * running regular expressions.  The only per-record allocation is the contig
+ * name, and only when it changes from the previous record.
+ *
+ * Data can come from an InputStream or from a ByteBuffer (e.g. a memory-mapped file; see open).
+ */
+public class FastVcfVariantReader implements VariantReader
+{
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private static final byte[] MAGIC = VcfVariantReader.MAGIC.getBytes(ASCII);
+	private static final byte[] VC_SNP = "VC=SNP".getBytes(ASCII);
+	private static final int DefaultBufferSize = 1024*1024;
+	private static final int NumRequiredFields = 8;
+
+	// data sources.  Only one of them is not null
+	private InputStream inputStream;
+	private ByteBuffer inputBuffer;
+
+	// buf[bufStart, bufEnd) holds the data read but not yet parsed
+	private byte[] buf;
+	private int bufStart;
+	private int bufEnd;
+	private boolean eof = false;
+
+	// bounds of the current line in buf, without the line terminator
+	private int lineStart;
+	private int lineEnd;
+	private long lineNumber = 0;
+	private long firstDataLine;
+
+	// fieldEnds[i] is the offset in buf of the tab after field i
+	private final int[] fieldEnds = new int[NumRequiredFields];
+
+	private byte[] lastContig = new byte[100];
+	private int lastContigLength = -1;
+	private String lastContigName;
+
+	// true when reading a piece of a file without its heading
+	private boolean recordsOnly = false;
+	private boolean sawColumnHeading = false;
+
+	protected boolean snpOnly = true;
+
+	public FastVcfVariantReader(InputStream in) throws IOException
+	{
+		inputStream = in;
+		buf = new byte[DefaultBufferSize];
+		init();
+	}
+
+	public FastVcfVariantReader(ByteBuffer in) throws IOException
+	{
+		inputBuffer = in;
+		buf = new byte[Math.min(DefaultBufferSize, Math.max(in.remaining(), 1024))];
+		init();
+	}
+
+	/**
+	 * Read the records in data[offset, offset + length), which must only contain
+	 * whole lines from the body of a VCF file.  No heading is expected and
+	 * any heading lines found are skipped.  The array is used directly, not copied.
+	 *
+	 * Used by ParallelVcfLoader to parse pieces of a file independently.
+	 */
+	FastVcfVariantReader(byte[] data, int offset, int length)
+	{
+		buf = data;
+		bufStart = offset;
+		bufEnd = offset + length;
+		eof = true;
+		recordsOnly = true;
+		firstDataLine = -1;
+	}
+
+	/**
+	 * Open a local VCF file, memory-mapping it if possible.
+	 */
+	public static FastVcfVariantReader open(File file) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			if (channel.size() <= Integer.MAX_VALUE)
+				return new FastVcfVariantReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+		finally {
+			raf.close(); // a mapped buffer remains valid after the channel is closed
+		}
+		// too big to be mapped in one piece
+		return new FastVcfVariantReader(new FileInputStream(file));
+	}
+
+	/**
+	 * Set whether to only read VC=SNP entries.
+	 * If true (the default), only SNPs will be retrieved while other variations
+	 * will be skipped.
+	 * If false, all the variations will be retrieved.
+	 */
+	public void setReadSnpsOnly(boolean v) { snpOnly = v; }
+
+	public boolean getReadSnpsOnly() { return snpOnly; }
+
+	/**
+	 * Whether the column headings line was skipped.  Only meaningful for readers
+	 * created on a piece of a file.
+	 */
+	boolean sawColumnHeading() { return sawColumnHeading; }
+
+	private void init() throws IOException
+	{
+		if (!nextLine())
+			throw new FormatException("Empty VCF file");
+
+		if (lineEnd - lineStart < MAGIC.length || !regionEquals(lineStart, MAGIC))
+			throw new FormatException("Did not detect magic sequence " + VcfVariantReader.MAGIC + " at the start of VCF file.  Did you maybe specify the wrong variants file type?");
+
+		readHeading();
+		firstDataLine = lineNumber;
+	}
+
+	/**
+	 * Skim over the heading lines, verifying that the column headings line exists.
+	 */
+	private void readHeading() throws IOException
+	{
+		boolean gotLine;
+		do {
+			gotLine = nextLine();
+		}
+		while (gotLine && lineEnd - lineStart >= 2 && buf[lineStart] == '#' && buf[lineStart+1] == '#');
+
+		if (!gotLine) // premature EOF
+			throw new FormatException("Unexpected end of VCF file before column headings");
+
+		if (lineEnd - lineStart >= 2)
+		{
+			if (buf[lineStart] != '#') // not the column heading line
+				throw new FormatException("Missing column heading line.  Expected it a line " + lineNumber + " but found: " + new String(buf, lineStart, lineEnd - lineStart, ASCII));
+		}
+		else
+			throw new FormatException("VCF format error at line " + lineNumber + ".  Expected column headings.");
+	}
+
+	/**
+	 * Read next entry from file and write it to dest.
+	 * @return True if a record was read.  False otherwise, indicating we have reached the end of the file.
+	 */
+	public boolean nextEntry(VariantRegion dest) throws FormatException, IOException
+	{
+		while (nextLine())
+		{
+			if (recordsOnly && (lineStart == lineEnd || buf[lineStart] == '#'))
+			{
+				if (lineEnd - lineStart >= 2 && buf[lineStart] == '#' && buf[lineStart+1] != '#')
+					sawColumnHeading = true;
+				continue;
+			}
+
+			splitFields();
+			int infoStart = fieldEnds[6] + 1;
+			int infoEnd = fieldEnds[7];
+
+			if (!snpOnly || containsWord(infoStart, infoEnd, VC_SNP))
+			{
+				int posStart = fieldEnds[0] + 1;
+				int pos = parsePosition(posStart, fieldEnds[1]);
+
+				dest.setContigName(contigName(lineStart, fieldEnds[0]));
+				dest.setPosition(pos);
+				dest.setLength(fieldEnds[3] - fieldEnds[2] - 1); // length of REF
+				return true;
+			}
+		}
+
+		if (lineNumber == firstDataLine)
+			throw new FormatException("empty Variant table");
+		return false;
+	}
+
+	/**
+	 * Find the ends of the first NumRequiredFields fields in the current line.
+	 */
+	private void splitFields()
+	{
+		int field = 0;
+		for (int i = lineStart; i < lineEnd && field < NumRequiredFields - 1; ++i)
+		{
+			if (buf[i] == '\t')
+				fieldEnds[field++] = i;
+		}
+
+		if (field < NumRequiredFields - 1)
+			throw new FormatException("Invalid table format at line " + lineNumber + ": expected at least " + NumRequiredFields + " fields but found " + (field + 1));
+
+		// the last field we need ends at the next tab or at the end of the line
+		int i = fieldEnds[field - 1] + 1;
+		while (i < lineEnd && buf[i] != '\t')
+			++i;
+		fieldEnds[field] = i;
+	}
+
+	private int parsePosition(int start, int end)
+	{
+		if (start >= end)
+			throw new FormatException("Invalid coordinate at line " + lineNumber + ": empty position");
+
+		long value = 0;
+		for (int i = start; i < end; ++i)
+		{
+			int digit = buf[i] - '0';
+			if (digit < 0 || digit > 9 || end - start > 18)
+				throw new FormatException("Invalid coordinate at line " + lineNumber + ": " + new String(buf, start, end - start, ASCII));
+			value = value * 10 + digit;
+		}
+
+		// XXX:  safety check.  If this fails we have to move up to long values
+		if (value > Integer.MAX_VALUE)
+			throw new RuntimeException("vcf position bigger than expected!  File a bug!!");
+
+		return (int)value;
+	}
+
+	/**
+	 * Get the contig name in buf[start, end), reusing the last String if it's the same.
+	 */
+	private String contigName(int start, int end)
+	{
+		int len = end - start;
+		if (len != lastContigLength || !regionEquals(start, lastContig, len))
+		{
+			if (lastContig.length < len)
+				lastContig = new byte[len];
+			System.arraycopy(buf, start, lastContig, 0, len);
+			lastContigLength = len;
+			lastContigName = new String(buf, start, len, ASCII);
+		}
+		return lastContigName;
+	}
+
+	/**
+	 * Whether word appears in buf[start, end) delimited by non-word characters, like the regex \bword\b.
+	 */
+	private boolean containsWord(int start, int end, byte[] word)
+	{
+		final int last = end - word.length;
+		for (int i = start; i <= last; ++i)
+		{
+			if (buf[i] == word[0] && regionEquals(i, word) &&
+			    (i == start || !isWordChar(buf[i-1])) &&
+			    (i + word.length == end || !isWordChar(buf[i + word.length])))
+				return true;
+		}
+		return false;
+	}
+
+	private static boolean isWordChar(byte b)
+	{
+		return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '_';
+	}
+
+	private boolean regionEquals(int offset, byte[] bytes)
+	{
+		return regionEquals(offset, bytes, bytes.length);
+	}
+
+	private boolean regionEquals(int offset, byte[] bytes, int length)
+	{
+		for (int i = 0; i < length; ++i)
+		{
+			if (buf[offset + i] != bytes[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Advance to the next line.  Sets lineStart and lineEnd.
+	 * @return false at the end of the input.
+	 */
+	private boolean nextLine() throws IOException
+	{
+		int scanFrom = bufStart;
+		while (true)
+		{
+			for (int i = scanFrom; i < bufEnd; ++i)
+			{
+				if (buf[i] == '\n')
+				{
+					setLine(bufStart, i);
+					bufStart = i + 1;
+					return true;
+				}
+			}
+
+			if (eof)
+			{
+				if (bufStart < bufEnd) // last line without a terminator
+				{
+					setLine(bufStart, bufEnd);
+					bufStart = bufEnd;
+					return true;
+				}
+				return false;
+			}
+
+			scanFrom = bufEnd - bufStart; // don't rescan what we've already seen
+			fill();
+			scanFrom += bufStart;
+		}
+	}
+
+	private void setLine(int start, int end)
+	{
+		lineStart = start;
+		lineEnd = (end > start && buf[end-1] == '\r') ? end - 1 : end;
+		lineNumber += 1;
+	}
+
+	/**
+	 * Move the unparsed data to the start of buf and read more data after it,
+	 * growing buf if it's full.
+	 */
+	private void fill() throws IOException
+	{
+		int remaining = bufEnd - bufStart;
+		if (bufStart > 0)
+		{
+			System.arraycopy(buf, bufStart, buf, 0, remaining);
+			bufStart = 0;
+			bufEnd = remaining;
+		}
+		else if (bufEnd == buf.length) // a line longer than the buffer
+			buf = Arrays.copyOf(buf, buf.length * 2);
+
+		if (inputStream != null)
+		{
+			int n = inputStream.read(buf, bufEnd, buf.length - bufEnd);
+			if (n < 0)
+				eof = true;
+			else
+				bufEnd += n;
+		}
+		else
+		{
+			int n = Math.min(buf.length - bufEnd, inputBuffer.remaining());
+			inputBuffer.get(buf, bufEnd, n);
+			bufEnd += n;
+			if (!inputBuffer.hasRemaining())
+				eof = true;
+		}
+	}
+}
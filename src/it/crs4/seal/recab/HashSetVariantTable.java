@@ -105,4 +105,9 @@ public class HashSetVariantTable implements VariantTable
 	{
 		return data.keySet();
 	}
+
+	public VariantCursor getCursor()
+	{
+		return new SimpleVariantCursor(this);
+	}
 }
@@ -0,0 +1,420 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package it.crs4.seal.recab;
+
+import it.crs4.seal.common.FormatException;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Prebuilt binary index of known variant sites.
+ *
+ * The index holds the sorted variant positions of each contig.  It's
+ * written once with write() (see BuildKnownSites) and then memory-mapped by each
+ * map task with loadMapped(), which avoids parsing the VCF or ROD file in every
+ * task.  Lookups are binary searches directly on the mapped data.
+ *
+ * Mapping the index only checks its header.  The checksum of the position data
+ * is verified by BuildKnownSites when it writes the index (see verify()), or
+ * when mapping if it's explicitly requested.
+ *
+ * File format (big-endian):
+ * <pre>
+ * 	magic: 8 bytes ("SEALKSI" + version byte)
+ * 	offset of the position data from the start of the file: long
+ * 	number of contigs: int
+ * 	number of positions: long
+ * 	CRC32 of the position data: long
+ * 	for each contig:
+ * 		name: modified UTF-8, as written by DataOutput.writeUTF
+ * 		number of positions: int
+ * 	padding up to a multiple of 8 bytes
+ * 	positions: int.  One sorted, duplicate-free run per contig, in the order of the header.
+ * </pre>
+ */
+public class KnownSitesIndex implements VariantTable
+{
+	private static final Log LOG = LogFactory.getLog(KnownSitesIndex.class);
+
+	private static final byte[] Magic = { 'S', 'E', 'A', 'L', 'K', 'S', 'I', 1 };
+	private static final byte[] BitmapMagicPrefix = { 'S', 'E', 'A', 'L', 'V', 'B', 'M' };
+
+	private Map<String, IntBuffer> data = new HashMap<String, IntBuffer>();
+	private long nPositions = 0;
+
+	public boolean isVariantLocation(String chr, long pos)
+	{
+		if (pos > Integer.MAX_VALUE)
+			throw new RuntimeException("pos bigger than expected!  File a bug!!");
+
+		IntBuffer positions = data.get(chr);
+		if (positions != null)
+			return binarySearch(positions, (int)pos) >= 0;
+		else
+			return false;
+	}
+
+	/**
+	 * Binary search for value in the sorted buffer.
+	 * @return the index of value, or a negative number if it isn't found.
+	 */
+	protected static int binarySearch(IntBuffer buffer, int value)
+	{
+		int low = 0;
+		int high = buffer.limit() - 1;
+		while (low <= high)
+		{
+			int mid = (low + high) >>> 1;
+			int v = buffer.get(mid);
+			if (v < value)
+				low = mid + 1;
+			else if (v > value)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -(low + 1);
+	}
+
+	/**
+	 * Load the variants into memory from a reader, without going through an index file.
+	 */
+	public void load(VariantReader reader) throws IOException, FormatException
+	{
+		ArrayVariantTable table = new ArrayVariantTable();
+		table.load(reader);
+
+		data = new HashMap<String, IntBuffer>(table.data.size() * 2);
+		nPositions = 0;
+		for (Map.Entry<String, ArrayVariantTable.IntSortedArray> e: table.data.entrySet())
+		{
+			ArrayVariantTable.IntSortedArray array = e.getValue();
+			data.put(e.getKey(), IntBuffer.wrap(array.data, 0, array.size()).slice());
+			nPositions += array.size();
+		}
+	}
+
+	/**
+	 * The fixed part of the index, before the position data.
+	 */
+	private static class Header
+	{
+		public long dataStart;
+		public long nPositions;
+		public long checksum;
+		public String[] names;
+		public int[] counts;
+	}
+
+	private static Header readHeader(DataInputStream in, String name) throws IOException, FormatException
+	{
+		Header header = new Header();
+		try
+		{
+			byte[] magic = new byte[Magic.length];
+			in.readFully(magic);
+			if (!Arrays.equals(magic, Magic))
+				throw new FormatException("File " + name + " isn't a known sites index (or it was written by an incompatible version)");
+
+			header.dataStart = in.readLong();
+			int nContigs = in.readInt();
+			header.nPositions = in.readLong();
+			header.checksum = in.readLong();
+			header.names = new String[nContigs];
+			header.counts = new int[nContigs];
+			long total = 0;
+			for (int i = 0; i < nContigs; ++i)
+			{
+				header.names[i] = in.readUTF();
+				header.counts[i] = in.readInt();
+				total += header.counts[i];
+			}
+			if (total != header.nPositions)
+				throw new FormatException("Inconsistent header in known sites index " + name + ".  Contig sizes add up to " + total + " positions instead of " + header.nPositions);
+		}
+		catch (EOFException e) {
+			throw new FormatException("Known sites index " + name + " is truncated");
+		}
+		return header;
+	}
+
+	/**
+	 * Memory-map an index written by write(), without verifying its checksum.
+	 * @exception FormatException if the file isn't an index or it's truncated.
+	 */
+	public void loadMapped(File file) throws IOException, FormatException
+	{
+		loadMapped(file, false);
+	}
+
+	/**
+	 * Memory-map an index written by write().
+	 * @param verifyChecksum Compute the checksum of the position data and
+	 * compare it to the one in the header.  This reads the whole file.
+	 * @exception FormatException if the file isn't an index, it's truncated or its checksum doesn't match.
+	 */
+	public void loadMapped(File file, boolean verifyChecksum) throws IOException, FormatException
+	{
+		Header header;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			header = readHeader(in, file.toString());
+		}
+		finally {
+			in.close();
+		}
+		nPositions = header.nPositions;
+
+		// Each contig is mapped as its own slice so the index as a whole isn't
+		// limited by the 2 GB size of a single mapped buffer.
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		data = new HashMap<String, IntBuffer>(header.names.length * 2);
+		CRC32 crc = verifyChecksum ? new CRC32() : null;
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			if (channel.size() < header.dataStart + nPositions * 4)
+				throw new FormatException("Known sites index " + file + " is truncated");
+
+			long offset = header.dataStart;
+			for (int i = 0; i < header.names.length; ++i)
+			{
+				long sliceBytes = header.counts[i] * 4L;
+				if (sliceBytes > Integer.MAX_VALUE)
+					throw new FormatException("Contig " + header.names[i] + " in known sites index " + file + " has too many positions (" + header.counts[i] + ")");
+				ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, sliceBytes);
+				if (crc != null)
+					updateChecksum(crc, buffer.duplicate());
+				data.put(header.names[i], buffer.order(ByteOrder.BIG_ENDIAN).asIntBuffer());
+				offset += sliceBytes;
+			}
+		}
+		finally {
+			raf.close(); // the mapped buffers remain valid after the channel is closed
+		}
+
+		if (crc != null && crc.getValue() != header.checksum)
+			throw new FormatException("Checksum mismatch in known sites index " + file + ".  The file is corrupt.");
+
+		LOG.info("Mapped known sites index " + file + " with " + nPositions + " variant positions");
+	}
+
+	/**
+	 * Read a whole index from stream and verify the checksum of its position data.
+	 * The stream isn't closed.
+	 * @param name Name of the index, for error messages.
+	 * @exception FormatException if the stream doesn't contain an index, it's truncated or its checksum doesn't match.
+	 */
+	public static void verify(InputStream stream, String name) throws IOException, FormatException
+	{
+		// mark the start so we can come back and skip straight to the position data
+		BufferedInputStream buffered = new BufferedInputStream(stream, 1024*1024);
+		buffered.mark(Integer.MAX_VALUE);
+		DataInputStream in = new DataInputStream(buffered);
+		Header header = readHeader(in, name);
+		buffered.reset();
+
+		for (long toSkip = header.dataStart; toSkip > 0; )
+		{
+			long skipped = in.skip(toSkip);
+			if (skipped <= 0)
+			{
+				if (in.read() < 0)
+					throw new FormatException("Known sites index " + name + " is truncated");
+				skipped = 1;
+			}
+			toSkip -= skipped;
+		}
+
+		CRC32 crc = new CRC32();
+		byte[] chunk = new byte[64*1024];
+		long remaining = header.nPositions * 4;
+		while (remaining > 0)
+		{
+			int n = in.read(chunk, 0, (int)Math.min(chunk.length, remaining));
+			if (n < 0)
+				throw new FormatException("Known sites index " + name + " is truncated");
+			crc.update(chunk, 0, n);
+			remaining -= n;
+		}
+
+		if (crc.getValue() != header.checksum)
+			throw new FormatException("Checksum mismatch in known sites index " + name + ".  The file is corrupt.");
+	}
+
+	/**
+	 * Write the variants read from reader as an index.
+	 */
+	public static void write(VariantReader reader, OutputStream stream) throws IOException, FormatException
+	{
+		KnownSitesIndex index = new KnownSitesIndex();
+		index.load(reader);
+		index.write(stream);
+	}
+
+	/**
+	 * Write this table as an index.
+	 */
+	public void write(OutputStream stream) throws IOException
+	{
+		// sort the contigs by name so that the output doesn't depend on the input order
+		String[] names = data.keySet().toArray(new String[data.size()]);
+		Arrays.sort(names);
+
+		ByteArrayOutputStream contigBytes = new ByteArrayOutputStream();
+		DataOutputStream contigOut = new DataOutputStream(contigBytes);
+		CRC32 crc = new CRC32();
+		byte[] intBytes = new byte[4];
+		for (String name: names)
+		{
+			IntBuffer positions = data.get(name);
+			contigOut.writeUTF(name);
+			contigOut.writeInt(positions.limit());
+			for (int i = 0; i < positions.limit(); ++i)
+			{
+				int v = positions.get(i);
+				intBytes[0] = (byte)(v >>> 24);
+				intBytes[1] = (byte)(v >>> 16);
+				intBytes[2] = (byte)(v >>> 8);
+				intBytes[3] = (byte)v;
+				crc.update(intBytes, 0, 4);
+			}
+		}
+		contigOut.close();
+
+		long headerSize = Magic.length + 8 + 4 + 8 + 8 + contigBytes.size();
+		long dataStart = (headerSize + 7) & ~7L;
+
+		DataOutputStream out = new DataOutputStream(stream);
+		out.write(Magic);
+		out.writeLong(dataStart);
+		out.writeInt(names.length);
+		out.writeLong(nPositions);
+		out.writeLong(crc.getValue());
+		contigBytes.writeTo(out);
+		for (long i = headerSize; i < dataStart; ++i)
+			out.writeByte(0);
+
+		for (String name: names)
+		{
+			IntBuffer positions = data.get(name);
+			for (int i = 0; i < positions.limit(); ++i)
+				out.writeInt(positions.get(i));
+		}
+		out.flush();
+	}
+
+	/**
+	 * Open a prebuilt variant table file, either a known sites index or a
+	 * BitmapVariantTable, detecting its type from its header.
+	 */
+	public static VariantTable open(File file) throws IOException, FormatException
+	{
+		return open(file, false);
+	}
+
+	/**
+	 * Open a prebuilt variant table file, either a known sites index or a
+	 * BitmapVariantTable, detecting its type from its header.
+	 * @param verifyChecksum Verify the checksum of a known sites index (see loadMapped).
+	 */
+	public static VariantTable open(File file, boolean verifyChecksum) throws IOException, FormatException
+	{
+		byte[] magic = new byte[Magic.length];
+		InputStream in = new FileInputStream(file);
+		try {
+			int n = 0;
+			while (n < magic.length)
+			{
+				int bytesRead = in.read(magic, n, magic.length - n);
+				if (bytesRead < 0)
+					throw new FormatException("File " + file + " is too short to be a variant table");
+				n += bytesRead;
+			}
+		}
+		finally {
+			in.close();
+		}
+
+		if (Arrays.equals(Arrays.copyOf(magic, BitmapMagicPrefix.length), BitmapMagicPrefix))
+		{
+			BitmapVariantTable table = new BitmapVariantTable();
+			table.loadMapped(file);
+			return table;
+		}
+		else
+		{
+			KnownSitesIndex table = new KnownSitesIndex();
+			table.loadMapped(file, verifyChecksum);
+			return table;
+		}
+	}
+
+	private static void updateChecksum(CRC32 crc, ByteBuffer buffer)
+	{
+		byte[] chunk = new byte[64*1024];
+		while (buffer.hasRemaining())
+		{
+			int n = Math.min(chunk.length, buffer.remaining());
+			buffer.get(chunk, 0, n);
+			crc.update(chunk, 0, n);
+		}
+	}
+
+	public int size()
+	{
+		return (int)nPositions;
+	}
+
+	public Set<String> getContigs()
+	{
+		return data.keySet();
+	}
+
+	public VariantCursor getCursor()
+	{
+		return new SortedPositionsCursor() {
+			protected IntBuffer getPositions(String contig)
+			{
+				return data.get(contig);
+			}
+		};
+	}
+}
@@ -0,0 +1,485 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package it.crs4.seal.recab;
+
+import it.crs4.seal.common.BamInputFormat;
+import it.crs4.seal.common.FormatNameMap;
+import it.crs4.seal.common.IMRContext;
+import it.crs4.seal.common.IntervalSet;
+import it.crs4.seal.common.ReadPair;
+import it.crs4.seal.common.SealToolParser;
+import it.crs4.seal.common.SealToolRunner;
+import it.crs4.seal.common.Utils;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.cli.*;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.hadoop.util.Tool;
+
+/**
+ * Compute the RecabTable table on a single node, without Hadoop MapReduce.
+ *
+ * The input files are divided into chunks, like the splits of a MapReduce job,
+ * and each chunk is processed by a RecabTableMapper in a thread pool.  The
+ * mappers' output is summed in memory with ObservationAccumulator and finally
+ * passed through RecabTableReducer, so the table written is the same as the
+ * one produced by RecabTable and fetched with recab_table_fetch.
+ */
+public class LocalRecabTable extends Configured implements Tool
+{
+	private static final Log LOG = LogFactory.getLog(LocalRecabTable.class);
+
+	/**
+	 * Maximum size (in MB) of the input chunks processed by each task.
+	 */
+	public static final String CONF_CHUNK_SIZE_MB = "seal.recab.local.chunk-size-mb";
+	public static final int CONF_CHUNK_SIZE_MB_DEFAULT = 32;
+
+	/**
+	 * Header line for a table computed with the given covariates.  With the
+	 * default covariates it's the same header written by recab_table_fetch.
+	 */
+	public static String tableHeader(CovariateList covariates)
+	{
+		StringBuilder header = new StringBuilder();
+		for (int i = 0; i < covariates.size(); ++i)
+			header.append(covariates.getColumnName(i)).append(RecabTable.TableDelim);
+		header.append("nObservations").append(RecabTable.TableDelim);
+		header.append("nMismatches").append(RecabTable.TableDelim);
+		header.append("Qempirical");
+		return header.toString();
+	}
+
+	private List<Path> inputPaths;
+	private File outputFile;
+	private File variantsFile;
+	private String variantsFileType;
+	private String inputFormatName = "sam";
+	private int nThreads = Runtime.getRuntime().availableProcessors();
+	private boolean writeHeader = true;
+	private String outputFormatName = RecabTable.OutputFormatCsv;
+	private File regionsFile;
+	private IntervalSet regions;
+
+	/**
+	 * Writes the reducer's output as text lines, like TextOutputFormat.
+	 */
+	static class TableWriterContext implements IMRContext<Text, Text>
+	{
+		private final Writer out;
+
+		public TableWriterContext(Writer out) { this.out = out; }
+
+		public void progress() {}
+		public void setStatus(String msg) {}
+		public void increment(Enum<?> counterName, long value) {}
+		public void increment(String groupName, String counterName, long value) {}
+
+		public void write(Text key, Text value) throws IOException
+		{
+			if (key != null)
+			{
+				out.write(key.toString());
+				out.write('\t');
+			}
+			out.write(value.toString());
+			out.write('\n');
+		}
+	}
+
+	/**
+	 * Runs a RecabTableMapper over one chunk of the input.
+	 */
+	private class ChunkTask implements Callable<ObservationAccumulator>
+	{
+		private final FileInputFormat<LongWritable, ReadPair> format;
+		private final InputSplit split;
+		private final VariantTable snps;
+
+		public ChunkTask(FileInputFormat<LongWritable, ReadPair> format, InputSplit split, VariantTable snps)
+		{
+			this.format = format;
+			this.split = split;
+			this.snps = snps;
+		}
+
+		public ObservationAccumulator call() throws IOException, InterruptedException
+		{
+			ObservationAccumulator result = new ObservationAccumulator();
+			TaskAttemptContext context = Utils.getTaskAttemptContext(getConf());
+			RecordReader<LongWritable, ReadPair> reader = format.createRecordReader(split, context);
+			try
+			{
+				reader.initialize(split, context);
+
+				RecabTableMapper mapper = new RecabTableMapper();
+				mapper.setRegions(regions);
+				mapper.setup(snps, result, getConf());
+				while (reader.nextKeyValue())
+					mapper.map(reader.getCurrentKey(), reader.getCurrentValue(), result);
+				mapper.cleanup(result);
+			}
+			finally {
+				reader.close();
+			}
+			return result;
+		}
+	}
+
+	@SuppressWarnings("static") // for OptionBuilder
+	private void scanOptions(String[] args) throws IOException
+	{
+		Options options = new Options();
+
+		Option vcfFileOpt = OptionBuilder
+		              .withDescription("VCF file with known variation sites")
+		              .hasArg()
+		              .withArgName("FILE")
+		              .withLongOpt("vcf-file")
+		              .create("vcf");
+		options.addOption(vcfFileOpt);
+
+		Option rodFileOpt = OptionBuilder
+		              .withDescription("ROD file with known variation sites")
+		              .hasArg()
+		              .withArgName("FILE")
+		              .withLongOpt("rod-file")
+		              .create("rod");
+		options.addOption(rodFileOpt);
+
+		Option indexFileOpt = OptionBuilder
+		              .withDescription("Known variation sites index built with build_known_sites")
+		              .hasArg()
+		              .withArgName("FILE")
+		              .withLongOpt("known-sites-index")
+		              .create("ksi");
+		options.addOption(indexFileOpt);
+
+		Option inputFormatOpt = OptionBuilder
+		              .withDescription("Input format name (sam or bam)")
+		              .hasArg()
+		              .withArgName("FORMAT")
+		              .withLongOpt("input-format")
+		              .create("if");
+		options.addOption(inputFormatOpt);
+
+		Option threadsOpt = OptionBuilder
+		              .withDescription("Number of threads to use (default: number of processors)")
+		              .hasArg()
+		              .withArgName("INT")
+		              .withLongOpt("threads")
+		              .create("t");
+		options.addOption(threadsOpt);
+
+		Option noHeaderOpt = OptionBuilder
+		              .withDescription("Don't write the table header")
+		              .withLongOpt("no-header")
+		              .create("nh");
+		options.addOption(noHeaderOpt);
+
+		Option outputFormatOpt = OptionBuilder
+		              .withDescription("Output format:  " + RecabTable.OutputFormatCsv + " (default) or " + RecabTable.OutputFormatBinary)
+		              .hasArg()
+		              .withArgName("FORMAT")
+		              .withLongOpt("output-format")
+		              .create("of");
+		options.addOption(outputFormatOpt);
+
+		Option regionsOpt = OptionBuilder
+		              .withDescription("BED or interval list file.  Only bases aligned within these regions are used")
+		              .hasArg()
+		              .withArgName("FILE")
+		              .withLongOpt("regions")
+		              .create("reg");
+		options.addOption(regionsOpt);
+
+		try
+		{
+			// GenericOptionsParser lets the user set properties with -D
+			CommandLine line = new GenericOptionsParser(getConf(), options, args).getCommandLine();
+			if (line == null)
+				throw new ParseException("Error parsing command line");
+
+			int nVariantSources = 0;
+			for (Option opt: new Option[] { vcfFileOpt, rodFileOpt, indexFileOpt })
+			{
+				if (line.hasOption(opt.getOpt()))
+				{
+					nVariantSources += 1;
+					variantsFile = new File(line.getOptionValue(opt.getOpt()));
+				}
+			}
+			if (nVariantSources != 1)
+				throw new ParseException("You must specify one file with known genetic variation sites (either VCF, ROD or a prebuilt index).");
+			if (!variantsFile.exists())
+				throw new ParseException("File " + variantsFile + " doesn't exist");
+
+			if (line.hasOption(vcfFileOpt.getOpt()))
+				variantsFileType = RecabTable.VariantsFileTypeVcf;
+			else if (line.hasOption(rodFileOpt.getOpt()))
+				variantsFileType = RecabTable.VariantsFileTypeRod;
+			else
+				variantsFileType = RecabTable.VariantsFileTypeIndex;
+
+			inputFormatName = line.getOptionValue(inputFormatOpt.getOpt(), getConf().get(SealToolParser.INPUT_FORMAT_CONF, "sam"));
+			if (!inputFormatName.equals("sam") && !inputFormatName.equals("bam"))
+				throw new ParseException("Unsupported input format '" + inputFormatName + "'.  Valid values are sam and bam");
+
+			if (line.hasOption(threadsOpt.getOpt()))
+			{
+				try {
+					nThreads = Integer.parseInt(line.getOptionValue(threadsOpt.getOpt()));
+				}
+				catch (NumberFormatException e) {
+					throw new ParseException("Invalid number of threads '" + line.getOptionValue(threadsOpt.getOpt()) + "'");
+				}
+				if (nThreads <= 0)
+					throw new ParseException("Number of threads must be greater than 0");
+			}
+
+			writeHeader = !line.hasOption(noHeaderOpt.getOpt());
+
+			outputFormatName = line.getOptionValue(outputFormatOpt.getOpt(), RecabTable.OutputFormatCsv);
+			if (!outputFormatName.equals(RecabTable.OutputFormatCsv) && !outputFormatName.equals(RecabTable.OutputFormatBinary))
+				throw new ParseException("Unsupported output format '" + outputFormatName + "'.  Valid values are " + RecabTable.OutputFormatCsv + " and " + RecabTable.OutputFormatBinary);
+
+			if (line.hasOption(regionsOpt.getOpt()))
+			{
+				regionsFile = new File(line.getOptionValue(regionsOpt.getOpt()));
+				if (!regionsFile.exists())
+					throw new ParseException("File " + regionsFile + " doesn't exist");
+			}
+
+			String[] otherArgs = line.getArgs();
+			if (otherArgs.length < 2)
+				throw new ParseException("You must provide input and output paths");
+
+			FileSystem fs = FileSystem.getLocal(getConf());
+			inputPaths = new ArrayList<Path>();
+			for (int i = 0; i < otherArgs.length - 1; ++i)
+			{
+				Path p = new Path(otherArgs[i]).makeQualified(fs);
+				FileStatus[] files = fs.globStatus(p);
+				if (files == null || files.length == 0)
+					throw new ParseException("Input path " + p + " doesn't exist");
+				for (FileStatus status: files)
+					inputPaths.add(status.getPath());
+			}
+
+			outputFile = new File(otherArgs[otherArgs.length - 1]);
+			if (outputFile.exists())
+				throw new ParseException("Output file " + outputFile + " already exists.  Won't overwrite");
+		}
+		catch( ParseException e )
+		{
+			System.err.println("Usage error: " + e.getMessage());
+			// XXX: redirect System.out to System.err since the simple version of
+			// HelpFormatter.printHelp prints to System.out, and we're on a way to
+			// a fatal exit.
+			System.setOut(System.err);
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp( "LocalRecabTable [options] (-vcf <file> | -rod <file> | -ksi <file>) <in>+ <out>", options);
+			System.exit(3);
+		}
+	}
+
+	/**
+	 * Only use the bases aligned within these regions.  Pass null to use all bases.
+	 */
+	public void setRegions(IntervalSet regions) { this.regions = regions; }
+	public IntervalSet getRegions() { return regions; }
+
+	/**
+	 * Count the observations in the input files.
+	 *
+	 * @param inputs Local SAM or BAM files.
+	 * @param inputFormatName Name of the input format (see FormatNameMap).
+	 * @param snps Known variation sites.  The table is shared by all threads.
+	 * @param nThreads Number of chunks processed at the same time.
+	 */
+	@SuppressWarnings("unchecked")
+	public ObservationAccumulator countObservations(List<Path> inputs, String inputFormatName, VariantTable snps, int nThreads)
+		throws IOException, InterruptedException
+	{
+		Configuration conf = getConf();
+		int chunkSizeMb = conf.getInt(CONF_CHUNK_SIZE_MB, CONF_CHUNK_SIZE_MB_DEFAULT);
+		if (chunkSizeMb <= 0)
+			throw new IllegalArgumentException(CONF_CHUNK_SIZE_MB + " must be greater than 0 (got " + chunkSizeMb + ")");
+
+		FileInputFormat<LongWritable, ReadPair> format =
+			(FileInputFormat<LongWritable, ReadPair>)ReflectionUtils.newInstance(FormatNameMap.getInputFormat(inputFormatName), conf);
+
+		Job job = new Job(conf);
+		for (Path p: inputs)
+			FileInputFormat.addInputPath(job, p);
+		FileInputFormat.setMaxInputSplitSize(job, chunkSizeMb * 1024L * 1024L);
+		List<InputSplit> splits = format.getSplits(job);
+		LOG.info("Processing " + inputs.size() + " files in " + splits.size() + " chunks with " + nThreads + " threads");
+
+		ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+		try
+		{
+			List<Future<ObservationAccumulator>> results = new ArrayList<Future<ObservationAccumulator>>(splits.size());
+			for (InputSplit split: splits)
+				results.add(executor.submit(new ChunkTask(format, split, snps)));
+
+			ObservationAccumulator total = new ObservationAccumulator();
+			for (Future<ObservationAccumulator> f: results)
+			{
+				try {
+					total.addAll(f.get());
+				}
+				catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof IOException)
+						throw (IOException)cause;
+					else if (cause instanceof RuntimeException)
+						throw (RuntimeException)cause;
+					else if (cause instanceof Error)
+						throw (Error)cause;
+					else
+						throw new RuntimeException(cause);
+				}
+			}
+			return total;
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Write the table computed from observations, in the same format as the
+	 * RecabTable reducers.
+	 */
+	public void writeTable(ObservationAccumulator observations, Writer out, boolean header) throws IOException, InterruptedException
+	{
+		if (header)
+		{
+			out.write(tableHeader(new CovariateList(getConf())));
+			out.write('\n');
+		}
+
+		RecabTableReducer reducer = new RecabTableReducer();
+		reducer.setup(getConf());
+		IMRContext<Text, Text> context = new TableWriterContext(out);
+		for (RecabKey key: observations.getSortedKeys())
+			reducer.reduce(key, Collections.singletonList(observations.get(key)), context);
+		out.flush();
+	}
+
+	/**
+	 * Write the observation counts as a BinaryRecabTable.
+	 */
+	public void writeBinaryTable(ObservationAccumulator observations, OutputStream out) throws IOException
+	{
+		BinaryRecabTable.Writer writer = new BinaryRecabTable.Writer(out, new CovariateList(getConf()));
+		for (RecabKey key: observations.getSortedKeys())
+			writer.write(key, observations.get(key));
+		writer.close();
+	}
+
+	public int run(String[] args) throws Exception
+	{
+		scanOptions(args);
+
+		LOG.info("Loading known variation sites from " + variantsFile);
+		VariantTable snps = RecabTable.loadVariantTable(variantsFile, variantsFileType, getConf());
+		LOG.info("Loaded " + snps.size() + " known variation sites");
+
+		if (regionsFile != null)
+		{
+			Path regionsPath = new Path(regionsFile.toURI());
+			setRegions(IntervalSet.load(regionsPath, getConf()));
+			LOG.info("Using only bases within " + regions.size() + " regions from " + regionsFile);
+			// lets BamInputFormat skip the parts of indexed files outside the regions
+			getConf().set(BamInputFormat.CONF_REGIONS, regionsPath.toString());
+		}
+
+		ObservationAccumulator observations = countObservations(inputPaths, inputFormatName, snps, nThreads);
+
+		for (Map.Entry<String, Map<String, Long>> group: observations.getCounters().entrySet())
+		{
+			for (Map.Entry<String, Long> c: group.getValue().entrySet())
+				LOG.info(group.getKey() + "." + c.getKey() + ": " + c.getValue());
+		}
+
+		LOG.info("Writing table with " + observations.size() + " rows to " + outputFile);
+		if (outputFormatName.equals(RecabTable.OutputFormatBinary))
+			writeBinaryTable(observations, new FileOutputStream(outputFile));
+		else
+		{
+			Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputFile), RecabTable.ASCII));
+			try {
+				writeTable(observations, out, writeHeader);
+			}
+			finally {
+				out.close();
+			}
+		}
+		LOG.info("Finished");
+
+		return 0;
+	}
+
+	public static void main(String[] args)
+	{
+		int res = 0;
+		try
+		{
+			res = new SealToolRunner().run(new LocalRecabTable(), args);
+		}
+		catch (Exception e)
+		{
+			System.err.println("Error executing LocalRecabTable: " + e.getMessage());
+			res = 1;
+		}
+		System.exit(res);
+	}
+}
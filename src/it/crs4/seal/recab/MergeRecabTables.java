@@ -0,0 +1,312 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package it.crs4.seal.recab;
+
+import it.crs4.seal.common.FormatException;
+import it.crs4.seal.common.SealToolRunner;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.commons.cli.*;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.Tool;
+
+/**
+ * Merge binary recab tables by summing their counts.
+ *
+ * The tables are read in parallel in a k-way merge, so memory use doesn't
+ * depend on their size.  The result is either another binary table, which
+ * can be merged again later, or the text table written by RecabTable with the
+ * empirical qualities computed from the total counts.
+ */
+public class MergeRecabTables extends Configured implements Tool
+{
+	private static final Log LOG = LogFactory.getLog(MergeRecabTables.class);
+
+	private List<Path> inputPaths;
+	private Path outputPath;
+	private String outputFormatName = RecabTable.OutputFormatBinary;
+	private boolean writeHeader = true;
+
+	/**
+	 * Receives the merged entries.
+	 */
+	private static interface EntrySink
+	{
+		public void write(RecabKey key, ObservationCount counts) throws IOException, InterruptedException;
+	}
+
+	/**
+	 * A table being merged, positioned on its current entry.
+	 */
+	private static class Source implements Comparable<Source>
+	{
+		final BinaryRecabTable.Reader reader;
+		final RecabKey key = new RecabKey();
+		final ObservationCount counts = new ObservationCount();
+
+		Source(BinaryRecabTable.Reader reader) { this.reader = reader; }
+
+		boolean advance() throws IOException { return reader.next(key, counts); }
+
+		public int compareTo(Source other) { return key.compareTo(other.key); }
+	}
+
+	@SuppressWarnings("static") // for OptionBuilder
+	private void scanOptions(String[] args) throws IOException
+	{
+		Options options = new Options();
+
+		Option outputFormatOpt = OptionBuilder
+		              .withDescription("Output format:  " + RecabTable.OutputFormatBinary + " (default) or " + RecabTable.OutputFormatCsv)
+		              .hasArg()
+		              .withArgName("FORMAT")
+		              .withLongOpt("output-format")
+		              .create("of");
+		options.addOption(outputFormatOpt);
+
+		Option noHeaderOpt = OptionBuilder
+		              .withDescription("Don't write the header of csv tables")
+		              .withLongOpt("no-header")
+		              .create("nh");
+		options.addOption(noHeaderOpt);
+
+		try
+		{
+			// GenericOptionsParser lets the user set properties with -D
+			CommandLine line = new GenericOptionsParser(getConf(), options, args).getCommandLine();
+			if (line == null)
+				throw new ParseException("Error parsing command line");
+
+			outputFormatName = line.getOptionValue(outputFormatOpt.getOpt(), RecabTable.OutputFormatBinary);
+			if (!outputFormatName.equals(RecabTable.OutputFormatCsv) && !outputFormatName.equals(RecabTable.OutputFormatBinary))
+				throw new ParseException("Unsupported output format '" + outputFormatName + "'.  Valid values are " + RecabTable.OutputFormatBinary + " and " + RecabTable.OutputFormatCsv);
+
+			writeHeader = !line.hasOption(noHeaderOpt.getOpt());
+
+			String[] otherArgs = line.getArgs();
+			if (otherArgs.length < 2)
+				throw new ParseException("You must provide input and output paths");
+
+			inputPaths = new ArrayList<Path>();
+			for (int i = 0; i < otherArgs.length - 1; ++i)
+			{
+				Path p = new Path(otherArgs[i]);
+				FileSystem fs = p.getFileSystem(getConf());
+				FileStatus[] files = fs.globStatus(p);
+				if (files == null || files.length == 0)
+					throw new ParseException("Input path " + p + " doesn't exist");
+				for (FileStatus status: files)
+					inputPaths.addAll(listTableFiles(fs, status));
+			}
+
+			outputPath = new Path(otherArgs[otherArgs.length - 1]);
+			if (outputPath.getFileSystem(getConf()).exists(outputPath))
+				throw new ParseException("Output path " + outputPath + " already exists.  Won't overwrite");
+		}
+		catch( ParseException e )
+		{
+			System.err.println("Usage error: " + e.getMessage());
+			// XXX: redirect System.out to System.err since the simple version of
+			// HelpFormatter.printHelp prints to System.out, and we're on a way to
+			// a fatal exit.
+			System.setOut(System.err);
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp( "MergeRecabTables [options] <in>+ <out>", options);
+			System.exit(3);
+		}
+	}
+
+	/**
+	 * A table file, or the part files of a RecabTable output directory.
+	 */
+	private static List<Path> listTableFiles(FileSystem fs, FileStatus status) throws IOException
+	{
+		List<Path> result = new ArrayList<Path>();
+		if (status.isDir())
+		{
+			for (FileStatus child: fs.listStatus(status.getPath()))
+			{
+				String name = child.getPath().getName();
+				if (!child.isDir() && !name.startsWith("_") && !name.startsWith("."))
+					result.add(child.getPath());
+			}
+		}
+		else
+			result.add(status.getPath());
+		return result;
+	}
+
+	/**
+	 * Merge inputs into a binary table.
+	 *
+	 * @return The number of entries written.
+	 */
+	public long merge(List<BinaryRecabTable.Reader> inputs, final BinaryRecabTable.Writer out) throws IOException, InterruptedException
+	{
+		return merge(inputs, new EntrySink() {
+			public void write(RecabKey key, ObservationCount counts) throws IOException {
+				out.write(key, counts);
+			}
+		});
+	}
+
+	/**
+	 * Merge inputs into a text table like the one written by RecabTable,
+	 * computing the empirical qualities from the total counts.
+	 *
+	 * @return The number of entries written.
+	 */
+	public long merge(List<BinaryRecabTable.Reader> inputs, Writer out, boolean header) throws IOException, InterruptedException
+	{
+		if (header)
+		{
+			out.write(LocalRecabTable.tableHeader(new CovariateList(getConf())));
+			out.write('\n');
+		}
+
+		final RecabTableReducer reducer = new RecabTableReducer();
+		reducer.setup(getConf());
+		final LocalRecabTable.TableWriterContext context = new LocalRecabTable.TableWriterContext(out);
+
+		long n = merge(inputs, new EntrySink() {
+			public void write(RecabKey key, ObservationCount counts) throws IOException, InterruptedException {
+				reducer.reduce(key, Collections.singletonList(counts), context);
+			}
+		});
+		out.flush();
+		return n;
+	}
+
+	private long merge(List<BinaryRecabTable.Reader> inputs, EntrySink sink) throws IOException, InterruptedException
+	{
+		CovariateList covariates = new CovariateList(getConf());
+		PriorityQueue<Source> queue = new PriorityQueue<Source>(Math.max(1, inputs.size()));
+		for (BinaryRecabTable.Reader reader: inputs)
+		{
+			reader.checkCovariates(covariates);
+			Source s = new Source(reader);
+			if (s.advance())
+				queue.add(s);
+		}
+
+		RecabKey key = new RecabKey();
+		ObservationCount sum = new ObservationCount();
+		long nEntries = 0;
+
+		while (!queue.isEmpty())
+		{
+			Source s = queue.poll();
+			key.set(s.key);
+			sum.set(s.counts);
+			if (s.advance())
+				queue.add(s);
+
+			// the same key may be in any number of the other tables
+			while (!queue.isEmpty() && queue.peek().key.equals(key))
+			{
+				s = queue.poll();
+				sum.addToThis(s.counts);
+				if (s.advance())
+					queue.add(s);
+			}
+
+			sink.write(key, sum);
+			nEntries += 1;
+		}
+
+		return nEntries;
+	}
+
+	public int run(String[] args) throws Exception
+	{
+		scanOptions(args);
+
+		List<BinaryRecabTable.Reader> readers = new ArrayList<BinaryRecabTable.Reader>(inputPaths.size());
+		try
+		{
+			for (Path p: inputPaths)
+			{
+				try {
+					readers.add(new BinaryRecabTable.Reader(new BufferedInputStream(p.getFileSystem(getConf()).open(p))));
+				}
+				catch (FormatException e) {
+					throw new FormatException("Error opening " + p + ": " + e.getMessage() + ".  Tables to merge must be written with --output-format " + RecabTable.OutputFormatBinary);
+				}
+			}
+			LOG.info("Merging " + readers.size() + " tables into " + outputPath);
+
+			OutputStream out = outputPath.getFileSystem(getConf()).create(outputPath, false);
+			long n;
+			if (outputFormatName.equals(RecabTable.OutputFormatBinary))
+			{
+				BinaryRecabTable.Writer writer = new BinaryRecabTable.Writer(out, new CovariateList(getConf()));
+				n = merge(readers, writer);
+				writer.close();
+			}
+			else
+			{
+				Writer writer = new BufferedWriter(new OutputStreamWriter(out, RecabTable.ASCII));
+				try {
+					n = merge(readers, writer, writeHeader);
+				}
+				finally {
+					writer.close();
+				}
+			}
+			LOG.info("Wrote " + n + " entries");
+		}
+		finally
+		{
+			for (BinaryRecabTable.Reader r: readers)
+				r.close();
+		}
+
+		return 0;
+	}
+
+	public static void main(String[] args)
+	{
+		int res = 0;
+		try
+		{
+			res = new SealToolRunner().run(new MergeRecabTables(), args);
+		}
+		catch (Exception e)
+		{
+			System.err.println("Error executing MergeRecabTables: " + e.getMessage());
+			res = 1;
+		}
+		System.exit(res);
+	}
+}
@@ -0,0 +1,257 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package it.crs4.seal.recab;
+
+import it.crs4.seal.common.IMRContext;
+import it.crs4.seal.common.ReadPair;
+import it.crs4.seal.common.SynchronizedContext;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * RecabTableMapper that processes reads with several worker threads.
+ *
+ * map() collects the reads in batches which are handed to the workers.  Each
+ * worker runs its own RecabTableMapper, with its own count table, while all
+ * the workers share the same read-only VariantTable.  At cleanup the workers'
+ * count tables are merged and emitted once, so the output is the same as
+ * with a single RecabTableMapper.
+ *
+ * Since the reads are processed after map() returns, the record reader must
+ * return a new ReadPair for each record rather than reusing the same object.
+ */
+public class MultithreadedRecabTableMapper extends RecabTableMapper
+{
+	private static final Log LOG = LogFactory.getLog(MultithreadedRecabTableMapper.class);
+
+	/**
+	 * Number of threads processing reads in each map task.
+	 */
+	public static final String CONF_MAP_THREADS = "seal.recab.map-threads";
+	public static final int CONF_MAP_THREADS_DEFAULT = 1;
+
+	/**
+	 * Number of reads handed to a worker thread at a time.
+	 */
+	public static final String CONF_BATCH_SIZE = "seal.recab.map-threads.batch-size";
+	public static final int CONF_BATCH_SIZE_DEFAULT = 500;
+
+	// queued to tell a worker that there are no more batches
+	private static final List<ReadPair> EndOfInput = Collections.emptyList();
+
+	private class Worker implements Callable<Void>
+	{
+		private final RecabTableMapper mapper = new RecabTableMapper();
+
+		public Void call() throws IOException, InterruptedException
+		{
+			List<ReadPair> batch = queue.take();
+			while (batch != EndOfInput)
+			{
+				for (ReadPair pair: batch)
+					mapper.map(null, pair, workerContext);
+				batch = queue.take();
+			}
+			return null;
+		}
+	}
+
+	private int nThreads;
+	private int batchSize;
+
+	private IMRContext<RecabKey, ObservationCount> workerContext;
+	private Worker[] workers;
+	private ExecutorService executor;
+	private List<Future<Void>> results;
+	private BlockingQueue<List<ReadPair>> queue;
+
+	private List<ReadPair> batch;
+	private ReadPair lastPair;
+
+	/**
+	 * Get the number of threads configured for each map task.
+	 */
+	public static int getMapThreads(Configuration conf)
+	{
+		int n = conf.getInt(CONF_MAP_THREADS, CONF_MAP_THREADS_DEFAULT);
+		if (n <= 0)
+			throw new IllegalArgumentException(CONF_MAP_THREADS + " must be greater than 0 (got " + n + ")");
+		return n;
+	}
+
+	/**
+	 * Configuration for each of nThreads workers.  The base limit and the
+	 * in-mapper combining memory limit apply to the task, so they're divided
+	 * among the workers.
+	 */
+	public static Configuration getWorkerConf(Configuration conf, int nThreads)
+	{
+		Configuration workerConf = new Configuration(conf);
+
+		long maxUsedBases = conf.getLong(CONF_MAX_USED_BASES, CONF_MAX_USED_BASES_DEFAULT);
+		if (maxUsedBases > 0)
+			workerConf.setLong(CONF_MAX_USED_BASES, (maxUsedBases + nThreads - 1) / nThreads);
+
+		int maxMb = conf.getInt(CONF_IN_MAPPER_COMBINING_MAX_MB, CONF_IN_MAPPER_COMBINING_MAX_MB_DEFAULT);
+		if (maxMb > 0) // invalid values are reported by the workers
+			workerConf.setInt(CONF_IN_MAPPER_COMBINING_MAX_MB, Math.max(1, maxMb / nThreads));
+
+		return workerConf;
+	}
+
+	@Override
+	public void setup(VariantTable snps, IMRContext<RecabKey, ObservationCount> context, Configuration conf) throws IOException
+	{
+		nThreads = getMapThreads(conf);
+		batchSize = conf.getInt(CONF_BATCH_SIZE, CONF_BATCH_SIZE_DEFAULT);
+		if (batchSize <= 0)
+			throw new IllegalArgumentException(CONF_BATCH_SIZE + " must be greater than 0 (got " + batchSize + ")");
+
+		LOG.info("Processing reads with " + nThreads + " threads, in batches of " + batchSize);
+
+		// The Hadoop context isn't thread-safe.  In-mapper combining only
+		// writes at cleanup, so contention is limited to the counter updates.
+		workerContext = new SynchronizedContext<RecabKey, ObservationCount>(context);
+
+		Configuration workerConf = getWorkerConf(conf, nThreads);
+
+		workers = new Worker[nThreads];
+		for (int i = 0; i < nThreads; ++i)
+		{
+			workers[i] = new Worker();
+			workers[i].mapper.setRegions(getRegions());
+			workers[i].mapper.setup(snps, workerContext, workerConf);
+		}
+
+		queue = new ArrayBlockingQueue<List<ReadPair>>(2 * nThreads);
+		executor = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+			private int count = 0;
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "recab-worker-" + (count++));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		results = new ArrayList<Future<Void>>(nThreads);
+		for (Worker w: workers)
+			results.add(executor.submit(w));
+
+		batch = new ArrayList<ReadPair>(batchSize);
+		lastPair = null;
+	}
+
+	@Override
+	public void map(LongWritable ignored, ReadPair pair, IMRContext<RecabKey, ObservationCount> context) throws IOException, InterruptedException
+	{
+		if (pair == lastPair)
+			throw new IllegalStateException("The input format reuses its ReadPair objects, so its records can't be processed by several threads.  Set " + CONF_MAP_THREADS + " to 1");
+		lastPair = pair;
+
+		batch.add(pair);
+		if (batch.size() >= batchSize)
+		{
+			enqueue(batch);
+			batch = new ArrayList<ReadPair>(batchSize);
+		}
+	}
+
+	@Override
+	public void cleanup(IMRContext<RecabKey, ObservationCount> context) throws IOException, InterruptedException
+	{
+		try
+		{
+			if (!batch.isEmpty())
+				enqueue(batch);
+			batch = null;
+
+			for (int i = 0; i < nThreads; ++i)
+				enqueue(EndOfInput);
+
+			for (Future<Void> f: results)
+				getResult(f);
+		}
+		finally {
+			executor.shutdownNow();
+		}
+
+		for (int i = 1; i < workers.length; ++i)
+			workers[0].mapper.mergeCounts(workers[i].mapper);
+
+		for (Worker w: workers)
+			w.mapper.cleanup(workerContext);
+	}
+
+	/**
+	 * Hand a batch to the workers, waiting if they're all busy.
+	 * If a worker has failed its exception is rethrown here, so that the task
+	 * fails rather than waiting forever.
+	 */
+	private void enqueue(List<ReadPair> b) throws IOException, InterruptedException
+	{
+		while (!queue.offer(b, 1, TimeUnit.SECONDS))
+		{
+			for (Future<Void> f: results)
+			{
+				if (f.isDone())
+				{
+					getResult(f);
+					// a worker returned normally before the end of the input
+					throw new IllegalStateException("BUG!  recab worker thread exited early");
+				}
+			}
+		}
+	}
+
+	private static void getResult(Future<Void> f) throws IOException, InterruptedException
+	{
+		try {
+			f.get();
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException)cause;
+			else if (cause instanceof InterruptedException)
+				throw (InterruptedException)cause;
+			else if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			else if (cause instanceof Error)
+				throw (Error)cause;
+			else
+				throw new RuntimeException(cause);
+		}
+	}
+}
@@ -0,0 +1,133 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package it.crs4.seal.recab;
+
+import it.crs4.seal.common.IMRContext;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * IMRContext that sums the observations written to it in memory, by key.
+ *
+ * Used to run RecabTableMapper without Hadoop:  the accumulated counts take
+ * the place of the map output that the combiner and the shuffle would sum.
+ * Counters are kept too.
+ */
+public class ObservationAccumulator implements IMRContext<RecabKey, ObservationCount>
+{
+	private final Map<RecabKey, ObservationCount> counts = new HashMap<RecabKey, ObservationCount>();
+	// group name -> counter name -> value
+	private final Map<String, Map<String, Long>> counters = new TreeMap<String, Map<String, Long>>();
+
+	public void progress() {}
+	public void setStatus(String msg) {}
+
+	public void write(RecabKey key, ObservationCount value)
+	{
+		ObservationCount sum = counts.get(key);
+		if (sum == null)
+		{
+			// the caller may reuse its key and value objects
+			RecabKey newKey = new RecabKey();
+			newKey.set(key);
+			counts.put(newKey, new ObservationCount(value.getObservations(), value.getMismatches()));
+		}
+		else
+			sum.addToThis(value);
+	}
+
+	public void increment(Enum<?> counterName, long value)
+	{
+		increment(counterName.getClass().getName(), counterName.name(), value);
+	}
+
+	public void increment(String groupName, String counterName, long value)
+	{
+		Map<String, Long> group = counters.get(groupName);
+		if (group == null)
+		{
+			group = new TreeMap<String, Long>();
+			counters.put(groupName, group);
+		}
+		Long current = group.get(counterName);
+		group.put(counterName, current == null ? value : current + value);
+	}
+
+	/**
+	 * Add the observations and counters of other to this accumulator.
+	 */
+	public void addAll(ObservationAccumulator other)
+	{
+		for (Map.Entry<RecabKey, ObservationCount> e: other.counts.entrySet())
+			write(e.getKey(), e.getValue());
+
+		for (Map.Entry<String, Map<String, Long>> group: other.counters.entrySet())
+		{
+			for (Map.Entry<String, Long> c: group.getValue().entrySet())
+				increment(group.getKey(), c.getKey(), c.getValue());
+		}
+	}
+
+	/**
+	 * Number of distinct keys seen.
+	 */
+	public int size()
+	{
+		return counts.size();
+	}
+
+	public ObservationCount get(RecabKey key)
+	{
+		return counts.get(key);
+	}
+
+	/**
+	 * The keys seen, in the order the MapReduce framework would sort them.
+	 */
+	public List<RecabKey> getSortedKeys()
+	{
+		List<RecabKey> keys = new ArrayList<RecabKey>(counts.keySet());
+		Collections.sort(keys);
+		return keys;
+	}
+
+	public long getCounterValue(String groupName, String counterName)
+	{
+		Map<String, Long> group = counters.get(groupName);
+		if (group != null)
+		{
+			Long value = group.get(counterName);
+			if (value != null)
+				return value;
+		}
+		return 0;
+	}
+
+	/**
+	 * The counters, by group and name.
+	 */
+	public Map<String, Map<String, Long>> getCounters()
+	{
+		return Collections.unmodifiableMap(counters);
+	}
+}
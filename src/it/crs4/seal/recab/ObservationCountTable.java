@@ -0,0 +1,211 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package it.crs4.seal.recab;
+
+import it.crs4.seal.common.IMRContext;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Dense in-memory table of observation and mismatch counts, used by
+ * RecabTableMapper to combine its output before emitting it.
+ *
+ * For each read group the table covers the whole space of covariate codes
+ * computed by CovariateList.  The space is divided into fixed-size pages which
+ * are only allocated when one of their codes is seen, so the memory used is
+ * proportional to the range of covariate values actually observed.
+ * Observations and mismatches for the same code are stored in adjacent
+ * positions.  Tables are emitted to the context when flush() is called or
+ * when allocating a page would exceed the memory limit.
+ */
+public class ObservationCountTable
+{
+	private static final Log LOG = LogFactory.getLog(ObservationCountTable.class);
+
+	private static final int PageBits = 10;
+	private static final int PageSize = 1 << PageBits; // codes per page
+	private static final int PageMask = PageSize - 1;
+	private static final long PageBytes = 2L * PageSize * 8;
+
+	private final IMRContext<RecabKey, ObservationCount> context;
+	private final long maxMemory;
+	private final int numPages;
+
+	private Map<String, long[][]> tables;
+	private long allocatedPages;
+
+	private String currentRg;
+	private long[][] current;
+
+	private RecabKey key = new RecabKey();
+	private ObservationCount value = new ObservationCount();
+
+	/**
+	 * @param context Where counts are written when flushing.
+	 * @param cardinality Number of distinct covariate codes.  Codes passed to add must be in [0, cardinality).
+	 * @param maxMemory Approximate number of bytes the tables may use before being flushed.
+	 */
+	public ObservationCountTable(IMRContext<RecabKey, ObservationCount> context, long cardinality, long maxMemory)
+	{
+		if (maxMemory <= 0)
+			throw new IllegalArgumentException("memory limit must be greater than 0 (got " + maxMemory + ")");
+		if (cardinality <= 0)
+			throw new IllegalArgumentException("cardinality must be greater than 0 (got " + cardinality + ")");
+
+		long pages = (cardinality + PageSize - 1) >>> PageBits;
+		if (pages > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("too many covariate codes for in-mapper combining (" + cardinality + ")");
+
+		this.context = context;
+		this.maxMemory = maxMemory;
+		this.numPages = (int)pages;
+		tables = new HashMap<String, long[][]>();
+		allocatedPages = 0;
+	}
+
+	/**
+	 * Prepare to count the bases of a read in read group rg.
+	 */
+	public void startRead(String rg)
+	{
+		if (!rg.equals(currentRg))
+		{
+			current = tables.get(rg);
+			if (current == null)
+			{
+				current = new long[numPages][];
+				tables.put(rg, current);
+			}
+			currentRg = rg;
+		}
+	}
+
+	/**
+	 * Count one observation with the given covariate code for the current read group.
+	 */
+	public void add(long code, boolean mismatch) throws IOException, InterruptedException
+	{
+		int pageIndex = (int)(code >>> PageBits);
+		long[] page = current[pageIndex];
+		if (page == null)
+			page = allocatePage(pageIndex);
+
+		int index = 2 * ((int)code & PageMask);
+		page[index] += 1;
+		if (mismatch)
+			page[index + 1] += 1;
+	}
+
+	/**
+	 * Write all non-zero counts to the context and reset them.
+	 */
+	public void flush() throws IOException, InterruptedException
+	{
+		for (Map.Entry<String, long[][]> entry: tables.entrySet())
+		{
+			String rg = entry.getKey();
+			long[][] pages = entry.getValue();
+
+			for (int p = 0; p < pages.length; ++p)
+			{
+				long[] counts = pages[p];
+				if (counts == null)
+					continue;
+
+				for (int i = 0; i < counts.length; i += 2)
+				{
+					if (counts[i] > 0)
+					{
+						key.set(rg, ((long)p << PageBits) + i/2);
+						value.set(counts[i], counts[i+1]);
+						context.write(key, value);
+
+						counts[i] = 0;
+						counts[i+1] = 0;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add all the counts in other to this table and reset other.
+	 *
+	 * Both tables must have been created for the same covariates.  If this
+	 * table reaches its memory limit while merging it's flushed as usual.
+	 */
+	public void addAll(ObservationCountTable other) throws IOException, InterruptedException
+	{
+		if (other.numPages != numPages)
+			throw new IllegalArgumentException("can't merge count tables with different cardinalities");
+
+		for (Map.Entry<String, long[][]> entry: other.tables.entrySet())
+		{
+			long[][] otherPages = entry.getValue();
+			for (int p = 0; p < otherPages.length; ++p)
+			{
+				long[] otherCounts = otherPages[p];
+				if (otherCounts == null)
+					continue;
+
+				startRead(entry.getKey());
+				long[] counts = current[p];
+				if (counts == null)
+					counts = allocatePage(p);
+
+				for (int i = 0; i < counts.length; ++i)
+					counts[i] += otherCounts[i];
+			}
+		}
+		other.clear();
+	}
+
+	/**
+	 * Discard all counts without writing them.
+	 */
+	public void clear()
+	{
+		tables.clear();
+		allocatedPages = 0;
+		currentRg = null;
+		current = null;
+	}
+
+	private long[] allocatePage(int pageIndex) throws IOException, InterruptedException
+	{
+		if (allocatedPages > 0 && (allocatedPages + 1) * PageBytes > maxMemory)
+		{
+			LOG.info("Count tables reached memory limit.  Flushing " + allocatedPages + " pages in " + tables.size() + " tables");
+			flush();
+			tables.clear();
+			allocatedPages = 0;
+			current = new long[numPages][];
+			tables.put(currentRg, current);
+		}
+
+		long[] page = new long[2 * PageSize];
+		current[pageIndex] = page;
+		allocatedPages += 1;
+		return page;
+	}
+}
@@ -0,0 +1,666 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package it.crs4.seal.recab;
+
+import it.crs4.seal.common.FormatException;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Load the known variation sites in a VCF file into an ArrayVariantTable
+ * using several threads.
+ *
+ * The input may be plain text, gzip-compressed or BGZF-compressed (i.e.,
+ * compressed with bgzip).  It is divided into chunks of a few MB, which a pool
+ * of threads parses independently, each producing an unsorted list of
+ * positions per contig.  The lines that straddle two chunks are stitched back
+ * together and parsed by the calling thread.  Finally, the lists of each contig
+ * are sorted and merged, again in parallel.
+ *
+ * With BGZF input each chunk is a group of whole BGZF blocks, so decompression
+ * is also done by the pool.  Regular gzip streams can only be decompressed
+ * sequentially, so in that case only the parsing is parallelized.
+ *
+ * The resulting table is the same one would get by loading the file with
+ * FastVcfVariantReader, though the checks on the heading are less strict:  the
+ * first line must contain the VCF magic and a column headings line must exist.
+ */
+public class ParallelVcfLoader
+{
+	private static final Log LOG = LogFactory.getLog(ParallelVcfLoader.class);
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private static final byte[] MAGIC = VcfVariantReader.MAGIC.getBytes(ASCII);
+
+	private static final int ChunkSize = 4*1024*1024; // uncompressed bytes per chunk
+	private static final int BgzfMaxBlockSize = 64*1024;
+	private static final int BgzfBlocksPerChunk = ChunkSize / BgzfMaxBlockSize;
+	private static final int GzipHeaderLength = 12; // up to and including XLEN
+	private static final int GzipTrailerLength = 8; // CRC32 and ISIZE
+
+	private final int nThreads;
+	private boolean snpOnly = true;
+
+	// stitching state, only used by the calling thread
+	private byte[] carry;
+	private int carryLength;
+	private boolean sawFirstLine;
+	private boolean sawColumnHeading;
+	private long nRecords;
+	private Map<String, PositionList> positions;
+
+	/**
+	 * Growable list of unsorted positions.
+	 */
+	protected static class PositionList
+	{
+		protected int[] data = new int[1024];
+		protected int size = 0;
+
+		public void add(int value)
+		{
+			if (size >= data.length)
+				data = Arrays.copyOf(data, data.length * 2);
+			data[size++] = value;
+		}
+
+		public void addAll(PositionList other)
+		{
+			if (size + other.size > data.length)
+				data = Arrays.copyOf(data, Math.max(data.length * 2, size + other.size));
+			System.arraycopy(other.data, 0, data, size, other.size);
+			size += other.size;
+		}
+
+		/**
+		 * Sort the list and remove duplicates.
+		 */
+		public void sortUnique()
+		{
+			Arrays.sort(data, 0, size);
+			int n = 0;
+			for (int i = 0; i < size; ++i)
+			{
+				if (n == 0 || data[n-1] != data[i])
+					data[n++] = data[i];
+			}
+			size = n;
+			data = Arrays.copyOf(data, size);
+		}
+	}
+
+	/**
+	 * A piece of the input, possibly still compressed.
+	 */
+	private interface Chunk
+	{
+		/**
+		 * @return the uncompressed data.  Its length is the array's length.
+		 */
+		public byte[] getData() throws IOException;
+	}
+
+	private static class PlainChunk implements Chunk
+	{
+		private final byte[] data;
+
+		public PlainChunk(byte[] data) { this.data = data; }
+		public byte[] getData() { return data; }
+	}
+
+	/**
+	 * A group of BGZF blocks.  For each block we keep the deflated data followed
+	 * by the gzip trailer (CRC32 and uncompressed size).
+	 */
+	private static class BgzfChunk implements Chunk
+	{
+		private final byte[] blocks;
+		private final int[] blockEnds;
+		private final int nBlocks;
+
+		public BgzfChunk(byte[] blocks, int[] blockEnds, int nBlocks)
+		{
+			this.blocks = blocks;
+			this.blockEnds = blockEnds;
+			this.nBlocks = nBlocks;
+		}
+
+		public byte[] getData() throws IOException
+		{
+			int totalSize = 0;
+			for (int i = 0; i < nBlocks; ++i)
+				totalSize += readIntLE(blocks, blockEnds[i] - 4);
+
+			byte[] data = new byte[totalSize];
+			Inflater inflater = new Inflater(true); // BGZF blocks are raw deflate streams within gzip members
+			CRC32 crc = new CRC32();
+			try
+			{
+				int start = 0;
+				int outPos = 0;
+				for (int i = 0; i < nBlocks; ++i)
+				{
+					int trailer = blockEnds[i] - GzipTrailerLength;
+					int expectedCrc = readIntLE(blocks, trailer);
+					int size = readIntLE(blocks, trailer + 4);
+
+					if (size > 0) // skip empty blocks, such as the EOF marker
+					{
+						inflater.reset();
+						inflater.setInput(blocks, start, trailer - start);
+						int n = inflater.inflate(data, outPos, size);
+						if (n != size || !inflater.finished())
+							throw new FormatException("Corrupt BGZF block:  expected " + size + " bytes of data but found " + n);
+
+						crc.reset();
+						crc.update(data, outPos, size);
+						if ((int)crc.getValue() != expectedCrc)
+							throw new FormatException("Corrupt BGZF block:  CRC mismatch");
+
+						outPos += size;
+					}
+					start = blockEnds[i];
+				}
+			}
+			catch (DataFormatException e) {
+				throw new FormatException("Corrupt BGZF block: " + e.getMessage());
+			}
+			finally {
+				inflater.end();
+			}
+			return data;
+		}
+	}
+
+	/**
+	 * What a worker found in a chunk.
+	 */
+	private static class ChunkResult
+	{
+		public byte[] data;
+		// offsets of the first and last line terminators in data, or -1 if there are none
+		public int firstNewline;
+		public int lastNewline;
+		public Map<String, PositionList> positions;
+		public long nRecords;
+		public boolean sawColumnHeading;
+	}
+
+	private class ChunkParser implements Callable<ChunkResult>
+	{
+		private final Chunk chunk;
+
+		public ChunkParser(Chunk chunk) { this.chunk = chunk; }
+
+		public ChunkResult call() throws IOException
+		{
+			ChunkResult result = new ChunkResult();
+			result.data = chunk.getData();
+			result.positions = new HashMap<String, PositionList>();
+
+			byte[] data = result.data;
+			int first = 0;
+			while (first < data.length && data[first] != '\n')
+				++first;
+			int last = data.length - 1;
+			while (last >= 0 && data[last] != '\n')
+				--last;
+
+			if (first < data.length)
+			{
+				result.firstNewline = first;
+				result.lastNewline = last;
+				// the whole lines after the first line terminator
+				FastVcfVariantReader reader = new FastVcfVariantReader(data, first + 1, last - first);
+				result.nRecords = parse(reader, result.positions);
+				result.sawColumnHeading = reader.sawColumnHeading();
+			}
+			else
+				result.firstNewline = result.lastNewline = -1;
+
+			return result;
+		}
+	}
+
+	private static class Sorter implements Callable<PositionList>
+	{
+		private final PositionList list;
+
+		public Sorter(PositionList list) { this.list = list; }
+
+		public PositionList call()
+		{
+			list.sortUnique();
+			return list;
+		}
+	}
+
+	/**
+	 * @param nThreads Number of threads to use for decompression and parsing.
+	 */
+	public ParallelVcfLoader(int nThreads)
+	{
+		if (nThreads <= 0)
+			throw new IllegalArgumentException("number of threads must be greater than 0 (got " + nThreads + ")");
+		this.nThreads = nThreads;
+	}
+
+	/**
+	 * Set whether to only load VC=SNP entries (default: true).
+	 * @see FastVcfVariantReader#setReadSnpsOnly
+	 */
+	public void setReadSnpsOnly(boolean v) { snpOnly = v; }
+
+	public boolean getReadSnpsOnly() { return snpOnly; }
+
+	public ArrayVariantTable load(File file) throws IOException, FormatException
+	{
+		InputStream in = new FileInputStream(file);
+		try {
+			return load(in);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Load the variants in a VCF stream.  The stream is read to its end, but not closed.
+	 */
+	public ArrayVariantTable load(InputStream in) throws IOException, FormatException
+	{
+		if (!in.markSupported())
+			in = new BufferedInputStream(in, 64*1024);
+
+		carry = new byte[1024];
+		carryLength = 0;
+		sawFirstLine = false;
+		sawColumnHeading = false;
+		nRecords = 0;
+		positions = new HashMap<String, PositionList>(30);
+
+		ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+		try
+		{
+			if (isBgzf(in))
+			{
+				LOG.info("Loading BGZF-compressed VCF with " + nThreads + " threads");
+				readBgzf(new DataInputStream(in), pool);
+			}
+			else
+			{
+				if (isGzip(in))
+				{
+					LOG.info("Loading gzip-compressed VCF with " + nThreads + " threads.  Decompression is sequential; use bgzip to parallelize it too");
+					in = new GZIPInputStream(in, 64*1024);
+				}
+				else
+					LOG.info("Loading VCF with " + nThreads + " threads");
+				readPlain(in, pool);
+			}
+
+			if (carryLength > 0) // last line without a terminator
+				parseCarry();
+
+			if (!sawFirstLine)
+				throw new FormatException("Empty VCF file");
+			if (!sawColumnHeading)
+				throw new FormatException("Missing column heading line in VCF file");
+			if (nRecords == 0)
+				throw new FormatException("empty Variant table");
+
+			return buildTable(pool);
+		}
+		finally {
+			pool.shutdownNow();
+			positions = null;
+			carry = null;
+		}
+	}
+
+	private void readPlain(InputStream in, ExecutorService pool) throws IOException
+	{
+		LinkedList<Future<ChunkResult>> pending = new LinkedList<Future<ChunkResult>>();
+		boolean eof = false;
+		while (!eof)
+		{
+			byte[] data = new byte[ChunkSize];
+			int n = 0;
+			while (n < data.length)
+			{
+				int bytesRead = in.read(data, n, data.length - n);
+				if (bytesRead < 0)
+				{
+					eof = true;
+					break;
+				}
+				n += bytesRead;
+			}
+
+			if (n > 0)
+				submit(new PlainChunk(n == data.length ? data : Arrays.copyOf(data, n)), pool, pending);
+		}
+		drain(pending);
+	}
+
+	private void readBgzf(DataInputStream in, ExecutorService pool) throws IOException
+	{
+		LinkedList<Future<ChunkResult>> pending = new LinkedList<Future<ChunkResult>>();
+		byte[] header = new byte[GzipHeaderLength];
+		byte[] blocks = new byte[256*1024];
+		int[] blockEnds = new int[BgzfBlocksPerChunk];
+		int nBlocks = 0;
+		int used = 0;
+
+		while (true)
+		{
+			// read the block header.  EOF is only legal between blocks.
+			int n = in.read(header, 0, 1);
+			if (n < 0)
+				break;
+			try
+			{
+				in.readFully(header, 1, header.length - 1);
+				if ((header[0] & 0xff) != 0x1f || (header[1] & 0xff) != 0x8b || header[2] != 8 || (header[3] & 4) == 0)
+					throw new FormatException("Invalid BGZF block header.  All the blocks in the file must be BGZF blocks.");
+
+				int xlen = readShortLE(header, 10);
+				byte[] extra = new byte[xlen];
+				in.readFully(extra);
+				int blockSize = getBgzfBlockSize(extra) + 1;
+
+				int remaining = blockSize - GzipHeaderLength - xlen;
+				if (remaining < GzipTrailerLength)
+					throw new FormatException("Invalid BGZF block size " + blockSize);
+
+				if (used + remaining > blocks.length)
+					blocks = Arrays.copyOf(blocks, Math.max(blocks.length * 2, used + remaining));
+				in.readFully(blocks, used, remaining);
+				used += remaining;
+				blockEnds[nBlocks++] = used;
+			}
+			catch (EOFException e) {
+				throw new FormatException("Truncated BGZF file");
+			}
+
+			if (nBlocks == BgzfBlocksPerChunk)
+			{
+				submit(new BgzfChunk(Arrays.copyOf(blocks, used), blockEnds, nBlocks), pool, pending);
+				blockEnds = new int[BgzfBlocksPerChunk];
+				nBlocks = 0;
+				used = 0;
+			}
+		}
+
+		if (nBlocks > 0)
+			submit(new BgzfChunk(Arrays.copyOf(blocks, used), blockEnds, nBlocks), pool, pending);
+		drain(pending);
+	}
+
+	/**
+	 * Queue a chunk for parsing, limiting the number of chunks in memory at once.
+	 */
+	private void submit(Chunk chunk, ExecutorService pool, LinkedList<Future<ChunkResult>> pending) throws IOException
+	{
+		pending.add(pool.submit(new ChunkParser(chunk)));
+		if (pending.size() > nThreads * 2)
+			processResult(getResult(pending.removeFirst()));
+	}
+
+	private void drain(LinkedList<Future<ChunkResult>> pending) throws IOException
+	{
+		while (!pending.isEmpty())
+			processResult(getResult(pending.removeFirst()));
+	}
+
+	/**
+	 * Merge a chunk's results into the totals and stitch the line that spans
+	 * the previous chunk and this one.  Chunks must be processed in order.
+	 */
+	private void processResult(ChunkResult result)
+	{
+		if (result.firstNewline < 0)
+		{
+			// the chunk is entirely within one line
+			appendToCarry(result.data, 0, result.data.length);
+			return;
+		}
+
+		appendToCarry(result.data, 0, result.firstNewline + 1);
+		parseCarry();
+		appendToCarry(result.data, result.lastNewline + 1, result.data.length - result.lastNewline - 1);
+
+		nRecords += result.nRecords;
+		sawColumnHeading = sawColumnHeading || result.sawColumnHeading;
+		mergePositions(result.positions);
+	}
+
+	private void appendToCarry(byte[] data, int offset, int length)
+	{
+		if (carryLength + length > carry.length)
+			carry = Arrays.copyOf(carry, Math.max(carry.length * 2, carryLength + length));
+		System.arraycopy(data, offset, carry, carryLength, length);
+		carryLength += length;
+	}
+
+	/**
+	 * Parse the single line in carry and empty it.
+	 */
+	private void parseCarry()
+	{
+		if (!sawFirstLine)
+		{
+			if (carryLength < MAGIC.length || !Arrays.equals(Arrays.copyOf(carry, MAGIC.length), MAGIC))
+				throw new FormatException("Did not detect magic sequence " + VcfVariantReader.MAGIC + " at the start of VCF file.  Did you maybe specify the wrong variants file type?");
+			sawFirstLine = true;
+		}
+
+		Map<String, PositionList> linePositions = new HashMap<String, PositionList>();
+		FastVcfVariantReader reader = new FastVcfVariantReader(carry, 0, carryLength);
+		nRecords += parse(reader, linePositions);
+		sawColumnHeading = sawColumnHeading || reader.sawColumnHeading();
+		mergePositions(linePositions);
+
+		carry = new byte[1024]; // the reader kept a reference to the old array
+		carryLength = 0;
+	}
+
+	private void mergePositions(Map<String, PositionList> chunkPositions)
+	{
+		for (Map.Entry<String, PositionList> e: chunkPositions.entrySet())
+		{
+			PositionList list = positions.get(e.getKey());
+			if (list == null)
+				positions.put(e.getKey(), e.getValue());
+			else
+				list.addAll(e.getValue());
+		}
+	}
+
+	/**
+	 * Sort the positions of each contig in parallel and put them in a table.
+	 */
+	private ArrayVariantTable buildTable(ExecutorService pool) throws IOException
+	{
+		List<String> contigs = new ArrayList<String>(positions.keySet());
+		List<Future<PositionList>> sorted = new ArrayList<Future<PositionList>>(contigs.size());
+		for (String contig: contigs)
+			sorted.add(pool.submit(new Sorter(positions.get(contig))));
+
+		ArrayVariantTable table = new ArrayVariantTable();
+		for (int i = 0; i < contigs.size(); ++i)
+		{
+			PositionList list = getResult(sorted.get(i));
+			table.setPositions(contigs.get(i), list.data, list.size);
+			positions.remove(contigs.get(i));
+		}
+
+		LOG.info("Loaded a total of " + nRecords + " known variations");
+		return table;
+	}
+
+	private long parse(FastVcfVariantReader reader, Map<String, PositionList> dest)
+	{
+		reader.setReadSnpsOnly(snpOnly);
+		VariantRegion snp = new VariantRegion();
+		long count = 0;
+
+		try
+		{
+			String lastContig = null;
+			PositionList list = null;
+			while (reader.nextEntry(snp))
+			{
+				String chr = snp.getContigName();
+				if (chr != lastContig) // the reader reuses the String while the contig doesn't change
+				{
+					list = dest.get(chr);
+					if (list == null)
+					{
+						list = new PositionList();
+						dest.put(chr, list);
+					}
+					lastContig = chr;
+				}
+
+				int end = snp.getPosition() + snp.getLength();
+				for (int pos = snp.getPosition(); pos < end; ++pos)
+					list.add(pos);
+				count += 1;
+			}
+		}
+		catch (IOException e) {
+			// the reader works on an array in memory, so this can't happen
+			throw new RuntimeException("BUG!  IOException reading from memory: " + e.getMessage());
+		}
+
+		return count;
+	}
+
+	private static <T> T getResult(Future<T> future) throws IOException
+	{
+		try {
+			return future.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while loading known variants");
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException)cause;
+			else if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			else if (cause instanceof Error)
+				throw (Error)cause;
+			else
+				throw new RuntimeException(cause);
+		}
+	}
+
+	/**
+	 * Whether the stream starts with a gzip header with a BGZF extra field.  The stream isn't advanced.
+	 */
+	private static boolean isBgzf(InputStream in) throws IOException
+	{
+		byte[] header = peek(in, 16);
+		return header.length == 16 && isGzipMagic(header) && (header[3] & 4) != 0 &&
+		  header[12] == 'B' && header[13] == 'C';
+	}
+
+	private static boolean isGzip(InputStream in) throws IOException
+	{
+		byte[] header = peek(in, 2);
+		return header.length == 2 && isGzipMagic(header);
+	}
+
+	private static boolean isGzipMagic(byte[] header)
+	{
+		return (header[0] & 0xff) == 0x1f && (header[1] & 0xff) == 0x8b;
+	}
+
+	private static byte[] peek(InputStream in, int length) throws IOException
+	{
+		byte[] bytes = new byte[length];
+		in.mark(length);
+		int n = 0;
+		while (n < length)
+		{
+			int bytesRead = in.read(bytes, n, length - n);
+			if (bytesRead < 0)
+				break;
+			n += bytesRead;
+		}
+		in.reset();
+		return n == length ? bytes : Arrays.copyOf(bytes, n);
+	}
+
+	/**
+	 * Find the BSIZE value in the BC subfield of a gzip extra field.
+	 */
+	private static int getBgzfBlockSize(byte[] extra)
+	{
+		int i = 0;
+		while (i + 4 <= extra.length)
+		{
+			int length = readShortLE(extra, i + 2);
+			if (extra[i] == 'B' && extra[i+1] == 'C' && length == 2 && i + 6 <= extra.length)
+				return readShortLE(extra, i + 4);
+			i += 4 + length;
+		}
+		throw new FormatException("Missing BGZF block size in gzip header");
+	}
+
+	private static int readShortLE(byte[] bytes, int offset)
+	{
+		return (bytes[offset] & 0xff) | ((bytes[offset+1] & 0xff) << 8);
+	}
+
+	private static int readIntLE(byte[] bytes, int offset)
+	{
+		return (bytes[offset] & 0xff) | ((bytes[offset+1] & 0xff) << 8) |
+		  ((bytes[offset+2] & 0xff) << 16) | ((bytes[offset+3] & 0xff) << 24);
+	}
+}
@@ -28,8 +28,13 @@ import java.nio.ByteBuffer;
  *
  * TODO:  profile!
  */
-public class QualityCovariate implements Covariate
+public class QualityCovariate implements CodedCovariate
 {
+	/**
+	 * Quality values are in [0, NumQualities).  Sanger-encoded qualities can't go beyond 127 - 33.
+	 */
+	public static final int NumQualities = 128 - 33;
+
 	private int readLength = -1;
 	private ByteBuffer qualities;
 	private int startPos;
@@ -43,9 +48,17 @@ public class QualityCovariate implements Covariate
 	}
 
 	public String getValue(int pos)
+	{
+		return String.valueOf(getQuality(pos));
+	}
+
+	/**
+	 * Get the 0-based quality value of the base at position pos.
+	 */
+	public int getQuality(int pos)
 	{
 		if (readLength < 0)
-			throw new RuntimeException("BUG! readLength == " + readLength + ". applyToMapping not called before QualityCovariate.getValue");
+			throw new RuntimeException("BUG! readLength == " + readLength + ". applyToMapping not called before QualityCovariate.getQuality");
 		else if (pos < 0 || pos >= readLength)
 			throw new IndexOutOfBoundsException("pos " + pos + " is out of read boundaries [0," + readLength + ")");
 
@@ -54,6 +67,28 @@ public class QualityCovariate implements Covariate
 		if (sangerValue < 33)
 			throw new RuntimeException("base quality value out of sanger range [33,127]. Found value: " + sangerValue + " (ASCII " + ((char)sangerValue));
 
-		return String.valueOf(sangerValue - SANGER_OFFSET);
+		return sangerValue - SANGER_OFFSET;
+	}
+
+	public int getCardinality() { return NumQualities; }
+
+	public int getCode(int pos) { return getQuality(pos); }
+
+	public String decode(int code)
+	{
+		if (code < 0 || code >= NumQualities)
+			throw new IllegalArgumentException("invalid quality code " + code);
+		return String.valueOf(code);
+	}
+
+	public int encode(String value)
+	{
+		try {
+			int q = Integer.parseInt(value);
+			if (q >= 0 && q < NumQualities)
+				return q;
+		}
+		catch (NumberFormatException e) { }
+		throw new IllegalArgumentException("invalid quality value '" + value + "'");
 	}
 }
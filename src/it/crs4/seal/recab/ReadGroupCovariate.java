@@ -20,6 +20,10 @@ package it.crs4.seal.recab;
 import it.crs4.seal.common.AbstractTaggedMapping;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
 
 /**
  * Covariate that returns the read's RG value for each base.
@@ -30,6 +34,9 @@ public class ReadGroupCovariate implements Covariate
 
 	protected String defaultRg = null;
 	protected String currentRg = null;
+	// bytes of the last RG tag read, to avoid creating a String for each read
+	private byte[] lastTag = new byte[32];
+	private int lastTagLength = -1;
 
 	public ReadGroupCovariate()
 	{
@@ -44,10 +51,20 @@ public class ReadGroupCovariate implements Covariate
 	public void applyToMapping(AbstractTaggedMapping m)
 	{
 		try {
-			currentRg = m.getTag("RG");
+			ByteBuffer tag = m.getTagBytes("RG");
+			// reads in the same group usually come together
+			if (!sameAsLastTag(tag))
+			{
+				saveLastTag(tag);
+				currentRg = Text.decode(lastTag, 0, lastTagLength);
+			}
+		}
+		catch (CharacterCodingException e) {
+			throw new RuntimeException("character coding error in read group of record " + m);
 		}
 		catch (NoSuchFieldException e)
 		{
+			lastTagLength = -1;
 			if (defaultRg == null)
 			{
 				throw new RuntimeException("Read doesn't have a read group tag. If you'd like to set a default read group set the configuration property " + CONF_RG_COVARIATE_DEFAULT_RG + ".\nRecord: " + m);
@@ -57,6 +74,31 @@ public class ReadGroupCovariate implements Covariate
 		}
 	}
 
+	private boolean sameAsLastTag(ByteBuffer tag)
+	{
+		final int start = tag.position();
+		final int length = tag.limit() - start;
+		if (length != lastTagLength)
+			return false;
+		for (int i = 0; i < length; ++i)
+		{
+			if (tag.get(start + i) != lastTag[i])
+				return false;
+		}
+		return true;
+	}
+
+	private void saveLastTag(ByteBuffer tag)
+	{
+		final int start = tag.position();
+		final int length = tag.limit() - start;
+		if (lastTag.length < length)
+			lastTag = new byte[length];
+		for (int i = 0; i < length; ++i)
+			lastTag[i] = tag.get(start + i);
+		lastTagLength = length;
+	}
+
 	public String getValue(int pos)
 	{
 		return currentRg;
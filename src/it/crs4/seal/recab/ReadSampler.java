@@ -0,0 +1,78 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package it.crs4.seal.recab;
+
+/**
+ * Deterministic sampling of reads by name.
+ *
+ * Whether a read is selected depends only on its name (and the seed), so the
+ * two reads of a pair are always selected together and the same reads are
+ * selected in every run, regardless of how the input is split.
+ */
+public class ReadSampler
+{
+	private final double rate;
+	private final long seed;
+	private final long threshold;
+
+	/**
+	 * @param rate Fraction of the reads to select, in (0, 1].
+	 * @param seed Changing the seed selects a different sample.
+	 */
+	public ReadSampler(double rate, long seed)
+	{
+		if (rate <= 0.0 || rate > 1.0)
+			throw new IllegalArgumentException("sample rate must be greater than 0 and at most 1 (got " + rate + ")");
+		this.rate = rate;
+		this.seed = seed;
+		// compare the 53 high bits of the hash with the rate scaled to the same range
+		this.threshold = (long)(rate * (1L << 53));
+	}
+
+	public double getRate() { return rate; }
+	public long getSeed() { return seed; }
+
+	/**
+	 * Whether to use the read called name.  Pass names without the
+	 * /1 or /2 suffix (see ReadPair.getName) to keep pairs together.
+	 */
+	public boolean accept(String name)
+	{
+		if (rate >= 1.0)
+			return true;
+		return (hash(name, seed) >>> 11) < threshold;
+	}
+
+	/**
+	 * 64-bit hash of a string, mixed with the MurmurHash3 finalizer so that
+	 * similar names give unrelated values.
+	 */
+	protected static long hash(String s, long seed)
+	{
+		long h = seed * 0x9e3779b97f4a7c15L;
+		for (int i = 0; i < s.length(); ++i)
+			h = 31 * h + s.charAt(i);
+
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,230 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package it.crs4.seal.recab;
+
+import it.crs4.seal.common.BamOutputFormat;
+import it.crs4.seal.common.ContextAdapter;
+import it.crs4.seal.common.FormatNameMap;
+import it.crs4.seal.common.IMRContext;
+import it.crs4.seal.common.ReadPair;
+import it.crs4.seal.common.SealToolRunner;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.util.Tool;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Map-only job that recalibrates base qualities with a table computed by RecabTable.
+ */
+public class RecabApply extends Configured implements Tool
+{
+	private static final Log LOG = LogFactory.getLog(RecabApply.class);
+
+	// Qualified path of the table (a file or a directory of part files)
+	public static final String TablePathProperty = "seal.recab.apply.table";
+
+	/**
+	 * Load a recab table.
+	 *
+	 * @param path Either a file or a directory, such as the output of
+	 * RecabTable, in which case all the files not starting with '_' or '.'
+	 * are read.  Files may be in text or binary (BinaryRecabTable) format.
+	 */
+	public static RecabLookupTable loadLookupTable(Path path, Configuration conf) throws IOException
+	{
+		FileSystem fs = path.getFileSystem(conf);
+		FileStatus[] files;
+		if (fs.getFileStatus(path).isDir())
+			files = fs.listStatus(path);
+		else
+			files = new FileStatus[] { fs.getFileStatus(path) };
+
+		long minObservations = conf.getLong(RecabApplyMapper.CONF_MIN_OBSERVATIONS, RecabApplyMapper.CONF_MIN_OBSERVATIONS_DEFAULT);
+		if (minObservations < 0)
+			throw new IllegalArgumentException(RecabApplyMapper.CONF_MIN_OBSERVATIONS + " can't be negative (got " + minObservations + ")");
+
+		RecabLookupTable table = new RecabLookupTable(new CovariateList(conf));
+		table.setMinObservations(minObservations);
+		RecabTableReducer reducer = new RecabTableReducer(); // computes qualities for binary tables
+		reducer.setup(conf);
+		for (FileStatus status: files)
+		{
+			String name = status.getPath().getName();
+			if (status.isDir() || name.startsWith("_") || name.startsWith("."))
+				continue;
+
+			InputStream in = new BufferedInputStream(fs.open(status.getPath()));
+			try {
+				if (BinaryRecabTable.isBinaryTable(in))
+					table.load(new BinaryRecabTable.Reader(in), reducer);
+				else
+					table.load(new InputStreamReader(in, RecabTable.ASCII));
+			}
+			finally {
+				in.close();
+			}
+		}
+
+		if (table.getNumSparseRows() > 0)
+		{
+			LOG.info(table.getNumSparseRows() + " of " + table.size() + " table rows have fewer than " + minObservations +
+			    " observations.  Using the qualities of their read group and reported quality.");
+			table.fillSparseRows(reducer);
+		}
+		return table;
+	}
+
+	public static class Map extends Mapper<LongWritable, ReadPair, Text, ReadPair>
+	{
+		private RecabApplyMapper impl;
+		private IMRContext<Text,ReadPair> contextAdapter;
+
+		@Override
+		public void setup(Context context) throws IOException
+		{
+			Configuration conf = context.getConfiguration();
+			String tablePath = conf.get(TablePathProperty);
+			if (tablePath == null)
+				throw new RuntimeException("BUG!  " + TablePathProperty + " isn't set");
+
+			contextAdapter = new ContextAdapter<Text,ReadPair>(context);
+			impl = new RecabApplyMapper();
+			impl.setup(loadLookupTable(new Path(tablePath), conf), contextAdapter, conf);
+		}
+
+		@Override
+		public void map(LongWritable pos, ReadPair pair, Context context) throws IOException, InterruptedException
+		{
+			impl.map(pos, pair, contextAdapter);
+		}
+
+		@Override
+		public void cleanup(Context context) throws IOException, InterruptedException
+		{
+			impl.cleanup(contextAdapter);
+		}
+	}
+
+	/**
+	 * The first file in paths, looking into directories, skipping files
+	 * starting with '_' or '.'.
+	 *
+	 * @return null if there aren't any files.
+	 */
+	private Path firstInputFile(List<Path> paths) throws IOException
+	{
+		for (Path p: paths)
+		{
+			FileSystem fs = p.getFileSystem(getConf());
+			FileStatus status = fs.getFileStatus(p);
+			if (!status.isDir())
+				return p;
+
+			FileStatus[] children = fs.listStatus(p);
+			Arrays.sort(children);
+			for (FileStatus child: children)
+			{
+				String name = child.getPath().getName();
+				if (!child.isDir() && !name.startsWith("_") && !name.startsWith("."))
+					return child.getPath();
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public int run(String[] args) throws Exception {
+		LOG.info("starting");
+
+		RecabApplyOptionParser parser = new RecabApplyOptionParser();
+		parser.parse(getConf(), args);
+
+		getConf().set(TablePathProperty, parser.getTablePath().toString());
+
+		// Create a Job using the processed conf
+		Job job = new Job(getConf(), "RecabApply " + parser.getInputPaths().get(0));
+
+		job.setJarByClass(RecabApply.class);
+		String inputFormat = parser.getInputFormatName("sam");
+		job.setInputFormatClass(FormatNameMap.getInputFormat(inputFormat));
+		LOG.info("Using input format " + job.getInputFormatClass().getName());
+
+		// by default the output is in the same format as the input
+		String outputFormat = parser.getOutputFormatName(inputFormat);
+		job.setOutputFormatClass(FormatNameMap.getOutputFormat(outputFormat));
+		LOG.info("Using output format " + job.getOutputFormatClass().getName());
+
+		// BAM output can reuse the header of BAM input
+		if ("bam".equals(outputFormat) && "bam".equals(inputFormat) && job.getConfiguration().get(BamOutputFormat.CONF_HEADER) == null)
+		{
+			Path header = firstInputFile(parser.getInputPaths());
+			if (header != null)
+			{
+				LOG.info("Using the header of " + header + " for the output");
+				job.getConfiguration().set(BamOutputFormat.CONF_HEADER, header.toString());
+			}
+		}
+
+		for (Path p: parser.getInputPaths())
+			FileInputFormat.addInputPath(job, p);
+
+		job.setMapperClass(Map.class);
+		// map-only:  the records are written in the order they're read, without a shuffle
+		job.setNumReduceTasks(0);
+		job.setOutputKeyClass(Text.class);
+		job.setOutputValueClass(ReadPair.class);
+
+		FileOutputFormat.setOutputPath(job, parser.getOutputPath());
+
+		boolean result = job.waitForCompletion(true);
+		if (result)
+		{
+			LOG.info("done");
+			return 0;
+		}
+		else
+		{
+			LOG.fatal(this.getClass().getName() + " failed!");
+			return 1;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int res = new SealToolRunner().run(new RecabApply(), args);
+		System.exit(res);
+	}
+}
@@ -0,0 +1,197 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package it.crs4.seal.recab;
+
+import it.crs4.seal.common.AbstractTaggedMapping;
+import it.crs4.seal.common.IMRContext;
+import it.crs4.seal.common.ReadPair;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+
+/**
+ * Replaces the base qualities of each read with the empirical qualities of a
+ * RecabLookupTable and emits the read pair, to be written by a SAM or BAM
+ * output format.  The qualities are changed in place:  TextSamMapping and
+ * BamMapping objects carry the change into their original record.
+ *
+ * The covariates are computed by the same CovariateList used by
+ * RecabTableMapper, so they must be configured as they were when the table was
+ * computed.  Bases whose covariate values don't appear in the table keep their
+ * original quality.
+ */
+public class RecabApplyMapper
+{
+	private static final Log LOG = LogFactory.getLog(RecabApplyMapper.class);
+
+	/**
+	 * Bases with a quality lower than this are left unchanged.
+	 */
+	public static final String CONF_MIN_QUALITY = "seal.recab.apply.min-quality";
+	public static final int CONF_MIN_QUALITY_DEFAULT = 5;
+
+	/**
+	 * Table rows with fewer observations than this are too sparse to be used
+	 * on their own:  the bases they cover get the empirical quality of their
+	 * read group and reported quality.  Applied when loading the table.
+	 */
+	public static final String CONF_MIN_OBSERVATIONS = "seal.recab.apply.min-observations";
+	public static final long CONF_MIN_OBSERVATIONS_DEFAULT = 100;
+
+	private static final byte SANGER_OFFSET = 33;
+
+	public static enum BaseCounters {
+		All,
+		Recalibrated,
+		LowQuality,
+		NotInTable
+	};
+
+	public static enum ReadCounters {
+		Processed
+	};
+
+	private RecabLookupTable table;
+	private CovariateList covariates;
+	private int minQuality = CONF_MIN_QUALITY_DEFAULT;
+	// covariate codes of the current read, reused from read to read
+	private long[] codes;
+
+	// counts accumulated since the last call to updateCounters, indexed by counter ordinal
+	private final long[] baseCounts = new long[BaseCounters.values().length];
+	private final long[] readCounts = new long[ReadCounters.values().length];
+	private int counterUpdateInterval = RecabTableMapper.CONF_COUNTER_UPDATE_INTERVAL_DEFAULT;
+	private int readsSinceCounterUpdate = 0;
+
+	public void setup(RecabLookupTable table, IMRContext<Text, ReadPair> context, Configuration conf)
+	{
+		this.table = table;
+		covariates = new CovariateList(conf);
+		codes = new long[200];
+
+		minQuality = conf.getInt(CONF_MIN_QUALITY, CONF_MIN_QUALITY_DEFAULT);
+		if (minQuality < 0)
+			throw new IllegalArgumentException(CONF_MIN_QUALITY + " can't be negative (got " + minQuality + ")");
+
+		counterUpdateInterval = conf.getInt(RecabTableMapper.CONF_COUNTER_UPDATE_INTERVAL, RecabTableMapper.CONF_COUNTER_UPDATE_INTERVAL_DEFAULT);
+		if (counterUpdateInterval <= 0)
+			throw new IllegalArgumentException(RecabTableMapper.CONF_COUNTER_UPDATE_INTERVAL + " must be greater than 0");
+
+		for (BaseCounters c: BaseCounters.class.getEnumConstants())
+			context.increment(c, 0);
+
+		for (ReadCounters c: ReadCounters.class.getEnumConstants())
+			context.increment(c, 0);
+
+		LOG.info("Recalibrating with a table of " + table.size() + " rows");
+	}
+
+	public void cleanup(IMRContext<Text, ReadPair> context)
+	{
+		updateCounters(context);
+	}
+
+	/**
+	 * Add the locally accumulated counts to the context's counters and reset them.
+	 */
+	protected void updateCounters(IMRContext<Text, ReadPair> context)
+	{
+		for (BaseCounters c: BaseCounters.values())
+		{
+			if (baseCounts[c.ordinal()] != 0)
+			{
+				context.increment(c, baseCounts[c.ordinal()]);
+				baseCounts[c.ordinal()] = 0;
+			}
+		}
+
+		for (ReadCounters c: ReadCounters.values())
+		{
+			if (readCounts[c.ordinal()] != 0)
+			{
+				context.increment(c, readCounts[c.ordinal()]);
+				readCounts[c.ordinal()] = 0;
+			}
+		}
+
+		readsSinceCounterUpdate = 0;
+	}
+
+	public void map(LongWritable ignored, ReadPair pair, IMRContext<Text, ReadPair> context) throws IOException, InterruptedException
+	{
+		for (AbstractTaggedMapping mapping: pair)
+		{
+			recalibrate(mapping);
+			readsSinceCounterUpdate += 1;
+		}
+		context.write(null, pair);
+
+		if (readsSinceCounterUpdate >= counterUpdateInterval)
+			updateCounters(context);
+	}
+
+	/**
+	 * Replace the base qualities of mapping, in place, with the ones in the table.
+	 */
+	public void recalibrate(AbstractTaggedMapping mapping)
+	{
+		final int length = mapping.getLength();
+		readCounts[ReadCounters.Processed.ordinal()] += 1;
+		baseCounts[BaseCounters.All.ordinal()] += length;
+
+		// The quality covariate reads the qualities we're about to overwrite, so
+		// all the codes are computed first.
+		covariates.applyToMapping(mapping);
+		byte[][] rgTable = table.getReadGroupTable(covariates.getReadGroup());
+		if (rgTable == null)
+		{
+			baseCounts[BaseCounters.NotInTable.ordinal()] += length;
+			return;
+		}
+
+		if (codes.length < length)
+			codes = new long[length];
+		for (int i = 0; i < length; ++i)
+			codes[i] = covariates.getCode(i);
+
+		ByteBuffer qual = mapping.getBaseQualities();
+		final int start = qual.position();
+		for (int i = 0; i < length; ++i)
+		{
+			if (qual.get(start + i) - SANGER_OFFSET < minQuality)
+				baseCounts[BaseCounters.LowQuality.ordinal()] += 1;
+			else
+			{
+				int q = RecabLookupTable.getQuality(rgTable, codes[i]);
+				if (q > 0)
+				{
+					qual.put(start + i, (byte)(q + SANGER_OFFSET));
+					baseCounts[BaseCounters.Recalibrated.ordinal()] += 1;
+				}
+				else
+					baseCounts[BaseCounters.NotInTable.ordinal()] += 1;
+			}
+		}
+	}
+}
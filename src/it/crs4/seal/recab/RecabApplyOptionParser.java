@@ -0,0 +1,71 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package it.crs4.seal.recab;
+
+import it.crs4.seal.common.SealToolParser;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+
+import org.apache.commons.cli.*;
+
+public class RecabApplyOptionParser extends SealToolParser {
+
+	public static final String ConfigSection = "RecabApply";
+
+	private Option tableOpt;
+	private Path tablePath;
+
+	@SuppressWarnings("static") // for OptionBuilder
+	public RecabApplyOptionParser()
+	{
+		super(ConfigSection, "seal_recab_apply");
+
+		tableOpt = OptionBuilder
+		              .withDescription("Recab table computed by recab_table.  Either the job's output directory or a file fetched with recab_table_fetch")
+		              .hasArg()
+		              .withArgName("PATH")
+		              .withLongOpt("table")
+		              .create("t");
+		options.addOption(tableOpt);
+
+		this.setAcceptedInputFormats(new String[] { "sam", "bam" });
+		this.setAcceptedOutputFormats(new String[] { "sam", "bam" });
+	}
+
+	@Override
+	protected CommandLine parseOptions(Configuration conf, String[] args)
+	  throws IOException, ParseException
+	{
+		CommandLine line = super.parseOptions(conf, args);
+
+		if (!line.hasOption(tableOpt.getOpt()))
+			throw new ParseException("You must specify the recab table to apply (" + tableOpt.getLongOpt() + ")");
+
+		tablePath = new Path(line.getOptionValue(tableOpt.getOpt()));
+		if (!tablePath.getFileSystem(conf).exists(tablePath))
+			throw new ParseException("Recab table " + tablePath + " doesn't exist");
+		tablePath = tablePath.makeQualified(tablePath.getFileSystem(conf));
+
+		return line;
+	}
+
+	public Path getTablePath() { return tablePath; }
+}
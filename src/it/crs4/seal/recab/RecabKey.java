@@ -0,0 +1,161 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package it.crs4.seal.recab;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Combination of covariate values used as the RecabTable key.
+ *
+ * The read group is kept as a string, while the values of all the other
+ * covariates are combined into a single long code by CovariateList.
+ */
+public class RecabKey implements WritableComparable<RecabKey>
+{
+	private String readGroup;
+	private long code;
+
+	public RecabKey()
+	{
+		readGroup = "";
+		code = 0;
+	}
+
+	public RecabKey(String readGroup, long code)
+	{
+		set(readGroup, code);
+	}
+
+	public void set(String readGroup, long code)
+	{
+		if (code < 0)
+			throw new IllegalArgumentException("covariate code can't be negative (got " + code + ")");
+
+		this.readGroup = readGroup;
+		this.code = code;
+	}
+
+	public void set(RecabKey other)
+	{
+		this.readGroup = other.readGroup;
+		this.code = other.code;
+	}
+
+	public String getReadGroup() { return readGroup; }
+	public long getCode() { return code; }
+
+	/**
+	 * Encoded as:
+	 * 	read group length: VInt
+	 * 	read group: UTF bytes
+	 * 	covariate code: long
+	 */
+	@Override
+	public void readFields(DataInput in) throws IOException
+	{
+		readGroup = Text.readString(in);
+		code = in.readLong();
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException
+	{
+		Text.writeString(out, readGroup);
+		out.writeLong(code);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return 31*readGroup.hashCode() + (int)(code ^ (code >>> 32));
+	}
+
+	@Override
+	public boolean equals(Object other)
+	{
+		if (other instanceof RecabKey)
+		{
+			RecabKey o = (RecabKey) other;
+			return code == o.code && readGroup.equals(o.readGroup);
+		}
+		else
+			return false;
+	}
+
+	@Override
+	public int compareTo(RecabKey o)
+	{
+		int rgComparison = readGroup.compareTo(o.readGroup);
+		if (rgComparison != 0)
+			return rgComparison;
+		else if (code != o.code)
+			return code < o.code ? -1 : 1;
+		else
+			return 0;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "(" + readGroup + "," + code + ")";
+	}
+
+	/** A Comparator that compares serialized RecabKey. */
+	public static class Comparator extends WritableComparator
+	{
+		public Comparator()
+		{
+			super(RecabKey.class);
+		}
+
+		public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2)
+		{
+			try {
+				int sizeVint1 = WritableUtils.decodeVIntSize(b1[s1]);
+				int sizeVint2 = WritableUtils.decodeVIntSize(b2[s2]);
+				int rgLen1 = readVInt(b1, s1);
+				int rgLen2 = readVInt(b2, s2);
+
+				int rgComparison = compareBytes(b1, s1+sizeVint1, rgLen1, b2, s2+sizeVint2, rgLen2);
+				if (rgComparison != 0)
+					return rgComparison;
+
+				long p1 = readLong(b1, s1 + sizeVint1 + rgLen1);
+				long p2 = readLong(b2, s2 + sizeVint2 + rgLen2);
+				if (p1 != p2)
+					return p1 < p2 ? -1 : 1;
+				else
+					return 0;
+			}
+			catch (IOException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+	}
+
+	static {   // register this comparator
+		WritableComparator.define(RecabKey.class, new Comparator());
+	}
+}
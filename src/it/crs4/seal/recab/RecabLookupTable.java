@@ -0,0 +1,311 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package it.crs4.seal.recab;
+
+import it.crs4.seal.common.FormatException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Empirical base qualities from a table computed by RecabTable, indexed by
+ * covariate codes.
+ *
+ * The rows of the table (as written by RecabTableReducer) are parsed with the
+ * same CovariateList used to compute them, so looking up the quality for a base
+ * only takes the code computed by CovariateList.getCode.  For each read group
+ * the qualities are kept in a byte array covering the whole code space.  Like
+ * ObservationCountTable, the array is divided into pages that are only
+ * allocated if the table has rows in them.
+ *
+ * Rows with fewer observations than the minimum set with setMinObservations
+ * are too sparse for their empirical quality to be reliable.  Once all the
+ * rows have been loaded, fillSparseRows replaces their quality with the one
+ * computed over all the rows with the same read group and reported quality
+ * (or the same read group, if quality isn't one of the covariates).
+ */
+public class RecabLookupTable
+{
+	private static final int PageBits = 12;
+	private static final int PageSize = 1 << PageBits;
+	private static final int PageMask = PageSize - 1;
+
+	private final CovariateList covariates;
+	private final int numPages;
+	private final Map<String, byte[][]> tables;
+	private int nRows;
+	private long minObservations = 1;
+	private int nSparseRows;
+	// index of the quality covariate in the list, or -1
+	private final int qualityIndex;
+	// observations summed by read group and reported quality, for the sparse rows
+	private final Map<String, ObservationCount> marginals;
+
+	// marks the sparse rows in the tables until fillSparseRows is called
+	private static final byte SparseRow = -1;
+
+	private RecabKey key = new RecabKey();
+
+	public RecabLookupTable(CovariateList covariates)
+	{
+		long pages = (covariates.getCardinality() + PageSize - 1) >>> PageBits;
+		if (pages > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("too many covariate codes for a lookup table (" + covariates.getCardinality() + ")");
+
+		this.covariates = covariates;
+		this.numPages = (int)pages;
+		tables = new HashMap<String, byte[][]>();
+		marginals = new HashMap<String, ObservationCount>();
+		nRows = 0;
+		nSparseRows = 0;
+
+		int q = -1;
+		for (int i = 0; i < covariates.size(); ++i)
+		{
+			if (covariates.get(i) instanceof QualityCovariate)
+				q = i;
+		}
+		qualityIndex = q;
+	}
+
+	/**
+	 * Set the minimum number of observations for a table row not to be
+	 * considered sparse.  Only affects rows loaded after the call.
+	 */
+	public void setMinObservations(long min)
+	{
+		if (min < 0)
+			throw new IllegalArgumentException("minimum number of observations can't be negative (got " + min + ")");
+		minObservations = min;
+	}
+
+	public long getMinObservations() { return minObservations; }
+
+	/**
+	 * Read table rows:  one value for each covariate, in the CovariateList's
+	 * order, followed by the number of observations, the number of mismatches
+	 * and the empirical quality.
+	 *
+	 * A header in the first line, like the one written by recab_table_fetch,
+	 * is skipped.  Can be called several times to read a table split in
+	 * several files.
+	 */
+	public void load(Reader input) throws IOException, FormatException
+	{
+		BufferedReader in = new BufferedReader(input);
+		final int nCovariates = covariates.size();
+		String[] values = new String[nCovariates];
+		int lineNo = 0;
+		String line;
+
+		while ((line = in.readLine()) != null)
+		{
+			lineNo += 1;
+			if (line.isEmpty())
+				continue;
+
+			String[] fields = line.split(RecabTable.TableDelim);
+			if (fields.length != nCovariates + 3)
+			{
+				throw new FormatException("Expected " + (nCovariates + 3) + " fields in recab table but found " +
+				    fields.length + " at line " + lineNo + ".  Are " + CovariateList.CONF_COVARIATES + " the ones used to compute the table?  Line: " + line);
+			}
+
+			int quality;
+			try {
+				quality = Integer.parseInt(fields[nCovariates + 2]);
+			}
+			catch (NumberFormatException e) {
+				if (lineNo == 1)
+					continue; // header
+				throw new FormatException("Invalid empirical quality in recab table at line " + lineNo + ": " + line);
+			}
+			if (quality <= 0 || quality >= QualityCovariate.NumQualities)
+				throw new FormatException("Empirical quality out of range in recab table at line " + lineNo + ": " + line);
+
+			long observations;
+			try {
+				observations = Long.parseLong(fields[nCovariates]);
+			}
+			catch (NumberFormatException e) {
+				throw new FormatException("Invalid number of observations in recab table at line " + lineNo + ": " + line);
+			}
+			long mismatches;
+			try {
+				mismatches = Long.parseLong(fields[nCovariates + 1]);
+			}
+			catch (NumberFormatException e) {
+				throw new FormatException("Invalid number of mismatches in recab table at line " + lineNo + ": " + line);
+			}
+
+			System.arraycopy(fields, 0, values, 0, nCovariates);
+			try {
+				covariates.encode(values, key);
+			}
+			catch (IllegalArgumentException e) {
+				throw new FormatException("Invalid covariate value in recab table at line " + lineNo + " (" + e.getMessage() + "): " + line);
+			}
+			addRow(key, observations, mismatches, quality);
+		}
+	}
+
+	/**
+	 * Read the entries of a binary table, computing their empirical quality
+	 * with reducer (which must have been set up).
+	 */
+	public void load(BinaryRecabTable.Reader in, RecabTableReducer reducer) throws IOException, FormatException
+	{
+		in.checkCovariates(covariates);
+		ObservationCount counts = new ObservationCount();
+		while (in.next(key, counts))
+		{
+			if (counts.getObservations() > 0)
+				addRow(key, counts.getObservations(), counts.getMismatches(), reducer.empiricalQuality(counts));
+		}
+	}
+
+	private void addRow(RecabKey key, long observations, long mismatches, int quality)
+	{
+		if (minObservations > 1)
+		{
+			// with a threshold of 1 there can't be sparse rows, so don't waste time on the marginals
+			String marginalKey = marginalKey(key);
+			ObservationCount sum = marginals.get(marginalKey);
+			if (sum == null)
+			{
+				sum = new ObservationCount();
+				marginals.put(marginalKey, sum);
+			}
+			sum.set(sum.getObservations() + observations, sum.getMismatches() + mismatches);
+		}
+
+		if (observations < minObservations)
+		{
+			set(key.getReadGroup(), key.getCode(), SparseRow);
+			nSparseRows += 1;
+		}
+		else
+			set(key.getReadGroup(), key.getCode(), quality);
+	}
+
+	private String marginalKey(RecabKey key)
+	{
+		if (qualityIndex < 0)
+			return key.getReadGroup();
+		else
+			return key.getReadGroup() + RecabTable.TableDelim + covariates.getValue(key, qualityIndex);
+	}
+
+	/**
+	 * Set the quality of the sparse rows loaded so far to the empirical quality
+	 * of all the rows with the same read group and reported quality,
+	 * computed with reducer (which must have been set up).  Call it after
+	 * loading all the table.
+	 */
+	public void fillSparseRows(RecabTableReducer reducer)
+	{
+		if (nSparseRows == 0)
+			return;
+
+		Map<String, Integer> marginalQualities = new HashMap<String, Integer>(marginals.size() * 2);
+		for (Map.Entry<String, ObservationCount> e: marginals.entrySet())
+			marginalQualities.put(e.getKey(), reducer.empiricalQuality(e.getValue()));
+
+		RecabKey k = new RecabKey();
+		for (Map.Entry<String, byte[][]> e: tables.entrySet())
+		{
+			byte[][] pages = e.getValue();
+			for (int p = 0; p < pages.length; ++p)
+			{
+				if (pages[p] == null)
+					continue;
+				for (int i = 0; i < PageSize; ++i)
+				{
+					if (pages[p][i] == SparseRow)
+					{
+						k.set(e.getKey(), ((long)p << PageBits) | i);
+						pages[p][i] = (byte)marginalQualities.get(marginalKey(k)).intValue();
+					}
+				}
+			}
+		}
+		nSparseRows = 0;
+	}
+
+	/**
+	 * Number of rows loaded with fewer than the minimum number of observations.
+	 * It's reset by fillSparseRows.
+	 */
+	public int getNumSparseRows() { return nSparseRows; }
+
+	private void set(String rg, long code, int quality)
+	{
+		byte[][] pages = tables.get(rg);
+		if (pages == null)
+		{
+			pages = new byte[numPages][];
+			tables.put(rg, pages);
+		}
+
+		int p = (int)(code >>> PageBits);
+		if (pages[p] == null)
+			pages[p] = new byte[PageSize];
+
+		int i = (int)code & PageMask;
+		if (pages[p][i] != 0)
+			throw new FormatException("Duplicate row in recab table for read group " + rg + " and covariate code " + code);
+		pages[p][i] = (byte)quality;
+		nRows += 1;
+	}
+
+	/**
+	 * Number of table rows loaded.
+	 */
+	public int size() { return nRows; }
+
+	/**
+	 * Get the qualities for one read group, to be passed to getQuality.
+	 *
+	 * @return null if the table doesn't have any rows for rg.
+	 */
+	public byte[][] getReadGroupTable(String rg)
+	{
+		return tables.get(rg);
+	}
+
+	/**
+	 * Get the empirical quality for a covariate code.
+	 *
+	 * @param rgTable The table returned by getReadGroupTable.
+	 * @return The quality, or 0 if the table doesn't have a row for code.
+	 */
+	public static int getQuality(byte[][] rgTable, long code)
+	{
+		byte[] page = rgTable[(int)(code >>> PageBits)];
+		return page == null ? 0 : page[(int)code & PageMask];
+	}
+
+	public int getQuality(String rg, long code)
+	{
+		byte[][] rgTable = tables.get(rg);
+		return rgTable == null ? 0 : getQuality(rgTable, code);
+	}
+}
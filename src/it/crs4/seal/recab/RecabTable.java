@@ -17,11 +17,14 @@
 
 package it.crs4.seal.recab;
 
+import it.crs4.seal.common.BamInputFormat;
 import it.crs4.seal.common.ClusterUtils;
 import it.crs4.seal.common.ContextAdapter;
 import it.crs4.seal.common.FormatNameMap;
 import it.crs4.seal.common.IMRContext;
+import it.crs4.seal.common.IntervalSet;
 import it.crs4.seal.common.ReadPair;
+import it.crs4.seal.common.SealToolParser;
 import it.crs4.seal.common.SealToolRunner;
 
 import org.apache.commons.cli.*;
@@ -48,6 +51,8 @@ import org.apache.hadoop.util.ToolRunner;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.io.IOException;
+import java.io.File;
+import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.Reader;
 import java.io.UnsupportedEncodingException;
@@ -72,28 +77,94 @@ public class RecabTable extends Configured implements Tool
 		}
 	}
 
+	// output formats:  the text table, or a BinaryRecabTable of the counts
+	public static final String OutputFormatCsv = "csv";
+	public static final String OutputFormatBinary = "binary";
+
 	public static final String LocalVariantsFile = "variants_table.data";
+	public static final String LocalRegionsFile = "regions.data";
+
+	// Path of the BED or interval list file with the regions to use, if any
+	public static final String RegionsFileProperty = "seal.recab.regions-file";
 
 	public static final String VariantsFileTypeProperty = "seal.recab.variants-table-type";
 	public static final String VariantsFileTypeVcf = "vcf";
 	public static final String VariantsFileTypeRod = "rod";
+	// prebuilt table written by BuildKnownSites
+	public static final String VariantsFileTypeIndex = "index";
 
 	// Whether to only consider SNP variation locations or to consider all variation types.
 	public static final String SnpsOnlyProperty = "seal.recab.snps-only";
 	// Default:  consider only SNPs
 	public static final boolean SnpsOnlyDefault = false;
 
-	public static class Map extends Mapper<LongWritable, ReadPair, Text, ObservationCount>
+	public static final String LoadThreadsProperty = "seal.recab.known-sites.load-threads";
+	// Default:  a few threads, since the node's other map tasks are loading their table too.
+	// 0 means one per processor.
+	public static final int LoadThreadsDefault = 2;
+
+	public static final String VerifyKnownSitesProperty = "seal.recab.known-sites.verify-checksum";
+	// Default:  only check the header.  BuildKnownSites verifies the whole index when it writes it.
+	public static final boolean VerifyKnownSitesDefault = false;
+
+	/**
+	 * Get the number of threads to use to load a VCF file of known sites.
+	 */
+	public static int getLoadThreads(Configuration conf)
+	{
+		int n = conf.getInt(LoadThreadsProperty, LoadThreadsDefault);
+		if (n < 0)
+			throw new IllegalArgumentException(LoadThreadsProperty + " must be >= 0 (got " + n + ")");
+		if (n == 0)
+			n = Runtime.getRuntime().availableProcessors();
+		return n;
+	}
+
+	/**
+	 * Load a local file of known variation sites.
+	 *
+	 * @param type One of VariantsFileTypeVcf, VariantsFileTypeRod or VariantsFileTypeIndex.
+	 */
+	public static VariantTable loadVariantTable(File file, String type, Configuration conf) throws IOException
+	{
+		if (type.equals(VariantsFileTypeIndex))
+		{
+			// prebuilt table:  map it rather than parsing text
+			return KnownSitesIndex.open(file, conf.getBoolean(VerifyKnownSitesProperty, VerifyKnownSitesDefault));
+		}
+		else if (type.equals(VariantsFileTypeVcf))
+		{
+			ParallelVcfLoader loader = new ParallelVcfLoader(getLoadThreads(conf));
+			loader.setReadSnpsOnly(conf.getBoolean(SnpsOnlyProperty, SnpsOnlyDefault));
+			return loader.load(file);
+		}
+		else if (type.equals(VariantsFileTypeRod))
+		{
+			if (!conf.getBoolean(SnpsOnlyProperty, SnpsOnlyDefault))
+				throw new RuntimeException("Sorry.  Using all variant types is currently not supported for Rod files.  Please let the Seal developers know if this is important to you.");
+
+			Reader in = new BufferedReader(new FileReader(file), 1024*1024);
+			try {
+				ArrayVariantTable table = new ArrayVariantTable();
+				table.load(new RodFileVariantReader(in));
+				return table;
+			}
+			finally {
+				in.close();
+			}
+		}
+		else
+			throw new IllegalArgumentException("unrecognized variants file type set in " + VariantsFileTypeProperty + " (accepted values are " + VariantsFileTypeVcf + ", " + VariantsFileTypeRod + " and " + VariantsFileTypeIndex + ")");
+	}
+
+	public static class Map extends Mapper<LongWritable, ReadPair, RecabKey, ObservationCount>
 	{
 		private RecabTableMapper impl;
-		private IMRContext<Text,ObservationCount> contextAdapter;
+		private IMRContext<RecabKey,ObservationCount> contextAdapter;
 
-		protected VariantReader getVariantFileReader(Configuration conf) throws IOException
+		protected VariantTable loadVariantTable(Configuration conf) throws IOException
 		{
 			// known variation sites
-			Reader in = new FileReader(LocalVariantsFile);
-			VariantReader reader = null;
-
 			String variantsFileType = conf.get(VariantsFileTypeProperty);
 			if (variantsFileType == null)
 			{
@@ -101,33 +172,29 @@ public class RecabTable extends Configured implements Tool
 				variantsFileType = VariantsFileTypeVcf;
 			}
 
-			if (variantsFileType.equals(VariantsFileTypeVcf))
-			{
-				VcfVariantReader vcfReader = new VcfVariantReader(in);
-				vcfReader.setReadSnpsOnly(conf.getBoolean(SnpsOnlyProperty, SnpsOnlyDefault));
-				reader = vcfReader;
-			}
-			else if (variantsFileType.equals(VariantsFileTypeRod))
-			{
-				reader = new RodFileVariantReader(in);
-				if (!conf.getBoolean(SnpsOnlyProperty, SnpsOnlyDefault))
-					throw new RuntimeException("Sorry.  Using all variant types is currently not supported for Rod files.  Please let the Seal developers know if this is important to you.");
-			}
-			else
-				throw new IllegalArgumentException("unrecognized variants file type set in " + VariantsFileTypeProperty + " (accepted values are " + VariantsFileTypeVcf + " and " + VariantsFileTypeRod + ")");
-
-			return reader;
+			return RecabTable.loadVariantTable(new File(LocalVariantsFile), variantsFileType, conf);
 		}
 
 		@Override
 		public void setup(Context context) throws IOException
 		{
-			impl = new RecabTableMapper();
-			contextAdapter = new ContextAdapter<Text,ObservationCount>(context);
-
 			Configuration conf = context.getConfiguration();
-			VariantReader reader = getVariantFileReader(conf);
-			impl.setup(reader, contextAdapter, conf);
+			// with several threads the task loads a single copy of the variant table
+			if (MultithreadedRecabTableMapper.getMapThreads(conf) > 1)
+				impl = new MultithreadedRecabTableMapper();
+			else
+				impl = new RecabTableMapper();
+			contextAdapter = new ContextAdapter<RecabKey,ObservationCount>(context);
+
+			if (conf.get(RegionsFileProperty) != null)
+			{
+				// distributed with the variants file
+				IntervalSet regions = IntervalSet.load(new Path(new File(LocalRegionsFile).toURI()), conf);
+				LOG.info("Using only bases within " + regions.size() + " regions");
+				impl.setRegions(regions);
+			}
+
+			impl.setup(loadVariantTable(conf), contextAdapter, conf);
 		}
 
 		@Override
@@ -135,30 +202,36 @@ public class RecabTable extends Configured implements Tool
 		{
 			impl.map(pos, pair, contextAdapter);
 		}
+
+		@Override
+		public void cleanup(Context context) throws IOException, InterruptedException
+		{
+			impl.cleanup(contextAdapter);
+		}
 	}
 
-	public static class Combiner extends Reducer<Text, ObservationCount, Text, ObservationCount>
+	public static class Combiner extends Reducer<RecabKey, ObservationCount, RecabKey, ObservationCount>
 	{
 		private RecabTableCombiner impl;
-		private IMRContext<Text,ObservationCount> contextAdapter;
+		private IMRContext<RecabKey,ObservationCount> contextAdapter;
 
 		@Override
 		public void setup(Context context) throws IOException
 		{
-			contextAdapter = new ContextAdapter<Text,ObservationCount>(context);
+			contextAdapter = new ContextAdapter<RecabKey,ObservationCount>(context);
 
 			impl = new RecabTableCombiner();
 			impl.setup(context.getConfiguration());
 		}
 
 		@Override
-		public void reduce(Text key, Iterable<ObservationCount> values, Context context) throws IOException, InterruptedException
+		public void reduce(RecabKey key, Iterable<ObservationCount> values, Context context) throws IOException, InterruptedException
 		{
 			impl.reduce(key, values, contextAdapter);
 		}
 	}
 
-	public static class Red extends Reducer<Text, ObservationCount, Text, Text>
+	public static class Red extends Reducer<RecabKey, ObservationCount, Text, Text>
 	{
 		private RecabTableReducer impl;
 		private IMRContext<Text,Text> contextAdapter;
@@ -173,7 +246,7 @@ public class RecabTable extends Configured implements Tool
 		}
 
 		@Override
-		public void reduce(Text key, Iterable<ObservationCount> values, Context context) throws IOException, InterruptedException
+		public void reduce(RecabKey key, Iterable<ObservationCount> values, Context context) throws IOException, InterruptedException
 		{
 			impl.reduce(key, values, contextAdapter);
 		}
@@ -199,8 +272,14 @@ public class RecabTable extends Configured implements Tool
 			distPath = parser.getRodFile().toString();
 			conf.set(VariantsFileTypeProperty, VariantsFileTypeRod);
 		}
+		else if (parser.getKnownSitesIndex() != null)
+		{
+			variantsFileType = VariantsFileTypeIndex;
+			distPath = parser.getKnownSitesIndex().toString();
+			conf.set(VariantsFileTypeProperty, VariantsFileTypeIndex);
+		}
 		else
-			throw new RuntimeException("BUG!! RecabTableOptionParser defined with getRodFile and getVcfFile both null!");
+			throw new RuntimeException("BUG!! RecabTableOptionParser defined with getRodFile, getVcfFile and getKnownSitesIndex all null!");
 
 		distPath += "#" + LocalVariantsFile;
 		try {
@@ -209,6 +288,20 @@ public class RecabTable extends Configured implements Tool
 		catch (URISyntaxException e) {
 			throw new RuntimeException("Invalid syntax in path to variants file. " + e);
 		}
+
+		if (parser.getRegionsFile() != null)
+		{
+			String regionsPath = parser.getRegionsFile().toString();
+			conf.set(RegionsFileProperty, regionsPath);
+			// BamInputFormat uses the regions to skip the parts of indexed files outside them
+			conf.set(BamInputFormat.CONF_REGIONS, regionsPath);
+			try {
+				DistributedCache.addCacheFile(new URI(regionsPath + "#" + LocalRegionsFile), conf);
+			}
+			catch (URISyntaxException e) {
+				throw new RuntimeException("Invalid syntax in path to regions file. " + e);
+			}
+		}
 	}
 
 	@Override
@@ -224,6 +317,10 @@ public class RecabTable extends Configured implements Tool
 		// *copies* the Configuration.
 		distributeVariantsFile(parser);
 
+		// the worker threads keep the reads after the record reader has moved on
+		if (MultithreadedRecabTableMapper.getMapThreads(getConf()) > 1)
+			getConf().setBoolean(SealToolParser.INPUT_REUSE_RECORDS, false);
+
 		// Create a Job using the processed conf
 		Job job = new Job(getConf(), "RecabTable " + parser.getInputPaths().get(0));
 
@@ -237,14 +334,26 @@ public class RecabTable extends Configured implements Tool
 			FileInputFormat.addInputPath(job, p);
 
 		job.setMapperClass(Map.class);
-		job.setMapOutputKeyClass(Text.class);
+		job.setMapOutputKeyClass(RecabKey.class);
 		job.setMapOutputValueClass(ObservationCount.class);
+		job.setPartitionerClass(RecabKeyPartitioner.class);
 
 		job.setCombinerClass(Combiner.class);
 
-		job.setReducerClass(Red.class);
-		job.setOutputKeyClass(Text.class);
-		job.setOutputValueClass(Text.class);
+		if (OutputFormatBinary.equals(parser.getOutputFormatName(OutputFormatCsv)))
+		{
+			// write the summed counts, which can be merged with other tables
+			job.setReducerClass(Combiner.class);
+			job.setOutputKeyClass(RecabKey.class);
+			job.setOutputValueClass(ObservationCount.class);
+			job.setOutputFormatClass(BinaryRecabTableOutputFormat.class);
+		}
+		else
+		{
+			job.setReducerClass(Red.class);
+			job.setOutputKeyClass(Text.class);
+			job.setOutputValueClass(Text.class);
+		}
 
 		// output
 		FileOutputFormat.setOutputPath(job, parser.getOutputPath());
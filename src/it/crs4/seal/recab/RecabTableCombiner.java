@@ -22,7 +22,6 @@ import it.crs4.seal.common.IMRContext;
 import java.io.IOException;
 
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.io.Text;
 
 public class RecabTableCombiner
 {
@@ -32,7 +31,7 @@ public class RecabTableCombiner
 	{
 	}
 
-	public void reduce(Text key, Iterable<ObservationCount> values, IMRContext<Text, ObservationCount> context) throws IOException, InterruptedException
+	public void reduce(RecabKey key, Iterable<ObservationCount> values, IMRContext<RecabKey, ObservationCount> context) throws IOException, InterruptedException
 	{
 		sum.set(0,0);
 
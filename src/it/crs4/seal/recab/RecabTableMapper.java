@@ -19,15 +19,14 @@ package it.crs4.seal.recab;
 
 import it.crs4.seal.common.IMRContext;
 import it.crs4.seal.common.AbstractTaggedMapping;
+import it.crs4.seal.common.IntervalSet;
 import it.crs4.seal.common.ReadPair;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.LongWritable;
-import org.apache.hadoop.io.Text;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -37,6 +36,46 @@ public class RecabTableMapper
 
 	public static final String CONF_SKIP_KNOWN_VAR_SITES = "seal.recab.skip-known-variant-sites"; // mainly for testing
 
+	/**
+	 * Whether to sum observations in memory and emit them in cleanup(),
+	 * rather than emitting one record per base.
+	 */
+	public static final String CONF_IN_MAPPER_COMBINING = "seal.recab.in-mapper-combining";
+	public static final boolean CONF_IN_MAPPER_COMBINING_DEFAULT = true;
+
+	/**
+	 * Memory (in MB) the in-mapper combining tables may use before they're flushed.
+	 */
+	public static final String CONF_IN_MAPPER_COMBINING_MAX_MB = "seal.recab.in-mapper-combining.max-memory-mb";
+	public static final int CONF_IN_MAPPER_COMBINING_MAX_MB_DEFAULT = 64;
+
+	/**
+	 * Number of reads after which the locally accumulated counts are added to
+	 * the Hadoop counters.
+	 */
+	public static final String CONF_COUNTER_UPDATE_INTERVAL = "seal.recab.counter-update-interval";
+	public static final int CONF_COUNTER_UPDATE_INTERVAL_DEFAULT = 1000;
+
+	/**
+	 * Fraction of the read pairs to use, in (0, 1].  Pairs are selected by
+	 * hashing their name (see ReadSampler).
+	 */
+	public static final String CONF_SAMPLE_RATE = "seal.recab.sample-rate";
+	public static final float CONF_SAMPLE_RATE_DEFAULT = 1.0f;
+
+	/**
+	 * Seed for the read sampling.  Change it to select a different sample.
+	 */
+	public static final String CONF_SAMPLE_SEED = "seal.recab.sample-seed";
+	public static final long CONF_SAMPLE_SEED_DEFAULT = 0;
+
+	/**
+	 * Number of used bases after which the mapper ignores the rest of its
+	 * input.  0 means no limit.
+	 */
+	public static final String CONF_MAX_USED_BASES = "seal.recab.max-used-bases";
+	public static final long CONF_MAX_USED_BASES_DEFAULT = 0;
+
 	private static final byte SANGER_OFFSET = 33;
 
 	public static enum BaseCounters {
@@ -46,50 +85,91 @@ public class RecabTableMapper
 		VariantMismatches,
 		VariantBases,
 		NonVariantMismatches,
-		AdaptorBasesTrimmed
+		AdaptorBasesTrimmed,
+		OutsideRegions
 	};
 
 	public static enum ReadCounters {
 		Processed,
+		Sampled,
 		FilteredTotal,
 		FilteredUnmapped,
 		FilteredMapQ,
 		FilteredDuplicate,
 		FilteredQC,
-		FilteredSecondaryAlignment
+		FilteredSecondaryAlignment,
+		FilteredOutsideRegions
 	};
 
 	private VariantTable snps;
+	private VariantCursor snpCursor;
 
 	private AbstractTaggedMapping currentMapping;
-	private ArrayList<Integer> referenceCoordinates;
-	private ArrayList<Boolean> referenceMatches;
-	private ArrayList<Covariate> covariateList;
-	private IMRContext<Text, ObservationCount> context;
+	// per-base reference coordinates and match flags, reused from read to read
+	private int[] referenceCoordinates;
+	private boolean[] referenceMatches;
+	private CovariateList covariates;
+	private IMRContext<RecabKey, ObservationCount> context;
 	private boolean skipKnownVariantPositions = true;
+	private ObservationCountTable countTable;
+
+	// counts accumulated since the last call to updateCounters, indexed by counter ordinal
+	private final long[] baseCounts = new long[BaseCounters.values().length];
+	private final long[] readCounts = new long[ReadCounters.values().length];
+	private int counterUpdateInterval = CONF_COUNTER_UPDATE_INTERVAL_DEFAULT;
+	private int readsSinceCounterUpdate = 0;
+
+	// if not null, only bases aligned within these regions are used
+	private IntervalSet regions;
 
-	private Text key = new Text();
+	private ReadSampler sampler;
+	private long maxUsedBases = CONF_MAX_USED_BASES_DEFAULT;
+	private long usedBases = 0; // total, unlike baseCounts
+	private long processedReads = 0;
+	private long sampledReads = 0;
+
+	private RecabKey key = new RecabKey();
 	private ObservationCount value = new ObservationCount();
 
-	public void setup(VariantReader reader, IMRContext<Text, ObservationCount> context, Configuration conf) throws IOException
+	public void setup(VariantReader reader, IMRContext<RecabKey, ObservationCount> context, Configuration conf) throws IOException
 	{
-		this.context = context;
-		snps = new ArrayVariantTable();
-		LOG.info("Using " + snps.getClass().getName() + " snp table implementation.");
+		VariantTable table = new ArrayVariantTable();
+		LOG.info("Using " + table.getClass().getName() + " snp table implementation.");
 		LOG.info("loading known variation sites.");
-		snps.load(reader);
+		table.load(reader);
 		if (LOG.isInfoEnabled())
-			LOG.info("loaded " + snps.size() + " known variation sites.");
+			LOG.info("loaded " + table.size() + " known variation sites.");
+
+		setup(table, context, conf);
+	}
+
+	/**
+	 * Only use bases aligned within regions.  null means no restriction.
+	 * The set isn't modified, so it may be shared by several mappers.
+	 */
+	public void setRegions(IntervalSet regions)
+	{
+		this.regions = regions;
+	}
+
+	public IntervalSet getRegions()
+	{
+		return regions;
+	}
+
+	/**
+	 * Set up the mapper with an already loaded table of known variation sites.
+	 */
+	public void setup(VariantTable snps, IMRContext<RecabKey, ObservationCount> context, Configuration conf) throws IOException
+	{
+		this.context = context;
+		this.snps = snps;
+		this.snpCursor = snps.getCursor();
 
-		referenceCoordinates = new ArrayList<Integer>(200);
-		referenceMatches = new ArrayList<Boolean>(200);
+		referenceCoordinates = new int[200];
+		referenceMatches = new boolean[200];
 
-		// TODO:  make it configurable
-		covariateList = new ArrayList<Covariate>(5);
-		covariateList.add( new ReadGroupCovariate(conf) );
-		covariateList.add( new QualityCovariate() );
-		covariateList.add( new CycleCovariate() );
-		covariateList.add( new DinucCovariate() );
+		covariates = new CovariateList(conf);
 
 		// set counters
 		for (BaseCounters c: BaseCounters.class.getEnumConstants())
@@ -101,6 +181,90 @@ public class RecabTableMapper
 		skipKnownVariantPositions = conf.getBoolean(CONF_SKIP_KNOWN_VAR_SITES, true);
 		if (!skipKnownVariantPositions)
 			LOG.warn("Not skipping known variant sites.  This is not recommended for regular usage.");
+
+		counterUpdateInterval = conf.getInt(CONF_COUNTER_UPDATE_INTERVAL, CONF_COUNTER_UPDATE_INTERVAL_DEFAULT);
+		if (counterUpdateInterval <= 0)
+			throw new IllegalArgumentException(CONF_COUNTER_UPDATE_INTERVAL + " must be greater than 0");
+
+		float sampleRate = conf.getFloat(CONF_SAMPLE_RATE, CONF_SAMPLE_RATE_DEFAULT);
+		if (sampleRate <= 0.0f || sampleRate > 1.0f)
+			throw new IllegalArgumentException(CONF_SAMPLE_RATE + " must be greater than 0 and at most 1 (got " + sampleRate + ")");
+		if (sampleRate < 1.0f)
+		{
+			sampler = new ReadSampler(sampleRate, conf.getLong(CONF_SAMPLE_SEED, CONF_SAMPLE_SEED_DEFAULT));
+			LOG.info("Sampling " + sampleRate + " of the read pairs");
+		}
+		else
+			sampler = null;
+
+		maxUsedBases = conf.getLong(CONF_MAX_USED_BASES, CONF_MAX_USED_BASES_DEFAULT);
+		if (maxUsedBases < 0)
+			throw new IllegalArgumentException(CONF_MAX_USED_BASES + " can't be negative (got " + maxUsedBases + ")");
+		if (maxUsedBases > 0)
+			LOG.info("Stopping after using " + maxUsedBases + " bases");
+
+		if (conf.getBoolean(CONF_IN_MAPPER_COMBINING, CONF_IN_MAPPER_COMBINING_DEFAULT))
+		{
+			int maxMb = conf.getInt(CONF_IN_MAPPER_COMBINING_MAX_MB, CONF_IN_MAPPER_COMBINING_MAX_MB_DEFAULT);
+			if (maxMb <= 0)
+				throw new IllegalArgumentException(CONF_IN_MAPPER_COMBINING_MAX_MB + " must be greater than 0");
+			LOG.info("In-mapper combining enabled, with a limit of " + maxMb + " MB");
+			countTable = new ObservationCountTable(context, covariates.getCardinality(), maxMb * 1024L * 1024L);
+		}
+		else
+			countTable = null;
+	}
+
+	/**
+	 * Emit any observations that have been combined in memory and update the counters.
+	 */
+	public void cleanup(IMRContext<RecabKey, ObservationCount> context) throws IOException, InterruptedException
+	{
+		if (countTable != null)
+			countTable.flush();
+		updateCounters(context);
+
+		if (processedReads > 0 && sampledReads < processedReads)
+			LOG.info("Used " + sampledReads + " of " + processedReads + " reads (effective sample rate " + ((double)sampledReads / processedReads) + ")");
+	}
+
+	/**
+	 * Move the observations other has combined in memory into this mapper,
+	 * so that they're emitted by this mapper's cleanup().
+	 *
+	 * Does nothing if in-mapper combining is disabled, since in that case
+	 * observations are emitted as they're counted.
+	 */
+	public void mergeCounts(RecabTableMapper other) throws IOException, InterruptedException
+	{
+		if (countTable != null && other.countTable != null)
+			countTable.addAll(other.countTable);
+	}
+
+	/**
+	 * Add the locally accumulated counts to the context's counters and reset them.
+	 */
+	protected void updateCounters(IMRContext<RecabKey, ObservationCount> context)
+	{
+		for (BaseCounters c: BaseCounters.values())
+		{
+			if (baseCounts[c.ordinal()] != 0)
+			{
+				context.increment(c, baseCounts[c.ordinal()]);
+				baseCounts[c.ordinal()] = 0;
+			}
+		}
+
+		for (ReadCounters c: ReadCounters.values())
+		{
+			if (readCounts[c.ordinal()] != 0)
+			{
+				context.increment(c, readCounts[c.ordinal()]);
+				readCounts[c.ordinal()] = 0;
+			}
+		}
+
+		readsSinceCounterUpdate = 0;
 	}
 
 	protected boolean readFailsFilters(AbstractTaggedMapping map)
@@ -108,46 +272,74 @@ public class RecabTableMapper
 		boolean fails = false;
 		if (map.isUnmapped())
 		{
-			context.increment(ReadCounters.FilteredUnmapped, 1);
+			readCounts[ReadCounters.FilteredUnmapped.ordinal()] += 1;
 			fails = true;
 		}
 		else if (map.getMapQ() == 0 || map.getMapQ() == 255)
 		{
-			context.increment(ReadCounters.FilteredMapQ, 1);
+			readCounts[ReadCounters.FilteredMapQ.ordinal()] += 1;
 			fails = true;
 		}
 		else if (map.isDuplicate())
 		{
-			context.increment(ReadCounters.FilteredDuplicate, 1);
+			readCounts[ReadCounters.FilteredDuplicate.ordinal()] += 1;
 			fails = true;
 		}
 		else if (map.isFailedQC())
 		{
-			context.increment(ReadCounters.FilteredQC, 1);
+			readCounts[ReadCounters.FilteredQC.ordinal()] += 1;
 			fails = true;
 		}
 		else if (map.isSecondaryAlign())
 		{
-			context.increment(ReadCounters.FilteredSecondaryAlignment, 1);
+			readCounts[ReadCounters.FilteredSecondaryAlignment.ordinal()] += 1;
 			fails = true;
 		}
 
 		if (fails)
-			context.increment(ReadCounters.FilteredTotal, 1);
+			readCounts[ReadCounters.FilteredTotal.ordinal()] += 1;
 
 		return fails;
 	}
 
-	public void map(LongWritable ignored, ReadPair pair, IMRContext<Text, ObservationCount> context) throws IOException, InterruptedException
+	/**
+	 * Whether to process pair, according to the sampling rate and the base limit.
+	 */
+	protected boolean isSampled(ReadPair pair)
+	{
+		if (maxUsedBases > 0 && usedBases >= maxUsedBases)
+			return false;
+		return sampler == null || sampler.accept(pair.getName());
+	}
+
+	public void map(LongWritable ignored, ReadPair pair, IMRContext<RecabKey, ObservationCount> context) throws IOException, InterruptedException
 	{
+		boolean sampled = isSampled(pair);
 		for (AbstractTaggedMapping mapping : pair)
-			processMapping(mapping, context);
+		{
+			if (sampled)
+			{
+				readCounts[ReadCounters.Sampled.ordinal()] += 1;
+				sampledReads += 1;
+				processMapping(mapping, context);
+			}
+			else
+			{
+				// skip the read without computing anything else
+				readCounts[ReadCounters.Processed.ordinal()] += 1;
+				baseCounts[BaseCounters.All.ordinal()] += mapping.getLength();
+			}
+			processedReads += 1;
+
+			if (++readsSinceCounterUpdate >= counterUpdateInterval)
+				updateCounters(context);
+		}
 	}
 
-	protected void processMapping(AbstractTaggedMapping currentMapping, IMRContext<Text, ObservationCount> context) throws IOException, InterruptedException
+	protected void processMapping(AbstractTaggedMapping currentMapping, IMRContext<RecabKey, ObservationCount> context) throws IOException, InterruptedException
 	{
-		context.increment(ReadCounters.Processed, 1);
-		context.increment(BaseCounters.All, currentMapping.getLength());
+		readCounts[ReadCounters.Processed.ordinal()] += 1;
+		baseCounts[BaseCounters.All.ordinal()] += currentMapping.getLength();
 
 		if (readFailsFilters(currentMapping))
 			return;
@@ -173,7 +365,7 @@ public class RecabTableMapper
 				right = currentMapping.getTemplateLength();
 			}
 
-			context.increment(BaseCounters.AdaptorBasesTrimmed, currentMapping.getLength() - (right - left));
+			baseCounts[BaseCounters.AdaptorBasesTrimmed.ordinal()] += currentMapping.getLength() - (right - left);
 		}
 		else
 		{
@@ -181,11 +373,32 @@ public class RecabTableMapper
 			right = currentMapping.getLength();
 		}
 
-		currentMapping.calculateReferenceCoordinates(referenceCoordinates);
-		currentMapping.calculateReferenceMatches(referenceMatches);
+		if (referenceCoordinates.length < currentMapping.getLength())
+		{
+			referenceCoordinates = new int[currentMapping.getLength()];
+			referenceMatches = new boolean[currentMapping.getLength()];
+		}
+		currentMapping.calculateReferenceAlignment(referenceCoordinates, referenceMatches);
 
-		for (Covariate cov: covariateList)
-			cov.applyToMapping(currentMapping);
+		IntervalSet.ContigIntervals contigRegions = null;
+		int regionIndex = 0;
+		if (regions != null)
+		{
+			contigRegions = regions.get(contig);
+			regionIndex = findFirstRegion(contigRegions, left, right);
+			if (regionIndex < 0)
+			{
+				readCounts[ReadCounters.FilteredOutsideRegions.ordinal()] += 1;
+				readCounts[ReadCounters.FilteredTotal.ordinal()] += 1;
+				return;
+			}
+		}
+
+		covariates.applyToMapping(currentMapping);
+		final String rg = covariates.getReadGroup();
+
+		if (countTable != null)
+			countTable.startRead(rg);
 
 		final ByteBuffer seq = currentMapping.getSequence();
 		final ByteBuffer qual = currentMapping.getBaseQualities();
@@ -198,54 +411,105 @@ public class RecabTableMapper
 			qual.position( qual.position() + left );
 		}
 
+		boolean cursorOnRead = false; // whether snpCursor has been positioned on this read's contig
 		for (int i = left; i < right; ++i)
 		{
 			byte base = seq.get();
 			byte quality = qual.get();
 
 			if (base == 'N' || quality <= SANGER_OFFSET)
-				context.increment(BaseCounters.BadBases, 1);
+				baseCounts[BaseCounters.BadBases.ordinal()] += 1;
 			else
 			{
-				int pos = referenceCoordinates.get(i);
+				int pos = referenceCoordinates[i];
+				if (pos > 0 && contigRegions != null)
+				{
+					// positions increase along the read, so the regions are scanned forward
+					while (regionIndex < contigRegions.size() && contigRegions.getEnd(regionIndex) < pos)
+						++regionIndex;
+					if (regionIndex >= contigRegions.size() || contigRegions.getStart(regionIndex) > pos)
+					{
+						baseCounts[BaseCounters.OutsideRegions.ordinal()] += 1;
+						continue;
+					}
+				}
+
 				if (pos > 0) // valid reference position
 				{
-					// is it a known variation site?
-					if (skipKnownVariantPositions && snps.isVariantLocation(contig, pos))
+					// is it a known variation site?  Positions increase along the read, and
+					// usually across reads too, so we can move the cursor forward.
+					boolean isVariant = false;
+					if (skipKnownVariantPositions)
 					{
-						context.increment(BaseCounters.VariantBases, 1);
+						if (cursorOnRead)
+							isVariant = snpCursor.advanceTo(pos);
+						else
+						{
+							isVariant = snpCursor.seek(contig, pos);
+							cursorOnRead = true;
+						}
+					}
 
-						if (!referenceMatches.get(i))
-							context.increment(BaseCounters.VariantMismatches, 1);
+					if (isVariant)
+					{
+						baseCounts[BaseCounters.VariantBases.ordinal()] += 1;
+
+						if (!referenceMatches[i])
+							baseCounts[BaseCounters.VariantMismatches.ordinal()] += 1;
 					}
 					else
 					{
 						// use this base
-						context.increment(BaseCounters.Used, 1);
+						baseCounts[BaseCounters.Used.ordinal()] += 1;
+						usedBases += 1;
 
-						key.clear();
-						for (Covariate cov: covariateList)
-						{
-							String tmp = cov.getValue(i);
-							key.append(tmp.getBytes(RecabTable.ASCII), 0, tmp.length());
-							key.append(RecabTable.TableDelimBytes, 0, RecabTable.TableDelimBytes.length);
-						}
+						boolean match = referenceMatches[i];
+						if (!match)
+							baseCounts[BaseCounters.NonVariantMismatches.ordinal()] += 1;
 
-						boolean match = referenceMatches.get(i);
-						if (match)
-						{
-							value.set(1, 0); // (num observations, num mismatches)
-						}
+						if (countTable != null)
+							countTable.add(covariates.getCode(i), !match);
 						else
-						{ // mismatch
-							context.increment(BaseCounters.NonVariantMismatches, 1);
-							value.set(1, 1);
-						}
+						{
+							key.set(rg, covariates.getCode(i));
+
+							if (match)
+								value.set(1, 0); // (num observations, num mismatches)
+							else
+								value.set(1, 1);
 
-						context.write(key, value);
+							context.write(key, value);
+						}
 					}
 				}
 			}
 		}
 	}
+
+	/**
+	 * Find the first region overlapping the reference span of the bases in
+	 * [left, right) of the current read.
+	 *
+	 * @return The region's index in contigRegions, or -1 if no region overlaps the read.
+	 */
+	private int findFirstRegion(IntervalSet.ContigIntervals contigRegions, int left, int right)
+	{
+		if (contigRegions == null)
+			return -1;
+
+		int first = left;
+		while (first < right && referenceCoordinates[first] <= 0)
+			++first;
+		int last = right - 1;
+		while (last >= first && referenceCoordinates[last] <= 0)
+			--last;
+		if (first > last)
+			return -1;
+
+		int index = contigRegions.search(referenceCoordinates[first]);
+		if (index < contigRegions.size() && contigRegions.getStart(index) <= referenceCoordinates[last])
+			return index;
+		else
+			return -1;
+	}
 }
@@ -38,6 +38,12 @@ public class RecabTableOptionParser extends SealToolParser {
 	private Option rodFileOpt;
 	private Path rodFilePath;
 
+	private Option indexFileOpt;
+	private Path indexFilePath;
+
+	private Option regionsFileOpt;
+	private Path regionsFilePath;
+
 	private Configuration conf;
 
 	@SuppressWarnings("static") // for OptionBuilder
@@ -62,8 +68,25 @@ public class RecabTableOptionParser extends SealToolParser {
 		             .create("rod");
 		options.addOption(rodFileOpt);
 
+		indexFileOpt = OptionBuilder
+		             .withDescription("Known variation sites index built with build_known_sites")
+		             .hasArg()
+		             .withArgName("FILE")
+		             .withLongOpt("known-sites-index")
+		             .create("ksi");
+		options.addOption(indexFileOpt);
+
+		regionsFileOpt = OptionBuilder
+		             .withDescription("BED or interval list file.  Only bases aligned within these regions are used")
+		             .hasArg()
+		             .withArgName("FILE")
+		             .withLongOpt("regions")
+		             .create("reg");
+		options.addOption(regionsFileOpt);
+
 		this.setMinReduceTasks(1);
 		this.setAcceptedInputFormats(new String[] { "bam", "sam" });
+		this.setAcceptedOutputFormats(new String[] { RecabTable.OutputFormatCsv, RecabTable.OutputFormatBinary });
 		conf = null;
 	}
 
@@ -78,8 +101,14 @@ public class RecabTableOptionParser extends SealToolParser {
 
 		CommandLine line = super.parseOptions(conf, args);
 
-		if (line.hasOption(vcfFileOpt.getOpt()) &&  line.hasOption(rodFileOpt.getOpt()))
-			throw new ParseException("You can't specify both VCF (" + vcfFileOpt.getLongOpt() + ") and ROD (" + rodFileOpt.getLongOpt() + ") files.  Please specify one or the other.");
+		int nVariantSources = 0;
+		for (Option opt: new Option[] { vcfFileOpt, rodFileOpt, indexFileOpt })
+		{
+			if (line.hasOption(opt.getOpt()))
+				nVariantSources += 1;
+		}
+		if (nVariantSources > 1)
+			throw new ParseException("You can only specify one of VCF (" + vcfFileOpt.getLongOpt() + "), ROD (" + rodFileOpt.getLongOpt() + ") and index (" + indexFileOpt.getLongOpt() + ") files.  Please specify one or the other.");
 
 		if (line.hasOption(vcfFileOpt.getOpt()))
 		{
@@ -93,8 +122,24 @@ public class RecabTableOptionParser extends SealToolParser {
 			if (!rodFilePath.getFileSystem(conf).exists(rodFilePath))
 				throw new ParseException("File " + rodFilePath + " doesn't exist");
 		}
+		else if (line.hasOption(indexFileOpt.getOpt()))
+		{
+			indexFilePath = new Path( line.getOptionValue(indexFileOpt.getOpt()) );
+			if (!indexFilePath.getFileSystem(conf).exists(indexFilePath))
+				throw new ParseException("File " + indexFilePath + " doesn't exist");
+		}
+		else
+			throw new ParseException("You must specify a file with known genetic variation sites (either VCF, ROD or a prebuilt index).");
+
+		if (line.hasOption(regionsFileOpt.getOpt()))
+		{
+			regionsFilePath = new Path( line.getOptionValue(regionsFileOpt.getOpt()) );
+			if (!regionsFilePath.getFileSystem(conf).exists(regionsFilePath))
+				throw new ParseException("File " + regionsFilePath + " doesn't exist");
+			regionsFilePath = regionsFilePath.makeQualified(regionsFilePath.getFileSystem(conf));
+		}
 		else
-			throw new ParseException("You must specify a file with known genetic variation sites (either VCF or ROD).");
+			regionsFilePath = null;
 
 		// set number of reduce tasks to use
 		conf.set(ClusterUtils.NUM_RED_TASKS_PROPERTY, String.valueOf(getNReduceTasks()));
@@ -103,4 +148,6 @@ public class RecabTableOptionParser extends SealToolParser {
 
 	public Path getVcfFile() { return vcfFilePath; }
 	public Path getRodFile() { return rodFilePath; }
+	public Path getKnownSitesIndex() { return indexFilePath; }
+	public Path getRegionsFile() { return regionsFilePath; }
 }
@@ -39,6 +39,7 @@ public class RecabTableReducer
 	protected ObservationCount sum = new ObservationCount();
 	protected StringBuilder sbuilder = new StringBuilder(100);
 	protected Text outputValue = new Text();
+	protected CovariateList covariates;
 
 	public void setup(Configuration conf)
 	{
@@ -49,9 +50,11 @@ public class RecabTableReducer
 		maxQscore = conf.getInt(CONF_MAX_QSCORE, CONF_MAX_QSCORE_DEFAULT);
 		if (maxQscore <= 0)
 			throw new IllegalArgumentException(CONF_MAX_QSCORE + " must be greater than 0");
+
+		covariates = new CovariateList(conf);
 	}
 
-	public void reduce(Text key, Iterable<ObservationCount> values, IMRContext<Text, Text> context) throws IOException, InterruptedException
+	public void reduce(RecabKey key, Iterable<ObservationCount> values, IMRContext<Text, Text> context) throws IOException, InterruptedException
 	{
 		sum.set(0,0);
 		sbuilder.delete(0, sbuilder.length());
@@ -61,19 +64,27 @@ public class RecabTableReducer
 
 		if (sum.getObservations() > 0)
 		{
-			outputValue.set(key);
+			appendKey(key, sbuilder);
 			sbuilder.
 				append(sum.getObservations()).append(RecabTable.TableDelim).
 				append(sum.getMismatches()).append(RecabTable.TableDelim).
 				append(empiricalQuality(sum));
 
-			String tmp = sbuilder.toString();
-			outputValue.append(tmp.getBytes(RecabTable.ASCII), 0, tmp.length());
+			outputValue.set(sbuilder.toString());
 
 			context.write(null, outputValue);
 		}
 	}
 
+	/**
+	 * Append the text form of the covariate values in key to builder.
+	 * Each value is followed by the table delimiter.
+	 */
+	protected void appendKey(RecabKey key, StringBuilder builder)
+	{
+		covariates.appendValues(key, builder, RecabTable.TableDelim);
+	}
+
 	protected int empiricalQuality(ObservationCount observations)
 	{
 		double perror = (observations.getMismatches() + smoothing) / (observations.getObservations() + smoothing) + PERROR_EPS;
@@ -0,0 +1,46 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package it.crs4.seal.recab;
+
+/**
+ * VariantCursor that simply forwards each query to VariantTable.isVariantLocation.
+ * For tables whose lookups don't benefit from locality.
+ */
+public class SimpleVariantCursor implements VariantCursor
+{
+	private final VariantTable table;
+	private String contig;
+
+	public SimpleVariantCursor(VariantTable table)
+	{
+		this.table = table;
+	}
+
+	public boolean seek(String contig, long pos)
+	{
+		this.contig = contig;
+		return table.isVariantLocation(contig, pos);
+	}
+
+	public boolean advanceTo(long pos)
+	{
+		if (contig == null)
+			throw new IllegalStateException("advanceTo called before seek");
+		return table.isVariantLocation(contig, pos);
+	}
+}
@@ -0,0 +1,107 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package it.crs4.seal.recab;
+
+import java.nio.IntBuffer;
+
+/**
+ * VariantCursor over tables that keep a sorted array of variant positions per contig.
+ *
+ * The cursor keeps the index of the first position not smaller than the last
+ * query.  Queries further ahead gallop forward from there (checking 1, 2, 4, ...
+ * elements ahead) and then binary search the last step, so a query near the
+ * previous one costs a few comparisons.  Queries behind the last one, or on a
+ * different contig, fall back to a binary search over the whole contig.
+ */
+public abstract class SortedPositionsCursor implements VariantCursor
+{
+	private String currentContig;
+	private IntBuffer positions;
+	private int size;
+	private int index; // positions[index-1] < last query <= positions[index]
+	private long lastQuery;
+
+	/**
+	 * Get the sorted variant positions for contig, or null if there are none.
+	 * The returned buffer must have its elements in [0, limit()).
+	 */
+	protected abstract IntBuffer getPositions(String contig);
+
+	public boolean seek(String contig, long pos)
+	{
+		if (!contig.equals(currentContig))
+		{
+			currentContig = contig;
+			positions = getPositions(contig);
+			size = positions == null ? 0 : positions.limit();
+			index = 0;
+			lastQuery = Long.MIN_VALUE;
+		}
+		return advanceTo(pos);
+	}
+
+	public boolean advanceTo(long pos)
+	{
+		if (currentContig == null)
+			throw new IllegalStateException("advanceTo called before seek");
+		if (pos > Integer.MAX_VALUE)
+			throw new RuntimeException("pos bigger than expected!  File a bug!!");
+
+		if (size == 0)
+			return false;
+
+		final int value = (int)pos;
+		if (pos < lastQuery)
+			index = lowerBound(value, 0, index); // jump back
+		else if (index < size && positions.get(index) < value)
+		{
+			// gallop forward
+			int low = index + 1;
+			int step = 1;
+			int high = index + step;
+			while (high < size && positions.get(high) < value)
+			{
+				low = high + 1;
+				step <<= 1;
+				high = index + step;
+			}
+			index = lowerBound(value, low, Math.min(high, size));
+		}
+		lastQuery = pos;
+
+		return index < size && positions.get(index) == value;
+	}
+
+	/**
+	 * Index of the first element in [from, to) not smaller than value, or to if there isn't one.
+	 */
+	private int lowerBound(int value, int from, int to)
+	{
+		int low = from;
+		int high = to;
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1;
+			if (positions.get(mid) < value)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+}
@@ -0,0 +1,41 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package it.crs4.seal.recab;
+
+/**
+ * Stateful query interface for a VariantTable.
+ *
+ * A cursor remembers the contig and position of the last query, so that
+ * implementations can exploit the locality of queries coming from
+ * coordinate-sorted input.  Queries may still jump to any position.
+ */
+public interface VariantCursor
+{
+	/**
+	 * Position the cursor at pos on contig.
+	 * @return true if pos is a known variant location.
+	 */
+	public boolean seek(String contig, long pos);
+
+	/**
+	 * Move the cursor to pos on the contig of the last seek.
+	 * Moving forward is faster than moving backward.
+	 * @return true if pos is a known variant location.
+	 */
+	public boolean advanceTo(long pos);
+}
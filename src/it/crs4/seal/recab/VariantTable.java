@@ -30,4 +30,10 @@ public interface VariantTable
 	 * Number of known variant locations.
 	 */
 	public int size();
+
+	/**
+	 * Get a new cursor to query this table.  Prefer it to isVariantLocation
+	 * when querying positions in coordinate order.
+	 */
+	public VariantCursor getCursor();
 }
@@ -22,6 +22,7 @@ import it.crs4.seal.common.AlignOp;
 import it.crs4.seal.common.AlignOp.Type;
 import it.crs4.seal.common.FormatException;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.ArrayList;
 import java.nio.ByteBuffer;
@@ -78,6 +79,14 @@ public class TestAbstractSamMapping
 			}
 			return null;
 		}
+
+		public Collection<String> getTagNames()
+		{
+			List<String> names = new ArrayList<String>();
+			for (int i = 11; i < fields.length; ++i)
+				names.add(fields[i].substring(0, 2));
+			return names;
+		}
 	}
 
 	private SimpleSamMapping simpleMapping;
@@ -351,6 +360,107 @@ public class TestAbstractSamMapping
 		simpleMapping.calculateReferenceMatches(matches);
 	}
 
+	@Test
+	public void testReferenceAlignmentSameAsSeparateCalculations()
+	{
+		String[] records = { sam, samRead2, insertion, deletion, trimmed, mismatch,
+			"MIXED	107	chr12	100	60	2S3M1I2M3D4M	*	*	*	ACGTTGAAGATT	BBBBCFFFFGGG	MD:Z:1T0G2^TTA2C1" };
+		for (String record: records)
+		{
+			simpleMapping = new SimpleSamMapping(record);
+			int length = simpleMapping.getLength();
+			ArrayList<Integer> coordinates = new ArrayList<Integer>(length);
+			ArrayList<Boolean> matches = new ArrayList<Boolean>(length);
+			simpleMapping.calculateReferenceCoordinates(coordinates);
+			simpleMapping.calculateReferenceMatches(matches);
+
+			int[] coordArray = new int[length + 10];
+			boolean[] matchArray = new boolean[length + 10];
+			simpleMapping.calculateReferenceAlignment(coordArray, matchArray);
+
+			for (int i = 0; i < length; ++i)
+			{
+				assertEquals(record + " at " + i, coordinates.get(i).intValue(), coordArray[i]);
+				Boolean expected = matches.get(i);
+				assertEquals(record + " at " + i, expected != null && expected, matchArray[i]);
+			}
+		}
+	}
+
+	@Test
+	public void testMismatchReferenceAlignment()
+	{
+		simpleMapping = new SimpleSamMapping(mismatch);
+		int[] coords = new int[simpleMapping.getLength()];
+		boolean[] matches = new boolean[simpleMapping.getLength()];
+		simpleMapping.calculateReferenceAlignment(coords, matches);
+
+		boolean[] expected = new boolean[] { true,true,true,false,false,true,true,false };
+		for (int i = 0; i < expected.length; ++i)
+		{
+			assertEquals(1 + i, coords[i]);
+			assertEquals(expected[i], matches[i]);
+		}
+	}
+
+	@Test
+	public void testReferenceAlignmentReusesArrays()
+	{
+		int[] coords = new int[100];
+		boolean[] matches = new boolean[100];
+		simpleMapping.calculateReferenceAlignment(coords, matches);
+
+		simpleMapping = new SimpleSamMapping(trimmed);
+		simpleMapping.calculateReferenceAlignment(coords, matches);
+		int[] expected = new int[] { -1,-1,-1,-1,1,2,3,4,5,6,7,8 };
+		for (int i = 0; i < expected.length; ++i)
+		{
+			assertEquals(expected[i], coords[i]);
+			assertEquals(expected[i] > 0, matches[i]);
+		}
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testReferenceAlignmentArrayTooSmall()
+	{
+		simpleMapping.calculateReferenceAlignment(new int[10], new boolean[10]);
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void testUnmappedReferenceAlignment()
+	{
+		simpleMapping = new SimpleSamMapping(samUnmapped);
+		simpleMapping.calculateReferenceAlignment(new int[100], new boolean[100]);
+	}
+
+	@Test(expected=RuntimeException.class)
+	public void testMissingMdReferenceAlignment()
+	{
+		simpleMapping = new SimpleSamMapping(missingMD);
+		simpleMapping.calculateReferenceAlignment(new int[100], new boolean[100]);
+	}
+
+	@Test(expected=RuntimeException.class)
+	public void testInconsistentMdReferenceAlignment()
+	{
+		simpleMapping = new SimpleSamMapping(missingMD + "\tMD:Z:5");
+		simpleMapping.calculateReferenceAlignment(new int[100], new boolean[100]);
+	}
+
+	@Test(expected=FormatException.class)
+	public void testInvalidMdReferenceAlignment()
+	{
+		simpleMapping = new SimpleSamMapping(missingMD + "\tMD:Z:3*4");
+		simpleMapping.calculateReferenceAlignment(new int[100], new boolean[100]);
+	}
+
+	@Test(expected=RuntimeException.class)
+	public void testCigarLongerThanReadReferenceAlignment()
+	{
+		simpleMapping = new SimpleSamMapping(missingMD.replace("8M", "10M") + "\tMD:Z:10");
+		simpleMapping.calculateReferenceAlignment(new int[100], new boolean[100]);
+	}
+
 	//
 	// get*Tag are repeated more than once to exercise the caching mechanism
 	//
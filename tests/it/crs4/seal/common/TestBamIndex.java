@@ -0,0 +1,222 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package tests.it.crs4.seal.common;
+
+import it.crs4.seal.common.BamIndex;
+import it.crs4.seal.common.FormatException;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import net.sf.samtools.BAMRecordCodec;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceRecord;
+import net.sf.samtools.util.BlockCompressedInputStream;
+
+public class TestBamIndex
+{
+	private static final int ReadLength = 50;
+	private static final int NumReads = 4000;
+	private static final int Spacing = 500;
+
+	private File tempDir;
+	private File bamFile;
+	private File indexFile;
+	private BamIndex index;
+
+	@Before
+	public void setup() throws IOException
+	{
+		tempDir = File.createTempFile("test_bam_index", "");
+		tempDir.delete();
+		tempDir.mkdir();
+		bamFile = new File(tempDir, "test.bam");
+
+		SAMFileHeader header = new SAMFileHeader();
+		header.addSequence(new SAMSequenceRecord("chr1", NumReads * Spacing + 1000));
+		header.addSequence(new SAMSequenceRecord("chr2", 10000));
+		header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+
+		StringBuilder bases = new StringBuilder();
+		StringBuilder quals = new StringBuilder();
+		for (int i = 0; i < ReadLength; ++i)
+		{
+			bases.append("ACGT".charAt(i % 4));
+			quals.append('I');
+		}
+
+		SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true).makeBAMWriter(header, true, bamFile);
+		for (int i = 0; i < NumReads; ++i)
+		{
+			SAMRecord rec = new SAMRecord(header);
+			rec.setReadName("read" + i);
+			rec.setReferenceName("chr1");
+			rec.setAlignmentStart(1 + i * Spacing);
+			rec.setCigarString(ReadLength + "M");
+			rec.setMappingQuality(60);
+			rec.setReadString(bases.toString());
+			rec.setBaseQualityString(quals.toString());
+			writer.addAlignment(rec);
+		}
+		writer.close();
+
+		indexFile = new File(tempDir, "test.bai");
+		if (!indexFile.exists())
+			indexFile = new File(tempDir, "test.bam.bai");
+
+		InputStream in = new FileInputStream(indexFile);
+		try {
+			index = new BamIndex(in);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	@After
+	public void tearDown()
+	{
+		for (File f: tempDir.listFiles())
+			f.delete();
+		tempDir.delete();
+	}
+
+	/**
+	 * Decode the names of all the records starting in the given chunks.
+	 */
+	private Set<String> readChunks(long[] chunks) throws IOException
+	{
+		SAMFileHeader header = new SAMFileReader(bamFile).getFileHeader();
+		Set<String> names = new HashSet<String>();
+		BlockCompressedInputStream in = new BlockCompressedInputStream(bamFile);
+		try
+		{
+			BAMRecordCodec codec = new BAMRecordCodec(header);
+			codec.setInputStream(in);
+			for (int c = 0; c < chunks.length; c += 2)
+			{
+				in.seek(chunks[c]);
+				while (in.getFilePointer() < chunks[c+1])
+				{
+					SAMRecord rec = codec.decode();
+					if (rec == null)
+						break;
+					names.add(rec.getReadName());
+				}
+			}
+		}
+		finally {
+			in.close();
+		}
+		return names;
+	}
+
+	@Test
+	public void testNumReferences()
+	{
+		assertEquals(2, index.getNumReferences());
+	}
+
+	@Test
+	public void testChunksContainRegion() throws IOException
+	{
+		int start = 1000000;
+		int end = 1100000;
+		long[] chunks = index.getChunksOverlapping(0, start, end);
+		assertTrue(chunks.length > 0);
+		assertEquals(0, chunks.length % 2);
+
+		Set<String> names = readChunks(chunks);
+		for (int i = 0; i < NumReads; ++i)
+		{
+			int readStart = 1 + i * Spacing;
+			int readEnd = readStart + ReadLength - 1;
+			if (readEnd >= start && readStart <= end)
+				assertTrue("missing read" + i, names.contains("read" + i));
+		}
+		// the chunks should cover much less than the whole file
+		assertTrue(names.size() < NumReads / 2);
+	}
+
+	@Test
+	public void testChunksSortedAndDisjoint()
+	{
+		long[] chunks = index.getChunksOverlapping(0, 1, NumReads * Spacing);
+		for (int c = 0; c < chunks.length; c += 2)
+		{
+			assertTrue(chunks[c] < chunks[c+1]);
+			if (c > 0)
+				assertTrue(chunks[c-1] < chunks[c]);
+		}
+	}
+
+	@Test
+	public void testEmptyReference()
+	{
+		assertEquals(0, index.getChunksOverlapping(1, 1, 10000).length);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testBadReference()
+	{
+		index.getChunksOverlapping(2, 1, 100);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testBadRegion()
+	{
+		index.getChunksOverlapping(0, 100, 1);
+	}
+
+	@Test
+	public void testMergeChunks()
+	{
+		long[] chunks = { 50, 60, 10, 20, 15, 30, 30, 40, 70, 80 };
+		long[] merged = BamIndex.mergeChunks(chunks, 8); // ignore the last one
+		assertArrayEquals(new long[] { 10, 40, 50, 60 }, merged);
+		assertEquals(0, BamIndex.mergeChunks(chunks, 0).length);
+	}
+
+	@Test(expected=FormatException.class)
+	public void testNotAnIndex() throws IOException
+	{
+		new BamIndex(new ByteArrayInputStream("BAM\1xxxx".getBytes()));
+	}
+
+	@Test(expected=FormatException.class)
+	public void testTruncated() throws IOException
+	{
+		new BamIndex(new ByteArrayInputStream(new byte[] { 'B', 'A', 'I', 1, 2, 0, 0, 0 }));
+	}
+
+	public static void main(String args[]) {
+		org.junit.runner.JUnitCore.main(TestBamIndex.class.getName());
+	}
+}
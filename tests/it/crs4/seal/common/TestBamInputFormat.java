@@ -22,6 +22,7 @@ import it.crs4.seal.common.AlignOp;
 import it.crs4.seal.common.ReadPair;
 import it.crs4.seal.common.BamInputFormat;
 import it.crs4.seal.common.BamInputFormat.BamRecordReader;
+import it.crs4.seal.common.IntervalSet;
 import it.crs4.seal.common.AbstractTaggedMapping;
 import it.crs4.seal.common.Utils;
 
@@ -260,6 +261,38 @@ Read/1	117	1	10018	0	*	=	10018	0	TTAGGGCTAGGGCTAGGGCTAGGGCTAGGGTTAGGGTTAGGGCTAGG
 		reader.close();
 	}
 
+	@Test
+	public void testTrimToChunks()
+	{
+		Path path = new Path("file:///tmp/x.bam");
+		String[] locations = new String[0];
+		long[] chunks = { 10, 20, 30, 40, 50, 60, 200, 300 };
+
+		// one split covering several chunks is trimmed, not divided
+		FileVirtualSplit trimmed = BamInputFormat.trimToChunks(new FileVirtualSplit(path, 0, 100, locations), chunks);
+		assertEquals(10, trimmed.getStartVirtualOffset());
+		assertEquals(60, trimmed.getEndVirtualOffset());
+
+		// chunks crossing the split boundaries
+		trimmed = BamInputFormat.trimToChunks(new FileVirtualSplit(path, 15, 250, locations), chunks);
+		assertEquals(15, trimmed.getStartVirtualOffset());
+		assertEquals(250, trimmed.getEndVirtualOffset());
+
+		// no overlapping chunks
+		assertNull(BamInputFormat.trimToChunks(new FileVirtualSplit(path, 60, 200, locations), chunks));
+		assertNull(BamInputFormat.trimToChunks(new FileVirtualSplit(path, 300, 400, locations), chunks));
+		assertNull(BamInputFormat.trimToChunks(new FileVirtualSplit(path, 0, 10, locations), new long[0]));
+	}
+
+	@Test
+	public void testRestrictToRegionsKeepsUnindexedSplits() throws IOException
+	{
+		List<InputSplit> splits = new ArrayList<InputSplit>();
+		splits.add(new FileVirtualSplit(new Path(tempFile.toURI().toString()), 0, 100, new String[0]));
+		List<InputSplit> result = new BamInputFormat().restrictToRegions(splits, new IntervalSet(), conf);
+		assertEquals(splits, result);
+	}
+
 	public static void main(String args[]) {
 		org.junit.runner.JUnitCore.main(TestBamInputFormat.class.getName());
 	}
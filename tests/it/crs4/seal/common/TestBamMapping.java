@@ -0,0 +1,315 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package tests.it.crs4.seal.common;
+
+import it.crs4.seal.common.AbstractTaggedMapping;
+import it.crs4.seal.common.AlignOp;
+import it.crs4.seal.common.BamMapping;
+import it.crs4.seal.common.FormatException;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import net.sf.samtools.BAMRecordCodec;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceDictionary;
+import net.sf.samtools.SAMSequenceRecord;
+
+public class TestBamMapping
+{
+	private SAMFileHeader header;
+	private SAMRecord sam;
+	private BamMapping mapping;
+
+	@Before
+	public void setup()
+	{
+		header = new SAMFileHeader();
+		header.setSequenceDictionary(new SAMSequenceDictionary(Arrays.asList(
+			new SAMSequenceRecord("chr1", 1000), new SAMSequenceRecord("chr6", 5000))));
+
+		sam = new SAMRecord(header);
+		sam.setReadName("read/1");
+		sam.setFlags(99); // paired, properly paired, mate on reverse, read 1
+		sam.setReferenceName("chr6");
+		sam.setAlignmentStart(101);
+		sam.setMappingQuality(37);
+		sam.setCigarString("5M1I4M1S");
+		sam.setMateReferenceName("chr6");
+		sam.setMateAlignmentStart(300);
+		sam.setInferredInsertSize(-250);
+		sam.setReadString("ACGTNACGTAC");
+		sam.setBaseQualityString("#$%&'()*+,5");
+		sam.setAttribute("RG", "my group");
+		sam.setAttribute("NM", 3);
+		sam.setAttribute("XC", 'c');
+		sam.setAttribute("XF", 1.5f);
+		sam.setAttribute("XN", -70000);
+
+		mapping = new BamMapping();
+	}
+
+	private byte[] encode(SAMRecord record)
+	{
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		BAMRecordCodec codec = new BAMRecordCodec(header);
+		codec.setOutputStream(buffer);
+		codec.encode(record);
+		return buffer.toByteArray();
+	}
+
+	private void checkFields(BamMapping map) throws NoSuchFieldException
+	{
+		assertEquals("read/1", map.getName());
+		assertEquals(99, map.getFlag());
+		assertEquals("chr6", map.getContig());
+		assertEquals(101, map.get5Position());
+		assertEquals(37, map.getMapQ());
+		assertEquals("5M1I4M1S", AlignOp.cigarStr(map.getAlignment()));
+		assertTrue(map.isTemplateLengthAvailable());
+		assertEquals(250, map.getTemplateLength());
+		assertEquals(11, map.getLength());
+		assertEquals("ACGTNACGTAC", map.getSequenceString());
+		assertEquals("#$%&'()*+,5", map.getBaseQualitiesString());
+		assertEquals("my group", map.getTag("RG"));
+		assertEquals(3, map.getIntTag("NM"));
+	}
+
+	@Test
+	public void testFields() throws NoSuchFieldException
+	{
+		mapping.reset(sam);
+		checkFields(mapping);
+		assertEquals(4, mapping.getNumCigarOps());
+	}
+
+	@Test
+	public void testRecordReadFromBam() throws NoSuchFieldException
+	{
+		byte[] data = encode(sam);
+
+		// records decoded from BAM keep their binary data
+		BAMRecordCodec codec = new BAMRecordCodec(header);
+		codec.setInputStream(new ByteArrayInputStream(data));
+		SAMRecord decoded = codec.decode();
+
+		mapping.reset(decoded);
+		checkFields(mapping);
+		assertEquals(data.length - 4, mapping.getRecordLength());
+		assertArrayEquals(Arrays.copyOfRange(data, 4, data.length), Arrays.copyOf(mapping.getRecordBytes(), mapping.getRecordLength()));
+	}
+
+	@Test
+	public void testBinaryRecord() throws NoSuchFieldException
+	{
+		byte[] data = encode(sam);
+		mapping.setContigNames(new String[] { "chr1", "chr6" });
+		mapping.reset(data, 4, data.length - 4);
+		checkFields(mapping);
+	}
+
+	@Test
+	public void testBinaryCigar()
+	{
+		mapping.reset(sam);
+		ByteBuffer cigar = mapping.getBinaryCigar();
+		assertEquals(16, cigar.remaining());
+		assertEquals(5 << 4 | 0, cigar.getInt());
+		assertEquals(1 << 4 | 1, cigar.getInt());
+		assertEquals(4 << 4 | 0, cigar.getInt());
+		assertEquals(1 << 4 | 4, cigar.getInt());
+	}
+
+	@Test
+	public void testTags() throws NoSuchFieldException
+	{
+		mapping.reset(sam);
+		assertEquals(AbstractTaggedMapping.TagDataType.String, mapping.getTagType("RG"));
+		assertEquals(AbstractTaggedMapping.TagDataType.Int, mapping.getTagType("NM"));
+		assertEquals(AbstractTaggedMapping.TagDataType.Char, mapping.getTagType("XC"));
+		assertEquals(AbstractTaggedMapping.TagDataType.Float, mapping.getTagType("XF"));
+
+		assertEquals("c", mapping.getTag("XC"));
+		assertEquals(1.5, mapping.getDoubleTag("XF"), 0.0001);
+		assertEquals("1.5", mapping.getTag("XF"));
+		assertEquals(-70000, mapping.getIntTag("XN"));
+		assertEquals(3.0, mapping.getDoubleTag("NM"), 0.0001);
+
+		ByteBuffer rg = mapping.getTagBytes("RG");
+		assertEquals("my group", new String(rg.array(), rg.position(), rg.remaining()));
+		rg = mapping.getTagBytes("NM");
+		assertEquals("3", new String(rg.array(), rg.position(), rg.remaining()));
+
+		assertTrue(mapping.hasTag("NM"));
+		assertFalse(mapping.hasTag("MD"));
+		assertFalse(mapping.hasTag("N"));
+	}
+
+	@Test(expected=NumberFormatException.class)
+	public void testIntTagWrongType() throws NoSuchFieldException
+	{
+		mapping.reset(sam);
+		mapping.getIntTag("RG");
+	}
+
+	@Test(expected=NoSuchFieldException.class)
+	public void testMissingTag() throws NoSuchFieldException
+	{
+		mapping.reset(sam);
+		mapping.getTag("MD");
+	}
+
+	@Test
+	public void testArrayTag() throws NoSuchFieldException
+	{
+		byte[] data = encode(sam);
+		// append XB:B:c,1,-2,3
+		byte[] tag = { 'X', 'B', 'B', 'c', 3, 0, 0, 0, 1, -2, 3 };
+		byte[] withArray = Arrays.copyOf(data, data.length + tag.length);
+		System.arraycopy(tag, 0, withArray, data.length, tag.length);
+
+		mapping.reset(withArray, 4, withArray.length - 4);
+		assertEquals(AbstractTaggedMapping.TagDataType.NumArray, mapping.getTagType("XB"));
+		assertEquals("c,1,-2,3", mapping.getTag("XB"));
+		assertEquals(3, mapping.getIntTag("NM"));
+	}
+
+	@Test(expected=FormatException.class)
+	public void testTruncatedTag() throws NoSuchFieldException
+	{
+		byte[] data = encode(sam);
+		mapping.reset(data, 4, data.length - 6);
+		mapping.getTag("NM");
+	}
+
+	@Test(expected=FormatException.class)
+	public void testTruncatedRecord()
+	{
+		byte[] data = encode(sam);
+		mapping.reset(data, 4, 40);
+	}
+
+	@Test
+	public void testUnmapped()
+	{
+		sam.setReadUnmappedFlag(true);
+		sam.setMappingQuality(0);
+		sam.setCigarString("*");
+		mapping.reset(sam);
+
+		assertTrue(mapping.isUnmapped());
+		assertFalse(mapping.isTemplateLengthAvailable());
+		try {
+			mapping.getContig();
+			fail("getContig on unmapped read");
+		}
+		catch (IllegalStateException e) { }
+		try {
+			mapping.get5Position();
+			fail("get5Position on unmapped read");
+		}
+		catch (IllegalStateException e) { }
+		try {
+			mapping.getAlignment();
+			fail("getAlignment on unmapped read");
+		}
+		catch (IllegalStateException e) { }
+	}
+
+	@Test(expected=FormatException.class)
+	public void testMissingQualities()
+	{
+		sam.setBaseQualities(SAMRecord.NULL_QUALS);
+		mapping.reset(sam);
+		mapping.getBaseQualities();
+	}
+
+	@Test
+	public void testReuse() throws NoSuchFieldException
+	{
+		SAMRecord longer = new SAMRecord(header);
+		longer.setReadName("a_much_longer_read_name");
+		longer.setFlags(0);
+		longer.setReferenceName("chr1");
+		longer.setAlignmentStart(1);
+		longer.setCigarString("600M");
+		char[] bases = new char[600];
+		Arrays.fill(bases, 'G');
+		longer.setReadString(new String(bases));
+		Arrays.fill(bases, 'I');
+		longer.setBaseQualityString(new String(bases));
+		longer.setAttribute("MD", "600");
+
+		mapping.reset(longer);
+		assertEquals(600, mapping.getSequence().remaining());
+		assertEquals("chr1", mapping.getContig());
+		assertEquals("600", mapping.getTag("MD"));
+		assertEquals('I', mapping.getBaseQualities().get(599));
+
+		mapping.reset(sam);
+		checkFields(mapping);
+		assertFalse(mapping.hasTag("MD"));
+	}
+
+	@Test
+	public void testToString()
+	{
+		mapping.reset(sam);
+		assertEquals(sam.getSAMString().trim(), mapping.toString());
+
+		sam.setMateReferenceName("chr1");
+		sam.setAttribute("XB", new short[] { 1, -2, 3 });
+		mapping.reset(sam);
+		assertEquals(sam.getSAMString().trim(), mapping.toString());
+	}
+
+	@Test
+	public void testToStringUnmapped()
+	{
+		SAMRecord unmapped = new SAMRecord(header);
+		unmapped.setReadName("unmapped");
+		unmapped.setFlags(4);
+		unmapped.setReadString("ACGT");
+		unmapped.setBaseQualityString(SAMRecord.NULL_QUALS_STRING);
+
+		mapping.reset(unmapped);
+		assertEquals(unmapped.getSAMString().trim(), mapping.toString());
+	}
+
+	@Test
+	public void testQualitiesWrittenBack()
+	{
+		mapping.reset(sam);
+		ByteBuffer qual = mapping.getBaseQualities();
+		qual.put(qual.position(), (byte)'I');
+
+		BamMapping copy = new BamMapping();
+		copy.reset(mapping.getRecordBytes(), 0, mapping.getRecordLength());
+		assertEquals("I$%&'()*+,5", copy.getBaseQualitiesString());
+	}
+
+	public static void main(String args[]) {
+		org.junit.runner.JUnitCore.main(TestBamMapping.class.getName());
+	}
+}
@@ -0,0 +1,188 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package tests.it.crs4.seal.common;
+
+import it.crs4.seal.common.BamMapping;
+import it.crs4.seal.common.BamOutputFormat.BamRecordWriter;
+import it.crs4.seal.common.FormatException;
+import it.crs4.seal.common.ReadPair;
+import it.crs4.seal.common.TextSamMapping;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceDictionary;
+import net.sf.samtools.SAMSequenceRecord;
+
+import org.apache.hadoop.io.Text;
+
+public class TestBamOutputFormat
+{
+	private static final String record1 = "read\t67\tchr6\t101\t37\t5M\t=\t301\t205\tACGTN\t#$%&'\tRG:Z:grp\tNM:i:1";
+	private static final String record2 = "read\t147\tchr6\t301\t30\t5M\t=\t101\t-205\tTTTTT\tIIIII";
+
+	private SAMFileHeader header;
+	private ByteArrayOutputStream outputBuffer;
+	private BamRecordWriter writer;
+
+	@Before
+	public void setup() throws IOException
+	{
+		header = new SAMFileHeader();
+		header.setSequenceDictionary(new SAMSequenceDictionary(Arrays.asList(
+			new SAMSequenceRecord("chr1", 1000), new SAMSequenceRecord("chr6", 5000))));
+		outputBuffer = new ByteArrayOutputStream();
+		writer = new BamRecordWriter(outputBuffer, header, 2, 5);
+	}
+
+	private List<SAMRecord> readOutput()
+	{
+		SAMFileReader reader = new SAMFileReader(new ByteArrayInputStream(outputBuffer.toByteArray()));
+		reader.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+		assertEquals(header.getSequenceDictionary().getSequences().size(), reader.getFileHeader().getSequenceDictionary().size());
+
+		List<SAMRecord> records = new ArrayList<SAMRecord>();
+		for (SAMRecord r: reader)
+			records.add(r);
+		reader.close();
+		return records;
+	}
+
+	private SAMRecord makeSamRecord(SAMFileHeader h)
+	{
+		SAMRecord sam = new SAMRecord(h);
+		sam.setReadName("read");
+		sam.setFlags(67);
+		sam.setReferenceName("chr6");
+		sam.setAlignmentStart(101);
+		sam.setMappingQuality(37);
+		sam.setCigarString("5M");
+		sam.setMateReferenceName("chr6");
+		sam.setMateAlignmentStart(301);
+		sam.setInferredInsertSize(205);
+		sam.setReadString("ACGTN");
+		sam.setBaseQualityString("#$%&'");
+		sam.setAttribute("RG", "grp");
+		sam.setAttribute("NM", 1);
+		return sam;
+	}
+
+	@Test
+	public void testWriteTextMappings() throws IOException
+	{
+		writer.write(null, new ReadPair(new TextSamMapping(new Text(record1)), new TextSamMapping(new Text(record2))));
+		writer.close(null);
+
+		List<SAMRecord> records = readOutput();
+		assertEquals(2, records.size());
+		assertEquals(record1, records.get(0).getSAMString().trim());
+		assertEquals(record2, records.get(1).getSAMString().trim());
+	}
+
+	@Test
+	public void testWriteBamMapping() throws IOException
+	{
+		BamMapping map = new BamMapping();
+		map.reset(makeSamRecord(header));
+		writer.write(null, new ReadPair(map, null));
+		writer.close(null);
+
+		List<SAMRecord> records = readOutput();
+		assertEquals(1, records.size());
+		assertEquals(record1, records.get(0).getSAMString().trim());
+	}
+
+	@Test
+	public void testTranslateReferenceIds() throws IOException
+	{
+		// the input file has the references in a different order
+		SAMFileHeader inputHeader = new SAMFileHeader();
+		inputHeader.setSequenceDictionary(new SAMSequenceDictionary(Arrays.asList(
+			new SAMSequenceRecord("chr6", 5000), new SAMSequenceRecord("chr1", 1000))));
+		SAMRecord sam = makeSamRecord(inputHeader);
+		sam.setMateReferenceName("chr1");
+
+		BamMapping map = new BamMapping();
+		map.reset(sam);
+		assertEquals(0, map.getReferenceIndex());
+		writer.write(null, new ReadPair(map, null));
+		writer.close(null);
+
+		SAMRecord written = readOutput().get(0);
+		assertEquals("chr6", written.getReferenceName());
+		assertEquals(1, (int)written.getReferenceIndex());
+		assertEquals("chr1", written.getMateReferenceName());
+		assertEquals(0, (int)written.getMateReferenceIndex());
+	}
+
+	@Test(expected=FormatException.class)
+	public void testUnknownReference() throws IOException
+	{
+		SAMFileHeader inputHeader = new SAMFileHeader();
+		inputHeader.setSequenceDictionary(new SAMSequenceDictionary(Arrays.asList(new SAMSequenceRecord("chrX", 5000))));
+		SAMRecord sam = makeSamRecord(inputHeader);
+		sam.setReferenceName("chrX");
+		sam.setMateReferenceName("chrX");
+
+		BamMapping map = new BamMapping();
+		map.reset(sam);
+		writer.write(null, new ReadPair(map, null));
+	}
+
+	@Test
+	public void testWriteModifiedQualities() throws IOException
+	{
+		BamMapping map = new BamMapping();
+		map.reset(makeSamRecord(header));
+		map.getBaseQualities().put(map.getBaseQualities().position(), (byte)'I');
+		writer.write(null, new ReadPair(map, null));
+		writer.close(null);
+
+		assertEquals("I$%&'", readOutput().get(0).getBaseQualityString());
+	}
+
+	@Test
+	public void testManyRecords() throws IOException
+	{
+		// enough data to span several BGZF blocks
+		TextSamMapping map1 = new TextSamMapping(new Text(record1));
+		TextSamMapping map2 = new TextSamMapping(new Text(record2));
+		ReadPair pair = new ReadPair(map1, map2);
+		for (int i = 0; i < 5000; ++i)
+			writer.write(null, pair);
+		writer.close(null);
+
+		List<SAMRecord> records = readOutput();
+		assertEquals(10000, records.size());
+		assertEquals(record2, records.get(9999).getSAMString().trim());
+	}
+
+	public static void main(String args[]) {
+		org.junit.runner.JUnitCore.main(TestBamOutputFormat.class.getName());
+	}
+}
@@ -0,0 +1,195 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package tests.it.crs4.seal.common;
+
+import it.crs4.seal.common.FormatException;
+import it.crs4.seal.common.IntervalSet;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+public class TestIntervalSet
+{
+	private IntervalSet set;
+
+	@Before
+	public void setup()
+	{
+		set = new IntervalSet();
+	}
+
+	@Test
+	public void testEmpty()
+	{
+		assertEquals(0, set.size());
+		assertNull(set.get("chr1"));
+		assertFalse(set.contains("chr1", 1));
+		assertFalse(set.overlaps("chr1", 1, 100));
+	}
+
+	@Test
+	public void testContains()
+	{
+		set.add("chr1", 10, 20);
+		assertFalse(set.contains("chr1", 9));
+		assertTrue(set.contains("chr1", 10));
+		assertTrue(set.contains("chr1", 20));
+		assertFalse(set.contains("chr1", 21));
+		assertFalse(set.contains("chr2", 15));
+	}
+
+	@Test
+	public void testOverlaps()
+	{
+		set.add("chr1", 10, 20);
+		set.add("chr1", 40, 50);
+		assertTrue(set.overlaps("chr1", 1, 10));
+		assertTrue(set.overlaps("chr1", 20, 30));
+		assertTrue(set.overlaps("chr1", 15, 45));
+		assertFalse(set.overlaps("chr1", 21, 39));
+		assertFalse(set.overlaps("chr1", 51, 100));
+		assertFalse(set.overlaps("chr1", 1, 9));
+	}
+
+	@Test
+	public void testMerge()
+	{
+		// unsorted, overlapping and adjacent intervals
+		set.add("chr1", 40, 50);
+		set.add("chr1", 10, 20);
+		set.add("chr1", 15, 30);
+		set.add("chr1", 31, 35);
+		set.add("chr1", 60, 70);
+		set.add("chr1", 62, 65);
+
+		assertEquals(3, set.size());
+		IntervalSet.ContigIntervals list = set.get("chr1");
+		assertEquals(10, list.getStart(0));
+		assertEquals(35, list.getEnd(0));
+		assertEquals(40, list.getStart(1));
+		assertEquals(50, list.getEnd(1));
+		assertEquals(60, list.getStart(2));
+		assertEquals(70, list.getEnd(2));
+	}
+
+	@Test
+	public void testAddAfterQuery()
+	{
+		set.add("chr1", 10, 20);
+		assertFalse(set.contains("chr1", 25));
+		set.add("chr1", 21, 30);
+		assertTrue(set.contains("chr1", 25));
+		assertEquals(1, set.size());
+	}
+
+	@Test
+	public void testSearch()
+	{
+		set.add("chr1", 10, 20);
+		set.add("chr1", 40, 50);
+		IntervalSet.ContigIntervals list = set.get("chr1");
+		assertEquals(0, list.search(1));
+		assertEquals(0, list.search(20));
+		assertEquals(1, list.search(21));
+		assertEquals(1, list.search(50));
+		assertEquals(2, list.search(51));
+	}
+
+	@Test
+	public void testManyIntervals()
+	{
+		for (int i = 1000; i > 0; --i)
+			set.add("chr1", i * 10, i * 10 + 4);
+		assertEquals(1000, set.size());
+		for (int i = 1; i <= 1000; ++i)
+		{
+			assertTrue(set.contains("chr1", i * 10 + 2));
+			assertFalse(set.contains("chr1", i * 10 + 6));
+		}
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testAddBadInterval()
+	{
+		set.add("chr1", 20, 10);
+	}
+
+	@Test
+	public void testLoadBed() throws IOException
+	{
+		set.load(new StringReader(
+		  "track name=targets\n" +
+		  "# a comment\n" +
+		  "chr1\t0\t10\ttarget1\n" +
+		  "chr1\t20\t30\n" +
+		  "chr2\t99\t100\n"));
+
+		assertEquals(3, set.size());
+		// BED coordinates are 0-based, half-open
+		assertTrue(set.contains("chr1", 1));
+		assertTrue(set.contains("chr1", 10));
+		assertFalse(set.contains("chr1", 11));
+		assertFalse(set.contains("chr1", 20));
+		assertTrue(set.contains("chr1", 21));
+		assertTrue(set.contains("chr2", 100));
+		assertFalse(set.contains("chr2", 99));
+	}
+
+	@Test
+	public void testLoadIntervalList() throws IOException
+	{
+		set.load(new StringReader(
+		  "@HD\tVN:1.0\tSO:coordinate\n" +
+		  "@SQ\tSN:chr1\tLN:1000\n" +
+		  "chr1\t1\t10\t+\ttarget1\n" +
+		  "chr1\t21\t30\t+\ttarget2\n"));
+
+		assertEquals(2, set.size());
+		// interval lists are 1-based, inclusive
+		assertTrue(set.contains("chr1", 1));
+		assertTrue(set.contains("chr1", 10));
+		assertFalse(set.contains("chr1", 11));
+		assertTrue(set.contains("chr1", 21));
+		assertFalse(set.contains("chr1", 20));
+	}
+
+	@Test(expected=FormatException.class)
+	public void testLoadTooFewFields() throws IOException
+	{
+		set.load(new StringReader("chr1\t10\n"));
+	}
+
+	@Test(expected=FormatException.class)
+	public void testLoadBadCoordinates() throws IOException
+	{
+		set.load(new StringReader("chr1\tten\t20\n"));
+	}
+
+	@Test(expected=FormatException.class)
+	public void testLoadEmptyInterval() throws IOException
+	{
+		set.load(new StringReader("chr1\t10\t10\n"));
+	}
+
+	public static void main(String args[]) {
+		org.junit.runner.JUnitCore.main(TestIntervalSet.class.getName());
+	}
+}
@@ -0,0 +1,183 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package tests.it.crs4.seal.common;
+
+import it.crs4.seal.common.ParallelBgzfOutputStream;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import net.sf.samtools.util.BlockCompressedInputStream;
+import net.sf.samtools.util.BlockCompressedStreamConstants;
+
+public class TestParallelBgzfOutputStream
+{
+	private ByteArrayOutputStream output;
+
+	@Before
+	public void setup()
+	{
+		output = new ByteArrayOutputStream();
+	}
+
+	private static byte[] makeData(int length)
+	{
+		// half random, half repeated bytes so some blocks compress and some don't
+		byte[] data = new byte[length];
+		new Random(42).nextBytes(data);
+		for (int i = 0; i < length; i += 2)
+			data[i] = (byte)(i % 7);
+		return data;
+	}
+
+	private byte[] readBack() throws IOException
+	{
+		BlockCompressedInputStream in = new BlockCompressedInputStream(new ByteArrayInputStream(output.toByteArray()));
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		byte[] buffer = new byte[10000];
+		int n;
+		while ((n = in.read(buffer)) > 0)
+			result.write(buffer, 0, n);
+		in.close();
+		return result.toByteArray();
+	}
+
+	private void checkEofBlock()
+	{
+		byte[] bytes = output.toByteArray();
+		byte[] eof = BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK;
+		assertTrue(bytes.length >= eof.length);
+		assertArrayEquals(eof, Arrays.copyOfRange(bytes, bytes.length - eof.length, bytes.length));
+	}
+
+	private void roundTrip(int nThreads, int level) throws IOException
+	{
+		byte[] data = makeData(5 * ParallelBgzfOutputStream.BlockSize + 1234);
+		ParallelBgzfOutputStream out = new ParallelBgzfOutputStream(output, nThreads, level);
+		// mix single-byte and array writes
+		out.write(data[0]);
+		out.write(data, 1, 1000);
+		out.write(data, 1001, data.length - 1001);
+		out.close();
+
+		assertArrayEquals(data, readBack());
+		checkEofBlock();
+	}
+
+	@Test
+	public void testSingleThread() throws IOException
+	{
+		roundTrip(1, 5);
+	}
+
+	@Test
+	public void testManyThreads() throws IOException
+	{
+		roundTrip(4, 5);
+	}
+
+	@Test
+	public void testNoCompression() throws IOException
+	{
+		roundTrip(3, 0);
+	}
+
+	@Test
+	public void testSameOutputWithAnyNumberOfThreads() throws IOException
+	{
+		byte[] data = makeData(3 * ParallelBgzfOutputStream.BlockSize);
+
+		ParallelBgzfOutputStream out = new ParallelBgzfOutputStream(output, 1, 5);
+		out.write(data);
+		out.close();
+		byte[] single = output.toByteArray();
+
+		output = new ByteArrayOutputStream();
+		out = new ParallelBgzfOutputStream(output, 4, 5);
+		out.write(data);
+		out.close();
+
+		assertArrayEquals(single, output.toByteArray());
+	}
+
+	@Test
+	public void testIncompressibleData() throws IOException
+	{
+		byte[] data = new byte[2 * ParallelBgzfOutputStream.BlockSize];
+		new Random(7).nextBytes(data);
+
+		ParallelBgzfOutputStream out = new ParallelBgzfOutputStream(output, 2, 9);
+		out.write(data);
+		out.close();
+		assertArrayEquals(data, readBack());
+	}
+
+	@Test
+	public void testEmpty() throws IOException
+	{
+		new ParallelBgzfOutputStream(output, 2, 5).close();
+		assertArrayEquals(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK, output.toByteArray());
+	}
+
+	@Test
+	public void testFlushEndsBlock() throws IOException
+	{
+		ParallelBgzfOutputStream out = new ParallelBgzfOutputStream(output, 2, 5);
+		out.write(new byte[] { 1, 2, 3 });
+		out.flush();
+		int flushedLength = output.size();
+		assertTrue(flushedLength > 0);
+
+		out.write(new byte[] { 4, 5 });
+		out.close();
+		assertArrayEquals(new byte[] { 1, 2, 3, 4, 5 }, readBack());
+	}
+
+	@Test
+	public void testCloseStopsThreads() throws IOException
+	{
+		roundTrip(4, 5);
+		// close waits for the compression threads to exit before ending their Deflaters
+		for (Thread t: Thread.getAllStackTraces().keySet())
+			assertFalse(t.getName().startsWith("bgzf-compressor-") && t.isAlive());
+	}
+
+	@Test(expected=IOException.class)
+	public void testWriteAfterClose() throws IOException
+	{
+		ParallelBgzfOutputStream out = new ParallelBgzfOutputStream(output, 2, 5);
+		out.close();
+		out.write(1);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testBadThreads()
+	{
+		new ParallelBgzfOutputStream(output, 0, 5);
+	}
+
+	public static void main(String args[]) {
+		org.junit.runner.JUnitCore.main(TestParallelBgzfOutputStream.class.getName());
+	}
+}
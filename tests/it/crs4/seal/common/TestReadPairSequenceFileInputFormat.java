@@ -0,0 +1,181 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package tests.it.crs4.seal.common;
+
+import it.crs4.seal.common.FormatException;
+import it.crs4.seal.common.ReadPair;
+import it.crs4.seal.common.ReadPairSequenceFileInputFormat;
+import it.crs4.seal.common.ReadPairSequenceFileOutputFormat.ReadPairRecordWriter;
+import it.crs4.seal.common.ReadPairWritable;
+import it.crs4.seal.common.SealToolParser;
+import it.crs4.seal.common.Utils;
+import it.crs4.seal.common.WritableMapping;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+public class TestReadPairSequenceFileInputFormat
+{
+	private Configuration conf;
+	private File tempFile;
+	private Path path;
+
+	@Before
+	public void setup() throws IOException
+	{
+		conf = new Configuration();
+		tempFile = File.createTempFile("test_readpair_input_format", ".seq");
+		path = new Path(tempFile.toURI().toString());
+	}
+
+	@After
+	public void tearDown()
+	{
+		tempFile.delete();
+		// SequenceFile writes a checksum file next to the data
+		new File(tempFile.getParent(), "." + tempFile.getName() + ".crc").delete();
+	}
+
+	private static ReadPair makePair(int i)
+	{
+		WritableMapping read1 = new WritableMapping("pair_" + i + "/1", "ACGTACGTAC", "IIIII#####");
+		WritableMapping read2 = new WritableMapping("pair_" + i + "/2", "GGGGGCCCCC", "$$$$$IIIII");
+		return new ReadPair(read1, read2);
+	}
+
+	private void writePairs(int n, boolean withKeys) throws IOException
+	{
+		SequenceFile.Writer out = SequenceFile.createWriter(FileSystem.getLocal(conf), conf, path, Text.class, ReadPairWritable.class);
+		ReadPairRecordWriter writer = new ReadPairRecordWriter(out);
+		for (int i = 0; i < n; ++i)
+			writer.write(withKeys ? new Text("key_" + i) : null, makePair(i));
+		writer.close(null);
+	}
+
+	@Test
+	public void testReadWholeFile() throws IOException, InterruptedException
+	{
+		writePairs(10, true);
+
+		RecordReader<LongWritable, ReadPair> reader = new ReadPairSequenceFileInputFormat.ReadPairRecordReader();
+		reader.initialize(new FileSplit(path, 0, tempFile.length(), null), Utils.getTaskAttemptContext(conf));
+
+		long lastKey = -1;
+		for (int i = 0; i < 10; ++i)
+		{
+			assertTrue(reader.nextKeyValue());
+			assertTrue(reader.getCurrentKey().get() > lastKey);
+			lastKey = reader.getCurrentKey().get();
+
+			ReadPair pair = reader.getCurrentValue();
+			assertEquals("pair_" + i, pair.getName());
+			assertEquals("ACGTACGTAC", pair.getRead1().getSequenceString());
+			assertEquals("$$$$$IIIII", pair.getRead2().getBaseQualitiesString());
+		}
+		assertFalse(reader.nextKeyValue());
+		reader.close();
+	}
+
+	@Test
+	public void testNullKeyUsesPairName() throws IOException
+	{
+		writePairs(1, false);
+		SequenceFile.Reader in = new SequenceFile.Reader(FileSystem.getLocal(conf), path, conf);
+		Text key = new Text();
+		ReadPairWritable value = new ReadPairWritable();
+		assertTrue(in.next(key, value));
+		assertEquals("pair_0", key.toString());
+		in.close();
+	}
+
+	@Test
+	public void testSplits() throws IOException, InterruptedException
+	{
+		int n = 20000;
+		writePairs(n, true);
+
+		conf.set("mapred.input.dir", path.toString());
+		conf.setLong("mapred.max.split.size", tempFile.length() / 6);
+		TaskAttemptContext context = Utils.getTaskAttemptContext(conf);
+
+		ReadPairSequenceFileInputFormat inputFormat = new ReadPairSequenceFileInputFormat();
+		List<InputSplit> splits = inputFormat.getSplits(context);
+		assertTrue(splits.size() > 1);
+
+		List<String> names = new ArrayList<String>(n);
+		for (InputSplit split: splits)
+		{
+			RecordReader<LongWritable, ReadPair> reader = inputFormat.createRecordReader(split, context);
+			reader.initialize(split, context);
+			while (reader.nextKeyValue())
+				names.add(reader.getCurrentValue().getName());
+			reader.close();
+		}
+
+		assertEquals(n, names.size());
+		for (int i = 0; i < n; ++i)
+			assertEquals("pair_" + i, names.get(i));
+	}
+
+	@Test
+	public void testNoReuse() throws IOException, InterruptedException
+	{
+		writePairs(2, true);
+		conf.setBoolean(SealToolParser.INPUT_REUSE_RECORDS, false);
+
+		RecordReader<LongWritable, ReadPair> reader = new ReadPairSequenceFileInputFormat.ReadPairRecordReader();
+		reader.initialize(new FileSplit(path, 0, tempFile.length(), null), Utils.getTaskAttemptContext(conf));
+		assertTrue(reader.nextKeyValue());
+		ReadPair first = reader.getCurrentValue();
+		assertTrue(reader.nextKeyValue());
+		assertNotSame(first, reader.getCurrentValue());
+		assertEquals("pair_0", first.getName());
+		reader.close();
+	}
+
+	@Test(expected=FormatException.class)
+	public void testWrongFileType() throws IOException, InterruptedException
+	{
+		SequenceFile.Writer out = SequenceFile.createWriter(FileSystem.getLocal(conf), conf, path, Text.class, Text.class);
+		out.append(new Text("a"), new Text("b"));
+		out.close();
+
+		RecordReader<LongWritable, ReadPair> reader = new ReadPairSequenceFileInputFormat.ReadPairRecordReader();
+		reader.initialize(new FileSplit(path, 0, tempFile.length(), null), Utils.getTaskAttemptContext(conf));
+	}
+
+	public static void main(String args[]) {
+		org.junit.runner.JUnitCore.main(TestReadPairSequenceFileInputFormat.class.getName());
+	}
+}
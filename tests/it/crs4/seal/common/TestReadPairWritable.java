@@ -0,0 +1,196 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package tests.it.crs4.seal.common;
+
+import it.crs4.seal.common.AbstractTaggedMapping;
+import it.crs4.seal.common.AlignOp;
+import it.crs4.seal.common.ReadPair;
+import it.crs4.seal.common.ReadPairWritable;
+import it.crs4.seal.common.TextSamMapping;
+import it.crs4.seal.common.WritableMapping;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Text;
+
+public class TestReadPairWritable
+{
+	private static final String samRecord = "read/1\t99\tchr6\t101\t37\t5M1I4M\t=\t301\t210\tACGTNACGTA\t#$%&'()*+,\tRG:Z:grp\tNM:i:1\tXF:f:1.5";
+
+	private WritableMapping read1;
+	private WritableMapping read2;
+	private ReadPairWritable readWritable;
+
+	@Before
+	public void setup()
+	{
+		read1 = new WritableMapping("pair/1", "ACGTNACGTAC", "##########I");
+		read2 = new WritableMapping("pair/2", "GGGGGGGGGG", "$$$$$$$$$$");
+		readWritable = new ReadPairWritable();
+	}
+
+	private byte[] serialize(ReadPair pair) throws IOException
+	{
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(buffer);
+		new ReadPairWritable(pair).write(out);
+		out.close();
+		return buffer.toByteArray();
+	}
+
+	private ReadPair roundTrip(ReadPair pair) throws IOException
+	{
+		readWritable.readFields(new DataInputStream(new ByteArrayInputStream(serialize(pair))));
+		return readWritable.get();
+	}
+
+	private static void assertSameMapping(AbstractTaggedMapping expected, AbstractTaggedMapping actual)
+	{
+		assertEquals(expected.getName(), actual.getName());
+		assertEquals(expected.getFlag(), actual.getFlag());
+		assertEquals(expected.getSequenceString(), actual.getSequenceString());
+		assertEquals(expected.getBaseQualitiesString(), actual.getBaseQualitiesString());
+		if (expected.isMapped())
+		{
+			assertEquals(expected.getContig(), actual.getContig());
+			assertEquals(expected.get5Position(), actual.get5Position());
+			assertEquals(expected.getMapQ(), actual.getMapQ());
+			assertEquals(AlignOp.cigarStr(expected.getAlignment()), AlignOp.cigarStr(actual.getAlignment()));
+		}
+		assertEquals(expected.isTemplateLengthAvailable(), actual.isTemplateLengthAvailable());
+		if (expected.isTemplateLengthAvailable())
+			assertEquals(expected.getTemplateLength(), actual.getTemplateLength());
+	}
+
+	@Test
+	public void testUnmappedPair() throws IOException
+	{
+		ReadPair pair = roundTrip(new ReadPair(read1, read2));
+		assertSameMapping(read1, pair.getRead1());
+		assertSameMapping(read2, pair.getRead2());
+		assertEquals("pair", pair.getName());
+	}
+
+	@Test
+	public void testSingleRead() throws IOException
+	{
+		ReadPair pair = roundTrip(new ReadPair(null, read2));
+		assertNull(pair.getRead1());
+		assertSameMapping(read2, pair.getRead2());
+
+		pair = roundTrip(new ReadPair(read1, null));
+		assertSameMapping(read1, pair.getRead1());
+		assertNull(pair.getRead2());
+	}
+
+	@Test
+	public void testMappedRead() throws IOException, NoSuchFieldException
+	{
+		read1.setFlag(99);
+		read1.setContig("chr6");
+		read1.set5Position(100000);
+		read1.setMapQ(255);
+		read1.setAlignment(AlignOp.scanCigar("2S5M2D3I1M"));
+		read1.setTemplateLength(1234);
+		read1.setTag("RG", AbstractTaggedMapping.TagDataType.String, "grp");
+		read1.setTag("NM", AbstractTaggedMapping.TagDataType.Int, "-3");
+
+		AbstractTaggedMapping map = roundTrip(new ReadPair(read1, null)).getRead1();
+		assertSameMapping(read1, map);
+		assertEquals("grp", map.getTag("RG"));
+		assertEquals(-3, map.getIntTag("NM"));
+		assertEquals(AbstractTaggedMapping.TagDataType.Int, map.getTagType("NM"));
+	}
+
+	@Test
+	public void testTextSamMapping() throws IOException, NoSuchFieldException
+	{
+		TextSamMapping sam = new TextSamMapping(new Text(samRecord));
+		AbstractTaggedMapping map = roundTrip(new ReadPair(sam, null)).getRead1();
+		assertSameMapping(sam, map);
+		assertEquals("grp", map.getTag("RG"));
+		assertEquals(1, map.getIntTag("NM"));
+		assertEquals(1.5, map.getDoubleTag("XF"), 0.0001);
+	}
+
+	@Test
+	public void testIupacBases() throws IOException
+	{
+		String bases = "=ACMGRSVTWYHKDBN";
+		String quals = "IIIIIIIIIIIIIIII";
+		ReadPair pair = roundTrip(new ReadPair(new WritableMapping("r", bases, quals), null));
+		assertEquals(bases, pair.getRead1().getSequenceString());
+
+		// lower case bases are stored in upper case; other characters become N
+		pair = roundTrip(new ReadPair(new WritableMapping("r", "acgt.X", "IIIIII"), null));
+		assertEquals("ACGTNN", pair.getRead1().getSequenceString());
+	}
+
+	@Test
+	public void testReuse() throws IOException
+	{
+		ReadPair first = roundTrip(new ReadPair(read1, read2));
+		AbstractTaggedMapping firstRead1 = first.getRead1();
+
+		ReadPair second = roundTrip(new ReadPair(new WritableMapping("short/1", "AC", "II"), null));
+		assertSame(first, second);
+		assertSame(firstRead1, second.getRead1());
+		assertNull(second.getRead2());
+		assertEquals("AC", second.getRead1().getSequenceString());
+		assertEquals("II", second.getRead1().getBaseQualitiesString());
+
+		// going back to a longer read
+		second = roundTrip(new ReadPair(read1, read2));
+		assertSameMapping(read1, second.getRead1());
+		assertSameMapping(read2, second.getRead2());
+	}
+
+	@Test
+	public void testSmallerThanText() throws IOException
+	{
+		StringBuilder seq = new StringBuilder();
+		StringBuilder qual = new StringBuilder();
+		for (int i = 0; i < 25; ++i)
+		{
+			seq.append("ACGT");
+			qual.append("5<?B");
+		}
+		ReadPair pair = new ReadPair(
+		    new WritableMapping("pair_id/1", seq.toString(), qual.toString()),
+		    new WritableMapping("pair_id/2", seq.toString(), qual.toString()));
+
+		// presence byte, then for each read:  flag, name, template length,
+		// sequence length, packed bases, quality flag, qualities, tag count
+		assertEquals(1 + 2 * (1 + 10 + 1 + 1 + 50 + 1 + 100 + 1), serialize(pair).length);
+
+		// the prq record:  id, then sequence and quality for both reads
+		int prqLength = "pair_id".length() + 4 * 100 + 5;
+		assertTrue(serialize(pair).length < prqLength);
+	}
+
+	public static void main(String args[]) {
+		org.junit.runner.JUnitCore.main(TestReadPairWritable.class.getName());
+	}
+}
@@ -22,7 +22,9 @@ import it.crs4.seal.common.AlignOp;
 import it.crs4.seal.common.ReadPair;
 import it.crs4.seal.common.SamInputFormat;
 import it.crs4.seal.common.SamInputFormat.SamRecordReader;
+import it.crs4.seal.common.SealToolParser;
 import it.crs4.seal.common.AbstractTaggedMapping;
+import it.crs4.seal.common.ParallelBgzfOutputStream;
 import it.crs4.seal.common.Utils;
 
 import org.junit.*;
@@ -36,12 +38,15 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.compress.GzipCodec;
 import org.apache.hadoop.io.LongWritable;
-import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 import org.apache.hadoop.mapreduce.RecordReader;
 
@@ -221,6 +226,59 @@ public class TestSamInputFormat
 		assertEquals(1.0, reader.getProgress(), 0.01);
 	}
 
+	@Test
+	public void testReuseRecords() throws IOException, NoSuchFieldException
+	{
+		writeToTemp(oneRecord + "\n" + twoRecords);
+		split = new FileSplit(new Path(tempFile.toURI().toString()), 0, oneRecord.length() + twoRecords.length() + 1, null);
+
+		SamRecordReader reader = new SamRecordReader();
+		reader.initialize(split, Utils.getTaskAttemptContext(conf));
+
+		assertTrue(reader.nextKeyValue());
+		pair = reader.getCurrentValue();
+		AbstractTaggedMapping map = pair.getRead1();
+		assertEquals("91M", AlignOp.cigarStr(map.getAlignment()));
+		assertEquals("91", map.getTag("MD"));
+
+		assertTrue(reader.nextKeyValue());
+		assertSame(pair, reader.getCurrentValue());
+		assertNull(pair.getRead1());
+		assertSame(map, pair.getRead2());
+		assertEquals("Read/2", map.getName());
+		assertEquals(10018, map.get5Position());
+		assertEquals("101M", AlignOp.cigarStr(map.getAlignment()));
+		assertFalse(map.isTemplateLengthAvailable());
+		assertEquals(101, map.getLength());
+		assertFalse(map.hasTag("MD"));
+
+		assertTrue(reader.nextKeyValue());
+		assertSame(pair, reader.getCurrentValue());
+		assertSame(map, pair.getRead1());
+		assertNull(pair.getRead2());
+		assertEquals("Read/1", map.getName());
+		assertTrue(map.isUnmapped());
+	}
+
+	@Test
+	public void testDontReuseRecords() throws IOException
+	{
+		conf.setBoolean(SealToolParser.INPUT_REUSE_RECORDS, false);
+		writeToTemp(twoRecords);
+		split = new FileSplit(new Path(tempFile.toURI().toString()), 0, twoRecords.length(), null);
+
+		SamRecordReader reader = new SamRecordReader();
+		reader.initialize(split, Utils.getTaskAttemptContext(conf));
+
+		assertTrue(reader.nextKeyValue());
+		pair = reader.getCurrentValue();
+		assertTrue(reader.nextKeyValue());
+		assertNotSame(pair, reader.getCurrentValue());
+		// the first record is still intact
+		assertEquals("Read/2", pair.getAnyRead().getName());
+		assertEquals("Read/1", reader.getCurrentValue().getAnyRead().getName());
+	}
+
 	@Test
 	public void testClose() throws IOException
 	{
@@ -270,6 +328,102 @@ public class TestSamInputFormat
 		RecordReader<LongWritable, ReadPair> reader = inputFormat.createRecordReader(split, Utils.getTaskAttemptContext(conf));
 	}
 
+	@Test
+	public void testUncompressedFileIsntSniffed() throws IOException
+	{
+		// a file without a compression extension is splittable without
+		// reading it to check whether it's BGZF
+		File missing = new File(tempFile.getPath() + ".missing.sam");
+		assertFalse(missing.exists());
+		split = new FileSplit(new Path(missing.toURI().toString()), 10, twoRecords.length(), null);
+		assertNotNull(new SamInputFormat().createRecordReader(split, Utils.getTaskAttemptContext(conf)));
+	}
+
+	/**
+	 * Write n SAM records to tempGz with BGZF compression, returning their names.
+	 * If lineLength is > 0 all lines are padded to that length (including
+	 * the newline), otherwise their lengths vary.
+	 */
+	private List<String> writeBgzf(int n, int lineLength) throws IOException
+	{
+		Random rnd = new Random(1);
+		List<String> names = new ArrayList<String>(n);
+		String rest = unmapped.substring(unmapped.indexOf('\t'));
+		ParallelBgzfOutputStream out = new ParallelBgzfOutputStream(new FileOutputStream(tempGz), 2, 5);
+		for (int i = 0; i < n; ++i)
+		{
+			StringBuilder name = new StringBuilder("read_").append(i).append('_');
+			int padding = lineLength > 0 ? lineLength - name.length() - rest.length() - 1 : rnd.nextInt(300);
+			for (int j = 0; j < padding; ++j)
+				name.append('x');
+			names.add(name.toString());
+			out.write((name + rest + "\n").getBytes("US-ASCII"));
+		}
+		out.close();
+		return names;
+	}
+
+	private List<String> readAllSplits(long splitSize) throws IOException, InterruptedException
+	{
+		conf.set("mapred.input.dir", new Path(tempGz.toURI().toString()).toString());
+		conf.setLong("mapred.max.split.size", splitSize);
+		TaskAttemptContext context = Utils.getTaskAttemptContext(conf);
+
+		SamInputFormat inputFormat = new SamInputFormat();
+		List<InputSplit> splits = inputFormat.getSplits(context);
+		assertTrue(splits.size() > 1);
+
+		List<String> names = new ArrayList<String>();
+		for (InputSplit split: splits)
+		{
+			RecordReader<LongWritable, ReadPair> reader = inputFormat.createRecordReader(split, context);
+			reader.initialize(split, context);
+			while (reader.nextKeyValue())
+				names.add(reader.getCurrentValue().getAnyRead().getName());
+			reader.close();
+		}
+		return names;
+	}
+
+	@Test
+	public void testBgzfSplits() throws IOException, InterruptedException
+	{
+		List<String> names = writeBgzf(5000, 0);
+		assertEquals(names, readAllSplits(tempGz.length() / 7));
+		// split sizes smaller than a block
+		assertEquals(names, readAllSplits(20000));
+	}
+
+	@Test
+	public void testBgzfSplitsLinesEndingOnBlockBoundaries() throws IOException, InterruptedException
+	{
+		// 255 divides the BGZF block size, so each block ends with a newline
+		assertEquals(0, ParallelBgzfOutputStream.BlockSize % 255);
+		List<String> names = writeBgzf(2000, 255);
+		assertEquals(names, readAllSplits(tempGz.length() / 5));
+	}
+
+	@Test
+	public void testBgzfKeysAreVirtualOffsets() throws IOException
+	{
+		writeBgzf(1000, 0);
+		split = new FileSplit(new Path(tempGz.toURI().toString()), 0, tempGz.length(), null);
+		SamRecordReader reader = new SamRecordReader();
+		reader.initialize(split, Utils.getTaskAttemptContext(conf));
+
+		assertTrue(reader.nextKeyValue());
+		assertEquals(0, reader.getCurrentKey().get());
+		long lastKey = 0;
+		while (reader.nextKeyValue())
+		{
+			assertTrue(reader.getCurrentKey().get() > lastKey);
+			lastKey = reader.getCurrentKey().get();
+		}
+		// the file spans more than one block
+		assertTrue((lastKey >>> 16) > 0);
+		reader.close();
+	}
+
 	public static void main(String args[]) {
 		org.junit.runner.JUnitCore.main(TestSamInputFormat.class.getName());
 	}
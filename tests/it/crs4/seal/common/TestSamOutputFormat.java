@@ -0,0 +1,200 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package tests.it.crs4.seal.common;
+
+import it.crs4.seal.common.AbstractTaggedMapping;
+import it.crs4.seal.common.AlignOp;
+import it.crs4.seal.common.BamMapping;
+import it.crs4.seal.common.ReadPair;
+import it.crs4.seal.common.SamOutputFormat;
+import it.crs4.seal.common.SamOutputFormat.SamRecordWriter;
+import it.crs4.seal.common.TextSamMapping;
+import it.crs4.seal.common.WritableMapping;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceDictionary;
+import net.sf.samtools.SAMSequenceRecord;
+
+import org.apache.hadoop.io.Text;
+
+public class TestSamOutputFormat
+{
+	private static final String record1 = "read\t67\tchr6\t101\t37\t5M\t=\t301\t205\tACGTN\t#$%&'\tRG:Z:grp\tNM:i:1";
+	private static final String record2 = "read\t147\tchr6\t301\t30\t5M\t=\t101\t-205\tTTTTT\tIIIII";
+
+	private ByteArrayOutputStream outputBuffer;
+	private SamRecordWriter writer;
+
+	@Before
+	public void setup()
+	{
+		outputBuffer = new ByteArrayOutputStream();
+		writer = new SamRecordWriter(new DataOutputStream(outputBuffer));
+	}
+
+	private String getOutput() throws IOException
+	{
+		return new String(outputBuffer.toByteArray(), "US-ASCII");
+	}
+
+	@Test
+	public void testWriteTextMappings() throws IOException
+	{
+		ReadPair pair = new ReadPair(new TextSamMapping(new Text(record1)), new TextSamMapping(new Text(record2)));
+		writer.write(null, pair);
+		writer.close(null);
+		assertEquals(record1 + "\n" + record2 + "\n", getOutput());
+	}
+
+	@Test
+	public void testWriteSingleMapping() throws IOException
+	{
+		ReadPair pair = new ReadPair();
+		pair.setRead2(new TextSamMapping(new Text(record2)));
+		writer.write(new Text("ignored"), pair);
+		assertEquals(record2 + "\n", getOutput());
+	}
+
+	@Test
+	public void testWriteModifiedQualities() throws IOException
+	{
+		TextSamMapping map = new TextSamMapping(new Text(record1));
+		ByteBuffer qual = map.getBaseQualities();
+		qual.put(qual.position(), (byte)'I');
+		writer.write(null, new ReadPair(map, null));
+		assertEquals(record1.replace("#$%&'", "I$%&'") + "\n", getOutput());
+	}
+
+	@Test
+	public void testWriteBamMapping() throws IOException
+	{
+		SAMFileHeader header = new SAMFileHeader();
+		header.setSequenceDictionary(new SAMSequenceDictionary(Arrays.asList(new SAMSequenceRecord("chr6", 5000))));
+		SAMRecord sam = new SAMRecord(header);
+		sam.setReadName("read");
+		sam.setFlags(67);
+		sam.setReferenceName("chr6");
+		sam.setAlignmentStart(101);
+		sam.setMappingQuality(37);
+		sam.setCigarString("5M");
+		sam.setMateReferenceName("chr6");
+		sam.setMateAlignmentStart(301);
+		sam.setInferredInsertSize(205);
+		sam.setReadString("ACGTN");
+		sam.setBaseQualityString("#$%&'");
+		sam.setAttribute("RG", "grp");
+		sam.setAttribute("NM", 1);
+
+		BamMapping map = new BamMapping();
+		map.reset(sam);
+		writer.write(null, new ReadPair(map, null));
+		assertEquals(record1 + "\n", getOutput());
+	}
+
+	@Test
+	public void testFormatWritableMapping()
+	{
+		WritableMapping map = new WritableMapping("read", "ACGTN", "#$%&'");
+		map.setFlag(67);
+		map.setContig("chr6");
+		map.set5Position(101);
+		map.setMapQ(37);
+		map.setAlignment(AlignOp.scanCigar("5M"));
+		map.setTemplateLength(205);
+		map.setTag("RG", AbstractTaggedMapping.TagDataType.String, "grp");
+
+		WritableMapping mate = new WritableMapping("read", "TTTTT", "IIIII");
+		mate.setFlag(147);
+		mate.setContig("chr6");
+		mate.set5Position(301);
+
+		assertEquals("read\t67\tchr6\t101\t37\t5M\t=\t301\t205\tACGTN\t#$%&'\tRG:Z:grp", SamOutputFormat.formatRecord(map, mate));
+	}
+
+	@Test
+	public void testFormatTemplateLengthSign()
+	{
+		WritableMapping map = new WritableMapping("read", "ACGTN", "#$%&'");
+		map.setFlag(131);
+		map.setContig("chr6");
+		map.set5Position(301);
+		map.setMapQ(37);
+		map.setAlignment(AlignOp.scanCigar("5M"));
+		map.setTemplateLength(205);
+
+		WritableMapping mate = new WritableMapping("read", "TTTTT", "IIIII");
+		mate.setFlag(67);
+		mate.setContig("chr6");
+		mate.set5Position(101);
+
+		// the rightmost mate gets a negative length
+		assertTrue(SamOutputFormat.formatRecord(map, mate).contains("\t=\t101\t-205\t"));
+		// even if the length was stored with the other sign
+		map.setTemplateLength(-205);
+		mate.set5Position(401);
+		assertTrue(SamOutputFormat.formatRecord(map, mate).contains("\t=\t401\t205\t"));
+
+		// same position:  read 1 is the leftmost
+		mate.set5Position(301);
+		assertTrue(SamOutputFormat.formatRecord(map, mate).contains("\t=\t301\t-205\t"));
+		map.setFlag(67);
+		assertTrue(SamOutputFormat.formatRecord(map, mate).contains("\t=\t301\t205\t"));
+
+		// the sign can't be determined
+		mate.setContig("chr7");
+		assertTrue(SamOutputFormat.formatRecord(map, mate).contains("\tchr7\t301\t0\t"));
+		assertTrue(SamOutputFormat.formatRecord(map, null).contains("\t*\t0\t0\t"));
+	}
+
+	@Test
+	public void testFormatUnmappedWritableMapping()
+	{
+		WritableMapping map = new WritableMapping("read", "ACGTN", "#$%&'");
+		map.setFlag(4);
+		assertEquals("read\t4\t*\t0\t0\t*\t*\t0\t0\tACGTN\t#$%&'", SamOutputFormat.formatRecord(map, null));
+	}
+
+	@Test
+	public void testWriteHeader() throws IOException
+	{
+		SAMFileHeader header = new SAMFileHeader();
+		header.setSequenceDictionary(new SAMSequenceDictionary(Arrays.asList(new SAMSequenceRecord("chr6", 5000))));
+
+		writer = new SamRecordWriter(new DataOutputStream(outputBuffer), header);
+		writer.write(null, new ReadPair(new TextSamMapping(new Text(record1)), null));
+		String[] lines = getOutput().split("\n");
+		assertEquals(3, lines.length);
+		assertTrue(lines[0].startsWith("@HD"));
+		assertEquals("@SQ\tSN:chr6\tLN:5000", lines[1]);
+		assertEquals(record1, lines[2]);
+	}
+
+	public static void main(String args[]) {
+		org.junit.runner.JUnitCore.main(TestSamOutputFormat.class.getName());
+	}
+}
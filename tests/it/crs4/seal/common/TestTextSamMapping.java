@@ -21,6 +21,7 @@ import org.junit.*;
 import static org.junit.Assert.*;
 
 import it.crs4.seal.common.FormatException;
+import it.crs4.seal.common.AbstractTaggedMapping;
 import it.crs4.seal.common.TextSamMapping;
 
 import org.apache.hadoop.io.Text;
@@ -67,6 +68,39 @@ public class TestTextSamMapping
 		assertEquals("5:CB:CCBCCB>:C@;BBBB??B;?>1@@=C=4ACCAB3A8=CC=C?CBC=CBCCCCCCCCCCCCC@5>?=?CAAB=3=>====5>=AC?C", s);
 	}
 
+	@Test
+	public void testReset() throws NoSuchFieldException
+	{
+		TextSamMapping map = new TextSamMapping(new Text(sam));
+		assertEquals("91", map.getTag("MD"));
+		assertEquals(91, map.getAlignment().get(0).getLen());
+
+		map.reset(new Text(unmapped));
+		assertEquals("UNMAPPED", map.getName());
+		assertTrue(map.isUnmapped());
+		assertFalse(map.isTemplateLengthAvailable());
+		assertEquals(5, map.getLength());
+		assertEquals("AGCTT", map.getSequenceString());
+		assertEquals("5:CB:", map.getBaseQualitiesString());
+		assertFalse(map.hasTag("MD"));
+
+		map.reset(new Text(sam.replace("91M", "90M1S").replace("MD:Z:91", "MD:Z:90")));
+		assertEquals(3558357, map.get5Position());
+		assertEquals(37, map.getMapQ());
+		assertEquals("90", map.getTag("MD"));
+		assertEquals(2, map.getAlignment().size());
+	}
+
+	@Test
+	public void testResetEmptyMapping() throws NoSuchFieldException
+	{
+		TextSamMapping map = new TextSamMapping();
+		map.reset(new Text(sam));
+		assertEquals("ERR020229.100000/1", map.getName());
+		assertEquals(91, map.getLength());
+		assertEquals("U", map.getTag("XT"));
+	}
+
 	@Test(expected=FormatException.class)
 	public void testEmpty()
 	{
@@ -91,6 +125,110 @@ public class TestTextSamMapping
 		TextSamMapping map = new TextSamMapping(new Text(differentSeqLengths));
 	}
 
+	@Test
+	public void testBadFieldReportedOnAccess()
+	{
+		// only the flag is parsed when loading the record
+		TextSamMapping map = new TextSamMapping(new Text(sam.replace("3558357", "pos")));
+		assertEquals("ERR020229.100000/1", map.getName());
+		try {
+			map.get5Position();
+			fail("bad position not reported");
+		}
+		catch (FormatException e) { }
+	}
+
+	@Test
+	public void testMapQ255()
+	{
+		TextSamMapping map = new TextSamMapping(new Text(sam.replace("\t37\t", "\t255\t")));
+		assertEquals(255, map.getMapQ());
+	}
+
+	@Test
+	public void testNegativeTemplateLength()
+	{
+		// flag 83:  paired, mate mapped, reverse strand, read 1
+		TextSamMapping map = new TextSamMapping(new Text(sam.replace("\t89\t", "\t83\t").replace("\t400\t", "\t-400\t")));
+		assertTrue(map.isTemplateLengthAvailable());
+		assertEquals(400, map.getTemplateLength());
+	}
+
+	@Test
+	public void testTagValueNotMistakenForTag()
+	{
+		MapMule m = new MapMule(new Text(unmapped + "\tXX:Z:MD:Z:1\tMD:Z:5"));
+		assertEquals("MD:Z:5", m.publicGetTagText("MD"));
+		assertEquals("XX:Z:MD:Z:1", m.publicGetTagText("XX"));
+	}
+
+	@Test
+	public void testTypedTags() throws NoSuchFieldException
+	{
+		TextSamMapping map = new TextSamMapping(new Text(unmapped + "\tXA:i:-12\tXF:f:1.5\tRG:Z:my group\tXC:A:c"));
+		assertEquals(-12, map.getIntTag("XA"));
+		assertEquals(-12.0, map.getDoubleTag("XA"), 0.0001);
+		assertEquals(1.5, map.getDoubleTag("XF"), 0.0001);
+		assertEquals("my group", map.getTag("RG"));
+		assertEquals(AbstractTaggedMapping.TagDataType.Int, map.getTagType("XA"));
+		assertEquals(AbstractTaggedMapping.TagDataType.String, map.getTagType("RG"));
+		assertEquals(AbstractTaggedMapping.TagDataType.Char, map.getTagType("XC"));
+
+		ByteBuffer buf = map.getTagBytes("RG");
+		assertEquals("my group", new String(buf.array(), buf.position(), buf.limit() - buf.position()));
+	}
+
+	@Test(expected=NumberFormatException.class)
+	public void testIntTagWrongType() throws NoSuchFieldException
+	{
+		TextSamMapping map = new TextSamMapping(new Text(sam));
+		map.getIntTag("MD");
+	}
+
+	@Test(expected=NoSuchFieldException.class)
+	public void testMissingTagBytes() throws NoSuchFieldException
+	{
+		TextSamMapping map = new TextSamMapping(new Text(sam));
+		map.getTagBytes("RG");
+	}
+
+	@Test
+	public void testMalformedTag() throws NoSuchFieldException
+	{
+		// a bad tag is only reported when it's requested
+		TextSamMapping map = new TextSamMapping(new Text(unmapped + "\tXX:i\tNM:i:3"));
+		assertEquals(3, map.getIntTag("NM"));
+		try {
+			map.getTag("XX");
+			fail("malformed tag not reported");
+		}
+		catch (FormatException e) { }
+	}
+
+	@Test
+	public void testManyTags() throws NoSuchFieldException
+	{
+		StringBuilder record = new StringBuilder(unmapped);
+		for (int i = 0; i < 40; ++i)
+			record.append("\tX").append((char)('0' + i)).append(":i:").append(i);
+
+		TextSamMapping map = new TextSamMapping(new Text(record.toString()));
+		for (int i = 0; i < 40; ++i)
+			assertEquals(i, map.getIntTag("X" + (char)('0' + i)));
+		assertFalse(map.hasTag("XY"));
+		assertFalse(map.hasTag("X"));
+	}
+
+	@Test
+	public void testTagsAfterReset() throws NoSuchFieldException
+	{
+		TextSamMapping map = new TextSamMapping(new Text(sam));
+		assertEquals(37, map.getIntTag("SM"));
+		map.reset(new Text(unmapped + "\tRG:Z:rg"));
+		assertFalse(map.hasTag("SM"));
+		assertEquals("rg", map.getTag("RG"));
+	}
+
 	@Test
 	public void testSimpleGetTagText()
 	{
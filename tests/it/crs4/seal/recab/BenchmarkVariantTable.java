@@ -23,6 +23,7 @@ import static org.junit.Assert.*;
 
 import it.crs4.seal.recab.VariantTable;
 import it.crs4.seal.recab.ArrayVariantTable;
+import it.crs4.seal.recab.BitmapVariantTable;
 import it.crs4.seal.recab.ArrayListVariantTable;
 import it.crs4.seal.recab.HashSetVariantTable;
 import it.crs4.seal.recab.VariantRegion;
@@ -170,7 +171,7 @@ public class BenchmarkVariantTable
 		File vcf = new File(args[0]);
 		VcfVariantReader vcfReader = new VcfVariantReader(new FileReader(vcf));
 
-		Class[] tableClasses = new Class[] { HashSetVariantTable.class, ArrayListVariantTable.class, ArrayVariantTable.class };
+		Class[] tableClasses = new Class[] { HashSetVariantTable.class, ArrayListVariantTable.class, ArrayVariantTable.class, BitmapVariantTable.class };
 
 		for (Class klas: tableClasses)
 		{
@@ -0,0 +1,175 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package tests.it.crs4.seal.recab;
+
+import it.crs4.seal.common.FormatException;
+import it.crs4.seal.recab.BinaryRecabTable;
+import it.crs4.seal.recab.CovariateList;
+import it.crs4.seal.recab.CycleCovariate;
+import it.crs4.seal.recab.ObservationCount;
+import it.crs4.seal.recab.RecabKey;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+
+public class TestBinaryRecabTable
+{
+	private CovariateList covariates;
+	private ByteArrayOutputStream buffer;
+	private BinaryRecabTable.Writer writer;
+
+	@Before
+	public void setup() throws IOException
+	{
+		covariates = new CovariateList(new Configuration());
+		buffer = new ByteArrayOutputStream();
+		writer = new BinaryRecabTable.Writer(buffer, covariates);
+	}
+
+	private BinaryRecabTable.Reader openReader() throws IOException
+	{
+		return new BinaryRecabTable.Reader(new ByteArrayInputStream(buffer.toByteArray()));
+	}
+
+	@Test
+	public void testEmpty() throws IOException
+	{
+		writer.close();
+		assertEquals(0, writer.getNumEntries());
+
+		BinaryRecabTable.Reader reader = openReader();
+		assertFalse(reader.next(new RecabKey(), new ObservationCount()));
+		// and stays at the end
+		assertFalse(reader.next(new RecabKey(), new ObservationCount()));
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException
+	{
+		List<RecabKey> keys = new ArrayList<RecabKey>();
+		keys.add(new RecabKey("rg1", 0));
+		keys.add(new RecabKey("rg1", 1));
+		keys.add(new RecabKey("rg1", 1000000));
+		keys.add(new RecabKey("rg2", 5));
+		keys.add(new RecabKey("rg3", covariates.getCardinality() - 1));
+
+		for (int i = 0; i < keys.size(); ++i)
+			writer.write(keys.get(i), new ObservationCount(100L * i + 1, i));
+		writer.close();
+		assertEquals(keys.size(), writer.getNumEntries());
+
+		BinaryRecabTable.Reader reader = openReader();
+		reader.checkCovariates(covariates);
+		RecabKey key = new RecabKey();
+		ObservationCount counts = new ObservationCount();
+		for (int i = 0; i < keys.size(); ++i)
+		{
+			assertTrue(reader.next(key, counts));
+			assertEquals(keys.get(i), key);
+			assertEquals(new ObservationCount(100L * i + 1, i), counts);
+		}
+		assertFalse(reader.next(key, counts));
+	}
+
+	@Test
+	public void testLargeCounts() throws IOException
+	{
+		writer.write(new RecabKey("rg", 3), new ObservationCount(Long.MAX_VALUE / 2, 1L << 40));
+		writer.close();
+
+		ObservationCount counts = new ObservationCount();
+		assertTrue(openReader().next(new RecabKey(), counts));
+		assertEquals(Long.MAX_VALUE / 2, counts.getObservations());
+		assertEquals(1L << 40, counts.getMismatches());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testUnsortedCodes() throws IOException
+	{
+		writer.write(new RecabKey("rg", 10), new ObservationCount(1, 0));
+		writer.write(new RecabKey("rg", 10), new ObservationCount(1, 0));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testUnsortedReadGroups() throws IOException
+	{
+		writer.write(new RecabKey("rg2", 1), new ObservationCount(1, 0));
+		writer.write(new RecabKey("rg1", 2), new ObservationCount(1, 0));
+	}
+
+	@Test
+	public void testIsBinaryTable() throws IOException
+	{
+		writer.close();
+		BufferedInputStream in = new BufferedInputStream(new ByteArrayInputStream(buffer.toByteArray()));
+		assertTrue(BinaryRecabTable.isBinaryTable(in));
+		// the stream is reset
+		assertEquals('S', in.read());
+
+		assertFalse(BinaryRecabTable.isBinaryTable(new BufferedInputStream(new ByteArrayInputStream("rg,33,1,NN,1,0,40\n".getBytes()))));
+		assertFalse(BinaryRecabTable.isBinaryTable(new BufferedInputStream(new ByteArrayInputStream(new byte[0]))));
+	}
+
+	@Test(expected=FormatException.class)
+	public void testDifferentCovariates() throws IOException
+	{
+		writer.close();
+		Configuration conf = new Configuration();
+		conf.setInt(CycleCovariate.CONF_MAX_CYCLE, 200);
+		openReader().checkCovariates(new CovariateList(conf));
+	}
+
+	@Test
+	public void testGetCovariates() throws IOException
+	{
+		writer.close();
+		assertArrayEquals(BinaryRecabTable.describeCovariates(covariates), openReader().getCovariates());
+	}
+
+	@Test(expected=FormatException.class)
+	public void testNotATable() throws IOException
+	{
+		new BinaryRecabTable.Reader(new ByteArrayInputStream("rg,33,1,NN,1,0,40\n".getBytes()));
+	}
+
+	@Test(expected=FormatException.class)
+	public void testTruncated() throws IOException
+	{
+		writer.write(new RecabKey("rg", 3), new ObservationCount(10, 1));
+		writer.close();
+		byte[] data = buffer.toByteArray();
+		byte[] truncated = new byte[data.length - 2];
+		System.arraycopy(data, 0, truncated, 0, truncated.length);
+
+		BinaryRecabTable.Reader reader = new BinaryRecabTable.Reader(new ByteArrayInputStream(truncated));
+		reader.next(new RecabKey(), new ObservationCount());
+	}
+
+	public static void main(String args[]) {
+		org.junit.runner.JUnitCore.main(TestBinaryRecabTable.class.getName());
+	}
+}
@@ -0,0 +1,154 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package tests.it.crs4.seal.recab;
+
+import it.crs4.seal.recab.CovariateList;
+import it.crs4.seal.recab.CycleCovariate;
+import it.crs4.seal.recab.DinucCovariate;
+import it.crs4.seal.recab.QualityCovariate;
+import it.crs4.seal.recab.ReadGroupCovariate;
+import it.crs4.seal.recab.RecabKey;
+import it.crs4.seal.common.TextSamMapping;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class TestCovariateList
+{
+	private static final String sam = "id	67	chr6	1	37	6M	=	41	60	AGCTTC	5:CB:C	RG:Z:myrg";
+
+	private Configuration conf;
+	private CovariateList list;
+
+	@Before
+	public void setup()
+	{
+		conf = new Configuration();
+	}
+
+	@Test
+	public void testDefaultList()
+	{
+		list = new CovariateList(conf);
+		assertEquals(4, list.size());
+		assertTrue(list.get(0) instanceof ReadGroupCovariate);
+		assertTrue(list.get(1) instanceof QualityCovariate);
+		assertTrue(list.get(2) instanceof CycleCovariate);
+		assertTrue(list.get(3) instanceof DinucCovariate);
+		assertEquals((long)QualityCovariate.NumQualities * (2*CycleCovariate.CONF_MAX_CYCLE_DEFAULT + 2) * DinucCovariate.NumDinucCodes,
+		    list.getCardinality());
+	}
+
+	@Test
+	public void testConfiguredList()
+	{
+		conf.set(CovariateList.CONF_COVARIATES, " dinuc, Quality ");
+		list = new CovariateList(conf);
+		assertEquals(2, list.size());
+		assertTrue(list.get(0) instanceof DinucCovariate);
+		assertTrue(list.get(1) instanceof QualityCovariate);
+		assertEquals("Dinuc", list.getColumnName(0));
+		assertEquals("QualityScore", list.getColumnName(1));
+		assertEquals(DinucCovariate.NumDinucCodes * QualityCovariate.NumQualities, list.getCardinality());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testUnknownCovariate()
+	{
+		conf.set(CovariateList.CONF_COVARIATES, "ReadGroup,Position");
+		new CovariateList(conf);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testDuplicateCovariate()
+	{
+		conf.set(CovariateList.CONF_COVARIATES, "Quality,Cycle,quality");
+		new CovariateList(conf);
+	}
+
+	@Test
+	public void testCodesMatchValues()
+	{
+		list = new CovariateList(conf);
+		list.applyToMapping(new TextSamMapping(new Text(sam)));
+		assertEquals("myrg", list.getReadGroup());
+
+		RecabKey key = new RecabKey();
+		RecabKey expected = new RecabKey();
+		for (int pos = 0; pos < 6; ++pos)
+		{
+			key.set(list.getReadGroup(), list.getCode(pos));
+			String[] values = new String[list.size()];
+			for (int i = 0; i < list.size(); ++i)
+			{
+				values[i] = list.get(i).getValue(pos);
+				assertEquals(values[i], list.getValue(key, i));
+			}
+
+			list.encode(values, expected);
+			assertEquals(expected, key);
+		}
+	}
+
+	@Test
+	public void testAppendValues()
+	{
+		list = new CovariateList(conf);
+		RecabKey key = new RecabKey();
+		list.encode(new String[] { "rg", "30", "-12", "AG" }, key);
+
+		StringBuilder builder = new StringBuilder();
+		list.appendValues(key, builder, ",");
+		assertEquals("rg,30,-12,AG,", builder.toString());
+	}
+
+	@Test
+	public void testNoReadGroup()
+	{
+		conf.set(CovariateList.CONF_COVARIATES, "Cycle");
+		list = new CovariateList(conf);
+		list.applyToMapping(new TextSamMapping(new Text(sam)));
+		assertEquals("", list.getReadGroup());
+
+		RecabKey key = new RecabKey();
+		list.encode(new String[] { "5" }, key);
+		assertEquals(list.getCode(4), key.getCode());
+		assertEquals("", key.getReadGroup());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testEncodeWrongNumberOfValues()
+	{
+		list = new CovariateList(conf);
+		list.encode(new String[] { "rg", "30" }, new RecabKey());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testEncodeBadValue()
+	{
+		list = new CovariateList(conf);
+		list.encode(new String[] { "rg", "30", "x", "AG" }, new RecabKey());
+	}
+
+	public static void main(String args[]) {
+		org.junit.runner.JUnitCore.main(TestCovariateList.class.getName());
+	}
+}
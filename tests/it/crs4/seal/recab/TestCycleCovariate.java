@@ -25,6 +25,7 @@ import static org.junit.Assert.*;
 
 import java.util.ArrayList;
 
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.Text;
 
 public class TestCycleCovariate
@@ -112,4 +113,63 @@ public class TestCycleCovariate
 		cov.applyToMapping(mapping);
 		cov.getValue(100);
 	}
+
+	@Test
+	public void testOverflowRead1()
+	{
+		Configuration conf = new Configuration();
+		conf.setInt(CycleCovariate.CONF_MAX_CYCLE, 50);
+		cov = new CycleCovariate(conf);
+		mapping = new TextSamMapping( new Text(sam.replace("flag", "67")) );
+		cov.applyToMapping(mapping);
+
+		assertEquals(102, cov.getCardinality());
+		assertEquals(50, cov.getCycle(49));
+		assertEquals("50", cov.getValue(49));
+		assertEquals(100, cov.getCode(49));
+		assertEquals("50", cov.decode(cov.getCode(49)));
+
+		// cycles 51 to 91 share the overflow code, and getValue agrees with decode
+		for (int i = 50; i < 91; ++i)
+		{
+			assertEquals(i + 1, cov.getCycle(i));
+			assertEquals(101, cov.getCode(i));
+			assertEquals(CycleCovariate.OverflowValue, cov.getValue(i));
+			assertEquals(cov.getValue(i), cov.decode(cov.getCode(i)));
+		}
+		assertEquals(101, cov.encode(CycleCovariate.OverflowValue));
+	}
+
+	@Test
+	public void testOverflowRead2()
+	{
+		Configuration conf = new Configuration();
+		conf.setInt(CycleCovariate.CONF_MAX_CYCLE, 50);
+		cov = new CycleCovariate(conf);
+		// read 2 on the reverse strand:  the last base is cycle -1
+		mapping = new TextSamMapping( new Text(sam.replace("flag", "147")) );
+		cov.applyToMapping(mapping);
+
+		assertEquals(-1, cov.getCycle(90));
+		assertEquals("-1", cov.decode(cov.getCode(90)));
+		assertEquals(-50, cov.getCycle(41));
+		assertEquals(0, cov.getCode(41));
+		assertEquals("-50", cov.getValue(41));
+
+		for (int i = 0; i <= 40; ++i)
+		{
+			assertEquals(-(91 - i), cov.getCycle(i));
+			assertEquals(101, cov.getCode(i));
+			assertEquals(CycleCovariate.OverflowValue, cov.getValue(i));
+			assertEquals(cov.getValue(i), cov.decode(cov.getCode(i)));
+		}
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testEncodeBeyondMaxCycle()
+	{
+		Configuration conf = new Configuration();
+		conf.setInt(CycleCovariate.CONF_MAX_CYCLE, 50);
+		new CycleCovariate(conf).encode("51");
+	}
 }
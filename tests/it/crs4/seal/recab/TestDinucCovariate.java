@@ -115,6 +115,108 @@ public class TestDinucCovariate
 		cov.getValue(100);
 	}
 
+	@Test
+	public void testEncodeDecode()
+	{
+		String bases = "ACGTN";
+		for (int i = 0; i < bases.length(); ++i)
+		{
+			for (int j = 0; j < bases.length(); ++j)
+			{
+				String dinuc = "" + bases.charAt(i) + bases.charAt(j);
+				int code = cov.encode(dinuc);
+				assertTrue(code >= 0 && code < cov.getCardinality());
+				assertEquals(dinuc, cov.decode(code));
+			}
+		}
+	}
+
+	@Test
+	public void testGetCode()
+	{
+		String record = sam.replace("flag", "67"); // forward, read 1
+		mapping = new TextSamMapping( new Text(record) );
+		cov.applyToMapping(mapping);
+
+		for (int i = 0; i < dna.length(); ++i)
+			assertEquals(("at index " + i), cov.encode(cov.getValue(i)), cov.getCode(i));
+	}
+
+	@Test
+	public void testLongRead()
+	{
+		// longer than the initial buffers
+		StringBuilder longDna = new StringBuilder();
+		for (int i = 0; i < 60; ++i)
+			longDna.append("ACGTN");
+		String read = longDna.toString();
+		String quals = read.replaceAll(".", "B");
+
+		mapping = new TextSamMapping(new Text(sam.replace("flag", "67").replace(dna, read).replace("5:CB:C", quals)));
+		cov.applyToMapping(mapping);
+		assertEquals("NN", cov.getValue(0));
+		for (int i = 1; i < read.length(); ++i)
+		{
+			String expected = read.charAt(i-1) == 'N' ? "NN" : read.substring(i-1, i+1);
+			assertEquals("at index " + i, expected, cov.getValue(i));
+		}
+
+		mapping = new TextSamMapping(new Text(sam.replace("flag", "83").replace(dna, read).replace("5:CB:C", quals)));
+		cov.applyToMapping(mapping);
+		// the reverse complement of ACGTN is NACGT
+		assertEquals("NN", cov.getValue(read.length() - 1));
+		assertEquals("NN", cov.getValue(read.length() - 2));
+		assertEquals("AC", cov.getValue(read.length() - 3));
+		assertEquals("TN", cov.getValue(read.length() - 6));
+		assertEquals("GT", cov.getValue(0));
+	}
+
+	@Test
+	public void testShorterReadAfterLonger()
+	{
+		mapping = new TextSamMapping(new Text(sam.replace("flag", "67")));
+		cov.applyToMapping(mapping);
+		mapping = new TextSamMapping(new Text(sam.replace("flag", "67").replace(dna, "GA").replace("5:CB:C", "BB")));
+		cov.applyToMapping(mapping);
+		assertEquals("NN", cov.getValue(0));
+		assertEquals("GA", cov.getValue(1));
+	}
+
+	@Test(expected=IndexOutOfBoundsException.class)
+	public void testOutOfBoundsAfterShorterRead()
+	{
+		mapping = new TextSamMapping(new Text(sam.replace("flag", "67")));
+		cov.applyToMapping(mapping);
+		mapping = new TextSamMapping(new Text(sam.replace("flag", "67").replace(dna, "GA").replace("5:CB:C", "BB")));
+		cov.applyToMapping(mapping);
+		cov.getCode(3);
+	}
+
+	@Test
+	public void testUnknownBasesAreN()
+	{
+		String record = sam.replace("flag", "67").replace(dna, "AGCXTC");
+		mapping = new TextSamMapping(new Text(record));
+		cov.applyToMapping(mapping);
+
+		// like an N, an unknown base makes the following dinucleotide NN
+		answers = Arrays.asList( "NN", "AG", "GC", "CN", "NN", "TC" );
+		for (int i = 0; i < answers.size(); ++i)
+			assertEquals(("at index " + i), answers.get(i), cov.getValue(i));
+	}
+
+	@Test
+	public void testReverseUnknownBasesAreN()
+	{
+		String record = sam.replace("flag", "83").replace(dna, "AGCXTC");
+		mapping = new TextSamMapping(new Text(record));
+		cov.applyToMapping(mapping);
+
+		answers = Arrays.asList( "CT", "GC", "NN", "AN", "GA", "NN" );
+		for (int i = 0; i < answers.size(); ++i)
+			assertEquals(("at index " + i), answers.get(i), cov.getValue(i));
+	}
+
 	public static void main(String args[]) {
 		org.junit.runner.JUnitCore.main(TestDinucCovariate.class.getName());
 	}
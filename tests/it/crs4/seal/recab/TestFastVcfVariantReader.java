@@ -0,0 +1,295 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package tests.it.crs4.seal.recab;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+
+import it.crs4.seal.common.FormatException;
+import it.crs4.seal.recab.FastVcfVariantReader;
+import it.crs4.seal.recab.VcfVariantReader;
+import it.crs4.seal.recab.VariantRegion;
+
+public class TestFastVcfVariantReader
+{
+
+	private String vcfSample =
+		"##fileformat=VCFv4.1\n"	+
+		"##FILTER=<ID=NC,Description=\"Inconsistent	Genotype	Submission	For	At	Least	One	Sample\">	_level=INFO	log_to_file=null	help=false	out=org.broadinstitute.sting.gatk.io.stubs.VCFWriterStub	NO_HEADER=org.broadinstitute.sting.gatk.io.stubs.VCFWriterStub	sites_only=org.broadinstitute.sting.gatk.io.stubs.VCFWriterStub\n"	+
+		"##dbSNP_BUILD_ID=132\n"	+
+		"##source=dbSNP\n"	+
+		"#CHROM	POS	ID	REF	ALT	QUAL	FILTER	INFO\n"	+
+		"1	10327	rs112750067	T	C	.	PASS	VC=SNP;VP=050000000005000000000100;WGT=1;dbSNPBuildID=132\n"	+
+		"1	10433	rs56289060	A	AC	.	PASS	VC=INDEL\n"	+
+		"1	10439	rs112766696	AC	A	.	PASS	VC=INDEL\n"	+
+		"2	10440	rs112155239	C	A	.	PASS	VC=SNP";
+
+	private String vcfNoColumnHeading =
+		"##fileformat=VCFv4.1\n"	+
+		"2	10440	rs112155239	C	A	.	PASS	VC=SNP";
+
+	private String vcfNoRecords =
+		"##fileformat=VCFv4.1\n" +
+		"#CHROM	POS	ID	REF	ALT	QUAL	FILTER	INFO\n";
+
+	private String vcfMissingMagic =
+		"#CHROM	POS	ID	REF	ALT	QUAL	FILTER	INFO\n"	+
+		"1	10327	rs112750067	T	C	.	PASS	VC=SNP";
+
+	private String vcfNumberFormatError =
+		"##fileformat=VCFv4.1"	+
+		"#CHROM	POS	ID	REF	ALT	QUAL	FILTER	INFO\n"	+
+		"1	bla	rs112750067	T	C	.	PASS	VC=SNP";
+
+
+	private String vcfDel =
+		"##fileformat=VCFv4.1\n"	+
+		"#CHROM	POS	ID	REF	ALT	QUAL	FILTER	INFO\n"	+
+		"1	10439	rs112766696	AC	A	.	PASS	VC=INDEL\n";
+
+	private FastVcfVariantReader snpReader;
+
+	private static FastVcfVariantReader makeReader(String data) throws IOException
+	{
+		return new FastVcfVariantReader(new ByteArrayInputStream(data.getBytes("US-ASCII")));
+	}
+	private VariantRegion variant;
+
+	@Before
+	public void setup()
+	{
+		variant = new VariantRegion();
+	}
+
+	@Test
+	public void testDefault() throws IOException
+	{
+		snpReader = makeReader((vcfSample) );
+		assertTrue(snpReader.getReadSnpsOnly());
+	}
+
+	@Test
+	public void testFilter() throws IOException
+	{
+		snpReader = makeReader((vcfSample) );
+		int count = 0;
+
+		while (snpReader.nextEntry(variant))
+			++count;
+		assertEquals(2, count);
+	}
+
+	@Test
+	public void testDontFilter() throws IOException
+	{
+		snpReader = makeReader((vcfSample) );
+		snpReader.setReadSnpsOnly(false);
+		int count = 0;
+
+		while (snpReader.nextEntry(variant))
+			++count;
+		assertEquals(4, count);
+	}
+
+	@Test
+	public void testReading() throws IOException
+	{
+		snpReader = makeReader((vcfSample) );
+
+		assertTrue(snpReader.nextEntry(variant));
+		assertEquals("1", variant.getContigName());
+		assertEquals(10327, variant.getPosition());
+		assertEquals(1, variant.getLength());
+
+		assertTrue(snpReader.nextEntry(variant));
+		assertEquals("2", variant.getContigName());
+		assertEquals(10440, variant.getPosition());
+		assertEquals(1, variant.getLength());
+	}
+
+	@Test(expected=FormatException.class)
+	public void testEmpty() throws IOException
+	{
+		snpReader = makeReader(("") );
+	}
+
+	@Test(expected=FormatException.class)
+	public void testNumberFormatError() throws IOException
+	{
+		snpReader = makeReader((vcfNumberFormatError) );
+		snpReader.nextEntry(variant);
+	}
+
+	@Test(expected=FormatException.class)
+	public void testNoColumnHeadings() throws IOException
+	{
+		snpReader = makeReader((vcfNoColumnHeading) );
+	}
+
+	@Test(expected=FormatException.class)
+	public void testNoRecords() throws IOException
+	{
+		snpReader = makeReader((vcfNoRecords) );
+		snpReader.nextEntry(variant);
+	}
+
+	@Test(expected=FormatException.class)
+	public void testMissingMagic() throws IOException
+	{
+		snpReader = makeReader((vcfMissingMagic) );
+	}
+
+	@Test
+	public void testMultiBaseVariant() throws IOException
+	{
+		snpReader = makeReader((vcfDel) );
+		snpReader.setReadSnpsOnly(false);
+
+		assertTrue(snpReader.nextEntry(variant));
+		assertEquals("1", variant.getContigName());
+		assertEquals(10439, variant.getPosition());
+		assertEquals(2, variant.getLength());
+	}
+
+	@Test
+	public void testByteBuffer() throws IOException
+	{
+		snpReader = new FastVcfVariantReader(ByteBuffer.wrap(vcfSample.getBytes("US-ASCII")));
+		snpReader.setReadSnpsOnly(false);
+		checkSameAsVcfVariantReader(vcfSample, snpReader);
+	}
+
+	@Test
+	public void testMappedFile() throws IOException
+	{
+		File tempFile = File.createTempFile("test_fast_vcf_reader", ".vcf");
+		try {
+			FileOutputStream out = new FileOutputStream(tempFile);
+			out.write(vcfSample.getBytes("US-ASCII"));
+			out.close();
+
+			snpReader = FastVcfVariantReader.open(tempFile);
+			checkSameAsVcfVariantReader(vcfSample, snpReader);
+		}
+		finally {
+			tempFile.delete();
+		}
+	}
+
+	@Test
+	public void testCrLf() throws IOException
+	{
+		String dosVcf = vcfSample.replace("\n", "\r\n");
+		snpReader = makeReader(dosVcf);
+		assertTrue(snpReader.nextEntry(variant));
+		assertEquals("1", variant.getContigName());
+		assertEquals(10327, variant.getPosition());
+		assertTrue(snpReader.nextEntry(variant));
+		assertEquals("2", variant.getContigName());
+		assertFalse(snpReader.nextEntry(variant));
+	}
+
+	@Test
+	public void testSnpWordBoundaries() throws IOException
+	{
+		String vcf =
+			"##fileformat=VCFv4.1\n"	+
+			"#CHROM	POS	ID	REF	ALT	QUAL	FILTER	INFO\n"	+
+			"1	1	rs1	T	C	.	PASS	XVC=SNP\n" +
+			"1	2	rs2	T	C	.	PASS	VC=SNPS\n" +
+			"1	3	rs3	T	C	.	PASS	A=1;VC=SNP;B=2\n" +
+			"1	4	rs4	T	C	.	PASS	A=1;VC=SNP\n";
+		snpReader = makeReader(vcf);
+		checkSameAsVcfVariantReader(vcf, snpReader);
+	}
+
+	@Test
+	public void testLinesLongerThanBuffer() throws IOException
+	{
+		StringBuilder info = new StringBuilder("VC=SNP");
+		for (int i = 0; i < 300000; ++i)
+			info.append(";X=1");
+
+		StringBuilder vcf = new StringBuilder("##fileformat=VCFv4.1\n#CHROM	POS	ID	REF	ALT	QUAL	FILTER	INFO\n");
+		for (int i = 1; i <= 10; ++i)
+			vcf.append("chr").append(i).append("	").append(i * 100).append("	rs1	T	C	.	PASS	").append(info).append("\n");
+
+		snpReader = makeReader(vcf.toString());
+		checkSameAsVcfVariantReader(vcf.toString(), snpReader);
+	}
+
+	@Test(expected=FormatException.class)
+	public void testTooFewFields() throws IOException
+	{
+		snpReader = makeReader(
+			"##fileformat=VCFv4.1\n"	+
+			"#CHROM	POS	ID	REF	ALT	QUAL	FILTER	INFO\n"	+
+			"1	10327	rs112750067	T	C\n");
+		snpReader.nextEntry(variant);
+	}
+
+	@Test(expected=FormatException.class)
+	public void testBadPosition() throws IOException
+	{
+		snpReader = makeReader(
+			"##fileformat=VCFv4.1\n"	+
+			"#CHROM	POS	ID	REF	ALT	QUAL	FILTER	INFO\n"	+
+			"1	10a27	rs112750067	T	C	.	PASS	VC=SNP\n");
+		snpReader.nextEntry(variant);
+	}
+
+	@Test(expected=RuntimeException.class)
+	public void testPositionTooBig() throws IOException
+	{
+		snpReader = makeReader(
+			"##fileformat=VCFv4.1\n"	+
+			"#CHROM	POS	ID	REF	ALT	QUAL	FILTER	INFO\n"	+
+			"1	4500000000	rs112750067	T	C	.	PASS	VC=SNP\n");
+		snpReader.nextEntry(variant);
+	}
+
+	private void checkSameAsVcfVariantReader(String vcf, FastVcfVariantReader fastReader) throws IOException
+	{
+		VcfVariantReader reader = new VcfVariantReader(new StringReader(vcf));
+		reader.setReadSnpsOnly(fastReader.getReadSnpsOnly());
+		VariantRegion expected = new VariantRegion();
+
+		boolean more;
+		do {
+			more = reader.nextEntry(expected);
+			assertEquals(more, fastReader.nextEntry(variant));
+			if (more)
+			{
+				assertEquals(expected.getContigName(), variant.getContigName());
+				assertEquals(expected.getPosition(), variant.getPosition());
+				assertEquals(expected.getLength(), variant.getLength());
+			}
+		} while (more);
+	}
+
+	public static void main(String args[]) {
+		org.junit.runner.JUnitCore.main(TestFastVcfVariantReader.class.getName());
+	}
+}
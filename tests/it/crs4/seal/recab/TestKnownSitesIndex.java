@@ -0,0 +1,246 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package tests.it.crs4.seal.recab;
+
+import it.crs4.seal.recab.BitmapVariantTable;
+import it.crs4.seal.recab.KnownSitesIndex;
+import it.crs4.seal.recab.RodFileVariantReader;
+import it.crs4.seal.recab.VariantTable;
+import it.crs4.seal.recab.VcfVariantReader;
+import it.crs4.seal.common.FormatException;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class TestKnownSitesIndex
+{
+	private static final String vcf =
+		"##fileformat=VCFv4.1\n" +
+		"#CHROM	POS	ID	REF	ALT	QUAL	FILTER	INFO\n" +
+		"1	10259	rs1	C	A	.	PASS	VC=SNP\n" +
+		"1	14435	rs2	G	C	.	PASS	VC=SNP\n" +
+		"2	5	rs3	ACG	A	.	PASS	VC=INDEL\n" +
+		"1	11000	rs4	C	A	.	PASS	VC=SNP\n";
+
+	private KnownSitesIndex index;
+	private File tempFile;
+
+	@Before
+	public void setup() throws IOException
+	{
+		index = new KnownSitesIndex();
+		tempFile = File.createTempFile("test_known_sites_index", ".bin");
+	}
+
+	@After
+	public void tearDown()
+	{
+		tempFile.delete();
+	}
+
+	private VcfVariantReader makeReader()
+	{
+		try {
+			VcfVariantReader reader = new VcfVariantReader(new StringReader(vcf));
+			reader.setReadSnpsOnly(false);
+			return reader;
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void writeIndex() throws IOException
+	{
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile));
+		KnownSitesIndex.write(makeReader(), out);
+		out.close();
+	}
+
+	private void checkTable(VariantTable table)
+	{
+		assertEquals(6, table.size());
+		assertEquals(2, table.getContigs().size());
+		assertTrue(table.isVariantLocation("1", 10259));
+		assertTrue(table.isVariantLocation("1", 11000));
+		assertTrue(table.isVariantLocation("1", 14435));
+		assertTrue(table.isVariantLocation("2", 5));
+		assertTrue(table.isVariantLocation("2", 6));
+		assertTrue(table.isVariantLocation("2", 7));
+		assertFalse(table.isVariantLocation("1", 10260));
+		assertFalse(table.isVariantLocation("1", 1));
+		assertFalse(table.isVariantLocation("1", 20000));
+		assertFalse(table.isVariantLocation("2", 8));
+		assertFalse(table.isVariantLocation("3", 5));
+	}
+
+	@Test
+	public void testLoad() throws IOException
+	{
+		index.load(makeReader());
+		checkTable(index);
+	}
+
+	@Test
+	public void testWriteAndMap() throws IOException
+	{
+		writeIndex();
+		index.loadMapped(tempFile);
+		checkTable(index);
+	}
+
+	@Test
+	public void testOpen() throws IOException
+	{
+		writeIndex();
+		VariantTable table = KnownSitesIndex.open(tempFile);
+		assertTrue(table instanceof KnownSitesIndex);
+		checkTable(table);
+	}
+
+	@Test
+	public void testOpenBitmap() throws IOException
+	{
+		BitmapVariantTable bitmap = new BitmapVariantTable();
+		bitmap.load(makeReader());
+		bitmap.save(tempFile);
+
+		VariantTable table = KnownSitesIndex.open(tempFile);
+		assertTrue(table instanceof BitmapVariantTable);
+		checkTable(table);
+	}
+
+	@Test(expected=FormatException.class)
+	public void testBadMagic() throws IOException
+	{
+		FileOutputStream out = new FileOutputStream(tempFile);
+		out.write("not an index, but long enough".getBytes());
+		out.close();
+		index.loadMapped(tempFile);
+	}
+
+	private void corruptLastByte() throws IOException
+	{
+		RandomAccessFile f = new RandomAccessFile(tempFile, "rw");
+		f.seek(f.length() - 1);
+		int b = f.read();
+		f.seek(f.length() - 1);
+		f.write(b ^ 0xFF);
+		f.close();
+	}
+
+	@Test(expected=FormatException.class)
+	public void testCorruptData() throws IOException
+	{
+		writeIndex();
+		corruptLastByte();
+		index.loadMapped(tempFile, true);
+	}
+
+	@Test
+	public void testCorruptDataNotVerifiedByDefault() throws IOException
+	{
+		writeIndex();
+		corruptLastByte();
+		index.loadMapped(tempFile);
+		assertEquals(6, index.size());
+	}
+
+	@Test
+	public void testVerify() throws IOException
+	{
+		writeIndex();
+		InputStream in = new FileInputStream(tempFile);
+		try {
+			KnownSitesIndex.verify(in, tempFile.toString());
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	@Test(expected=FormatException.class)
+	public void testVerifyCorruptData() throws IOException
+	{
+		writeIndex();
+		corruptLastByte();
+		InputStream in = new FileInputStream(tempFile);
+		try {
+			KnownSitesIndex.verify(in, tempFile.toString());
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	@Test(expected=FormatException.class)
+	public void testVerifyTruncated() throws IOException
+	{
+		writeIndex();
+		RandomAccessFile f = new RandomAccessFile(tempFile, "rw");
+		f.setLength(f.length() - 4);
+		f.close();
+		InputStream in = new FileInputStream(tempFile);
+		try {
+			KnownSitesIndex.verify(in, tempFile.toString());
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	@Test(expected=FormatException.class)
+	public void testTruncated() throws IOException
+	{
+		writeIndex();
+		RandomAccessFile f = new RandomAccessFile(tempFile, "rw");
+		f.setLength(f.length() - 4);
+		f.close();
+		index.loadMapped(tempFile);
+	}
+
+	@Test(expected=RuntimeException.class)
+	public void testQueryTooBig() throws IOException
+	{
+		index.load(makeReader());
+		index.isVariantLocation("1", Integer.MAX_VALUE + 1L);
+	}
+
+	@Test
+	public void testRodInput() throws IOException
+	{
+		index.load(new RodFileVariantReader(new StringReader(
+		  "585	1	14435	14436	rs1045951	0	-	G	G	C/T	genomic	single	unknown	0	0	unknown	exact	3")));
+		assertEquals(1, index.size());
+		assertTrue(index.isVariantLocation("1", 14435));
+	}
+
+	public static void main(String args[]) {
+		org.junit.runner.JUnitCore.main(TestKnownSitesIndex.class.getName());
+	}
+}
@@ -0,0 +1,259 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package tests.it.crs4.seal.recab;
+
+import it.crs4.seal.common.IntervalSet;
+import it.crs4.seal.common.ReadPair;
+import it.crs4.seal.common.SamInputFormat;
+import it.crs4.seal.common.TestContext;
+import it.crs4.seal.common.Utils;
+import it.crs4.seal.recab.ArrayVariantTable;
+import it.crs4.seal.recab.CovariateList;
+import it.crs4.seal.recab.LocalRecabTable;
+import it.crs4.seal.recab.ObservationAccumulator;
+import it.crs4.seal.recab.ObservationCount;
+import it.crs4.seal.recab.RecabKey;
+import it.crs4.seal.recab.RecabTableMapper;
+import it.crs4.seal.recab.RecabTableReducer;
+import it.crs4.seal.recab.VariantReader;
+import it.crs4.seal.recab.VariantRegion;
+import it.crs4.seal.recab.VariantTable;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class TestLocalRecabTable
+{
+	private static final String littleSam = "LITTLE	67	chr6	1	37	3M	=	6	9	AGC	BCD	5:C	MD:Z:3	RG:Z:test";
+
+	private Configuration conf;
+	private LocalRecabTable tool;
+	private VariantTable snps;
+	private List<File> tempFiles;
+
+	@Before
+	public void setup() throws IOException
+	{
+		conf = new Configuration();
+		tool = new LocalRecabTable();
+		tool.setConf(conf);
+
+		ArrayVariantTable table = new ArrayVariantTable();
+		table.load(new VariantReader() {
+			private boolean done = false;
+			public boolean nextEntry(VariantRegion dest) {
+				if (done)
+					return false;
+				dest.set(new VariantRegion("chr6", 50));
+				done = true;
+				return true;
+			}
+		});
+		snps = table;
+		tempFiles = new ArrayList<File>();
+	}
+
+	@After
+	public void tearDown()
+	{
+		for (File f: tempFiles)
+			f.delete();
+	}
+
+	private Path writeSam(String sam) throws IOException
+	{
+		File f = File.createTempFile("test_local_recab_table", ".sam");
+		tempFiles.add(f);
+		PrintWriter out = new PrintWriter(new FileWriter(f));
+		out.write(sam);
+		out.close();
+		return new Path(f.toURI().toString());
+	}
+
+	private static String makeSam(int n, long seed)
+	{
+		Random rnd = new Random(seed);
+		String bases = "ACGT";
+		StringBuilder sam = new StringBuilder();
+		for (int i = 0; i < n; ++i)
+		{
+			StringBuilder seq = new StringBuilder();
+			StringBuilder qual = new StringBuilder();
+			for (int j = 0; j < 20; ++j)
+			{
+				seq.append(bases.charAt(rnd.nextInt(4)));
+				qual.append((char)('#' + rnd.nextInt(38)));
+			}
+			sam.append("READ").append(i).append(rnd.nextBoolean() ? "\t67" : "\t83")
+				.append("\tchr6\t").append(1 + rnd.nextInt(100)).append("\t37\t20M\t=\t1\t200\t")
+				.append(seq).append('\t').append(qual)
+				.append("\tMD:Z:").append(rnd.nextBoolean() ? "20" : "5A14")
+				.append("\tRG:Z:").append(i % 2 == 0 ? "rg1" : "rg2").append('\n');
+		}
+		return sam.toString();
+	}
+
+	/**
+	 * Compute the table the way the MapReduce job does:  one mapper per file,
+	 * then one reducer call per key in sorted order.
+	 */
+	private List<String> computeWithMapperAndReducer(List<Path> inputs) throws IOException, InterruptedException
+	{
+		ObservationAccumulator sums = new ObservationAccumulator();
+		for (Path p: inputs)
+		{
+			TestContext<RecabKey, ObservationCount> mapContext = new TestContext<RecabKey, ObservationCount>();
+			RecabTableMapper mapper = new RecabTableMapper();
+			mapper.setup(snps, mapContext, conf);
+
+			File f = new File(p.toUri());
+			SamInputFormat.SamRecordReader reader = new SamInputFormat.SamRecordReader();
+			reader.initialize(new FileSplit(p, 0, f.length(), null), Utils.getTaskAttemptContext(conf));
+			while (reader.nextKeyValue())
+				mapper.map(reader.getCurrentKey(), reader.getCurrentValue(), mapContext);
+			mapper.cleanup(mapContext);
+			reader.close();
+
+			Iterator< TestContext.Tuple<RecabKey, ObservationCount> > it = mapContext.iterator();
+			while (it.hasNext())
+			{
+				TestContext.Tuple<RecabKey, ObservationCount> t = it.next();
+				sums.write(t.getKey(), t.getValue());
+			}
+		}
+
+		RecabTableReducer reducer = new RecabTableReducer();
+		reducer.setup(conf);
+		final List<String> lines = new ArrayList<String>();
+		// the reducer reuses its output value, so save its text as it's written
+		TestContext<Text, Text> redContext = new TestContext<Text, Text>() {
+			public void write(Text key, Text value) { lines.add(value.toString()); }
+		};
+		for (RecabKey key: sums.getSortedKeys())
+			reducer.reduce(key, Collections.singletonList(sums.get(key)), redContext);
+		return lines;
+	}
+
+	private List<String> runTool(List<Path> inputs, int nThreads, boolean header) throws IOException, InterruptedException
+	{
+		ObservationAccumulator observations = tool.countObservations(inputs, "sam", snps, nThreads);
+		StringWriter out = new StringWriter();
+		tool.writeTable(observations, out, header);
+		return Arrays.asList(out.toString().split("\n"));
+	}
+
+	@Test
+	public void testSimple() throws IOException, InterruptedException
+	{
+		List<String> lines = runTool(Arrays.asList(writeSam(littleSam)), 1, false);
+		assertEquals(Arrays.asList("test,33,1,NN,1,0,40", "test,34,2,AG,1,0,40", "test,35,3,GC,1,0,40"), lines);
+	}
+
+	@Test
+	public void testHeader() throws IOException, InterruptedException
+	{
+		List<String> lines = runTool(Arrays.asList(writeSam(littleSam)), 1, true);
+		assertEquals(4, lines.size());
+		assertEquals("ReadGroup,QualityScore,Cycle,Dinuc,nObservations,nMismatches,Qempirical", lines.get(0));
+	}
+
+	@Test
+	public void testHeaderFollowsCovariates() throws IOException, InterruptedException
+	{
+		conf.set(CovariateList.CONF_COVARIATES, "Cycle,Quality");
+		List<String> lines = runTool(Arrays.asList(writeSam(littleSam)), 1, true);
+		assertEquals("Cycle,QualityScore,nObservations,nMismatches,Qempirical", lines.get(0));
+		assertEquals("1,33,1,0,40", lines.get(1));
+	}
+
+	@Test
+	public void testSameAsMapReduce() throws IOException, InterruptedException
+	{
+		List<Path> inputs = Arrays.asList(writeSam(makeSam(500, 1)), writeSam(makeSam(300, 2)), writeSam(makeSam(10, 3)));
+		List<String> expected = computeWithMapperAndReducer(inputs);
+		assertFalse(expected.isEmpty());
+		assertEquals(expected, runTool(inputs, 3, false));
+	}
+
+	@Test
+	public void testSameAsMapReduceWithoutCombining() throws IOException, InterruptedException
+	{
+		conf.setBoolean(RecabTableMapper.CONF_IN_MAPPER_COMBINING, false);
+		List<Path> inputs = Arrays.asList(writeSam(makeSam(200, 1)), writeSam(makeSam(200, 2)));
+		assertEquals(computeWithMapperAndReducer(inputs), runTool(inputs, 2, false));
+	}
+
+	@Test
+	public void testCounters() throws IOException, InterruptedException
+	{
+		List<Path> inputs = Arrays.asList(writeSam(littleSam + "\n" + littleSam), writeSam(littleSam));
+		ObservationAccumulator observations = tool.countObservations(inputs, "sam", snps, 2);
+		assertEquals(3, observations.getCounterValue("it.crs4.seal.recab.RecabTableMapper$ReadCounters", "Processed"));
+		assertEquals(9, observations.getCounterValue("it.crs4.seal.recab.RecabTableMapper$BaseCounters", "Used"));
+		assertEquals(new ObservationCount(3, 0), observations.get(observations.getSortedKeys().get(0)));
+	}
+
+	@Test
+	public void testRegions() throws IOException, InterruptedException
+	{
+		IntervalSet regions = new IntervalSet();
+		regions.add("chr6", 2, 2);
+		tool.setRegions(regions);
+
+		List<Path> inputs = Arrays.asList(writeSam(littleSam + "\n" + littleSam), writeSam(littleSam));
+		ObservationAccumulator observations = tool.countObservations(inputs, "sam", snps, 2);
+		assertEquals(3, observations.getCounterValue("it.crs4.seal.recab.RecabTableMapper$BaseCounters", "Used"));
+		assertEquals(6, observations.getCounterValue("it.crs4.seal.recab.RecabTableMapper$BaseCounters", "OutsideRegions"));
+		assertEquals(1, observations.size());
+	}
+
+	@Test(expected=RuntimeException.class)
+	public void testErrorInChunk() throws IOException, InterruptedException
+	{
+		// no read group
+		tool.countObservations(Arrays.asList(writeSam(littleSam.replace("\tRG:Z:test", ""))), "sam", snps, 1);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testBadChunkSize() throws IOException, InterruptedException
+	{
+		conf.setInt(LocalRecabTable.CONF_CHUNK_SIZE_MB, 0);
+		tool.countObservations(Arrays.asList(writeSam(littleSam)), "sam", snps, 1);
+	}
+
+	public static void main(String args[]) {
+		org.junit.runner.JUnitCore.main(TestLocalRecabTable.class.getName());
+	}
+}
@@ -0,0 +1,215 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package tests.it.crs4.seal.recab;
+
+import it.crs4.seal.common.FormatException;
+import it.crs4.seal.recab.ArrayVariantTable;
+import it.crs4.seal.recab.BinaryRecabTable;
+import it.crs4.seal.recab.CovariateList;
+import it.crs4.seal.recab.CycleCovariate;
+import it.crs4.seal.recab.LocalRecabTable;
+import it.crs4.seal.recab.MergeRecabTables;
+import it.crs4.seal.recab.ObservationAccumulator;
+import it.crs4.seal.recab.ObservationCount;
+import it.crs4.seal.recab.RecabKey;
+import it.crs4.seal.recab.VariantReader;
+import it.crs4.seal.recab.VariantRegion;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+
+public class TestMergeRecabTables
+{
+	private Configuration conf;
+	private MergeRecabTables tool;
+	private CovariateList covariates;
+	private List<File> tempFiles;
+
+	@Before
+	public void setup()
+	{
+		conf = new Configuration();
+		tool = new MergeRecabTables();
+		tool.setConf(conf);
+		covariates = new CovariateList(conf);
+		tempFiles = new ArrayList<File>();
+	}
+
+	@After
+	public void tearDown()
+	{
+		for (File f: tempFiles)
+			f.delete();
+	}
+
+	private BinaryRecabTable.Reader makeTable(Object... entries) throws IOException
+	{
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		BinaryRecabTable.Writer writer = new BinaryRecabTable.Writer(buffer, covariates);
+		for (int i = 0; i < entries.length; i += 2)
+			writer.write((RecabKey)entries[i], (ObservationCount)entries[i+1]);
+		writer.close();
+		return new BinaryRecabTable.Reader(new ByteArrayInputStream(buffer.toByteArray()));
+	}
+
+	private List<Object> readAll(byte[] table) throws IOException
+	{
+		List<Object> result = new ArrayList<Object>();
+		BinaryRecabTable.Reader reader = new BinaryRecabTable.Reader(new ByteArrayInputStream(table));
+		RecabKey key = new RecabKey();
+		ObservationCount counts = new ObservationCount();
+		while (reader.next(key, counts))
+		{
+			result.add(new RecabKey(key.getReadGroup(), key.getCode()));
+			result.add(new ObservationCount(counts.getObservations(), counts.getMismatches()));
+		}
+		return result;
+	}
+
+	@Test
+	public void testMergeBinary() throws IOException, InterruptedException
+	{
+		List<BinaryRecabTable.Reader> inputs = Arrays.asList(
+			makeTable(new RecabKey("a", 1), new ObservationCount(10, 1), new RecabKey("b", 5), new ObservationCount(3, 0)),
+			makeTable(new RecabKey("a", 1), new ObservationCount(5, 2), new RecabKey("a", 7), new ObservationCount(1, 1)),
+			makeTable(),
+			makeTable(new RecabKey("a", 1), new ObservationCount(1, 0), new RecabKey("c", 0), new ObservationCount(2, 2)));
+
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		BinaryRecabTable.Writer writer = new BinaryRecabTable.Writer(buffer, covariates);
+		assertEquals(4, tool.merge(inputs, writer));
+		writer.close();
+
+		List<Object> expected = Arrays.asList((Object)
+			new RecabKey("a", 1), new ObservationCount(16, 3),
+			new RecabKey("a", 7), new ObservationCount(1, 1),
+			new RecabKey("b", 5), new ObservationCount(3, 0),
+			new RecabKey("c", 0), new ObservationCount(2, 2));
+		assertEquals(expected, readAll(buffer.toByteArray()));
+	}
+
+	@Test
+	public void testMergeNothing() throws IOException, InterruptedException
+	{
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		BinaryRecabTable.Writer writer = new BinaryRecabTable.Writer(buffer, covariates);
+		assertEquals(0, tool.merge(new ArrayList<BinaryRecabTable.Reader>(), writer));
+		writer.close();
+		assertTrue(readAll(buffer.toByteArray()).isEmpty());
+	}
+
+	@Test(expected=FormatException.class)
+	public void testIncompatibleTables() throws IOException, InterruptedException
+	{
+		BinaryRecabTable.Reader input = makeTable(new RecabKey("a", 1), new ObservationCount(10, 1));
+		conf.setInt(CycleCovariate.CONF_MAX_CYCLE, 200);
+		tool.merge(Arrays.asList(input), new StringWriter(), false);
+	}
+
+	private Path writeSam(String sam) throws IOException
+	{
+		File f = File.createTempFile("test_merge_recab_tables", ".sam");
+		tempFiles.add(f);
+		PrintWriter out = new PrintWriter(new FileWriter(f));
+		out.write(sam);
+		out.close();
+		return new Path(f.toURI().toString());
+	}
+
+	private static String makeSam(int n, long seed)
+	{
+		Random rnd = new Random(seed);
+		String bases = "ACGT";
+		StringBuilder sam = new StringBuilder();
+		for (int i = 0; i < n; ++i)
+		{
+			StringBuilder seq = new StringBuilder();
+			StringBuilder qual = new StringBuilder();
+			for (int j = 0; j < 20; ++j)
+			{
+				seq.append(bases.charAt(rnd.nextInt(4)));
+				qual.append((char)('#' + rnd.nextInt(38)));
+			}
+			sam.append("READ").append(i).append(rnd.nextBoolean() ? "\t67" : "\t83")
+				.append("\tchr6\t").append(1 + rnd.nextInt(100)).append("\t37\t20M\t=\t1\t200\t")
+				.append(seq).append('\t').append(qual)
+				.append("\tMD:Z:").append(rnd.nextBoolean() ? "20" : "5A14")
+				.append("\tRG:Z:").append(i % 2 == 0 ? "rg1" : "rg2").append('\n');
+		}
+		return sam.toString();
+	}
+
+	@Test
+	public void testIncrementalUpdate() throws IOException, InterruptedException
+	{
+		// a table computed in two batches and merged must be the same as the
+		// one computed on all the data at once
+		ArrayVariantTable snps = new ArrayVariantTable();
+		snps.load(new VariantReader() {
+			private boolean done = false;
+			public boolean nextEntry(VariantRegion dest) {
+				if (done)
+					return false;
+				dest.set(new VariantRegion("chr6", 50));
+				done = true;
+				return true;
+			}
+		});
+
+		LocalRecabTable local = new LocalRecabTable();
+		local.setConf(conf);
+		Path batch1 = writeSam(makeSam(300, 1));
+		Path batch2 = writeSam(makeSam(200, 2));
+
+		List<BinaryRecabTable.Reader> tables = new ArrayList<BinaryRecabTable.Reader>();
+		for (Path p: Arrays.asList(batch1, batch2))
+		{
+			ObservationAccumulator observations = local.countObservations(Arrays.asList(p), "sam", snps, 1);
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			local.writeBinaryTable(observations, buffer);
+			tables.add(new BinaryRecabTable.Reader(new ByteArrayInputStream(buffer.toByteArray())));
+		}
+		StringWriter merged = new StringWriter();
+		tool.merge(tables, merged, true);
+
+		StringWriter expected = new StringWriter();
+		local.writeTable(local.countObservations(Arrays.asList(batch1, batch2), "sam", snps, 2), expected, true);
+
+		assertTrue(expected.toString().startsWith(LocalRecabTable.tableHeader(new CovariateList(conf))));
+		assertEquals(expected.toString(), merged.toString());
+	}
+
+	public static void main(String args[]) {
+		org.junit.runner.JUnitCore.main(TestMergeRecabTables.class.getName());
+	}
+}
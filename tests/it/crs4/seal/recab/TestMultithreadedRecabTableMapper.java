@@ -0,0 +1,258 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package tests.it.crs4.seal.recab;
+
+import it.crs4.seal.common.ReadPair;
+import it.crs4.seal.common.TestContext;
+import it.crs4.seal.common.TextSamMapping;
+import it.crs4.seal.recab.ArrayVariantTable;
+import it.crs4.seal.recab.MultithreadedRecabTableMapper;
+import it.crs4.seal.recab.ObservationCount;
+import it.crs4.seal.recab.RecabKey;
+import it.crs4.seal.recab.RecabTableMapper;
+import it.crs4.seal.recab.VariantReader;
+import it.crs4.seal.recab.VariantRegion;
+import it.crs4.seal.recab.VariantTable;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class TestMultithreadedRecabTableMapper
+{
+	private static final String BaseCountersGroup = "it.crs4.seal.recab.RecabTableMapper$BaseCounters";
+	private static final String ReadCountersGroup = "it.crs4.seal.recab.RecabTableMapper$ReadCounters";
+
+	private static final String littleSam = "LITTLE	67	chr6	1	37	3M	=	6	9	AGC	BCD	5:C	MD:Z:3	RG:Z:test";
+	private static final String noRgSam = "NORG	67	chr6	1	37	3M	=	6	9	AGC	BCD	5:C	MD:Z:3";
+
+	private Configuration conf;
+	private VariantTable snps;
+	private TestContext<RecabKey, ObservationCount> context;
+	private MultithreadedRecabTableMapper mapper;
+
+	@Before
+	public void setup() throws IOException
+	{
+		conf = new Configuration();
+		conf.setInt(MultithreadedRecabTableMapper.CONF_MAP_THREADS, 4);
+		conf.setInt(MultithreadedRecabTableMapper.CONF_BATCH_SIZE, 7);
+
+		ArrayVariantTable table = new ArrayVariantTable();
+		table.load(new VariantReader() {
+			private boolean done = false;
+			public boolean nextEntry(VariantRegion dest) {
+				if (done)
+					return false;
+				dest.set(new VariantRegion("chr6", 50));
+				done = true;
+				return true;
+			}
+		});
+		snps = table;
+
+		context = new TestContext<RecabKey, ObservationCount>();
+		mapper = new MultithreadedRecabTableMapper();
+	}
+
+	private static ReadPair makePair(String sam)
+	{
+		ReadPair pair = new ReadPair();
+		pair.setRead1(new TextSamMapping(new Text(sam)));
+		return pair;
+	}
+
+	/**
+	 * Make reads with random bases and qualities in two read groups,
+	 * some of which overlap the variant at chr6:50.
+	 */
+	private static List<ReadPair> makeReads(int n)
+	{
+		Random rnd = new Random(42);
+		String bases = "ACGT";
+		List<ReadPair> pairs = new ArrayList<ReadPair>(n);
+		for (int i = 0; i < n; ++i)
+		{
+			StringBuilder seq = new StringBuilder();
+			StringBuilder qual = new StringBuilder();
+			for (int j = 0; j < 20; ++j)
+			{
+				seq.append(bases.charAt(rnd.nextInt(4)));
+				qual.append((char)('#' + rnd.nextInt(38)));
+			}
+			String md = rnd.nextBoolean() ? "20" : "5A14";
+			String flag = rnd.nextBoolean() ? "67" : "83";
+			String sam = "READ" + i + "\t" + flag + "\tchr6\t" + (1 + rnd.nextInt(100)) + "\t37\t20M\t=\t1\t200\t" +
+				seq + "\t" + qual + "\tMD:Z:" + md + "\tRG:Z:" + (i % 2 == 0 ? "rg1" : "rg2");
+			pairs.add(makePair(sam));
+		}
+		return pairs;
+	}
+
+	private static Map<RecabKey, ObservationCount> sumByKey(TestContext<RecabKey, ObservationCount> ctx)
+	{
+		Map<RecabKey, ObservationCount> sums = new HashMap<RecabKey, ObservationCount>();
+		Iterator< TestContext.Tuple<RecabKey, ObservationCount> > it = ctx.iterator();
+		while (it.hasNext())
+		{
+			TestContext.Tuple<RecabKey, ObservationCount> t = it.next();
+			ObservationCount sum = sums.get(t.getKey());
+			if (sum == null)
+				sums.put(t.getKey(), new ObservationCount(t.getValue().getObservations(), t.getValue().getMismatches()));
+			else
+				sum.set(sum.getObservations() + t.getValue().getObservations(), sum.getMismatches() + t.getValue().getMismatches());
+		}
+		return sums;
+	}
+
+	private void checkSameAsSingleThread(List<ReadPair> pairs) throws IOException, InterruptedException
+	{
+		TestContext<RecabKey, ObservationCount> expected = new TestContext<RecabKey, ObservationCount>();
+		RecabTableMapper single = new RecabTableMapper();
+		single.setup(snps, expected, conf);
+		for (ReadPair p: pairs)
+			single.map(null, p, expected);
+		single.cleanup(expected);
+
+		mapper.setup(snps, context, conf);
+		for (ReadPair p: pairs)
+			mapper.map(null, p, context);
+		mapper.cleanup(context);
+
+		assertEquals(sumByKey(expected), sumByKey(context));
+
+		for (RecabTableMapper.BaseCounters c: RecabTableMapper.BaseCounters.values())
+			assertEquals(c.name(), expected.getCounterValue(BaseCountersGroup, c.name()), context.getCounterValue(BaseCountersGroup, c.name()));
+		for (RecabTableMapper.ReadCounters c: RecabTableMapper.ReadCounters.values())
+			assertEquals(c.name(), expected.getCounterValue(ReadCountersGroup, c.name()), context.getCounterValue(ReadCountersGroup, c.name()));
+	}
+
+	@Test
+	public void testSameAsSingleThread() throws IOException, InterruptedException
+	{
+		checkSameAsSingleThread(makeReads(1000));
+	}
+
+	@Test
+	public void testSameAsSingleThreadWithoutCombining() throws IOException, InterruptedException
+	{
+		conf.setBoolean(RecabTableMapper.CONF_IN_MAPPER_COMBINING, false);
+		checkSameAsSingleThread(makeReads(300));
+	}
+
+	@Test
+	public void testOneThread() throws IOException, InterruptedException
+	{
+		conf.setInt(MultithreadedRecabTableMapper.CONF_MAP_THREADS, 1);
+		checkSameAsSingleThread(makeReads(100));
+	}
+
+	@Test
+	public void testCombinedCountsEmittedOnce() throws IOException, InterruptedException
+	{
+		mapper.setup(snps, context, conf);
+		for (int i = 0; i < 100; ++i)
+			mapper.map(null, makePair(littleSam), context);
+		mapper.cleanup(context);
+
+		// the workers' tables are merged, so each key is written once
+		assertEquals(3, context.getNumWrites());
+		for (ObservationCount c: context.getAllValues())
+			assertEquals(new ObservationCount(100, 0), c);
+		assertEquals(100, context.getCounterValue(ReadCountersGroup, "Processed"));
+	}
+
+	@Test
+	public void testNoReads() throws IOException, InterruptedException
+	{
+		mapper.setup(snps, context, conf);
+		mapper.cleanup(context);
+		assertEquals(0, context.getNumWrites());
+		assertEquals(0, context.getCounterValue(ReadCountersGroup, "Processed"));
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void testReusedPair() throws IOException, InterruptedException
+	{
+		ReadPair pair = makePair(littleSam);
+		mapper.setup(snps, context, conf);
+		try {
+			mapper.map(null, pair, context);
+			mapper.map(null, pair, context);
+		}
+		finally {
+			mapper.cleanup(context);
+		}
+	}
+
+	@Test(expected=RuntimeException.class)
+	public void testWorkerErrorIsRethrown() throws IOException, InterruptedException
+	{
+		mapper.setup(snps, context, conf);
+		for (int i = 0; i < 20; ++i)
+			mapper.map(null, makePair(littleSam), context);
+		mapper.map(null, makePair(noRgSam), context);
+		mapper.cleanup(context);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testBadThreadCount() throws IOException
+	{
+		conf.setInt(MultithreadedRecabTableMapper.CONF_MAP_THREADS, 0);
+		mapper.setup(snps, context, conf);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testBadBatchSize() throws IOException
+	{
+		conf.setInt(MultithreadedRecabTableMapper.CONF_BATCH_SIZE, 0);
+		mapper.setup(snps, context, conf);
+	}
+
+	@Test
+	public void testWorkerConfDividesTaskLimits()
+	{
+		conf.setLong(RecabTableMapper.CONF_MAX_USED_BASES, 1001);
+		Configuration workerConf = MultithreadedRecabTableMapper.getWorkerConf(conf, 4);
+		assertEquals(251, workerConf.getLong(RecabTableMapper.CONF_MAX_USED_BASES, -1));
+		assertEquals(RecabTableMapper.CONF_IN_MAPPER_COMBINING_MAX_MB_DEFAULT / 4,
+		    workerConf.getInt(RecabTableMapper.CONF_IN_MAPPER_COMBINING_MAX_MB, -1));
+
+		// each worker gets at least 1 MB
+		conf.setInt(RecabTableMapper.CONF_IN_MAPPER_COMBINING_MAX_MB, 3);
+		workerConf = MultithreadedRecabTableMapper.getWorkerConf(conf, 4);
+		assertEquals(1, workerConf.getInt(RecabTableMapper.CONF_IN_MAPPER_COMBINING_MAX_MB, -1));
+
+		// the task's configuration isn't changed
+		assertEquals(3, conf.getInt(RecabTableMapper.CONF_IN_MAPPER_COMBINING_MAX_MB, -1));
+	}
+
+	public static void main(String args[]) {
+		org.junit.runner.JUnitCore.main(TestMultithreadedRecabTableMapper.class.getName());
+	}
+}
@@ -0,0 +1,136 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package tests.it.crs4.seal.recab;
+
+import it.crs4.seal.common.TestContext;
+import it.crs4.seal.recab.ObservationCount;
+import it.crs4.seal.recab.ObservationCountTable;
+import it.crs4.seal.recab.RecabKey;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class TestObservationCountTable
+{
+	private TestContext<RecabKey, ObservationCount> context;
+	private ObservationCountTable table;
+
+	@Before
+	public void setup()
+	{
+		context = new TestContext<RecabKey, ObservationCount>();
+		table = new ObservationCountTable(context, 1000000, 1024*1024);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testBadMemoryLimit()
+	{
+		new ObservationCountTable(context, 100, 0);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testBadCardinality()
+	{
+		new ObservationCountTable(context, 0, 100);
+	}
+
+	@Test
+	public void testCount() throws IOException, InterruptedException
+	{
+		table.startRead("rg");
+		table.add(5, false);
+		table.add(5, true);
+		table.add(999999, true);
+		table.startRead("other");
+		table.add(5, false);
+		assertEquals(0, context.getNumWrites());
+
+		table.flush();
+		assertEquals(3, context.getNumWrites());
+		assertEquals(Arrays.asList(new ObservationCount(2, 1)), context.getValuesForKey(new RecabKey("rg", 5)));
+		assertEquals(Arrays.asList(new ObservationCount(1, 1)), context.getValuesForKey(new RecabKey("rg", 999999)));
+		assertEquals(Arrays.asList(new ObservationCount(1, 0)), context.getValuesForKey(new RecabKey("other", 5)));
+	}
+
+	@Test
+	public void testFlushResets() throws IOException, InterruptedException
+	{
+		table.startRead("rg");
+		table.add(5, false);
+		table.flush();
+		table.flush();
+		assertEquals(1, context.getNumWrites());
+	}
+
+	@Test
+	public void testMemoryLimit() throws IOException, InterruptedException
+	{
+		table = new ObservationCountTable(context, 1000000, 1); // room for a single page
+		table.startRead("rg");
+		table.add(5, false);
+		table.add(6, false);
+		assertEquals(0, context.getNumWrites());
+
+		table.add(999999, false); // needs a second page
+		assertEquals(2, context.getNumWrites());
+
+		table.add(5, true);
+		table.flush();
+		assertEquals(4, context.getNumWrites());
+		assertEquals(Arrays.asList(new ObservationCount(1, 0), new ObservationCount(1, 1)),
+		    context.getValuesForKey(new RecabKey("rg", 5)));
+	}
+
+	@Test
+	public void testAddAll() throws IOException, InterruptedException
+	{
+		ObservationCountTable other = new ObservationCountTable(context, 1000000, 1024*1024);
+		table.startRead("rg");
+		table.add(5, false);
+		other.startRead("rg");
+		other.add(5, true);
+		other.add(999999, false);
+		other.startRead("other");
+		other.add(5, false);
+
+		table.addAll(other);
+		assertEquals(0, context.getNumWrites());
+
+		other.flush(); // other was reset by addAll
+		assertEquals(0, context.getNumWrites());
+
+		table.flush();
+		assertEquals(3, context.getNumWrites());
+		assertEquals(Arrays.asList(new ObservationCount(2, 1)), context.getValuesForKey(new RecabKey("rg", 5)));
+		assertEquals(Arrays.asList(new ObservationCount(1, 0)), context.getValuesForKey(new RecabKey("rg", 999999)));
+		assertEquals(Arrays.asList(new ObservationCount(1, 0)), context.getValuesForKey(new RecabKey("other", 5)));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testAddAllDifferentCardinality() throws IOException, InterruptedException
+	{
+		table.addAll(new ObservationCountTable(context, 10, 1024*1024));
+	}
+
+	public static void main(String args[]) {
+		org.junit.runner.JUnitCore.main(TestObservationCountTable.class.getName());
+	}
+}
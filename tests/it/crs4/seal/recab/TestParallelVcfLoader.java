@@ -0,0 +1,292 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package tests.it.crs4.seal.recab;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import it.crs4.seal.common.FormatException;
+import it.crs4.seal.recab.ArrayVariantTable;
+import it.crs4.seal.recab.FastVcfVariantReader;
+import it.crs4.seal.recab.ParallelVcfLoader;
+import it.crs4.seal.recab.VariantReader;
+import it.crs4.seal.recab.VariantRegion;
+
+public class TestParallelVcfLoader
+{
+	private static final String heading =
+		"##fileformat=VCFv4.1\n"	+
+		"##dbSNP_BUILD_ID=132\n"	+
+		"#CHROM	POS	ID	REF	ALT	QUAL	FILTER	INFO\n";
+
+	private static final String vcfSample =
+		heading +
+		"1	10327	rs112750067	T	C	.	PASS	VC=SNP;VP=050000000005000000000100;WGT=1;dbSNPBuildID=132\n"	+
+		"1	10433	rs56289060	A	AC	.	PASS	VC=INDEL\n"	+
+		"1	10439	rs112766696	AC	A	.	PASS	VC=INDEL\n"	+
+		"2	10440	rs112155239	C	A	.	PASS	VC=SNP";
+
+	// big enough to be split into several chunks
+	private static String bigVcf;
+
+	private ParallelVcfLoader loader;
+
+	@BeforeClass
+	public static void makeBigVcf()
+	{
+		Random rnd = new Random(1234);
+		StringBuilder sb = new StringBuilder(heading);
+		String[] types = { "VC=SNP", "VC=INDEL", "VP=0500;VC=SNP;WGT=1", "VC=MIXED" };
+		String[] refs = { "A", "AC", "GTT" };
+		for (int i = 0; i < 120000; ++i)
+		{
+			sb.append("chr").append(1 + rnd.nextInt(25)).append("\t");
+			sb.append(1 + rnd.nextInt(3000000)).append("\trs").append(i).append("\t");
+			sb.append(refs[rnd.nextInt(refs.length)]).append("\tT\t.\tPASS\t");
+			sb.append(types[rnd.nextInt(types.length)]).append("\n");
+		}
+		bigVcf = sb.toString();
+	}
+
+	@Before
+	public void setup()
+	{
+		loader = new ParallelVcfLoader(4);
+	}
+
+	@Test
+	public void testDefault()
+	{
+		assertTrue(loader.getReadSnpsOnly());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testBadNumberOfThreads()
+	{
+		new ParallelVcfLoader(0);
+	}
+
+	@Test
+	public void testSmall() throws IOException
+	{
+		ArrayVariantTable table = loader.load(stream(vcfSample));
+		assertEquals(2, table.size());
+		assertTrue(table.isVariantLocation("1", 10327));
+		assertTrue(table.isVariantLocation("2", 10440));
+		assertFalse(table.isVariantLocation("1", 10433));
+	}
+
+	@Test
+	public void testAllVariants() throws IOException
+	{
+		loader.setReadSnpsOnly(false);
+		ArrayVariantTable table = loader.load(stream(vcfSample));
+		assertEquals(5, table.size());
+		assertTrue(table.isVariantLocation("1", 10433));
+		assertTrue(table.isVariantLocation("1", 10439));
+		assertTrue(table.isVariantLocation("1", 10440));
+	}
+
+	@Test
+	public void testPlain() throws IOException
+	{
+		checkSameAsSequential(bigVcf.getBytes("US-ASCII"), true);
+		checkSameAsSequential(bigVcf.getBytes("US-ASCII"), false);
+	}
+
+	@Test
+	public void testGzip() throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		GZIPOutputStream out = new GZIPOutputStream(bytes);
+		out.write(bigVcf.getBytes("US-ASCII"));
+		out.close();
+		checkSameAsSequential(bytes.toByteArray(), true);
+	}
+
+	@Test
+	public void testBgzf() throws IOException
+	{
+		checkSameAsSequential(bgzip(bigVcf.getBytes("US-ASCII")), true);
+		checkSameAsSequential(bgzip(bigVcf.getBytes("US-ASCII")), false);
+	}
+
+	@Test
+	public void testSingleThread() throws IOException
+	{
+		loader = new ParallelVcfLoader(1);
+		checkSameAsSequential(bgzip(bigVcf.getBytes("US-ASCII")), true);
+	}
+
+	@Test
+	public void testSmallBgzf() throws IOException
+	{
+		ArrayVariantTable table = loader.load(new ByteArrayInputStream(bgzip(vcfSample.getBytes("US-ASCII"))));
+		assertEquals(2, table.size());
+	}
+
+	@Test
+	public void testFile() throws IOException
+	{
+		File tempFile = File.createTempFile("test_parallel_vcf_loader", ".vcf.gz");
+		try {
+			FileOutputStream out = new FileOutputStream(tempFile);
+			out.write(bgzip(vcfSample.getBytes("US-ASCII")));
+			out.close();
+
+			ArrayVariantTable table = loader.load(tempFile);
+			assertEquals(2, table.size());
+		}
+		finally {
+			tempFile.delete();
+		}
+	}
+
+	@Test(expected=FormatException.class)
+	public void testCorruptBgzf() throws IOException
+	{
+		byte[] data = bgzip(bigVcf.getBytes("US-ASCII"));
+		data[data.length / 2] ^= 0x55;
+		loader.load(new ByteArrayInputStream(data));
+	}
+
+	@Test(expected=FormatException.class)
+	public void testTruncatedBgzf() throws IOException
+	{
+		byte[] data = bgzip(bigVcf.getBytes("US-ASCII"));
+		loader.load(new ByteArrayInputStream(data, 0, data.length - 100));
+	}
+
+	@Test(expected=FormatException.class)
+	public void testEmpty() throws IOException
+	{
+		loader.load(stream(""));
+	}
+
+	@Test(expected=FormatException.class)
+	public void testMissingMagic() throws IOException
+	{
+		loader.load(stream("#CHROM	POS	ID	REF	ALT	QUAL	FILTER	INFO\n1	10327	rs112750067	T	C	.	PASS	VC=SNP"));
+	}
+
+	@Test(expected=FormatException.class)
+	public void testNoColumnHeading() throws IOException
+	{
+		loader.load(stream("##fileformat=VCFv4.1\n2	10440	rs112155239	C	A	.	PASS	VC=SNP"));
+	}
+
+	@Test(expected=FormatException.class)
+	public void testNoRecords() throws IOException
+	{
+		loader.load(stream(heading));
+	}
+
+	@Test(expected=FormatException.class)
+	public void testNumberFormatError() throws IOException
+	{
+		loader.load(stream(heading + "1	bla	rs112750067	T	C	.	PASS	VC=SNP"));
+	}
+
+	private static ByteArrayInputStream stream(String s) throws IOException
+	{
+		return new ByteArrayInputStream(s.getBytes("US-ASCII"));
+	}
+
+	/**
+	 * Compare the loader's table to one loaded sequentially with FastVcfVariantReader.
+	 */
+	private void checkSameAsSequential(byte[] data, boolean snpsOnly) throws IOException
+	{
+		FastVcfVariantReader reader = new FastVcfVariantReader(stream(bigVcf));
+		reader.setReadSnpsOnly(snpsOnly);
+		ArrayVariantTable expected = new ArrayVariantTable();
+		expected.load(reader);
+
+		loader.setReadSnpsOnly(snpsOnly);
+		ArrayVariantTable table = loader.load(new ByteArrayInputStream(data));
+
+		assertEquals(expected.size(), table.size());
+		assertEquals(expected.getContigs(), table.getContigs());
+
+		VariantReader expectedPositions = expected.getReader();
+		VariantReader positions = table.getReader();
+		VariantRegion e = new VariantRegion();
+		VariantRegion v = new VariantRegion();
+		while (expectedPositions.nextEntry(e))
+		{
+			assertTrue(positions.nextEntry(v));
+			assertEquals(e.getContigName(), v.getContigName());
+			assertEquals(e.getPosition(), v.getPosition());
+		}
+		assertFalse(positions.nextEntry(v));
+	}
+
+	/**
+	 * Compress data in the BGZF format, with the empty EOF block at the end.
+	 */
+	private static byte[] bgzip(byte[] data) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final int maxInput = 60000;
+		for (int start = 0; start < data.length; start += maxInput)
+			writeBgzfBlock(out, data, start, Math.min(maxInput, data.length - start));
+		writeBgzfBlock(out, data, 0, 0);
+		return out.toByteArray();
+	}
+
+	private static void writeBgzfBlock(ByteArrayOutputStream out, byte[] data, int start, int length)
+	{
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		deflater.setInput(data, start, length);
+		deflater.finish();
+		byte[] compressed = new byte[length + 1024];
+		int compressedLength = deflater.deflate(compressed);
+		deflater.end();
+
+		CRC32 crc = new CRC32();
+		crc.update(data, start, length);
+
+		int blockSize = 18 + compressedLength + 8;
+		byte[] header = { 0x1f, (byte)0x8b, 8, 4, 0, 0, 0, 0, 0, (byte)0xff, 6, 0, 'B', 'C', 2, 0,
+			(byte)((blockSize - 1) & 0xff), (byte)((blockSize - 1) >>> 8) };
+		out.write(header, 0, header.length);
+		out.write(compressed, 0, compressedLength);
+		writeIntLE(out, (int)crc.getValue());
+		writeIntLE(out, length);
+	}
+
+	private static void writeIntLE(ByteArrayOutputStream out, int value)
+	{
+		for (int i = 0; i < 4; ++i)
+			out.write((value >>> (8 * i)) & 0xff);
+	}
+
+	public static void main(String args[]) {
+		org.junit.runner.JUnitCore.main(TestParallelVcfLoader.class.getName());
+	}
+}
@@ -23,6 +23,7 @@ import it.crs4.seal.common.TextSamMapping;
 import org.junit.*;
 import static org.junit.Assert.*;
 
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.Text;
 
 public class TestReadGroupCovariate
@@ -48,10 +49,33 @@ public class TestReadGroupCovariate
 			assertEquals("myrg", cov.getValue(i));
 	}
 
+	@Test
+	public void testChangingReadGroups()
+	{
+		Configuration conf = new Configuration();
+		conf.set(ReadGroupCovariate.CONF_RG_COVARIATE_DEFAULT_RG, "default");
+		cov = new ReadGroupCovariate(conf);
+
+		String[] groups = { "myrg", "myrg", "other", "myrg", null, "myrg", "myrgx", "myr" };
+		for (String rg: groups)
+		{
+			if (rg == null)
+				mapping.reset(new Text(samNoRg));
+			else
+				mapping.reset(new Text(sam.replace("myrg", rg)));
+			cov.applyToMapping(mapping);
+			assertEquals(rg == null ? "default" : rg, cov.getValue(0));
+		}
+	}
+
 	@Test(expected=RuntimeException.class)
 	public void testMissingReadGroup()
 	{
 		mapping = new TextSamMapping( new Text(samNoRg) );
 		cov.applyToMapping(mapping);
 	}
+
+	public static void main(String args[]) {
+		org.junit.runner.JUnitCore.main(TestReadGroupCovariate.class.getName());
+	}
 }
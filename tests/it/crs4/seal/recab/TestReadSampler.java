@@ -0,0 +1,103 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package tests.it.crs4.seal.recab;
+
+import it.crs4.seal.recab.ReadSampler;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class TestReadSampler
+{
+	@Test(expected=IllegalArgumentException.class)
+	public void testZeroRate()
+	{
+		new ReadSampler(0.0, 0);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testRateTooBig()
+	{
+		new ReadSampler(1.01, 0);
+	}
+
+	@Test
+	public void testRateOneAcceptsAll()
+	{
+		ReadSampler sampler = new ReadSampler(1.0, 0);
+		for (int i = 0; i < 1000; ++i)
+			assertTrue(sampler.accept("read" + i));
+	}
+
+	@Test
+	public void testDeterministic()
+	{
+		ReadSampler s1 = new ReadSampler(0.3, 7);
+		ReadSampler s2 = new ReadSampler(0.3, 7);
+		for (int i = 0; i < 1000; ++i)
+			assertEquals(s1.accept("read:" + i), s2.accept("read:" + i));
+	}
+
+	@Test
+	public void testApproximateRate()
+	{
+		for (double rate: new double[] { 0.01, 0.1, 0.5, 0.9 })
+		{
+			ReadSampler sampler = new ReadSampler(rate, 0);
+			int n = 100000;
+			int accepted = 0;
+			for (int i = 0; i < n; ++i)
+			{
+				if (sampler.accept("HWI-ST200:8:1101:" + i + ":" + (i * 7 % 2000)))
+					accepted += 1;
+			}
+			assertEquals("rate " + rate, rate, (double)accepted / n, 0.01);
+		}
+	}
+
+	@Test
+	public void testSeedChangesSample()
+	{
+		ReadSampler s1 = new ReadSampler(0.5, 1);
+		ReadSampler s2 = new ReadSampler(0.5, 2);
+		int different = 0;
+		for (int i = 0; i < 1000; ++i)
+		{
+			if (s1.accept("read" + i) != s2.accept("read" + i))
+				different += 1;
+		}
+		assertTrue(different > 300);
+	}
+
+	@Test
+	public void testSubsetOfLargerRate()
+	{
+		// with the same seed, a smaller sample is contained in a larger one
+		ReadSampler small = new ReadSampler(0.1, 3);
+		ReadSampler big = new ReadSampler(0.4, 3);
+		for (int i = 0; i < 1000; ++i)
+		{
+			if (small.accept("read" + i))
+				assertTrue(big.accept("read" + i));
+		}
+	}
+
+	public static void main(String args[]) {
+		org.junit.runner.JUnitCore.main(TestReadSampler.class.getName());
+	}
+}
@@ -0,0 +1,279 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package tests.it.crs4.seal.recab;
+
+import it.crs4.seal.common.AbstractTaggedMapping;
+import it.crs4.seal.common.BamMapping;
+import it.crs4.seal.common.ReadPair;
+import it.crs4.seal.common.SamOutputFormat;
+import it.crs4.seal.common.TestContext;
+import it.crs4.seal.common.TextSamMapping;
+import it.crs4.seal.common.WritableMapping;
+import it.crs4.seal.recab.CovariateList;
+import it.crs4.seal.recab.RecabApply;
+import it.crs4.seal.recab.RecabApplyMapper;
+import it.crs4.seal.recab.RecabLookupTable;
+import it.crs4.seal.recab.RecabTableMapper;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceDictionary;
+import net.sf.samtools.SAMSequenceRecord;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+
+public class TestRecabApplyMapper
+{
+	private static final String littleSam = "LITTLE	67	chr6	1	37	3M	=	6	9	AGC	BCD	MD:Z:3	RG:Z:test";
+	private static final String littleSamRead2 = "LITTLE	131	chr6	6	37	3M	=	1	9	AGC	BCD	MD:Z:3	RG:Z:test";
+	// qualities B, C and D are 33, 34 and 35
+	private static final String table =
+		"test,33,1,NN,10,1,10\n" +
+		"test,34,2,AG,100,1,20\n" +
+		"test,33,-1,NN,10,1,15\n";
+
+	private static final String BaseCounters = "it.crs4.seal.recab.RecabApplyMapper$BaseCounters";
+
+	private RecabApplyMapper mapper;
+	private TestContext<Text, ReadPair> context;
+	private List<String> written;
+	private Configuration conf;
+	private RecabLookupTable lookup;
+
+	@Before
+	public void setup() throws IOException
+	{
+		mapper = new RecabApplyMapper();
+		written = new ArrayList<String>();
+		// the input format reuses the pairs, so save their text as they're written
+		context = new TestContext<Text, ReadPair>() {
+			public void write(Text key, ReadPair value) {
+				for (AbstractTaggedMapping m: value)
+					written.add(SamOutputFormat.formatRecord(m, null));
+			}
+		};
+		conf = new Configuration();
+		conf.setInt(RecabTableMapper.CONF_COUNTER_UPDATE_INTERVAL, 1);
+		lookup = null;
+	}
+
+	private void setupMapper() throws IOException
+	{
+		lookup = new RecabLookupTable(new CovariateList(conf));
+		lookup.load(new StringReader(table));
+		mapper.setup(lookup, context, conf);
+	}
+
+	private static ReadPair makePair(String sam1, String sam2)
+	{
+		return new ReadPair(
+		    sam1 == null ? null : new TextSamMapping(new Text(sam1)),
+		    sam2 == null ? null : new TextSamMapping(new Text(sam2)));
+	}
+
+	@Test
+	public void testRecalibrate() throws IOException, InterruptedException
+	{
+		setupMapper();
+		mapper.map(new LongWritable(0), makePair(littleSam, null), context);
+
+		assertEquals(1, written.size());
+		// 10 -> '+', 20 -> '5', the last base isn't in the table
+		assertEquals(littleSam.replace("\tBCD\t", "\t+5D\t"), written.get(0));
+
+		assertEquals(1, context.getCounterValue("it.crs4.seal.recab.RecabApplyMapper$ReadCounters", "Processed"));
+		assertEquals(3, context.getCounterValue(BaseCounters, "All"));
+		assertEquals(2, context.getCounterValue(BaseCounters, "Recalibrated"));
+		assertEquals(1, context.getCounterValue(BaseCounters, "NotInTable"));
+		assertEquals(0, context.getCounterValue(BaseCounters, "LowQuality"));
+	}
+
+	@Test
+	public void testPair() throws IOException, InterruptedException
+	{
+		setupMapper();
+		mapper.map(new LongWritable(0), makePair(littleSam, littleSamRead2), context);
+
+		assertEquals(2, written.size());
+		assertEquals(littleSam.replace("\tBCD\t", "\t+5D\t"), written.get(0));
+		// read 2 has negative cycles
+		assertEquals(littleSamRead2.replace("\tBCD\t", "\t0CD\t"), written.get(1));
+		assertEquals(2, context.getCounterValue("it.crs4.seal.recab.RecabApplyMapper$ReadCounters", "Processed"));
+	}
+
+	@Test
+	public void testMinQuality() throws IOException, InterruptedException
+	{
+		conf.setInt(RecabApplyMapper.CONF_MIN_QUALITY, 34);
+		setupMapper();
+		mapper.map(new LongWritable(0), makePair(littleSam, null), context);
+
+		assertEquals(littleSam.replace("\tBCD\t", "\tB5D\t"), written.get(0));
+		assertEquals(1, context.getCounterValue(BaseCounters, "LowQuality"));
+		assertEquals(1, context.getCounterValue(BaseCounters, "Recalibrated"));
+	}
+
+	@Test
+	public void testMinObservations() throws IOException, InterruptedException
+	{
+		File tableFile = File.createTempFile("test_recab_apply_table", ".csv");
+		try
+		{
+			FileWriter out = new FileWriter(tableFile);
+			out.write(table);
+			out.close();
+
+			assertTrue(RecabApplyMapper.CONF_MIN_OBSERVATIONS_DEFAULT > 1);
+			conf.setLong(RecabApplyMapper.CONF_MIN_OBSERVATIONS, 50);
+			lookup = RecabApply.loadLookupTable(new Path(tableFile.toURI().toString()), conf);
+			mapper.setup(lookup, context, conf);
+			mapper.map(new LongWritable(0), makePair(littleSam, null), context);
+
+			// The first base's row only has 10 observations, so it gets the
+			// quality of all the rows with quality 33:  2 mismatches in 20
+			// observations, i.e., 10.
+			assertEquals(littleSam.replace("\tBCD\t", "\t+5D\t"), written.get(0));
+			assertEquals(2, context.getCounterValue(BaseCounters, "Recalibrated"));
+			assertEquals(1, context.getCounterValue(BaseCounters, "NotInTable"));
+		}
+		finally {
+			tableFile.delete();
+		}
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testBadMinObservations() throws IOException
+	{
+		File tableFile = File.createTempFile("test_recab_apply_table", ".csv");
+		try
+		{
+			conf.setLong(RecabApplyMapper.CONF_MIN_OBSERVATIONS, -1);
+			RecabApply.loadLookupTable(new Path(tableFile.toURI().toString()), conf);
+		}
+		finally {
+			tableFile.delete();
+		}
+	}
+
+	@Test
+	public void testReadGroupNotInTable() throws IOException, InterruptedException
+	{
+		setupMapper();
+		String sam = littleSam.replace("RG:Z:test", "RG:Z:other");
+		mapper.map(new LongWritable(0), makePair(sam, null), context);
+
+		assertEquals(sam, written.get(0));
+		assertEquals(3, context.getCounterValue(BaseCounters, "NotInTable"));
+		assertEquals(0, context.getCounterValue(BaseCounters, "Recalibrated"));
+	}
+
+	@Test
+	public void testUnmappedRead() throws IOException, InterruptedException
+	{
+		setupMapper();
+		String sam = "LITTLE	69	*	0	0	*	=	6	0	AGC	BCD	RG:Z:test";
+		mapper.map(new LongWritable(0), makePair(sam, null), context);
+		assertEquals(sam.replace("\tBCD\t", "\t+5D\t"), written.get(0));
+	}
+
+	@Test
+	public void testLongRead() throws IOException, InterruptedException
+	{
+		setupMapper();
+		StringBuilder seq = new StringBuilder();
+		StringBuilder qual = new StringBuilder();
+		for (int i = 0; i < 300; ++i)
+		{
+			seq.append('A');
+			qual.append('B');
+		}
+		String sam = littleSam.replace("3M", "300M").replace("AGC", seq).replace("BCD", qual).replace("MD:Z:3", "MD:Z:300");
+		mapper.map(new LongWritable(0), makePair(sam, null), context);
+
+		assertEquals(300, context.getCounterValue(BaseCounters, "All"));
+		assertEquals(1, context.getCounterValue(BaseCounters, "Recalibrated"));
+		assertTrue(written.get(0).contains("\t+BBB"));
+	}
+
+	@Test
+	public void testWritableMapping() throws IOException, InterruptedException
+	{
+		setupMapper();
+		WritableMapping m = new WritableMapping("LITTLE", "AGC", "BCD");
+		m.setTag("RG", WritableMapping.TagDataType.String, "test");
+		mapper.map(new LongWritable(0), new ReadPair(m, null), context);
+		assertEquals("+5D", m.getBaseQualitiesString());
+	}
+
+	@Test
+	public void testBamMapping() throws IOException, InterruptedException
+	{
+		SAMFileHeader header = new SAMFileHeader();
+		header.setSequenceDictionary(new SAMSequenceDictionary(Arrays.asList(new SAMSequenceRecord("chr6", 5000))));
+		SAMRecord sam = new SAMRecord(header);
+		sam.setReadName("LITTLE");
+		sam.setFlags(67);
+		sam.setReferenceName("chr6");
+		sam.setAlignmentStart(1);
+		sam.setMappingQuality(37);
+		sam.setCigarString("3M");
+		sam.setMateReferenceName("chr6");
+		sam.setMateAlignmentStart(6);
+		sam.setInferredInsertSize(9);
+		sam.setReadString("AGC");
+		sam.setBaseQualityString("BCD");
+		sam.setAttribute("RG", "test");
+
+		BamMapping bam = new BamMapping();
+		bam.reset(sam);
+
+		setupMapper();
+		mapper.map(new LongWritable(0), new ReadPair(bam, null), context);
+
+		// the new qualities are written back into the binary record
+		BamMapping copy = new BamMapping();
+		copy.reset(bam.getRecordBytes(), 0, bam.getRecordLength());
+		assertEquals("+5D", copy.getBaseQualitiesString());
+		assertEquals(2, context.getCounterValue(BaseCounters, "Recalibrated"));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testBadMinQuality() throws IOException
+	{
+		conf.setInt(RecabApplyMapper.CONF_MIN_QUALITY, -1);
+		setupMapper();
+	}
+
+	public static void main(String args[]) {
+		org.junit.runner.JUnitCore.main(TestRecabApplyMapper.class.getName());
+	}
+}
@@ -0,0 +1,169 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package tests.it.crs4.seal.recab;
+
+import it.crs4.seal.recab.RecabKey;
+import it.crs4.seal.recab.RecabKeyPartitioner;
+
+import org.apache.hadoop.io.WritableComparator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class TestRecabKey
+{
+	private RecabKey key;
+	private RecabKey k2;
+
+	@Before
+	public void setup()
+	{
+		key = new RecabKey();
+		k2 = new RecabKey();
+	}
+
+	@Test
+	public void testDefaults()
+	{
+		assertEquals("", key.getReadGroup());
+		assertEquals(0, key.getCode());
+	}
+
+	@Test
+	public void testSet()
+	{
+		key.set("rg", 123456789012L);
+		assertEquals("rg", key.getReadGroup());
+		assertEquals(123456789012L, key.getCode());
+
+		k2.set(key);
+		assertEquals("rg", k2.getReadGroup());
+		assertEquals(123456789012L, k2.getCode());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testSetNegativeCode()
+	{
+		key.set("rg", -1);
+	}
+
+	@Test
+	public void testEquals()
+	{
+		key.set("rg", 30);
+		k2.set("rg", 30);
+		assertEquals(key, k2);
+		assertEquals(key.hashCode(), k2.hashCode());
+
+		k2.set("rg", 31);
+		assertFalse(key.equals(k2));
+
+		k2.set("rg2", 30);
+		assertFalse(key.equals(k2));
+	}
+
+	@Test
+	public void testCompare()
+	{
+		key.set("a", 30);
+		k2.set("b", 2);
+		assertTrue(key.compareTo(k2) < 0);
+		assertTrue(k2.compareTo(key) > 0);
+
+		k2.set("a", 31);
+		assertTrue(key.compareTo(k2) < 0);
+
+		k2.set("a", 29);
+		assertTrue(key.compareTo(k2) > 0);
+
+		k2.set("a", 30);
+		assertEquals(0, key.compareTo(k2));
+	}
+
+	@Test
+	public void testIO() throws IOException
+	{
+		key.set("rg", 1L << 40);
+		k2 = roundTrip(key);
+		assertEquals(key, k2);
+	}
+
+	@Test
+	public void testRawComparator() throws IOException
+	{
+		RecabKey[] keys = new RecabKey[] {
+			new RecabKey("a", 30),
+			new RecabKey("a", 1L << 40),
+			new RecabKey("a", 2),
+			new RecabKey("ab", 2),
+			new RecabKey("b", 0),
+			new RecabKey("", 5),
+		};
+
+		WritableComparator cmp = WritableComparator.get(RecabKey.class);
+		for (RecabKey a: keys)
+		{
+			byte[] aBytes = serialize(a);
+			for (RecabKey b: keys)
+			{
+				byte[] bBytes = serialize(b);
+				int raw = cmp.compare(aBytes, 0, aBytes.length, bBytes, 0, bBytes.length);
+				assertEquals(a + " vs " + b, Integer.signum(a.compareTo(b)), Integer.signum(raw));
+			}
+		}
+	}
+
+	@Test
+	public void testPartitioner()
+	{
+		RecabKeyPartitioner<Object> partitioner = new RecabKeyPartitioner<Object>();
+		key.set("rg", 12345);
+		k2.set("rg", 12345);
+
+		int p = partitioner.getPartition(key, null, 7);
+		assertTrue(p >= 0 && p < 7);
+		assertEquals(p, partitioner.getPartition(k2, null, 7));
+	}
+
+	private static byte[] serialize(RecabKey k) throws IOException
+	{
+		ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
+		DataOutputStream outputStream = new DataOutputStream(dataStream);
+		k.write(outputStream);
+		outputStream.close();
+		return dataStream.toByteArray();
+	}
+
+	private static RecabKey roundTrip(RecabKey k) throws IOException
+	{
+		DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(serialize(k)));
+		RecabKey result = new RecabKey();
+		result.readFields(inputStream);
+		return result;
+	}
+
+	public static void main(String args[]) {
+		org.junit.runner.JUnitCore.main(TestRecabKey.class.getName());
+	}
+}
@@ -0,0 +1,260 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package tests.it.crs4.seal.recab;
+
+import it.crs4.seal.common.FormatException;
+import it.crs4.seal.recab.BinaryRecabTable;
+import it.crs4.seal.recab.CovariateList;
+import it.crs4.seal.recab.LocalRecabTable;
+import it.crs4.seal.recab.ObservationCount;
+import it.crs4.seal.recab.RecabKey;
+import it.crs4.seal.recab.RecabLookupTable;
+import it.crs4.seal.recab.RecabTableReducer;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.apache.hadoop.conf.Configuration;
+
+public class TestRecabLookupTable
+{
+	private static final String table =
+		"rg1,33,1,NN,10,1,10\n" +
+		"rg1,34,2,AG,100,1,20\n" +
+		"rg2,35,3,GC,1000,1,30\n";
+
+	private CovariateList covariates;
+	private RecabLookupTable lookup;
+
+	@Before
+	public void setup()
+	{
+		covariates = new CovariateList(new Configuration());
+		lookup = new RecabLookupTable(covariates);
+	}
+
+	private long code(String rg, String quality, String cycle, String dinuc)
+	{
+		RecabKey key = new RecabKey();
+		covariates.encode(new String[] { rg, quality, cycle, dinuc }, key);
+		return key.getCode();
+	}
+
+	@Test
+	public void testEmpty()
+	{
+		assertEquals(0, lookup.size());
+		assertNull(lookup.getReadGroupTable("rg1"));
+		assertEquals(0, lookup.getQuality("rg1", 0));
+	}
+
+	@Test
+	public void testLoad() throws IOException
+	{
+		lookup.load(new StringReader(table));
+		assertEquals(3, lookup.size());
+		assertEquals(10, lookup.getQuality("rg1", code("rg1", "33", "1", "NN")));
+		assertEquals(20, lookup.getQuality("rg1", code("rg1", "34", "2", "AG")));
+		assertEquals(30, lookup.getQuality("rg2", code("rg2", "35", "3", "GC")));
+
+		byte[][] rgTable = lookup.getReadGroupTable("rg1");
+		assertNotNull(rgTable);
+		assertEquals(20, RecabLookupTable.getQuality(rgTable, code("rg1", "34", "2", "AG")));
+	}
+
+	@Test
+	public void testMissingRows() throws IOException
+	{
+		lookup.load(new StringReader(table));
+		// in another read group
+		assertEquals(0, lookup.getQuality("rg2", code("rg2", "33", "1", "NN")));
+		assertEquals(0, lookup.getQuality("rg3", code("rg3", "33", "1", "NN")));
+		// different covariates in the same page
+		assertEquals(0, lookup.getQuality("rg1", code("rg1", "33", "1", "AG")));
+		// in a page that isn't allocated
+		assertEquals(0, lookup.getQuality("rg1", code("rg1", "90", "-1000", "TT")));
+	}
+
+	@Test
+	public void testHeader() throws IOException
+	{
+		lookup.load(new StringReader(LocalRecabTable.tableHeader(covariates) + "\n" + table));
+		assertEquals(3, lookup.size());
+	}
+
+	@Test
+	public void testSeveralFiles() throws IOException
+	{
+		lookup.load(new StringReader("rg1,33,1,NN,10,1,10\n"));
+		lookup.load(new StringReader("rg1,34,2,AG,100,1,20\n"));
+		assertEquals(2, lookup.size());
+		assertEquals(20, lookup.getQuality("rg1", code("rg1", "34", "2", "AG")));
+	}
+
+	@Test
+	public void testOtherCovariates() throws IOException
+	{
+		Configuration conf = new Configuration();
+		conf.set(CovariateList.CONF_COVARIATES, "Quality,Cycle");
+		covariates = new CovariateList(conf);
+		lookup = new RecabLookupTable(covariates);
+
+		lookup.load(new StringReader("33,-5,10,1,10\n"));
+		RecabKey key = new RecabKey();
+		covariates.encode(new String[] { "33", "-5" }, key);
+		assertEquals(10, lookup.getQuality("", key.getCode()));
+	}
+
+	@Test
+	public void testLoadBinary() throws IOException
+	{
+		Configuration conf = new Configuration();
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		BinaryRecabTable.Writer writer = new BinaryRecabTable.Writer(buffer, covariates);
+		writer.write(new RecabKey("rg1", code("rg1", "33", "1", "NN")), new ObservationCount(10, 1));
+		writer.write(new RecabKey("rg1", code("rg1", "34", "2", "AG")), new ObservationCount(100, 1));
+		writer.close();
+
+		RecabTableReducer reducer = new RecabTableReducer();
+		reducer.setup(conf);
+		lookup.load(new BinaryRecabTable.Reader(new ByteArrayInputStream(buffer.toByteArray())), reducer);
+
+		assertEquals(2, lookup.size());
+		// the same qualities the reducer writes in text tables
+		assertEquals(10, lookup.getQuality("rg1", code("rg1", "33", "1", "NN")));
+		assertEquals(20, lookup.getQuality("rg1", code("rg1", "34", "2", "AG")));
+	}
+
+	@Test
+	public void testSparseRowsUseQualityMarginal() throws IOException
+	{
+		RecabTableReducer reducer = new RecabTableReducer();
+		reducer.setup(new Configuration());
+		lookup.setMinObservations(100);
+		lookup.load(new StringReader(
+			// sparse:  on its own it would get the maximum quality
+			"rg1,33,1,NN,10,0,40\n" +
+			"rg1,33,2,AG,990,10,20\n" +
+			"rg1,34,2,AG,100,1,20\n" +
+			// sparse and alone in its read group and quality
+			"rg2,35,3,GC,50,5,10\n"));
+		assertEquals(4, lookup.size());
+		assertEquals(2, lookup.getNumSparseRows());
+
+		lookup.fillSparseRows(reducer);
+		assertEquals(0, lookup.getNumSparseRows());
+		// 10 mismatches in 1000 observations with quality 33 in rg1
+		assertEquals(20, lookup.getQuality("rg1", code("rg1", "33", "1", "NN")));
+		assertEquals(20, lookup.getQuality("rg1", code("rg1", "33", "2", "AG")));
+		assertEquals(20, lookup.getQuality("rg1", code("rg1", "34", "2", "AG")));
+		assertEquals(10, lookup.getQuality("rg2", code("rg2", "35", "3", "GC")));
+		// rows that aren't in the table are still missing
+		assertEquals(0, lookup.getQuality("rg1", code("rg1", "33", "3", "NN")));
+	}
+
+	@Test
+	public void testSparseRowsBinary() throws IOException
+	{
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		BinaryRecabTable.Writer writer = new BinaryRecabTable.Writer(buffer, covariates);
+		writer.write(new RecabKey("rg1", code("rg1", "33", "1", "NN")), new ObservationCount(10, 0));
+		writer.write(new RecabKey("rg1", code("rg1", "33", "2", "AG")), new ObservationCount(990, 10));
+		writer.close();
+
+		RecabTableReducer reducer = new RecabTableReducer();
+		reducer.setup(new Configuration());
+		lookup.setMinObservations(11);
+		lookup.load(new BinaryRecabTable.Reader(new ByteArrayInputStream(buffer.toByteArray())), reducer);
+		assertEquals(1, lookup.getNumSparseRows());
+		lookup.fillSparseRows(reducer);
+
+		assertEquals(2, lookup.size());
+		assertEquals(20, lookup.getQuality("rg1", code("rg1", "33", "1", "NN")));
+	}
+
+	@Test
+	public void testSparseRowsWithoutQualityCovariate() throws IOException
+	{
+		Configuration conf = new Configuration();
+		conf.set(CovariateList.CONF_COVARIATES, "ReadGroup,Cycle");
+		covariates = new CovariateList(conf);
+		lookup = new RecabLookupTable(covariates);
+		RecabTableReducer reducer = new RecabTableReducer();
+		reducer.setup(conf);
+
+		lookup.setMinObservations(100);
+		lookup.load(new StringReader("rg1,1,10,0,40\nrg1,2,990,10,20\n"));
+		lookup.fillSparseRows(reducer);
+
+		// falls back to the whole read group
+		RecabKey key = new RecabKey();
+		covariates.encode(new String[] { "rg1", "1" }, key);
+		assertEquals(20, lookup.getQuality("rg1", key.getCode()));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testNegativeMinObservations()
+	{
+		lookup.setMinObservations(-1);
+	}
+
+	@Test(expected=FormatException.class)
+	public void testBadObservations() throws IOException
+	{
+		lookup.load(new StringReader(table + "rg1,33,2,NN,many,1,10\n"));
+	}
+
+	@Test(expected=FormatException.class)
+	public void testWrongNumberOfFields() throws IOException
+	{
+		lookup.load(new StringReader("rg1,33,1,10,1,10\n"));
+	}
+
+	@Test(expected=FormatException.class)
+	public void testBadCovariateValue() throws IOException
+	{
+		lookup.load(new StringReader("rg1,33,cycle,NN,10,1,10\n"));
+	}
+
+	@Test(expected=FormatException.class)
+	public void testBadQuality() throws IOException
+	{
+		lookup.load(new StringReader(table + "rg1,33,2,NN,10,1,x\n"));
+	}
+
+	@Test(expected=FormatException.class)
+	public void testQualityOutOfRange() throws IOException
+	{
+		lookup.load(new StringReader("rg1,33,1,NN,10,1,0\n"));
+	}
+
+	@Test(expected=FormatException.class)
+	public void testDuplicateRow() throws IOException
+	{
+		lookup.load(new StringReader(table + "rg1,33,1,NN,10,1,10\n"));
+	}
+
+	public static void main(String args[]) {
+		org.junit.runner.JUnitCore.main(TestRecabLookupTable.class.getName());
+	}
+}
@@ -19,12 +19,11 @@ package tests.it.crs4.seal.recab;
 
 import it.crs4.seal.common.IMRContext;
 import it.crs4.seal.common.TestContext;
-import it.crs4.seal.recab.RecabTable;
+import it.crs4.seal.recab.RecabKey;
 import it.crs4.seal.recab.RecabTableCombiner;
 import it.crs4.seal.recab.ObservationCount;
 
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.io.Text;
 
 import java.io.IOException;
 import java.util.Arrays;
@@ -38,14 +37,14 @@ import static org.junit.Assert.*;
 public class TestRecabTableCombiner
 {
 	private RecabTableCombiner combiner;
-	private TestContext<Text, ObservationCount> context;
+	private TestContext<RecabKey, ObservationCount> context;
 	private Configuration conf;
 
 	@Before
 	public void setup()
 	{
 		conf = new Configuration();
-		context = new TestContext<Text, ObservationCount>();
+		context = new TestContext<RecabKey, ObservationCount>();
 		combiner = new RecabTableCombiner();
 		combiner.setup(conf);
 	}
@@ -53,12 +52,12 @@ public class TestRecabTableCombiner
 	@Test
 	public void testSimpleReduce() throws IOException, InterruptedException
 	{
-		Text key = TestRecabTableMapper.prepKey("rg", "30", "1", "AG");
+		RecabKey key = TestRecabTableMapper.prepKey("rg", "30", "1", "AG");
 		List<ObservationCount> values = Arrays.asList( new ObservationCount(3,1) );
 
 		combiner.reduce(key, values, context);
 
-		Set<Text> keys = context.getKeys();
+		Set<RecabKey> keys = context.getKeys();
 		assertEquals(1, keys.size());
 		assertEquals(key, keys.iterator().next());
 
@@ -73,7 +72,7 @@ public class TestRecabTableCombiner
 	@Test
 	public void testReduceMoreObs() throws IOException, InterruptedException
 	{
-		Text key = TestRecabTableMapper.prepKey("rg", "30", "1", "AG");
+		RecabKey key = TestRecabTableMapper.prepKey("rg", "30", "1", "AG");
 		List<ObservationCount> values = Arrays.asList(
 				new ObservationCount(43,5),
 				new ObservationCount(34,10),
@@ -81,7 +80,7 @@ public class TestRecabTableCombiner
 
 		combiner.reduce(key, values, context);
 
-		Set<Text> keys = context.getKeys();
+		Set<RecabKey> keys = context.getKeys();
 		assertEquals(1, keys.size());
 		assertEquals(key, keys.iterator().next());
 
@@ -18,12 +18,15 @@
 package tests.it.crs4.seal.recab;
 
 import it.crs4.seal.common.IMRContext;
+import it.crs4.seal.common.IntervalSet;
 import it.crs4.seal.common.TestContext;
 import it.crs4.seal.common.FormatException;
 import it.crs4.seal.common.ReadPair;
 import it.crs4.seal.common.SamInputFormat;
+import it.crs4.seal.common.SealToolParser;
 import it.crs4.seal.common.Utils;
-import it.crs4.seal.recab.RecabTable;
+import it.crs4.seal.recab.CovariateList;
+import it.crs4.seal.recab.RecabKey;
 import it.crs4.seal.recab.RecabTableMapper;
 import it.crs4.seal.recab.ObservationCount;
 import it.crs4.seal.recab.VariantRegion;
@@ -32,7 +35,6 @@ import it.crs4.seal.recab.VariantReader;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.LongWritable;
-import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
 import org.apache.hadoop.mapreduce.TaskAttemptID;
@@ -96,8 +98,10 @@ public class TestRecabTableMapper
 	private static final String deletion = "DELETE	107	chr12	1	60	3M2D2M	*	*	*	AAGTT	ABCDE	MD:Z:3^CA2	RG:Z:test";
 	private static final String insertion = "INSERT	107	chr12	1	60	3M4I2M	*	*	*	AAGCTATTT	ABCDEFGHI	MD:Z:5	RG:Z:test";
 
+	private static final CovariateList defaultCovariates = new CovariateList(new Configuration());
+
 	private RecabTableMapper mapper;
-	private TestContext<Text, ObservationCount> context;
+	private TestContext<RecabKey, ObservationCount> context;
 	private DaVariantReader reader;
 	private Configuration conf;
 	private SamInputFormat.SamRecordReader samReader;
@@ -107,9 +111,13 @@ public class TestRecabTableMapper
 	public void setup() throws IOException
 	{
 		mapper = new RecabTableMapper();
-		context = new TestContext<Text, ObservationCount>();
+		context = new TestContext<RecabKey, ObservationCount>();
 		reader = new DaVariantReader();
 		conf = new Configuration();
+		// most tests look at the records emitted for each base
+		conf.setBoolean(RecabTableMapper.CONF_IN_MAPPER_COMBINING, false);
+		// and check the counters right after calling map
+		conf.setInt(RecabTableMapper.CONF_COUNTER_UPDATE_INTERVAL, 1);
 		samReader = null;
 
 		tempFile = File.createTempFile("test_recab_table", ".sam");
@@ -130,8 +138,11 @@ public class TestRecabTableMapper
 
 		FileSplit split = new FileSplit(new Path(tempFile.toURI().toString()), 0, sam.length(), null);
 
+		// the tests keep all the records
+		Configuration readerConf = new Configuration(conf);
+		readerConf.setBoolean(SealToolParser.INPUT_REUSE_RECORDS, false);
 		samReader = new SamInputFormat.SamRecordReader();
-		samReader.initialize(split, Utils.getTaskAttemptContext(conf));
+		samReader.initialize(split, Utils.getTaskAttemptContext(readerConf));
 	}
 
 	private List<ReadPair> makeReadPairs(String sam) throws IOException
@@ -183,7 +194,7 @@ public class TestRecabTableMapper
 		assertEquals(3, context.getNumWrites());
 
 		// check keys
-		Set<Text> keys = context.getKeys();
+		Set<RecabKey> keys = context.getKeys();
 		assertTrue( keys.contains(prepKey("test", "33", "1", "NN")) );
 		assertTrue( keys.contains(prepKey("test", "34", "2", "AG")) );
 		assertTrue( keys.contains(prepKey("test", "35", "3", "GC")) );
@@ -214,7 +225,7 @@ public class TestRecabTableMapper
 			assertEquals(0, c.getMismatches());
 		}
 
-		Set<Text> keys = context.getKeys();
+		Set<RecabKey> keys = context.getKeys();
 		assertTrue( keys.contains(prepKey("test", "35", "1", "NN")) );
 		assertTrue( keys.contains(prepKey("test", "34", "2", "GC")) );
 		assertTrue( keys.contains(prepKey("test", "33", "3", "CT")) );
@@ -237,7 +248,7 @@ public class TestRecabTableMapper
 			assertEquals(0, c.getMismatches());
 		}
 
-		Set<Text> keys = context.getKeys();
+		Set<RecabKey> keys = context.getKeys();
 		assertTrue( keys.contains(prepKey("test", "33", "-1", "NN")) );
 		assertTrue( keys.contains(prepKey("test", "34", "-2", "AG")) );
 		assertTrue( keys.contains(prepKey("test", "35", "-3", "GC")) );
@@ -260,7 +271,7 @@ public class TestRecabTableMapper
 			assertEquals(0, c.getMismatches());
 		}
 
-		Set<Text> keys = context.getKeys();
+		Set<RecabKey> keys = context.getKeys();
 		assertTrue( keys.contains(prepKey("test", "35", "-1", "NN")) );
 		assertTrue( keys.contains(prepKey("test", "34", "-2", "GC")) );
 		assertTrue( keys.contains(prepKey("test", "33", "-3", "CT")) );
@@ -337,7 +348,7 @@ public class TestRecabTableMapper
 		assertEquals(0, context.getCounterValue("it.crs4.seal.recab.RecabTableMapper$BaseCounters", "NonVariantMismatches"));
 
 		// check keys
-		Set<Text> keys = context.getKeys();
+		Set<RecabKey> keys = context.getKeys();
 		assertTrue( keys.contains(prepKey("test", "33", "1", "NN")) );
 		assertTrue( keys.contains(prepKey("test", "35", "3", "GC")) );
 
@@ -387,7 +398,7 @@ public class TestRecabTableMapper
 		assertEquals(5, context.getNumWrites());
 		assertEquals(5, context.getCounterValue("it.crs4.seal.recab.RecabTableMapper$BaseCounters", "Used"));
 
-		Set<Text> keys = context.getKeys();
+		Set<RecabKey> keys = context.getKeys();
 		assertEquals(5, keys.size());
 		assertTrue( keys.contains(prepKey("test", "32", "1", "NN")) );
 		assertTrue( keys.contains(prepKey("test", "33", "2", "AA")) );
@@ -407,7 +418,7 @@ public class TestRecabTableMapper
 		assertEquals(5, context.getNumWrites());
 		assertEquals(5, context.getCounterValue("it.crs4.seal.recab.RecabTableMapper$BaseCounters", "Used"));
 
-		Set<Text> keys = context.getKeys();
+		Set<RecabKey> keys = context.getKeys();
 		assertEquals(5, keys.size());
 		assertTrue( keys.contains(prepKey("test", "32", "1", "NN")) );
 		assertTrue( keys.contains(prepKey("test", "33", "2", "AA")) );
@@ -435,10 +446,10 @@ public class TestRecabTableMapper
 		assertEquals(18, context.getNumWrites());
 
 		// ensure cycles 19, 20, and 21 have been filtered
-		Set<Text> keys = context.getKeys();
+		Set<RecabKey> keys = context.getKeys();
 		Set<String> cycles = new HashSet<String>();
-		for (Text k: keys)
-			cycles.add( k.toString().split(RecabTable.TableDelim)[2] );
+		for (RecabKey k: keys)
+			cycles.add( defaultCovariates.getValue(k, 2) );
 
 		assertFalse( cycles.contains("19") );
 		assertFalse( cycles.contains("20") );
@@ -455,26 +466,271 @@ public class TestRecabTableMapper
 		assertEquals(18, context.getNumWrites());
 
 		// ensure cycles 1, 2, and 3 have been filtered
-		Set<Text> keys = context.getKeys();
+		Set<RecabKey> keys = context.getKeys();
 		Set<String> cycles = new HashSet<String>();
-		for (Text k: keys)
-			cycles.add( k.toString().split(RecabTable.TableDelim)[2] );
+		for (RecabKey k: keys)
+			cycles.add( defaultCovariates.getValue(k, 2) );
 
 		assertFalse( cycles.contains("1") );
 		assertFalse( cycles.contains("2") );
 		assertFalse( cycles.contains("3") );
 	}
 
+	@Test
+	public void testInMapperCombining() throws IOException, InterruptedException
+	{
+		conf.setBoolean(RecabTableMapper.CONF_IN_MAPPER_COMBINING, true);
+		List<ReadPair> pairs = makeReadPairs(littleSam + "\n" + littleSam.replace("MD:Z:3", "MD:Z:1A1"));
+
+		mapper.setup(reader, context, conf);
+		mapper.map(new LongWritable(0), pairs.get(0), context);
+		mapper.map(new LongWritable(0), pairs.get(1), context);
+
+		// nothing is emitted until cleanup
+		assertEquals(0, context.getNumWrites());
+		assertEquals(6, context.getCounterValue("it.crs4.seal.recab.RecabTableMapper$BaseCounters", "Used"));
+		assertEquals(1, context.getCounterValue("it.crs4.seal.recab.RecabTableMapper$BaseCounters", "NonVariantMismatches"));
+
+		mapper.cleanup(context);
+		assertEquals(3, context.getNumWrites());
+
+		assertEquals(Arrays.asList(new ObservationCount(2, 0)), context.getValuesForKey(prepKey("test", "33", "1", "NN")));
+		assertEquals(Arrays.asList(new ObservationCount(2, 1)), context.getValuesForKey(prepKey("test", "34", "2", "AG")));
+		assertEquals(Arrays.asList(new ObservationCount(2, 0)), context.getValuesForKey(prepKey("test", "35", "3", "GC")));
+	}
+
+	@Test
+	public void testInMapperCombiningDifferentLengths() throws IOException, InterruptedException
+	{
+		conf.setBoolean(RecabTableMapper.CONF_IN_MAPPER_COMBINING, true);
+		List<ReadPair> pairs = makeReadPairs(littleSamRead2 + "\n" + bigSam);
+
+		mapper.setup(reader, context, conf);
+		mapper.map(new LongWritable(0), pairs.get(0), context);
+		mapper.map(new LongWritable(0), pairs.get(1), context);
+		mapper.cleanup(context);
+
+		assertEquals(3 + 91, context.getNumWrites());
+		assertEquals(3 + 91, context.getKeys().size());
+		assertTrue( context.getKeys().contains(prepKey("test", "33", "-1", "NN")) );
+		assertTrue( context.getKeys().contains(prepKey("test", "34", "-2", "AG")) );
+		assertTrue( context.getKeys().contains(prepKey("test", "35", "-3", "GC")) );
+	}
+
+	@Test
+	public void testInMapperCombiningReadGroups() throws IOException, InterruptedException
+	{
+		conf.setBoolean(RecabTableMapper.CONF_IN_MAPPER_COMBINING, true);
+		List<ReadPair> pairs = makeReadPairs(littleSam + "\n" + littleSam.replace("RG:Z:test", "RG:Z:other") + "\n" + littleSam);
+
+		mapper.setup(reader, context, conf);
+		for (ReadPair p: pairs)
+			mapper.map(new LongWritable(0), p, context);
+		mapper.cleanup(context);
+
+		assertEquals(6, context.getNumWrites());
+		assertEquals(Arrays.asList(new ObservationCount(2, 0)), context.getValuesForKey(prepKey("test", "33", "1", "NN")));
+		assertEquals(Arrays.asList(new ObservationCount(1, 0)), context.getValuesForKey(prepKey("other", "33", "1", "NN")));
+	}
+
+	@Test
+	public void testCounterUpdateInterval() throws IOException, InterruptedException
+	{
+		conf.setInt(RecabTableMapper.CONF_COUNTER_UPDATE_INTERVAL, 2);
+		List<ReadPair> pairs = makeReadPairs(littleSam + "\n" + littleSam + "\n" + littleSam);
+
+		mapper.setup(reader, context, conf);
+		mapper.map(new LongWritable(0), pairs.get(0), context);
+		assertEquals(0, context.getCounterValue("it.crs4.seal.recab.RecabTableMapper$ReadCounters", "Processed"));
+		assertEquals(0, context.getCounterValue("it.crs4.seal.recab.RecabTableMapper$BaseCounters", "Used"));
+
+		mapper.map(new LongWritable(0), pairs.get(1), context);
+		assertEquals(2, context.getCounterValue("it.crs4.seal.recab.RecabTableMapper$ReadCounters", "Processed"));
+		assertEquals(6, context.getCounterValue("it.crs4.seal.recab.RecabTableMapper$BaseCounters", "Used"));
+
+		mapper.map(new LongWritable(0), pairs.get(2), context);
+		mapper.cleanup(context);
+		assertEquals(3, context.getCounterValue("it.crs4.seal.recab.RecabTableMapper$ReadCounters", "Processed"));
+		assertEquals(9, context.getCounterValue("it.crs4.seal.recab.RecabTableMapper$BaseCounters", "All"));
+		assertEquals(9, context.getCounterValue("it.crs4.seal.recab.RecabTableMapper$BaseCounters", "Used"));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testBadCounterUpdateInterval() throws IOException
+	{
+		conf.setInt(RecabTableMapper.CONF_COUNTER_UPDATE_INTERVAL, 0);
+		mapper.setup(reader, context, conf);
+	}
+
+	@Test
+	public void testConfiguredCovariates() throws IOException, InterruptedException
+	{
+		conf.set(CovariateList.CONF_COVARIATES, "Dinuc,Quality");
+		CovariateList covariates = new CovariateList(conf);
+		List<ReadPair> pairs = makeReadPairs(littleSam);
+
+		mapper.setup(reader, context, conf);
+		mapper.map(new LongWritable(0), pairs.get(0), context);
+
+		assertEquals(3, context.getNumWrites());
+		Set<RecabKey> keys = context.getKeys();
+		for (String[] values: new String[][] { {"NN", "33"}, {"AG", "34"}, {"GC", "35"} })
+		{
+			RecabKey key = new RecabKey();
+			covariates.encode(values, key);
+			assertTrue( keys.contains(key) );
+			assertEquals("", key.getReadGroup());
+		}
+	}
+
+	@Test
+	public void testSampleRate() throws IOException, InterruptedException
+	{
+		conf.setFloat(RecabTableMapper.CONF_SAMPLE_RATE, 0.5f);
+		StringBuilder sam = new StringBuilder();
+		for (int i = 0; i < 200; ++i)
+			sam.append(littleSam.replace("LITTLE", "READ" + i)).append("\n");
+		List<ReadPair> pairs = makeReadPairs(sam.toString());
+
+		mapper.setup(reader, context, conf);
+		for (ReadPair p: pairs)
+			mapper.map(new LongWritable(0), p, context);
+		mapper.cleanup(context);
+
+		long sampled = context.getCounterValue("it.crs4.seal.recab.RecabTableMapper$ReadCounters", "Sampled");
+		assertEquals(200, context.getCounterValue("it.crs4.seal.recab.RecabTableMapper$ReadCounters", "Processed"));
+		assertEquals(600, context.getCounterValue("it.crs4.seal.recab.RecabTableMapper$BaseCounters", "All"));
+		assertTrue(sampled > 60 && sampled < 140);
+		assertEquals(3 * sampled, context.getCounterValue("it.crs4.seal.recab.RecabTableMapper$BaseCounters", "Used"));
+		assertEquals(3 * sampled, context.getNumWrites());
+	}
+
+	@Test
+	public void testSampleKeepsMatesTogether() throws IOException, InterruptedException
+	{
+		conf.setFloat(RecabTableMapper.CONF_SAMPLE_RATE, 0.5f);
+		StringBuilder sam = new StringBuilder();
+		for (int i = 0; i < 100; ++i)
+		{
+			sam.append(littleSam.replace("LITTLE", "READ" + i + "/1")).append("\n");
+			sam.append(littleSamRead2.replace("LITTLE", "READ" + i + "/2")).append("\n");
+		}
+		List<ReadPair> pairs = makeReadPairs(sam.toString());
+
+		mapper.setup(reader, context, conf);
+		for (ReadPair p: pairs)
+			mapper.map(new LongWritable(0), p, context);
+		mapper.cleanup(context);
+
+		// reads 1 and 2 of the same pair are either both used or both skipped
+		long cycle1 = 0, cycleMinus1 = 0;
+		for (ObservationCount c: context.getValuesForKey(prepKey("test", "33", "1", "NN")))
+			cycle1 += c.getObservations();
+		for (ObservationCount c: context.getValuesForKey(prepKey("test", "33", "-1", "NN")))
+			cycleMinus1 += c.getObservations();
+		assertTrue(cycle1 > 0 && cycle1 < 100);
+		assertEquals(cycle1, cycleMinus1);
+	}
+
+	@Test
+	public void testMaxUsedBases() throws IOException, InterruptedException
+	{
+		conf.setLong(RecabTableMapper.CONF_MAX_USED_BASES, 4);
+		List<ReadPair> pairs = makeReadPairs(littleSam + "\n" + littleSam + "\n" + littleSam + "\n" + littleSam);
+
+		mapper.setup(reader, context, conf);
+		for (ReadPair p: pairs)
+			mapper.map(new LongWritable(0), p, context);
+		mapper.cleanup(context);
+
+		// the limit is checked before each read, so the second read is used entirely
+		assertEquals(4, context.getCounterValue("it.crs4.seal.recab.RecabTableMapper$ReadCounters", "Processed"));
+		assertEquals(2, context.getCounterValue("it.crs4.seal.recab.RecabTableMapper$ReadCounters", "Sampled"));
+		assertEquals(6, context.getCounterValue("it.crs4.seal.recab.RecabTableMapper$BaseCounters", "Used"));
+		assertEquals(12, context.getCounterValue("it.crs4.seal.recab.RecabTableMapper$BaseCounters", "All"));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testBadSampleRate() throws IOException
+	{
+		conf.setFloat(RecabTableMapper.CONF_SAMPLE_RATE, 0.0f);
+		mapper.setup(reader, context, conf);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testBadMaxUsedBases() throws IOException
+	{
+		conf.setLong(RecabTableMapper.CONF_MAX_USED_BASES, -1);
+		mapper.setup(reader, context, conf);
+	}
+
+	@Test
+	public void testRegionsPartialRead() throws IOException, InterruptedException
+	{
+		IntervalSet regions = new IntervalSet();
+		regions.add("chr6", 2, 10);
+		List<ReadPair> pairs = makeReadPairs(littleSam);
+
+		mapper.setRegions(regions);
+		mapper.setup(reader, context, conf);
+		mapper.map(new LongWritable(0), pairs.get(0), context);
+
+		assertEquals(0, context.getCounterValue("it.crs4.seal.recab.RecabTableMapper$ReadCounters", "FilteredOutsideRegions"));
+		assertEquals(2, context.getCounterValue("it.crs4.seal.recab.RecabTableMapper$BaseCounters", "Used"));
+		assertEquals(1, context.getCounterValue("it.crs4.seal.recab.RecabTableMapper$BaseCounters", "OutsideRegions"));
+
+		assertEquals(2, context.getNumWrites());
+		Set<RecabKey> keys = context.getKeys();
+		assertTrue( keys.contains(prepKey("test", "34", "2", "AG")) );
+		assertTrue( keys.contains(prepKey("test", "35", "3", "GC")) );
+	}
+
+	@Test
+	public void testRegionsGapInsideRead() throws IOException, InterruptedException
+	{
+		IntervalSet regions = new IntervalSet();
+		regions.add("chr6", 1, 1);
+		regions.add("chr6", 3, 3);
+		List<ReadPair> pairs = makeReadPairs(littleSam);
+
+		mapper.setRegions(regions);
+		mapper.setup(reader, context, conf);
+		mapper.map(new LongWritable(0), pairs.get(0), context);
+
+		assertEquals(2, context.getCounterValue("it.crs4.seal.recab.RecabTableMapper$BaseCounters", "Used"));
+		assertEquals(1, context.getCounterValue("it.crs4.seal.recab.RecabTableMapper$BaseCounters", "OutsideRegions"));
+		Set<RecabKey> keys = context.getKeys();
+		assertTrue( keys.contains(prepKey("test", "33", "1", "NN")) );
+		assertTrue( keys.contains(prepKey("test", "35", "3", "GC")) );
+	}
+
+	@Test
+	public void testReadOutsideRegions() throws IOException, InterruptedException
+	{
+		IntervalSet regions = new IntervalSet();
+		regions.add("chr6", 100, 200);
+		regions.add("chr12", 1, 10);
+		List<ReadPair> pairs = makeReadPairs(littleSam);
+
+		mapper.setRegions(regions);
+		mapper.setup(reader, context, conf);
+		mapper.map(new LongWritable(0), pairs.get(0), context);
+
+		assertEquals(1, context.getCounterValue("it.crs4.seal.recab.RecabTableMapper$ReadCounters", "Processed"));
+		assertEquals(1, context.getCounterValue("it.crs4.seal.recab.RecabTableMapper$ReadCounters", "FilteredOutsideRegions"));
+		assertEquals(1, context.getCounterValue("it.crs4.seal.recab.RecabTableMapper$ReadCounters", "FilteredTotal"));
+		assertEquals(0, context.getCounterValue("it.crs4.seal.recab.RecabTableMapper$BaseCounters", "Used"));
+		assertEquals(0, context.getNumWrites());
+	}
+
 	/**
 	 * Public for re-use in other tests.
 	 */
-	public static Text prepKey(String rg, String quality, String cycle, String dinuc)
+	public static RecabKey prepKey(String rg, String quality, String cycle, String dinuc)
 	{
-		return new Text(
-		  rg + RecabTable.TableDelim +
-		  quality + RecabTable.TableDelim +
-		  cycle + RecabTable.TableDelim +
-		  dinuc + RecabTable.TableDelim);
+		RecabKey key = new RecabKey();
+		defaultCovariates.encode(new String[] { rg, quality, cycle, dinuc }, key);
+		return key;
 	}
 
 	public static void main(String args[]) {
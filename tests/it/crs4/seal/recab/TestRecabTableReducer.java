@@ -19,6 +19,7 @@ package tests.it.crs4.seal.recab;
 
 import it.crs4.seal.common.IMRContext;
 import it.crs4.seal.common.TestContext;
+import it.crs4.seal.recab.RecabKey;
 import it.crs4.seal.recab.RecabTable;
 import it.crs4.seal.recab.RecabTableReducer;
 import it.crs4.seal.recab.ObservationCount;
@@ -67,7 +68,7 @@ public class TestRecabTableReducer
 	{
 		reducer.setup(conf);
 
-		Text key = TestRecabTableMapper.prepKey("rg", "30", "1", "AG");
+		RecabKey key = TestRecabTableMapper.prepKey("rg", "30", "1", "AG");
 		List<ObservationCount> values = Arrays.asList( new ObservationCount(3,1) );
 
 		reducer.reduce(key, values, context);
@@ -80,7 +81,7 @@ public class TestRecabTableReducer
 		assertEquals(1, emittedValues.size());
 		Text output = emittedValues.get(0);
 
-		String expected = key.toString() + "3" + RecabTable.TableDelim + "1" + RecabTable.TableDelim + "5";
+		String expected = "rg,30,1,AG," + "3" + RecabTable.TableDelim + "1" + RecabTable.TableDelim + "5";
 		assertEquals(expected, output.toString());
 	}
 
@@ -89,7 +90,7 @@ public class TestRecabTableReducer
 	{
 		reducer.setup(conf);
 
-		Text key = TestRecabTableMapper.prepKey("rg", "30", "1", "AG");
+		RecabKey key = TestRecabTableMapper.prepKey("rg", "30", "1", "AG");
 		List<ObservationCount> values = Arrays.asList(
 				new ObservationCount(43,5),
 				new ObservationCount(34,10),
@@ -105,7 +106,7 @@ public class TestRecabTableReducer
 		assertEquals(1, emittedValues.size());
 		Text output = emittedValues.get(0);
 
-		String expected = key.toString() + "100" + RecabTable.TableDelim + "20" + RecabTable.TableDelim + "7";
+		String expected = "rg,30,1,AG," + "100" + RecabTable.TableDelim + "20" + RecabTable.TableDelim + "7";
 		assertEquals(expected, output.toString());
 	}
 
@@ -115,7 +116,7 @@ public class TestRecabTableReducer
 		conf.set(RecabTableReducer.CONF_SMOOTHING, "10");
 		reducer.setup(conf);
 
-		Text key = TestRecabTableMapper.prepKey("rg", "30", "1", "AG");
+		RecabKey key = TestRecabTableMapper.prepKey("rg", "30", "1", "AG");
 		List<ObservationCount> values = Arrays.asList( new ObservationCount(3,1) );
 
 		reducer.reduce(key, values, context);
@@ -124,7 +125,7 @@ public class TestRecabTableReducer
 		assertEquals(1, emittedValues.size());
 		Text output = emittedValues.get(0);
 
-		String expected = key.toString() + "3" + RecabTable.TableDelim + "1" + RecabTable.TableDelim + "1";
+		String expected = "rg,30,1,AG," + "3" + RecabTable.TableDelim + "1" + RecabTable.TableDelim + "1";
 		assertEquals(expected, output.toString());
 	}
 
@@ -0,0 +1,156 @@
+// Copyright (C) 2011-2012 CRS4.
+//
+// This file is part of Seal.
+//
+// Seal is free software: you can redistribute it and/or modify it
+// under the terms of the GNU General Public License as published by the Free
+// Software Foundation, either version 3 of the License, or (at your option)
+// any later version.
+//
+// Seal is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+// or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+// for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with Seal.  If not, see <http://www.gnu.org/licenses/>.
+
+package tests.it.crs4.seal.recab;
+
+import it.crs4.seal.recab.ArrayVariantTable;
+import it.crs4.seal.recab.BitmapVariantTable;
+import it.crs4.seal.recab.HashSetVariantTable;
+import it.crs4.seal.recab.KnownSitesIndex;
+import it.crs4.seal.recab.VariantCursor;
+import it.crs4.seal.recab.VariantReader;
+import it.crs4.seal.recab.VariantRegion;
+import it.crs4.seal.recab.VariantTable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Random;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class TestVariantCursor
+{
+	private static class ListVariantReader implements VariantReader {
+		public ArrayList<VariantRegion> snpList = new ArrayList<VariantRegion>();
+		public Iterator<VariantRegion> iterator = null;
+
+		public boolean nextEntry(VariantRegion dest)
+		{
+			if (iterator == null)
+				iterator = snpList.iterator();
+
+			if (iterator.hasNext())
+			{
+				dest.set(iterator.next());
+				return true;
+			}
+			else
+				return false;
+		}
+	}
+
+	private ListVariantReader reader;
+
+	@Before
+	public void setup()
+	{
+		reader = new ListVariantReader();
+		reader.snpList.add(new VariantRegion("chr1", 10));
+		reader.snpList.add(new VariantRegion("chr1", 11));
+		reader.snpList.add(new VariantRegion("chr1", 50));
+		reader.snpList.add(new VariantRegion("chr1", 1000));
+		reader.snpList.add(new VariantRegion("chr2", 3, 2));
+	}
+
+	private VariantCursor cursorFor(VariantTable table) throws IOException
+	{
+		reader.iterator = null;
+		table.load(reader);
+		return table.getCursor();
+	}
+
+	private void checkBasicQueries(VariantCursor cursor)
+	{
+		assertFalse(cursor.seek("chr1", 1));
+		assertTrue(cursor.advanceTo(10));
+		assertTrue(cursor.advanceTo(11));
+		assertFalse(cursor.advanceTo(12));
+		assertTrue(cursor.advanceTo(50));
+		assertTrue(cursor.advanceTo(1000));
+		assertFalse(cursor.advanceTo(1001));
+		assertFalse(cursor.advanceTo(5000));
+		// jump back
+		assertTrue(cursor.advanceTo(11));
+		assertFalse(cursor.advanceTo(9));
+		assertTrue(cursor.advanceTo(10));
+		// change contig
+		assertTrue(cursor.seek("chr2", 3));
+		assertTrue(cursor.advanceTo(4));
+		assertFalse(cursor.advanceTo(10));
+		assertTrue(cursor.seek("chr1", 50));
+		// unknown contig
+		assertFalse(cursor.seek("chrX", 10));
+		assertFalse(cursor.advanceTo(11));
+	}
+
+	@Test
+	public void testArrayVariantTableCursor() throws IOException
+	{
+		checkBasicQueries(cursorFor(new ArrayVariantTable()));
+	}
+
+	@Test
+	public void testKnownSitesIndexCursor() throws IOException
+	{
+		checkBasicQueries(cursorFor(new KnownSitesIndex()));
+	}
+
+	@Test
+	public void testSimpleCursor() throws IOException
+	{
+		checkBasicQueries(cursorFor(new HashSetVariantTable()));
+		checkBasicQueries(cursorFor(new BitmapVariantTable()));
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void testAdvanceBeforeSeek() throws IOException
+	{
+		cursorFor(new ArrayVariantTable()).advanceTo(10);
+	}
+
+	@Test
+	public void testRandomQueries() throws IOException
+	{
+		Random rnd = new Random(1234);
+		reader.snpList.clear();
+		for (int i = 0; i < 2000; ++i)
+			reader.snpList.add(new VariantRegion("chr1", 1 + rnd.nextInt(100000)));
+
+		ArrayVariantTable table = new ArrayVariantTable();
+		table.load(reader);
+		VariantCursor cursor = table.getCursor();
+
+		// mostly increasing positions, with some jumps back and forward
+		long pos = 1;
+		cursor.seek("chr1", pos);
+		for (int i = 0; i < 50000; ++i)
+		{
+			int r = rnd.nextInt(100);
+			if (r < 2)
+				pos = 1 + rnd.nextInt(100000);
+			else
+				pos += rnd.nextInt(5);
+			assertEquals("at position " + pos, table.isVariantLocation("chr1", pos), cursor.advanceTo(pos));
+		}
+	}
+
+	public static void main(String args[]) {
+		org.junit.runner.JUnitCore.main(TestVariantCursor.class.getName());
+	}
+}